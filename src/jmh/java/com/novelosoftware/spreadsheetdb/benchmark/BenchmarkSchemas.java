@@ -0,0 +1,89 @@
+package com.novelosoftware.spreadsheetdb.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.avro.Schema;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.service.RecordService;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+
+/**
+ * Schemas, records and stores shared by the benchmarks. A narrow schema has a key and 3 columns,
+ * a wide one a key and 63 columns, cycling through string, long and double columns.
+ */
+final class BenchmarkSchemas {
+
+	static final String SCHEMA_NAME = "bench";
+	static final int NARROW_COLUMNS = 3;
+	static final int WIDE_COLUMNS = 63;
+	private static final int SLAB_SIZE_BYTES = 4 << 20;
+
+	private BenchmarkSchemas() {
+	}
+
+	static int columns(String width) {
+		return "wide".equals(width) ? WIDE_COLUMNS : NARROW_COLUMNS;
+	}
+
+	static Schema schema(String keyType, int columns) {
+		StringBuilder json = new StringBuilder("{\"type\": \"record\", \"name\": \"Bench\", \"fields\": [");
+		json.append("{\"name\": \"id\", \"type\": \"").append(keyType.toLowerCase()).append("\"}");
+		for (int column = 0; column < columns; column++) {
+			json.append(", {\"name\": \"c").append(column).append("\", \"type\": \"").append(columnType(column)).append("\"}");
+		}
+		return new Schema.Parser().parse(json.append("]}").toString());
+	}
+
+	static String key(String keyType, long id) {
+		return "STRING".equals(keyType) ? String.format("key-%09d", id) : Long.toString(id);
+	}
+
+	static String recordJson(String keyType, int columns, long id) {
+		StringBuilder json = new StringBuilder("{\"id\": ");
+		json.append("STRING".equals(keyType) ? "\"" + key(keyType, id) + "\"" : key(keyType, id));
+		for (int column = 0; column < columns; column++) {
+			json.append(", \"c").append(column).append("\": ");
+			switch (columnType(column)) {
+				case "string" -> json.append("\"value ").append(id).append('-').append(column).append('"');
+				case "long" -> json.append(id * 31 + column);
+				default -> json.append(id / 7.0 + column);
+			}
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Creates a record service over a fresh schema directory, without a write-ahead log or a
+	 * response cache so the benchmarks measure the in-memory engine.
+	 */
+	static RecordService createService(Path directory, String keyType, int columns) throws IOException {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema(SCHEMA_NAME, "id", schema(keyType, columns));
+		return new RecordService(schemaDao, new RecordTableFactory(SLAB_SIZE_BYTES, false, 0, MutationLog.NONE),
+				new RecordMetrics(new SimpleMeterRegistry()), new ResponseCache(0));
+	}
+
+	static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	private static String columnType(int column) {
+		return switch (column % 3) {
+			case 0 -> "string";
+			case 1 -> "long";
+			default -> "double";
+		};
+	}
+}
@@ -0,0 +1,88 @@
+package com.novelosoftware.spreadsheetdb.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.novelosoftware.spreadsheetdb.service.RecordService;
+
+/**
+ * Throughput of concurrent reads and writes on one table at several thread counts. Each
+ * operation is a point read, or an upsert with the configured probability.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MixedWorkloadBenchmark {
+
+	@Param({"LONG", "STRING"})
+	String keyType;
+
+	@Param({"10"})
+	int writePercent;
+
+	private Path directory;
+	private RecordService recordService;
+	private String[] records;
+	private String[] keys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("spreadsheetdb-bench");
+		recordService = BenchmarkSchemas.createService(directory, keyType, BenchmarkSchemas.NARROW_COLUMNS);
+		records = new String[RecordServiceBenchmark.ROWS];
+		keys = new String[RecordServiceBenchmark.ROWS];
+		for (int id = 0; id < records.length; id++) {
+			records[id] = BenchmarkSchemas.recordJson(keyType, BenchmarkSchemas.NARROW_COLUMNS, id);
+			keys[id] = BenchmarkSchemas.key(keyType, id);
+			recordService.upsert(BenchmarkSchemas.SCHEMA_NAME, records[id]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkSchemas.delete(directory);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void mixed1Thread(Blackhole blackhole) throws Exception {
+		operation(blackhole);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void mixed4Threads(Blackhole blackhole) throws Exception {
+		operation(blackhole);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void mixed16Threads(Blackhole blackhole) throws Exception {
+		operation(blackhole);
+	}
+
+	private void operation(Blackhole blackhole) throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int id = random.nextInt(records.length);
+		if (random.nextInt(100) < writePercent) {
+			recordService.upsert(BenchmarkSchemas.SCHEMA_NAME, records[id]);
+		} else {
+			blackhole.consume(recordService.getRecord(BenchmarkSchemas.SCHEMA_NAME, keys[id]));
+		}
+	}
+}
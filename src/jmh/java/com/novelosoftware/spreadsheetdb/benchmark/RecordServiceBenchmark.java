@@ -0,0 +1,72 @@
+package com.novelosoftware.spreadsheetdb.benchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.novelosoftware.spreadsheetdb.service.RecordService;
+
+/**
+ * Latency of a single upsert and a single point read, across key types and schema widths.
+ * The table is preloaded so reads always hit and upserts replace existing rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RecordServiceBenchmark {
+
+	static final int ROWS = 100_000;
+
+	@Param({"INT", "LONG", "STRING"})
+	String keyType;
+
+	@Param({"narrow", "wide"})
+	String width;
+
+	private Path directory;
+	private RecordService recordService;
+	private String[] records;
+	private String[] keys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		int columns = BenchmarkSchemas.columns(width);
+		directory = Files.createTempDirectory("spreadsheetdb-bench");
+		recordService = BenchmarkSchemas.createService(directory, keyType, columns);
+		records = new String[ROWS];
+		keys = new String[ROWS];
+		for (int id = 0; id < ROWS; id++) {
+			records[id] = BenchmarkSchemas.recordJson(keyType, columns, id);
+			keys[id] = BenchmarkSchemas.key(keyType, id);
+			recordService.upsert(BenchmarkSchemas.SCHEMA_NAME, records[id]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkSchemas.delete(directory);
+	}
+
+	@Benchmark
+	public void upsert() throws Exception {
+		recordService.upsert(BenchmarkSchemas.SCHEMA_NAME, records[ThreadLocalRandom.current().nextInt(ROWS)]);
+	}
+
+	@Benchmark
+	public void getRecord(Blackhole blackhole) {
+		blackhole.consume(recordService.getRecord(BenchmarkSchemas.SCHEMA_NAME, keys[ThreadLocalRandom.current().nextInt(ROWS)]));
+	}
+}
@@ -0,0 +1,47 @@
+package com.novelosoftware.spreadsheetdb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+
+/**
+ * Cost of compressing a schema to its stored form and of parsing it back, for narrow and wide schemas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SchemaDaoBenchmark {
+
+	@Param({"narrow", "wide"})
+	String width;
+
+	private Schema schema;
+	private byte[] compressed;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		schema = BenchmarkSchemas.schema("LONG", BenchmarkSchemas.columns(width));
+		compressed = SchemaDao.compressSchemaToJson(schema);
+	}
+
+	@Benchmark
+	public byte[] compressSchemaToJson() throws Exception {
+		return SchemaDao.compressSchemaToJson(schema);
+	}
+
+	@Benchmark
+	public Schema decompressSchemaFromJson() throws Exception {
+		return SchemaDao.decompressSchemaFromJson(compressed);
+	}
+}
@@ -0,0 +1,111 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Drives the HTTP API of a running server. Requests are sent on HTTP/1.1 connections shared by
+ * every client, so the server sees as many connections as there are requests in flight.
+ */
+final class HttpTarget implements LoadTarget {
+
+	private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+	private final String baseUrl;
+	private final HttpClient client;
+
+	HttpTarget(String url) {
+		this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(TIMEOUT)
+				.executor(Executors.newVirtualThreadPerTaskExecutor())
+				.build();
+	}
+
+	@Override
+	public void createSchema(String schemaName, String requestJson) throws Exception {
+		HttpResponse<String> response = client.send(post("/schema/" + encode(schemaName), "application/json", requestJson),
+				HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != 201) {
+			throw new IOException("Schema creation answered " + response.statusCode() + ": " + response.body());
+		}
+	}
+
+	@Override
+	public void upsert(String schemaName, String json) throws Exception {
+		send(post("/records/" + encode(schemaName), "application/json", json), 200);
+	}
+
+	@Override
+	public boolean get(String schemaName, String key) throws Exception {
+		HttpRequest request = request("/records/" + encode(schemaName) + "/" + encode(key))
+				.header("Accept", "application/json")
+				.GET()
+				.build();
+		HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() != 200 && response.statusCode() != 404) {
+			throw new IOException(request.uri() + " answered " + response.statusCode());
+		}
+		return response.statusCode() == 200;
+	}
+
+	@Override
+	public void batch(String schemaName, List<String> jsons) throws Exception {
+		send(post("/records/" + encode(schemaName) + "/batch", "application/x-ndjson", String.join("\n", jsons)), 200);
+	}
+
+	@Override
+	public int scan(String schemaName, String fromKey, int limit) throws Exception {
+		HttpRequest request = request("/records/" + encode(schemaName) + "?from=" + encode(fromKey) + "&limit=" + limit)
+				.header("Accept", "application/x-ndjson")
+				.GET()
+				.build();
+		HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() != 200) {
+			throw new IOException(request.uri() + " answered " + response.statusCode());
+		}
+		int lines = 0;
+		for (byte b : response.body()) {
+			if (b == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	@Override
+	public void close() {
+		client.close();
+	}
+
+	private void send(HttpRequest request, int expectedStatus) throws Exception {
+		HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+		if (response.statusCode() != expectedStatus) {
+			throw new IOException(request.uri() + " answered " + response.statusCode());
+		}
+	}
+
+	private HttpRequest post(String path, String contentType, String body) {
+		return request(path)
+				.header("Content-Type", contentType)
+				.POST(HttpRequest.BodyPublishers.ofString(body))
+				.build();
+	}
+
+	private HttpRequest.Builder request(String path) {
+		return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(TIMEOUT);
+	}
+
+	private static String encode(String value) {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+}
@@ -0,0 +1,127 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dto.BatchUpsertResult;
+import com.novelosoftware.spreadsheetdb.dto.CreateSchemaRequest;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.serialization.JacksonConfig;
+import com.novelosoftware.spreadsheetdb.service.BatchUpsertService;
+import com.novelosoftware.spreadsheetdb.service.RecordPage;
+import com.novelosoftware.spreadsheetdb.service.RecordService;
+import com.novelosoftware.spreadsheetdb.service.SchemaService;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+/**
+ * Drives the services in the same process, wired as the application wires them, minus the web
+ * layer. Writes go through the write-ahead log unless its durability is {@code off}.
+ */
+final class InProcessTarget implements LoadTarget {
+
+	private static final int SLAB_SIZE_BYTES = 4 << 20;
+	private static final long SEGMENT_SIZE_BYTES = 64L << 20;
+	private static final long FSYNC_INTERVAL_MS = 100;
+	private static final int CHANGE_ENTRIES = 65536;
+	private static final long CACHE_BYTES = 64L << 20;
+
+	private final SchemaService schemaService;
+	private final RecordService recordService;
+	private final BatchUpsertService batchUpsertService;
+	private final RecordTableFactory tableFactory;
+	private final ShardedWriteAheadLog writeAheadLog;
+
+	/**
+	 * @param directory  the directory of the schemas and of the log, which should be empty
+	 * @param durability the durability of the log, or off to leave the log out
+	 */
+	InProcessTarget(Path directory, String durability) throws IOException {
+		SchemaDao schemaDao = new SchemaDao(directory.resolve("schemas").toString());
+		MutationLog mutationLog = MutationLog.NONE;
+		if (durability.equals("off")) {
+			writeAheadLog = null;
+		} else {
+			writeAheadLog = new ShardedWriteAheadLog(directory.resolve("log").toString(), SEGMENT_SIZE_BYTES, durability,
+					FSYNC_INTERVAL_MS, 0, CHANGE_ENTRIES);
+			writeAheadLog.recover(0, entry -> {
+			});
+			mutationLog = writeAheadLog;
+		}
+		schemaService = new SchemaService(schemaDao);
+		tableFactory = new RecordTableFactory(SLAB_SIZE_BYTES, false, 0, mutationLog);
+		recordService = new RecordService(schemaDao, tableFactory, new RecordMetrics(new SimpleMeterRegistry()),
+				new ResponseCache(CACHE_BYTES));
+		batchUpsertService = new BatchUpsertService(recordService, 0);
+	}
+
+	@Override
+	public void createSchema(String schemaName, String requestJson) throws IOException {
+		CreateSchemaRequest request = new JacksonConfig().objectMapper().readValue(requestJson, CreateSchemaRequest.class);
+		schemaService.createSchema(schemaName, request);
+	}
+
+	@Override
+	public void upsert(String schemaName, String json) throws IOException {
+		recordService.upsert(schemaName, json);
+	}
+
+	@Override
+	public boolean get(String schemaName, String key) {
+		return recordService.getRecordJson(schemaName, key).isPresent();
+	}
+
+	@Override
+	public void batch(String schemaName, List<String> jsons) throws IOException {
+		byte[] ndjson = String.join("\n", jsons).getBytes(StandardCharsets.UTF_8);
+		BatchUpsertResult result = batchUpsertService.upsertBatch(schemaName, new ByteArrayInputStream(ndjson));
+		if (result.getFailed() > 0) {
+			throw new IOException(result.getFailed() + " records of the batch failed");
+		}
+	}
+
+	@Override
+	public int scan(String schemaName, String fromKey, int limit) throws IOException {
+		RecordPage page = recordService.scanRecords(schemaName, fromKey, null, limit, null, null);
+		LineCounter lines = new LineCounter();
+		page.writeNdjson(lines); // Converted to JSON as the controller does, then dropped
+		return lines.count;
+	}
+
+	@Override
+	public void close() throws Exception {
+		batchUpsertService.close();
+		tableFactory.close();
+		if (writeAheadLog != null) {
+			writeAheadLog.close();
+		}
+	}
+
+	private static final class LineCounter extends OutputStream {
+
+		private int count;
+
+		@Override
+		public void write(int b) {
+			if (b == '\n') {
+				count++;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+	}
+}
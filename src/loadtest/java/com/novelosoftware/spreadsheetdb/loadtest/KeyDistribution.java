@@ -0,0 +1,120 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the ids of the records a load test works on, from 0 to a number of records.
+ */
+abstract class KeyDistribution {
+
+	protected final int records;
+
+	private KeyDistribution(int records) {
+		this.records = records;
+	}
+
+	/**
+	 * @param random the random generator of the calling client
+	 * @return the next id
+	 */
+	abstract long next(SplittableRandom random);
+
+	/**
+	 * @param name         uniform, zipfian or sequential
+	 * @param records      the number of distinct ids
+	 * @param zipfExponent the skew of the zipfian distribution
+	 * @return the distribution, shared by every client
+	 */
+	static KeyDistribution of(String name, int records, double zipfExponent) {
+		return switch (name) {
+			case "uniform" -> new Uniform(records);
+			case "zipfian" -> new Zipfian(records, zipfExponent);
+			case "sequential" -> new Sequential(records);
+			default -> throw new IllegalArgumentException("Unknown key distribution: " + name);
+		};
+	}
+
+	private static final class Uniform extends KeyDistribution {
+
+		private Uniform(int records) {
+			super(records);
+		}
+
+		@Override
+		long next(SplittableRandom random) {
+			return random.nextInt(records);
+		}
+	}
+
+	/**
+	 * Cycles through every id in order, across all clients.
+	 */
+	private static final class Sequential extends KeyDistribution {
+
+		private final AtomicLong counter = new AtomicLong();
+
+		private Sequential(int records) {
+			super(records);
+		}
+
+		@Override
+		long next(SplittableRandom random) {
+			return counter.getAndIncrement() % records;
+		}
+	}
+
+	/**
+	 * Zipfian ids, id 0 being the most frequent, computed in constant time with the method of
+	 * Gray et al., "Quickly Generating Billion-Record Synthetic Databases". Ranks are mapped to
+	 * ids by multiplying with a prime modulo the number of records, a permutation, so the most
+	 * frequent ids don't all fall in the same shard or scan page.
+	 */
+	private static final class Zipfian extends KeyDistribution {
+
+		private static final long SCATTER_PRIME = 1_000_000_007L;
+
+		private final double theta;
+		private final double zetaN;
+		private final double alpha;
+		private final double eta;
+
+		private Zipfian(int records, double theta) {
+			super(records);
+			if (theta <= 0 || theta >= 1) {
+				throw new IllegalArgumentException("Zipf exponent must be between 0 and 1, exclusive: " + theta);
+			}
+			this.theta = theta;
+			this.zetaN = zeta(records, theta);
+			this.alpha = 1 / (1 - theta);
+			this.eta = (1 - Math.pow(2.0 / records, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+		}
+
+		@Override
+		long next(SplittableRandom random) {
+			double u = random.nextDouble();
+			double uz = u * zetaN;
+			long rank;
+			if (uz < 1) {
+				rank = 0;
+			} else if (uz < 1 + Math.pow(0.5, theta)) {
+				rank = 1;
+			} else {
+				rank = (long) (records * Math.pow(eta * u - eta + 1, alpha));
+			}
+			return scatter(Math.min(rank, records - 1));
+		}
+
+		private long scatter(long rank) {
+			return records % SCATTER_PRIME == 0 ? rank : rank * SCATTER_PRIME % records;
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			return sum;
+		}
+	}
+}
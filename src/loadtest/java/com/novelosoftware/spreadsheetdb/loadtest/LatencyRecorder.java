@@ -0,0 +1,116 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Records the latencies of the operations of one or more clients, by operation.
+ * <p>
+ * Response time runs from the moment an operation was scheduled to start, service time from
+ * the moment it actually started. At a fixed rate, an operation held back by a slow one before
+ * it still counts the time it waited, which corrects the coordinated omission of measuring
+ * service time only. Run as fast as possible, both are the same.
+ * </p>
+ */
+final class LatencyRecorder {
+
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final int SIGNIFICANT_DIGITS = 3;
+	private static final double NANOS_PER_MS = 1e6;
+
+	private final Histogram[] responseTimes = new Histogram[Operation.values().length];
+	private final Histogram[] serviceTimes = new Histogram[Operation.values().length];
+	private final long[] errors = new long[Operation.values().length];
+
+	LatencyRecorder() {
+		for (Operation operation : Operation.values()) {
+			responseTimes[operation.ordinal()] = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+			serviceTimes[operation.ordinal()] = new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS);
+		}
+	}
+
+	/**
+	 * @param operation      the operation
+	 * @param scheduledNanos the {@link System#nanoTime()} the operation was scheduled to start at
+	 * @param startNanos     the {@link System#nanoTime()} it started at
+	 * @param endNanos       the {@link System#nanoTime()} it completed at
+	 */
+	void record(Operation operation, long scheduledNanos, long startNanos, long endNanos) {
+		responseTimes[operation.ordinal()].recordValue(Math.min(endNanos - scheduledNanos, HIGHEST_TRACKABLE_NANOS));
+		serviceTimes[operation.ordinal()].recordValue(Math.min(endNanos - startNanos, HIGHEST_TRACKABLE_NANOS));
+	}
+
+	/**
+	 * Records an operation that never started because the run ended while its client was behind
+	 * schedule. Its response time is at least the time it waited, it has no service time.
+	 *
+	 * @param operation      the operation
+	 * @param scheduledNanos the {@link System#nanoTime()} the operation was scheduled to start at
+	 * @param endNanos       the {@link System#nanoTime()} the run ended at for its client
+	 */
+	void recordMissed(Operation operation, long scheduledNanos, long endNanos) {
+		responseTimes[operation.ordinal()].recordValue(Math.min(endNanos - scheduledNanos, HIGHEST_TRACKABLE_NANOS));
+	}
+
+	void recordError(Operation operation) {
+		errors[operation.ordinal()]++;
+	}
+
+	/**
+	 * Adds the latencies recorded by another recorder to those of this one.
+	 */
+	void add(LatencyRecorder other) {
+		for (Operation operation : Operation.values()) {
+			responseTimes[operation.ordinal()].add(other.responseTimes[operation.ordinal()]);
+			serviceTimes[operation.ordinal()].add(other.serviceTimes[operation.ordinal()]);
+			errors[operation.ordinal()] += other.errors[operation.ordinal()];
+		}
+	}
+
+	long count(Operation operation) {
+		return responseTimes[operation.ordinal()].getTotalCount();
+	}
+
+	long errors(Operation operation) {
+		return errors[operation.ordinal()];
+	}
+
+	/**
+	 * Prints the throughput and latency percentiles of every operation that ran.
+	 *
+	 * @param out           the stream to print to
+	 * @param durationNanos how long the latencies were recorded for
+	 */
+	void report(PrintStream out, long durationNanos) {
+		double seconds = durationNanos / 1e9;
+		out.printf("%-8s %-8s %10s %10s %8s %9s %9s %9s %9s %9s %9s%n", "op", "latency", "count", "ops/s", "errors",
+				"p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99 ms", "max ms");
+		for (Operation operation : Operation.values()) {
+			if (count(operation) == 0 && errors(operation) == 0) {
+				continue;
+			}
+			String name = operation.name().toLowerCase();
+			printLine(out, name, "response", responseTimes[operation.ordinal()], seconds, errors(operation));
+			printLine(out, name, "service", serviceTimes[operation.ordinal()], seconds, errors(operation));
+		}
+	}
+
+	/**
+	 * Prints the percentile distribution of the response times of an operation, in
+	 * milliseconds, in the format HdrHistogram plotters read.
+	 */
+	void printDistribution(PrintStream out, Operation operation) {
+		responseTimes[operation.ordinal()].outputPercentileDistribution(out, NANOS_PER_MS);
+	}
+
+	private static void printLine(PrintStream out, String operation, String latency, Histogram histogram, double seconds,
+			long errors) {
+		out.printf("%-8s %-8s %10d %10.1f %8d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", operation, latency,
+				histogram.getTotalCount(), histogram.getTotalCount() / seconds, errors,
+				histogram.getValueAtPercentile(50) / NANOS_PER_MS, histogram.getValueAtPercentile(90) / NANOS_PER_MS,
+				histogram.getValueAtPercentile(99) / NANOS_PER_MS, histogram.getValueAtPercentile(99.9) / NANOS_PER_MS,
+				histogram.getValueAtPercentile(99.99) / NANOS_PER_MS, histogram.getMaxValue() / NANOS_PER_MS);
+	}
+}
@@ -0,0 +1,32 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.util.List;
+
+/**
+ * What a load test drives: the HTTP API of a running server or a RecordService in the same
+ * process. Every call returns once the operation completed, and throws if it failed.
+ */
+interface LoadTarget extends AutoCloseable {
+
+	/**
+	 * Creates the schema of the test, or checks an identical one exists.
+	 *
+	 * @param schemaName  the name of the schema
+	 * @param requestJson the body of a schema creation request
+	 */
+	void createSchema(String schemaName, String requestJson) throws Exception;
+
+	void upsert(String schemaName, String json) throws Exception;
+
+	/**
+	 * @return whether the record was found
+	 */
+	boolean get(String schemaName, String key) throws Exception;
+
+	void batch(String schemaName, List<String> jsons) throws Exception;
+
+	/**
+	 * @return the number of records of the page
+	 */
+	int scan(String schemaName, String fromKey, int limit) throws Exception;
+}
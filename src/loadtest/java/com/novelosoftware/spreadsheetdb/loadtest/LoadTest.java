@@ -0,0 +1,250 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Load test of the record store: creates a schema, upserts every record once, then runs a mix
+ * of upserts, gets, batches and scans from concurrent clients and reports their throughput and
+ * latency percentiles.
+ * <p>
+ * Clients run on virtual threads, so thousands of them are cheap. With a rate, each client
+ * starts its operations on a fixed schedule and latencies are measured from the scheduled
+ * start, see {@link LatencyRecorder}; the operations a client is still behind on when the run
+ * ends are recorded with the time they waited. Without one, each client starts an operation as soon as
+ * the previous one completes. Run it with {@code ./gradlew loadTest --args='--rate=5000 ...'},
+ * see {@link LoadTestOptions#USAGE} for the options.
+ * </p>
+ */
+public final class LoadTest {
+
+	private final LoadTestOptions options;
+	private final LoadTarget target;
+	private final RecordGenerator generator;
+	private final KeyDistribution keys;
+	private final Operation[] mixTable; // One slot per unit of weight, picked uniformly
+	private final AtomicBoolean errorReported = new AtomicBoolean();
+
+	private LoadTest(LoadTestOptions options, LoadTarget target) {
+		this.options = options;
+		this.target = target;
+		this.generator = new RecordGenerator(options.keyType, options.columns, options.valueBytes);
+		this.keys = KeyDistribution.of(options.distribution, options.records, options.zipfExponent);
+		List<Operation> slots = new ArrayList<>();
+		for (Map.Entry<Operation, Integer> weight : options.mix.entrySet()) {
+			for (int i = 0; i < weight.getValue(); i++) {
+				slots.add(weight.getKey());
+			}
+		}
+		this.mixTable = slots.toArray(new Operation[0]);
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTestOptions options;
+		try {
+			options = LoadTestOptions.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(LoadTestOptions.USAGE);
+			System.exit(2);
+			return;
+		}
+
+		Path dataDir = null;
+		LoadTarget target;
+		if (options.target.equals("http")) {
+			target = new HttpTarget(options.url);
+		} else {
+			dataDir = options.dataDir != null ? Paths.get(options.dataDir) : Files.createTempDirectory("spreadsheetdb-loadtest");
+			target = new InProcessTarget(dataDir, options.durability);
+		}
+		try (target) {
+			new LoadTest(options, target).run();
+		} finally {
+			if (dataDir != null && options.dataDir == null) {
+				delete(dataDir);
+			}
+		}
+	}
+
+	private void run() throws Exception {
+		System.out.println("Load test: " + options);
+		target.createSchema(options.schema, generator.schemaRequestJson());
+
+		long start = System.nanoTime();
+		preload();
+		System.out.printf("Upserted %d records in %.1f s%n", options.records, (System.nanoTime() - start) / 1e9);
+
+		long runStart = System.nanoTime();
+		long measureFrom = runStart + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+		LatencyRecorder recorder = new LatencyRecorder();
+		try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			SplittableRandom seeds = new SplittableRandom();
+			List<Future<LatencyRecorder>> results = new ArrayList<>();
+			for (int client = 0; client < options.concurrency; client++) {
+				int clientIndex = client;
+				SplittableRandom random = seeds.split();
+				results.add(clients.submit(() -> runClient(clientIndex, random, runStart, measureFrom, end)));
+			}
+			for (Future<LatencyRecorder> result : results) {
+				recorder.add(result.get());
+			}
+		}
+
+		long measuredNanos = end - measureFrom;
+		long total = 0;
+		long errors = 0;
+		for (Operation operation : Operation.values()) {
+			total += recorder.count(operation);
+			errors += recorder.errors(operation);
+		}
+		System.out.printf("Ran %d s after %d s of warmup: %d operations, %.1f ops/s, %d errors%n",
+				options.durationSeconds, options.warmupSeconds, total, total / (measuredNanos / 1e9), errors);
+		recorder.report(System.out, measuredNanos);
+		if (options.histogramDir != null) {
+			writeDistributions(recorder, Paths.get(options.histogramDir));
+		}
+	}
+
+	/**
+	 * Upserts every record once, in batches shared out among the clients.
+	 */
+	private void preload() throws Exception {
+		AtomicLong nextId = new AtomicLong();
+		try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			SplittableRandom seeds = new SplittableRandom();
+			List<Future<Void>> results = new ArrayList<>();
+			for (int client = 0; client < options.concurrency; client++) {
+				SplittableRandom random = seeds.split();
+				results.add(clients.submit(() -> {
+					for (long first = nextId.getAndAdd(options.batchSize); first < options.records;
+							first = nextId.getAndAdd(options.batchSize)) {
+						List<String> batch = new ArrayList<>(options.batchSize);
+						for (long id = first; id < Math.min(first + options.batchSize, options.records); id++) {
+							batch.add(generator.recordJson(id, random));
+						}
+						target.batch(options.schema, batch);
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		}
+	}
+
+	private LatencyRecorder runClient(int client, SplittableRandom random, long runStart, long measureFrom, long end) {
+		LatencyRecorder recorder = new LatencyRecorder();
+		// At a rate, every client runs an equal share of it, their schedules staggered
+		long intervalNanos = options.rate > 0 ? (long) (1e9 * options.concurrency / options.rate) : 0;
+		long scheduled = runStart + intervalNanos * client / options.concurrency;
+		while (true) {
+			if (intervalNanos > 0) {
+				for (long now = System.nanoTime(); now < scheduled; now = System.nanoTime()) {
+					LockSupport.parkNanos(scheduled - now);
+				}
+			} else {
+				scheduled = System.nanoTime();
+			}
+			long now = System.nanoTime();
+			if (scheduled >= end || now >= end) {
+				// Operations still behind schedule at the end are never started, yet they have
+				// been waiting since their scheduled start and count as that slow at least
+				for (; intervalNanos > 0 && scheduled < end; scheduled += intervalNanos) {
+					if (scheduled >= measureFrom) {
+						recorder.recordMissed(mixTable[random.nextInt(mixTable.length)], scheduled, now);
+					}
+				}
+				return recorder;
+			}
+			Operation operation = mixTable[random.nextInt(mixTable.length)];
+			Callable<?> call = prepare(operation, random); // Records are generated before the clock starts
+			long started = System.nanoTime();
+			try {
+				call.call();
+				if (scheduled >= measureFrom) {
+					recorder.record(operation, scheduled, started, System.nanoTime());
+				}
+			} catch (Exception e) {
+				if (scheduled >= measureFrom) {
+					recorder.recordError(operation);
+				}
+				if (errorReported.compareAndSet(false, true)) {
+					System.err.println("First failed " + operation.name().toLowerCase() + ", later failures are only counted:");
+					e.printStackTrace();
+				}
+			}
+			scheduled += intervalNanos;
+		}
+	}
+
+	private Callable<?> prepare(Operation operation, SplittableRandom random) {
+		String schema = options.schema;
+		return switch (operation) {
+			case UPSERT -> {
+				String json = generator.recordJson(keys.next(random), random);
+				yield () -> {
+					target.upsert(schema, json);
+					return null;
+				};
+			}
+			case GET -> {
+				String key = generator.key(keys.next(random));
+				yield () -> target.get(schema, key);
+			}
+			case BATCH -> {
+				List<String> batch = new ArrayList<>(options.batchSize);
+				for (int i = 0; i < options.batchSize; i++) {
+					batch.add(generator.recordJson(keys.next(random), random));
+				}
+				yield () -> {
+					target.batch(schema, batch);
+					return null;
+				};
+			}
+			case SCAN -> {
+				String fromKey = generator.key(keys.next(random));
+				yield () -> target.scan(schema, fromKey, options.scanLimit);
+			}
+		};
+	}
+
+	private static void writeDistributions(LatencyRecorder recorder, Path directory) throws IOException {
+		Files.createDirectories(directory);
+		for (Operation operation : Operation.values()) {
+			if (recorder.count(operation) == 0) {
+				continue;
+			}
+			Path file = directory.resolve(operation.name().toLowerCase() + ".hgrm");
+			try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+				recorder.printDistribution(out, operation);
+			}
+			System.out.println("Wrote the response time distribution of " + operation.name().toLowerCase() + " to " + file);
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
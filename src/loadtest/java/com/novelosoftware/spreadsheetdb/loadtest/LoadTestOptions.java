@@ -0,0 +1,144 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Options of a load test, given as {@code --name=value} arguments. Every option has a default,
+ * see {@link #USAGE}.
+ */
+final class LoadTestOptions {
+
+	static final String USAGE = """
+			Options, as --name=value:
+			  target         inprocess or http                                  (inprocess)
+			  url            base URL of the server for the http target         (http://localhost:8080)
+			  data-dir       storage directory of the inprocess target          (a temporary directory)
+			  durability     log durability of the inprocess target: off, none,
+			                 interval or fsync-per-batch                        (fsync-per-batch)
+			  schema         name of the schema created for the test            (loadtest)
+			  key-type       LONG or STRING                                     (LONG)
+			  columns        number of columns besides the key                  (8)
+			  value-bytes    length of the string columns                       (16)
+			  records        number of distinct keys, all upserted beforehand   (100000)
+			  mix            operation weights, as op:weight pairs of upsert,
+			                 get, batch and scan                                (get:80,upsert:15,batch:3,scan:2)
+			  distribution   uniform, zipfian or sequential                     (uniform)
+			  zipf-exponent  skew of the zipfian distribution                   (0.99)
+			  concurrency    number of concurrent clients                       (16)
+			  rate           total operations per second, 0 for as fast as
+			                 possible without correcting coordinated omission   (0)
+			  warmup-s       seconds run before latencies are recorded          (10)
+			  duration-s     seconds latencies are recorded for                 (60)
+			  batch-size     records of each batch                              (100)
+			  scan-limit     records of each scan page                          (100)
+			  histogram-dir  directory the response time distribution of each
+			                 operation is written to, as op.hgrm                (none)
+			""";
+
+	private static final Set<String> NAMES = Set.of("target", "url", "data-dir", "durability", "schema", "key-type",
+			"columns", "value-bytes", "records", "mix", "distribution", "zipf-exponent", "concurrency", "rate",
+			"warmup-s", "duration-s", "batch-size", "scan-limit", "histogram-dir");
+
+	final String target;
+	final String url;
+	final String dataDir;
+	final String durability;
+	final String schema;
+	final String keyType;
+	final int columns;
+	final int valueBytes;
+	final int records;
+	final Map<Operation, Integer> mix;
+	final String distribution;
+	final double zipfExponent;
+	final int concurrency;
+	final double rate;
+	final int warmupSeconds;
+	final int durationSeconds;
+	final int batchSize;
+	final int scanLimit;
+	final String histogramDir;
+
+	private LoadTestOptions(Map<String, String> values) {
+		target = values.getOrDefault("target", "inprocess");
+		url = values.getOrDefault("url", "http://localhost:8080");
+		dataDir = values.get("data-dir");
+		durability = values.getOrDefault("durability", "fsync-per-batch");
+		schema = values.getOrDefault("schema", "loadtest");
+		keyType = values.getOrDefault("key-type", "LONG").toUpperCase();
+		columns = Integer.parseInt(values.getOrDefault("columns", "8"));
+		valueBytes = Integer.parseInt(values.getOrDefault("value-bytes", "16"));
+		records = Integer.parseInt(values.getOrDefault("records", "100000"));
+		mix = parseMix(values.getOrDefault("mix", "get:80,upsert:15,batch:3,scan:2"));
+		distribution = values.getOrDefault("distribution", "uniform");
+		zipfExponent = Double.parseDouble(values.getOrDefault("zipf-exponent", "0.99"));
+		concurrency = Integer.parseInt(values.getOrDefault("concurrency", "16"));
+		rate = Double.parseDouble(values.getOrDefault("rate", "0"));
+		warmupSeconds = Integer.parseInt(values.getOrDefault("warmup-s", "10"));
+		durationSeconds = Integer.parseInt(values.getOrDefault("duration-s", "60"));
+		batchSize = Integer.parseInt(values.getOrDefault("batch-size", "100"));
+		scanLimit = Integer.parseInt(values.getOrDefault("scan-limit", "100"));
+		histogramDir = values.get("histogram-dir");
+
+		if (!target.equals("inprocess") && !target.equals("http")) {
+			throw new IllegalArgumentException("Unknown target: " + target);
+		}
+		if (!keyType.equals("LONG") && !keyType.equals("STRING")) {
+			throw new IllegalArgumentException("Key type must be LONG or STRING: " + keyType);
+		}
+		if (columns < 1 || records < 1 || concurrency < 1 || batchSize < 1 || scanLimit < 1 || durationSeconds < 1) {
+			throw new IllegalArgumentException("columns, records, concurrency, batch-size, scan-limit and duration-s must be positive");
+		}
+	}
+
+	/**
+	 * Parses the arguments of the command line.
+	 *
+	 * @param args the arguments, each {@code --name=value}
+	 * @return the options
+	 * @throws IllegalArgumentException if an argument is not a known option or its value is not valid
+	 */
+	static LoadTestOptions parse(String[] args) {
+		Map<String, String> values = new HashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0 || !NAMES.contains(arg.substring(2, equals))) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+			values.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		return new LoadTestOptions(values);
+	}
+
+	private static Map<Operation, Integer> parseMix(String mix) {
+		Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+		for (String pair : mix.split(",")) {
+			String[] parts = pair.split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Mix must be op:weight pairs: " + mix);
+			}
+			int weight = Integer.parseInt(parts[1].trim());
+			if (weight < 0) {
+				throw new IllegalArgumentException("Weights must not be negative: " + mix);
+			}
+			weights.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+		}
+		if (weights.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+			throw new IllegalArgumentException("Mix has no operation: " + mix);
+		}
+		return weights;
+	}
+
+	@Override
+	public String toString() {
+		return "target=" + target + (target.equals("http") ? " url=" + url : " durability=" + durability)
+				+ " key-type=" + keyType + " columns=" + columns + " value-bytes=" + valueBytes + " records=" + records
+				+ " mix=" + mix + " distribution=" + distribution
+				+ (distribution.equals("zipfian") ? " zipf-exponent=" + zipfExponent : "")
+				+ " concurrency=" + concurrency + " rate=" + rate + " warmup-s=" + warmupSeconds
+				+ " duration-s=" + durationSeconds + " batch-size=" + batchSize + " scan-limit=" + scanLimit;
+	}
+}
@@ -0,0 +1,11 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+/**
+ * The operations a load test mixes.
+ */
+enum Operation {
+	UPSERT, // One record
+	GET, // One record by key
+	BATCH, // A batch of records as newline-delimited JSON
+	SCAN // One page of records in key order, from a key
+}
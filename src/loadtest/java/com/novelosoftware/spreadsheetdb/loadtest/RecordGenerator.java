@@ -0,0 +1,73 @@
+package com.novelosoftware.spreadsheetdb.loadtest;
+
+import java.util.SplittableRandom;
+
+/**
+ * Builds the schema and the records of a load test. Records have a key and a number of columns
+ * cycling through string, long and double columns, the string columns all of the same length.
+ */
+final class RecordGenerator {
+
+	private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+	private final String keyType;
+	private final int columns;
+	private final int valueBytes;
+
+	RecordGenerator(String keyType, int columns, int valueBytes) {
+		this.keyType = keyType;
+		this.columns = columns;
+		this.valueBytes = valueBytes;
+	}
+
+	/**
+	 * @return the body of the request creating the schema, as accepted by POST on /schema/{schemaName}
+	 */
+	String schemaRequestJson() {
+		StringBuilder json = new StringBuilder("{\"keyColumn\": \"id\", \"avroSchema\": {\"type\": \"record\", ");
+		json.append("\"name\": \"LoadTest\", \"fields\": [{\"name\": \"id\", \"type\": \"")
+				.append(keyType.toLowerCase()).append("\"}");
+		for (int column = 0; column < columns; column++) {
+			json.append(", {\"name\": \"c").append(column).append("\", \"type\": \"").append(columnType(column)).append("\"}");
+		}
+		return json.append("]}}").toString();
+	}
+
+	String key(long id) {
+		return "STRING".equals(keyType) ? String.format("key-%010d", id) : Long.toString(id);
+	}
+
+	/**
+	 * @param id     the id of the record
+	 * @param random generates the values of the columns
+	 * @return the JSON of a record
+	 */
+	String recordJson(long id, SplittableRandom random) {
+		StringBuilder json = new StringBuilder(32 + columns * (valueBytes + 8));
+		json.append("{\"id\": ");
+		json.append("STRING".equals(keyType) ? "\"" + key(id) + "\"" : key(id));
+		for (int column = 0; column < columns; column++) {
+			json.append(", \"c").append(column).append("\": ");
+			switch (columnType(column)) {
+				case "string" -> {
+					json.append('"');
+					for (int i = 0; i < valueBytes; i++) {
+						json.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+					}
+					json.append('"');
+				}
+				case "long" -> json.append(random.nextLong());
+				default -> json.append(random.nextDouble());
+			}
+		}
+		return json.append('}').toString();
+	}
+
+	private static String columnType(int column) {
+		return switch (column % 3) {
+			case 0 -> "string";
+			case 1 -> "long";
+			default -> "double";
+		};
+	}
+}
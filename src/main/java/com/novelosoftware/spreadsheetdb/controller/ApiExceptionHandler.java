@@ -0,0 +1,23 @@
+package com.novelosoftware.spreadsheetdb.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaNotFoundException;
+
+/**
+ * ApiExceptionHandler maps the failures shared by every controller to a response.
+ */
+@RestControllerAdvice
+public class ApiExceptionHandler {
+
+    /**
+     * A request naming a schema that doesn't exist is answered with a 404.
+     */
+    @ExceptionHandler(SchemaNotFoundException.class)
+    public ResponseEntity<String> schemaNotFound(SchemaNotFoundException e) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Error: " + e.getMessage());
+    }
+}
@@ -0,0 +1,45 @@
+package com.novelosoftware.spreadsheetdb.controller;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.novelosoftware.spreadsheetdb.service.ReplicationService;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * FollowerReadOnlyFilter answers every request but reads with 403 Forbidden on a follower,
+ * whose tables only change through replication. Writes go to the leader.
+ */
+@Component
+public class FollowerReadOnlyFilter extends OncePerRequestFilter {
+
+    private final ReplicationService replicationService;
+
+    public FollowerReadOnlyFilter(ReplicationService replicationService) {
+        this.replicationService = replicationService;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String method = request.getMethod();
+        return !replicationService.isFollower()
+                || method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        response.setStatus(HttpStatus.FORBIDDEN.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.getWriter().write("Error: This instance is a read-only follower, write to the leader at "
+                + replicationService.getLeaderUri());
+    }
+}
@@ -1,49 +1,411 @@
 package com.novelosoftware.spreadsheetdb.controller;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.OptionalLong;
 
+import org.apache.avro.AvroRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.novelosoftware.spreadsheetdb.dto.AggregateResult;
+import com.novelosoftware.spreadsheetdb.dto.BatchUpsertResult;
+import com.novelosoftware.spreadsheetdb.service.BatchUpsertService;
+import com.novelosoftware.spreadsheetdb.service.ChangePage;
+import com.novelosoftware.spreadsheetdb.service.ChangeService;
+import com.novelosoftware.spreadsheetdb.service.RecordJson;
+import com.novelosoftware.spreadsheetdb.service.RecordPage;
 import com.novelosoftware.spreadsheetdb.service.RecordService;
+import com.novelosoftware.spreadsheetdb.service.ReplicationService;
+import com.novelosoftware.spreadsheetdb.store.VersionMismatchException;
+import com.novelosoftware.spreadsheetdb.wal.ChangesExpiredException;
 
+/**
+ * RecordController serves the records of each schema as JSON, newline-delimited JSON or Avro.
+ * <p>
+ * The format follows {@code Content-Type} and {@code Accept}. A single Avro record is an Avro
+ * single-object message, the fingerprint names the schema version it was written with. Several
+ * Avro records are a stream of such messages, each preceded by its length as an Avro long.
+ * Request bodies are read from the request stream, never held as a string. A JSON record is
+ * served with the version of its row as entity tag, for conditional requests. JSON reads take
+ * an optional {@code fields} parameter, a comma separated list of the only fields to return.
+ * A PATCH of a record holds only the fields it changes, and is applied only if the record is
+ * at a version of its {@code If-Match} header, when it has one. The changes of a schema are
+ * read from {@code _changes}, by long polling or as a stream of server-sent events.
+ * </p>
+ * <p>
+ * Writes answer with the sequence number covering them in the {@code X-Sequence} header.
+ * Record reads and scans given it as {@code min-sequence} wait for the instance to reach it,
+ * so a follower serves the writes of a client to the leader, or answer 503 Service
+ * Unavailable if it doesn't in time.
+ * </p>
+ */
 @RestController
 @RequestMapping("/records")
 public class RecordController {
 
+    /**
+     * The media type of Avro single-object messages, and of length-prefixed streams of them.
+     */
+    public static final String AVRO_MEDIA_TYPE = "application/avro";
+
+    private static final Logger log = LoggerFactory.getLogger(RecordController.class);
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+    private static final String SEQUENCE_HEADER = "X-Sequence";
+    private static final String MIN_SEQUENCE_PARAM = "min-sequence";
+
     private final RecordService recordService;
+    private final BatchUpsertService batchUpsertService;
+    private final ChangeService changeService;
+    private final ReplicationService replicationService;
 
     @Autowired
-    public RecordController(RecordService recordService) {
+    public RecordController(RecordService recordService, BatchUpsertService batchUpsertService,
+                            ChangeService changeService, ReplicationService replicationService) {
         this.recordService = recordService;
+        this.batchUpsertService = batchUpsertService;
+        this.changeService = changeService;
+        this.replicationService = replicationService;
     }
 
     @PostMapping("/{schemaName}")
-    public ResponseEntity<Void> upsertRecord(
+    public ResponseEntity<String> upsertRecord(
+            @PathVariable String schemaName,
+            InputStream json) {  // Decoded from the stream, the body is never copied to a string
+        try {
+            recordService.upsert(schemaName, json);
+            return ResponseEntity.ok().header(SEQUENCE_HEADER, sequence()).build();
+        } catch (IllegalArgumentException | AvroRuntimeException e) {
+            // A record that doesn't match the schema, or without a valid key
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to upsert into schema {}", schemaName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @PostMapping(value = "/{schemaName}", consumes = AVRO_MEDIA_TYPE)
+    public ResponseEntity<String> upsertAvroRecord(
+            @PathVariable String schemaName,
+            InputStream message) {
+        try {
+            recordService.upsertAvro(schemaName, message);
+            return ResponseEntity.ok().header(SEQUENCE_HEADER, sequence()).build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to upsert into schema {}", schemaName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @PatchMapping("/{schemaName}/{recordKey}")
+    public ResponseEntity<String> patchRecord(
+            @PathVariable String schemaName,
+            @PathVariable String recordKey,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            InputStream json) {
+        try {
+            OptionalLong version = recordService.patch(schemaName, recordKey, json, ifMatch);
+            if (version.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.ok()
+                    .eTag(RecordJson.eTagOf(version.getAsLong()))
+                    .header(SEQUENCE_HEADER, sequence())
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        } catch (VersionMismatchException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                    .eTag(RecordJson.eTagOf(e.getVersion()))
+                    .body("Error: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to patch record {} of schema {}", recordKey, schemaName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @PostMapping(value = "/{schemaName}/batch",
+            consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<BatchUpsertResult> upsertRecords(
             @PathVariable String schemaName,
-            @RequestBody String jsonData) {  // Receive JSON as raw string
+            InputStream ndjson) {  // Streamed, the body is never held in memory as a whole
         try {
-            recordService.upsert(schemaName, jsonData);
-            return ResponseEntity.ok().build();
+            BatchUpsertResult result = batchUpsertService.upsertBatch(schemaName, ndjson);
+            return ResponseEntity.ok().header(SEQUENCE_HEADER, sequence()).body(result);
         } catch (IOException e) {
+            log.error("Failed to upsert into schema {}", schemaName, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
 
+    @PostMapping(value = "/{schemaName}/batch", consumes = AVRO_MEDIA_TYPE)
+    public ResponseEntity<?> upsertAvroRecords(
+            @PathVariable String schemaName,
+            InputStream messages) {
+        try {
+            BatchUpsertResult result = batchUpsertService.upsertAvroBatch(schemaName, messages);
+            return ResponseEntity.ok().header(SEQUENCE_HEADER, sequence()).body(result);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to upsert into schema {}", schemaName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @GetMapping(value = "/{schemaName}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> scanRecords(
+            @PathVariable String schemaName,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) List<String> fields,
+            @RequestParam(name = MIN_SEQUENCE_PARAM, required = false) Long minSequence) {
+        if (!reached(minSequence)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return scan(schemaName, from, to, limit, cursor, fields, false);
+    }
+
+    @GetMapping(value = "/{schemaName}", produces = AVRO_MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> scanAvroRecords(
+            @PathVariable String schemaName,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(name = MIN_SEQUENCE_PARAM, required = false) Long minSequence) {
+        if (!reached(minSequence)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return scan(schemaName, from, to, limit, cursor, null, true);
+    }
+
+    @GetMapping(value = "/{schemaName}/by/{fieldName}/{value}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> findRecordsByField(
+            @PathVariable String schemaName,
+            @PathVariable String fieldName,
+            @PathVariable String value,
+            @RequestParam(required = false) List<String> fields) {
+        return findByField(schemaName, fieldName, value, fields, false);
+    }
+
+    @GetMapping(value = "/{schemaName}/by/{fieldName}/{value}", produces = AVRO_MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> findAvroRecordsByField(
+            @PathVariable String schemaName,
+            @PathVariable String fieldName,
+            @PathVariable String value) {
+        return findByField(schemaName, fieldName, value, null, true);
+    }
+
+    /**
+     * Aggregates a column over a range of keys, from {@code from} inclusive to {@code to}
+     * exclusive, or over every record when they are left out.
+     */
+    @GetMapping("/{schemaName}/_aggregate")
+    public ResponseEntity<?> aggregate(
+            @PathVariable String schemaName,
+            @RequestParam String field,
+            @RequestParam String op,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to) {
+        try {
+            AggregateResult result = recordService.aggregate(schemaName, field, op, from, to);
+            return ResponseEntity.ok(result);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Long-polls the changes of a schema after the {@code since} sequence number, waiting up to
+     * {@code wait} milliseconds for one. The sequence number to pass as {@code since} next is
+     * returned in the {@code X-Next-Cursor} header. Changes no longer kept answer 410 Gone.
+     */
+    @GetMapping(value = "/{schemaName}/_changes", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> pollChanges(
+            @PathVariable String schemaName,
+            @RequestParam(required = false) String since,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(defaultValue = "0") long wait) {
+        ChangePage page;
+        try {
+            page = changeService.readChanges(schemaName, since, limit, wait);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e);
+        } catch (ChangesExpiredException e) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (IOException e) {
+            log.error("Failed to read the changes of schema {}", schemaName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+        return ResponseEntity.ok()
+                .header(NEXT_CURSOR_HEADER, Long.toString(page.getLastSequence()))
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(page::writeNdjson);
+    }
+
+    /**
+     * Streams the changes of a schema as server-sent events. A reconnecting client resumes
+     * after its {@code Last-Event-ID}, which takes precedence over {@code since}.
+     */
+    @GetMapping(value = "/{schemaName}/_changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamChanges(
+            @PathVariable String schemaName,
+            @RequestParam(required = false) String since,
+            @RequestHeader(value = LAST_EVENT_ID_HEADER, required = false) String lastEventId) {
+        ChangePage first;
+        try {
+            // The first page is read before answering, so a bad position gets its status
+            first = changeService.startStream(schemaName, lastEventId != null ? lastEventId : since);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e);
+        } catch (ChangesExpiredException e) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (IOException e) {
+            log.error("Failed to read the changes of schema {}", schemaName, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.TEXT_EVENT_STREAM)
+                .body(out -> changeService.streamChanges(schemaName, first, out));
+    }
+
+    /**
+     * Returns a record with its version as {@code ETag}. Spring answers a request whose
+     * {@code If-None-Match} holds that tag with 304 Not Modified and no body. A record limited
+     * to some fields is returned without a tag.
+     */
     @GetMapping("/{schemaName}/{recordKey}")
-    public ResponseEntity<String> getRecord(
+    public ResponseEntity<byte[]> getRecord(
             @PathVariable String schemaName,
-            @PathVariable String recordKey) {
-        return recordService.getRecord(schemaName, recordKey)
+            @PathVariable String recordKey,
+            @RequestParam(required = false) List<String> fields,
+            @RequestParam(name = MIN_SEQUENCE_PARAM, required = false) Long minSequence) {
+        if (!reached(minSequence)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        if (fields != null) {
+            try {
+                return recordService.getRecordFields(schemaName, recordKey, fields)
+                        .map(json -> ResponseEntity.ok()
+                                .contentType(MediaType.APPLICATION_JSON)
+                                .body(json.getBytes(StandardCharsets.UTF_8)))
+                        .orElseGet(() -> ResponseEntity.notFound().build());
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .body(("Error: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return recordService.getRecordJson(schemaName, recordKey)
+                .map(record -> ResponseEntity.ok()
+                        .eTag(record.getETag())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(record.getJson()))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @GetMapping(value = "/{schemaName}/{recordKey}", produces = AVRO_MEDIA_TYPE)
+    public ResponseEntity<byte[]> getAvroRecord(
+            @PathVariable String schemaName,
+            @PathVariable String recordKey,
+            @RequestParam(name = MIN_SEQUENCE_PARAM, required = false) Long minSequence) {
+        if (!reached(minSequence)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return recordService.getRecordAvro(schemaName, recordKey)
                 .map(ResponseEntity::ok)
                 .orElseGet(() -> ResponseEntity.notFound().build());
     }
+
+    @GetMapping("/{schemaName}/{recordKey}/{fieldName}")
+    public ResponseEntity<String> getRecordField(
+            @PathVariable String schemaName,
+            @PathVariable String recordKey,
+            @PathVariable String fieldName) {
+        try {
+            return recordService.getRecordField(schemaName, recordKey, fieldName)
+                    .map(ResponseEntity::ok)
+                    .orElseGet(() -> ResponseEntity.notFound().build());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        }
+    }
+
+    private String sequence() {
+        return Long.toString(replicationService.getSequence());
+    }
+
+    /**
+     * Waits for this instance to reach the sequence number of a read, if it has one.
+     */
+    private boolean reached(Long minSequence) {
+        return minSequence == null || replicationService.awaitSequence(minSequence);
+    }
+
+    /**
+     * Answers 400 with the error message, as a plain text body in place of the stream.
+     */
+    private static ResponseEntity<StreamingResponseBody> badRequest(IllegalArgumentException e) {
+        byte[] message = ("Error: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(out -> out.write(message));
+    }
+
+    private ResponseEntity<StreamingResponseBody> scan(String schemaName, String from, String to, int limit,
+                                                       String cursor, List<String> fields, boolean avro) {
+        RecordPage page;
+        try {
+            page = recordService.scanRecords(schemaName, from, to, limit, cursor, fields);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e);
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.getNextCursor() != null) {
+            response.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+        }
+        return pageBody(response, page, avro);
+    }
+
+    private ResponseEntity<StreamingResponseBody> findByField(String schemaName, String fieldName, String value,
+                                                              List<String> fields, boolean avro) {
+        RecordPage page;
+        try {
+            page = recordService.findByField(schemaName, fieldName, value, fields);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e);
+        }
+        return pageBody(ResponseEntity.ok(), page, avro);
+    }
+
+    private static ResponseEntity<StreamingResponseBody> pageBody(ResponseEntity.BodyBuilder response, RecordPage page,
+                                                                  boolean avro) {
+        if (avro) {
+            return response.contentType(MediaType.parseMediaType(AVRO_MEDIA_TYPE)).body(page::writeAvro);
+        }
+        return response.contentType(MediaType.APPLICATION_NDJSON).body(page::writeNdjson);
+    }
 }
 
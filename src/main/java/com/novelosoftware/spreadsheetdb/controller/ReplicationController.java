@@ -0,0 +1,89 @@
+package com.novelosoftware.spreadsheetdb.controller;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.novelosoftware.spreadsheetdb.service.ReplicationService;
+import com.novelosoftware.spreadsheetdb.store.TableSnapshot;
+import com.novelosoftware.spreadsheetdb.wal.ChangeBatch;
+import com.novelosoftware.spreadsheetdb.wal.ChangesExpiredException;
+
+/**
+ * ReplicationController serves followers the schema catalog, the snapshots of the tables and
+ * the entries of the write-ahead log, in the binary formats of the catalog and snapshot files
+ * and of {@link ReplicationService#writeEntries}.
+ */
+@RestController
+@RequestMapping("/replication")
+public class ReplicationController {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationController.class);
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private final ReplicationService replicationService;
+
+    @Autowired
+    public ReplicationController(ReplicationService replicationService) {
+        this.replicationService = replicationService;
+    }
+
+    @GetMapping(value = "/catalog", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> getCatalog() {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(replicationService::writeCatalog);
+    }
+
+    @GetMapping(value = "/snapshots/{schemaName}", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> getSnapshot(@PathVariable String schemaName) {
+        // Taken before answering, so an unknown schema gets its status
+        TableSnapshot snapshot = replicationService.snapshot(schemaName);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(out -> replicationService.writeSnapshot(snapshot, out));
+    }
+
+    /**
+     * Long-polls the log entries of every schema after the {@code after} sequence number. The
+     * sequence number to pass as {@code after} next is returned in the {@code X-Next-Cursor}
+     * header, with the last sequence number and the catalog version of this instance. Entries
+     * no longer kept answer 410 Gone.
+     */
+    @GetMapping(value = "/entries", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> readEntries(
+            @RequestParam long after,
+            @RequestParam(defaultValue = "1000") int limit,
+            @RequestParam(defaultValue = "0") long wait) {
+        ChangeBatch batch;
+        try {
+            batch = replicationService.readEntries(after, limit, wait);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        } catch (ChangesExpiredException e) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (IOException e) {
+            log.error("Failed to read the log entries after {}", after, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+        // Read after the entries, so it covers every schema version they were written with
+        long catalogVersion = replicationService.getCatalogVersion();
+        return ResponseEntity.ok()
+                .header(NEXT_CURSOR_HEADER, Long.toString(batch.getLastSequence()))
+                .header(ReplicationService.LAST_SEQUENCE_HEADER, Long.toString(replicationService.getLastEntrySequence()))
+                .header(ReplicationService.CATALOG_VERSION_HEADER, Long.toString(catalogVersion))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(out -> ReplicationService.writeEntries(batch, out));
+    }
+}
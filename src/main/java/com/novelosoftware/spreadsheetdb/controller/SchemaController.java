@@ -2,6 +2,8 @@ package com.novelosoftware.spreadsheetdb.controller;
 
 import java.io.IOException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.ResponseEntity;
@@ -17,6 +19,8 @@ import com.novelosoftware.spreadsheetdb.service.SchemaService;
 @RequestMapping("/schema")
 public class SchemaController {
 
+    private static final Logger log = LoggerFactory.getLogger(SchemaController.class);
+
     private final SchemaService schemaService;
 
     public SchemaController(SchemaService schemaService) {
@@ -37,10 +41,10 @@ public class SchemaController {
             schemaService.createSchema(schemaName, schemaRequest);
             return ResponseEntity.status(HttpStatus.CREATED).body("Schema created successfully");
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Failed to create schema {}", schemaName, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error: " + e.getMessage());
         } catch (Exception e) {
-            e.printStackTrace();
+            log.warn("Rejected schema {}: {}", schemaName, e.getMessage());
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
         }
     }
@@ -0,0 +1,65 @@
+package com.novelosoftware.spreadsheetdb.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.novelosoftware.spreadsheetdb.service.SpreadsheetService;
+
+/**
+ * SpreadsheetController exports the records of a schema as an XLSX workbook and imports them from one.
+ */
+@RestController
+@RequestMapping("/spreadsheets")
+public class SpreadsheetController {
+
+    private static final String XLSX_MEDIA_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    private final SpreadsheetService spreadsheetService;
+
+    public SpreadsheetController(SpreadsheetService spreadsheetService) {
+        this.spreadsheetService = spreadsheetService;
+    }
+
+    /**
+     * exportSpreadsheet streams every record of a schema as a workbook, one row per record in key order
+     * @param schemaName name of the table/schema
+     * @return ResponseEntity streaming the workbook
+     */
+    @GetMapping(value = "/{schemaName}", produces = XLSX_MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> exportSpreadsheet(@PathVariable String schemaName) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(XLSX_MEDIA_TYPE))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + schemaName + ".xlsx\"")
+                .body(out -> spreadsheetService.exportSheet(schemaName, out));
+    }
+
+    /**
+     * importSpreadsheet upserts the rows of every sheet of a workbook
+     * @param schemaName name of the table/schema
+     * @param workbook the XLSX file, streamed
+     * @return ResponseEntity with the number of rows stored and the rejected ones
+     */
+    @PostMapping(value = "/{schemaName}", consumes = {XLSX_MEDIA_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+    public ResponseEntity<?> importSpreadsheet(
+            @PathVariable String schemaName,
+            InputStream workbook) {
+        try {
+            return ResponseEntity.ok(spreadsheetService.importSheet(schemaName, workbook));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Error: " + e.getMessage());
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.novelosoftware.spreadsheetdb.dao;
 
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaCompatibility;
 import org.apache.avro.SchemaFormatter;
+import org.apache.avro.SchemaNormalization;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -9,14 +11,43 @@ import org.springframework.stereotype.Component;
 import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * Data Access Object (DAO) for storing and retrieving Avro schemas along with key column metadata.
  * <p>
- * The key column position is stored as an integer at the beginning of the file,
- * followed by the Avro schema in binary format.
+ * Every schema is kept in a single catalog file, loaded eagerly when the DAO is created and held
+ * in memory, so looking a schema up never touches the disk. Distinct Avro schemas are stored
+ * and parsed once, keyed by the 64-bit Rabin fingerprint of their JSON, and each table entry
+ * holds its key column and indexed columns along with the version and fingerprint of every
+ * schema version, oldest first, since rows written with any of them may still be stored.
+ * </p>
+ * <p>
+ * Saving a schema that already exists adds a version, which must keep the key column and be
+ * able to read the records written with every earlier version under the Avro schema
+ * resolution rules. Saving the same schema again doesn't add a version.
+ * </p>
+ * <p>
+ * The catalog is rewritten to a temporary file, fsynced and atomically renamed on every change,
+ * and its version increases with each of them. Registered {@link SchemaChangeListener}s are
+ * told about every change once it is durable, so caches built on the catalog are invalidated
+ * at once.
+ * </p>
+ * <p>
+ * Schemas saved by earlier versions as one {@code .avsc.bin} file each are imported into the
+ * catalog the first time it is loaded. Those files start with the key column position, or with
+ * a negative marker followed by the key column position and the indexed column positions, and
+ * end with the gzip compressed JSON schema.
  * </p>
  */
 @Component
@@ -24,69 +55,386 @@ public class SchemaDao {
 
     private final String storagePath;
     private static final String FILE_EXTENSION = ".avsc.bin"; // Binary Avro schema file extension
+    private static final String CATALOG_FILE = "schemas.catalog";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int CATALOG_MAGIC = 0x53534343; // "SSCC"
+    private static final int CATALOG_FORMAT_VERSION = 2;
+    private static final int SINGLE_VERSION_CATALOG_FORMAT = 1; // Kept only the latest schema version
     private static final int KEY_COLUMN_NOT_FOUND = -1; // Key column not found in schema
+    private static final int INDEXED_COLUMNS_MARKER = -2; // Header lists the indexed columns
+
+    private final List<SchemaChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Not a monitor, a virtual thread blocked on the catalog fsync inside one would pin its carrier
+    private final ReentrantLock catalogLock = new ReentrantLock();
+    private volatile Catalog catalog;
+
+    /**
+     * Receives the schemas created or replaced in the catalog.
+     */
+    @FunctionalInterface
+    public interface SchemaChangeListener {
+
+        /**
+         * @param schemaModel the new version of the schema
+         */
+        void schemaChanged(InternalSchemaModel schemaModel);
+    }
 
     /**
-     * Constructs a SchemaDAO with the given storage path.
+     * Constructs a SchemaDAO with the given storage path and loads its catalog.
      *
      * @param storagePath the directory where schemas will be stored
+     * @throws IOException if the catalog or a schema file can't be read
      */
-    public SchemaDao(@Value("${schema.storage.path}") String storagePath) {
+    public SchemaDao(@Value("${schema.storage.path}") String storagePath) throws IOException {
         this.storagePath = storagePath;
+        this.catalog = loadCatalog();
+    }
+
+    /**
+     * Registers a listener told about every schema change.
+     *
+     * @param listener the listener
+     */
+    public void addChangeListener(SchemaChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the version of the catalog, increased by every schema change
+     */
+    public long getCatalogVersion() {
+        return catalog.version;
     }
 
     /**
      * Saves an Avro schema along with the key column position.
      *
-     * @param schemaName the name of the schema (used as the filename)
+     * @param schemaName the name of the schema
      * @param keyColumn  the key column name
      * @param schema     the Avro schema to store
-     * @throws IOException if an error occurs while writing the file
+     * @throws IOException if an error occurs while writing the catalog
      */
     public void saveSchema(String schemaName, String keyColumn, Schema schema) throws IOException {
-        File directory = new File(storagePath);
-        if (!directory.exists()) {
-            directory.mkdirs(); // Ensure the directory exists
-        }
-
-        File file = new File(directory, schemaName + FILE_EXTENSION);
+        saveSchema(schemaName, keyColumn, List.of(), schema);
+    }
 
+    /**
+     * Saves an Avro schema along with the key column position and the positions of the
+     * columns with a secondary index. Saving a schema that already exists makes it its next
+     * version.
+     *
+     * @param schemaName     the name of the schema
+     * @param keyColumn      the key column name
+     * @param indexedColumns the names of the columns with a secondary index
+     * @param schema         the Avro schema to store
+     * @throws IOException if an error occurs while writing the catalog
+     * @throws IllegalArgumentException if a column is missing, or the schema changes the key
+     *                                  column or can't read the records of an earlier version
+     */
+    public void saveSchema(String schemaName, String keyColumn, List<String> indexedColumns, Schema schema)
+            throws IOException {
         // Find key column position
         int keyColumnIndex = findKeyColumnIndex(schema, keyColumn);
         if (keyColumnIndex == KEY_COLUMN_NOT_FOUND) {
             throw new IllegalArgumentException("Key column '" + keyColumn + "' not found in schema.");
         }
+        List<Integer> indexedColumnIndexes = new ArrayList<>();
+        for (String indexedColumn : indexedColumns) {
+            int indexedColumnIndex = findKeyColumnIndex(schema, indexedColumn);
+            if (indexedColumnIndex == KEY_COLUMN_NOT_FOUND) {
+                throw new IllegalArgumentException("Indexed column '" + indexedColumn + "' not found in schema.");
+            }
+            indexedColumnIndexes.add(indexedColumnIndex);
+        }
+
+        InternalSchemaModel schemaModel;
+        catalogLock.lock();
+        try {
+            Catalog current = catalog;
+            InternalSchemaModel previous = current.models.get(schemaName);
+            if (previous != null) {
+                if (previous.getSchema().equals(schema) && previous.getKeyColumnIndex() == keyColumnIndex
+                        && previous.getIndexedColumnIndexes().equals(indexedColumnIndexes)) {
+                    return; // Nothing changed
+                }
+                checkEvolution(previous, schema, keyColumnIndex);
+            }
+            int version = previous == null ? 1 : previous.getVersion() + 1;
+            Map<Integer, Schema> earlierSchemas = previous == null ? Map.of() : previous.getWriterSchemas();
+            // Reuse the parsed schema when an identical one is already known
+            Schema shared = current.schemasByFingerprint.getOrDefault(catalogFingerprint(schema), schema);
+            schemaModel = new InternalSchemaModel(schemaName, shared, keyColumnIndex, indexedColumnIndexes, version,
+                    earlierSchemas);
+
+            Map<String, InternalSchemaModel> models = new HashMap<>(current.models);
+            models.put(schemaName, schemaModel);
+            Catalog updated = new Catalog(current.version + 1, models);
+            writeCatalog(updated);
+            catalog = updated;
+        } finally {
+            catalogLock.unlock();
+        }
+        for (SchemaChangeListener listener : listeners) {
+            listener.schemaChanged(schemaModel);
+        }
+    }
 
-        // Write key column index + Avro schema in binary format
-        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
-            out.writeInt(keyColumnIndex); // Store key column position
-            byte[] schemaBytes = compressSchemaToJson(schema);
-            out.write(schemaBytes, 0, schemaBytes.length); // Write Avro schema
+    /**
+     * Checks a new version of a schema keeps its key column and can read the records written
+     * with every earlier version.
+     */
+    private static void checkEvolution(InternalSchemaModel previous, Schema schema, int keyColumnIndex) {
+        Schema.Field keyField = schema.getFields().get(keyColumnIndex);
+        if (!keyField.name().equals(previous.getKeyField().name())
+                || !keyField.schema().equals(previous.getKeyField().schema())) {
+            throw new IllegalArgumentException("Key column of schema " + previous.getSchemaName()
+                    + " can't change from '" + previous.getKeyField().name() + "'");
+        }
+        for (Map.Entry<Integer, Schema> writer : previous.getWriterSchemas().entrySet()) {
+            SchemaCompatibility.SchemaPairCompatibility compatibility =
+                    SchemaCompatibility.checkReaderWriterCompatibility(schema, writer.getValue());
+            if (compatibility.getType() != SchemaCompatibility.SchemaCompatibilityType.COMPATIBLE) {
+                throw new IllegalArgumentException("Schema can't read the records of version " + writer.getKey()
+                        + " of " + previous.getSchemaName() + ": " + compatibility.getDescription());
+            }
         }
     }
 
     /**
-     * Loads an Avro schema along with the key column position.
+     * Looks up a schema along with its key column position.
      *
      * @param schemaName the name of the schema to load
-     * @return an {@link InternalSchemaModel} containing the schema, schema name, and key column position
-     * @throws IOException if an error occurs while reading the file
+     * @return an {@link InternalSchemaModel} of the latest version, containing the schema, schema name,
+     *         key column position and the schemas of the earlier versions
+     * @throws SchemaNotFoundException if there is no schema with that name
+     */
+    public InternalSchemaModel loadSchema(String schemaName) {
+        InternalSchemaModel schemaModel = catalog.models.get(schemaName);
+        if (schemaModel == null) {
+            throw new SchemaNotFoundException(schemaName);
+        }
+        return schemaModel;
+    }
+
+    /**
+     * Lists the names of all stored schemas.
+     *
+     * @return the schema names, empty if no schema has been stored yet
+     */
+    public List<String> listSchemaNames() {
+        return catalog.models.keySet().stream().sorted().toList();
+    }
+
+    /**
+     * Writes the catalog to a stream in the format of the catalog file, for a follower to
+     * install with {@link #replaceCatalog}.
+     *
+     * @param output the stream, not closed
+     * @throws IOException if an error occurs while writing
+     */
+    public void streamCatalog(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        writeCatalog(catalog, out);
+        out.flush();
+    }
+
+    /**
+     * Replaces the catalog with one written by {@link #streamCatalog}, keeping its version, and
+     * tells the listeners about every schema it adds or changes.
+     *
+     * @param input the stream, not closed
+     * @return the version of the new catalog
+     * @throws IOException if the stream is not a valid catalog or the catalog can't be written
+     */
+    public long replaceCatalog(InputStream input) throws IOException {
+        Catalog replacement = readCatalog(new DataInputStream(new BufferedInputStream(input, 1 << 16)), "replicated catalog");
+        List<InternalSchemaModel> changed = new ArrayList<>();
+        catalogLock.lock();
+        try {
+            for (InternalSchemaModel schemaModel : replacement.models.values()) {
+                InternalSchemaModel previous = catalog.models.get(schemaModel.getSchemaName());
+                if (previous == null || previous.getVersion() != schemaModel.getVersion()
+                        || !previous.getSchema().equals(schemaModel.getSchema())
+                        || !previous.getIndexedColumnIndexes().equals(schemaModel.getIndexedColumnIndexes())) {
+                    changed.add(schemaModel);
+                }
+            }
+            writeCatalog(replacement);
+            catalog = replacement;
+        } finally {
+            catalogLock.unlock();
+        }
+        for (InternalSchemaModel schemaModel : changed) {
+            for (SchemaChangeListener listener : listeners) {
+                listener.schemaChanged(schemaModel);
+            }
+        }
+        return replacement.version;
+    }
+
+    /**
+     * Reads the catalog file, then imports the schema files it doesn't list yet.
      */
-    public InternalSchemaModel loadSchema(String schemaName) throws IOException {
-        File file = new File(storagePath, schemaName + FILE_EXTENSION);
-        if (!file.exists()) {
-            throw new FileNotFoundException("Schema file not found: " + file.getAbsolutePath());
+    private Catalog loadCatalog() throws IOException {
+        File file = new File(storagePath, CATALOG_FILE);
+        Catalog loaded = file.exists() ? readCatalog(file) : new Catalog(0, Map.of());
+
+        File[] legacyFiles = new File(storagePath).listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (legacyFiles == null) {
+            return loaded;
+        }
+        Map<String, InternalSchemaModel> models = new HashMap<>(loaded.models);
+        for (File legacyFile : legacyFiles) {
+            String schemaName = legacyFile.getName().substring(0, legacyFile.getName().length() - FILE_EXTENSION.length());
+            if (!models.containsKey(schemaName)) {
+                models.put(schemaName, readSchemaFile(schemaName, legacyFile));
+            }
+        }
+        if (models.size() == loaded.models.size()) {
+            return loaded;
+        }
+        Catalog migrated = new Catalog(loaded.version + 1, models);
+        writeCatalog(migrated);
+        return migrated;
+    }
+
+    private Catalog readCatalog(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            return readCatalog(in, file.getAbsolutePath());
+        }
+    }
+
+    private static Catalog readCatalog(DataInputStream in, String source) throws IOException {
+        int formatVersion = in.readInt() == CATALOG_MAGIC ? in.readInt() : -1;
+        if (formatVersion != CATALOG_FORMAT_VERSION && formatVersion != SINGLE_VERSION_CATALOG_FORMAT) {
+            throw new IOException("Not a schema catalog of a supported format: " + source);
+        }
+        long version = in.readLong();
+
+        int schemaCount = in.readInt();
+        Map<Long, Schema> schemas = new HashMap<>(schemaCount * 2);
+        for (int i = 0; i < schemaCount; i++) {
+            long fingerprint = in.readLong();
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            schemas.put(fingerprint, new Schema.Parser().parse(new String(json, StandardCharsets.UTF_8)));
+        }
+
+        int tableCount = in.readInt();
+        Map<String, InternalSchemaModel> models = new HashMap<>(tableCount * 2);
+        for (int i = 0; i < tableCount; i++) {
+            String schemaName = in.readUTF();
+            Map<Integer, Schema> writerSchemas = new HashMap<>();
+            int schemaVersion = 0;
+            if (formatVersion == SINGLE_VERSION_CATALOG_FORMAT) {
+                schemaVersion = in.readInt();
+                writerSchemas.put(schemaVersion, catalogSchema(schemas, in.readLong(), schemaName));
+            }
+            int keyColumnIndex = in.readInt();
+            List<Integer> indexedColumnIndexes = new ArrayList<>();
+            int indexedColumnCount = in.readInt();
+            for (int j = 0; j < indexedColumnCount; j++) {
+                indexedColumnIndexes.add(in.readInt());
+            }
+            if (formatVersion == CATALOG_FORMAT_VERSION) {
+                int versionCount = in.readInt();
+                for (int j = 0; j < versionCount; j++) {
+                    schemaVersion = in.readInt();
+                    writerSchemas.put(schemaVersion, catalogSchema(schemas, in.readLong(), schemaName));
+                }
+            }
+            Schema schema = writerSchemas.remove(schemaVersion);
+            models.put(schemaName, new InternalSchemaModel(schemaName, schema, keyColumnIndex, indexedColumnIndexes,
+                    schemaVersion, writerSchemas));
+        }
+        return new Catalog(version, models);
+    }
+
+    /**
+     * Fingerprints the full JSON of a schema. The parsing fingerprint leaves out defaults, which
+     * decide how records of earlier versions are resolved, so it can't tell every version apart.
+     */
+    private static long catalogFingerprint(Schema schema) {
+        return SchemaNormalization.fingerprint64(schema.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Schema catalogSchema(Map<Long, Schema> schemas, long fingerprint, String schemaName) throws IOException {
+        Schema schema = schemas.get(fingerprint);
+        if (schema == null) {
+            throw new IOException("Schema catalog entry " + schemaName + " refers to a missing schema");
+        }
+        return schema;
+    }
+
+    private void writeCatalog(Catalog catalog) throws IOException {
+        File directory = new File(storagePath);
+        if (!directory.exists()) {
+            directory.mkdirs(); // Ensure the directory exists
+        }
+        File file = new File(directory, CATALOG_FILE);
+        File tempFile = new File(directory, CATALOG_FILE + TEMP_EXTENSION);
+
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            writeCatalog(catalog, out);
+            out.flush();
+            fileOut.getFD().sync(); // The rename below must never expose a partially written catalog
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeCatalog(Catalog catalog, DataOutputStream out) throws IOException {
+        out.writeInt(CATALOG_MAGIC);
+        out.writeInt(CATALOG_FORMAT_VERSION);
+        out.writeLong(catalog.version);
+
+        out.writeInt(catalog.schemasByFingerprint.size());
+        for (Map.Entry<Long, Schema> entry : catalog.schemasByFingerprint.entrySet()) {
+            byte[] json = entry.getValue().toString().getBytes(StandardCharsets.UTF_8);
+            out.writeLong(entry.getKey());
+            out.writeInt(json.length);
+            out.write(json);
         }
 
+        out.writeInt(catalog.models.size());
+        for (InternalSchemaModel schemaModel : catalog.models.values()) {
+            out.writeUTF(schemaModel.getSchemaName());
+            out.writeInt(schemaModel.getKeyColumnIndex());
+            out.writeInt(schemaModel.getIndexedColumnIndexes().size());
+            for (int indexedColumnIndex : schemaModel.getIndexedColumnIndexes()) {
+                out.writeInt(indexedColumnIndex);
+            }
+            // Every version, oldest first, so the last one is the current version
+            out.writeInt(schemaModel.getWriterSchemas().size());
+            for (Map.Entry<Integer, Schema> writer : schemaModel.getWriterSchemas().entrySet()) {
+                out.writeInt(writer.getKey());
+                out.writeLong(catalogFingerprint(writer.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Reads a schema saved as its own file by an earlier version.
+     */
+    private InternalSchemaModel readSchemaFile(String schemaName, File file) throws IOException {
         try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
             int keyColumnIndex = in.readInt(); // Read key column position
+            List<Integer> indexedColumnIndexes = new ArrayList<>();
+            if (keyColumnIndex == INDEXED_COLUMNS_MARKER) {
+                keyColumnIndex = in.readInt();
+                int indexedColumnCount = in.readInt();
+                for (int i = 0; i < indexedColumnCount; i++) {
+                    indexedColumnIndexes.add(in.readInt());
+                }
+            }
 
             // Read remaining bytes (which contain the Avro schema)
             byte[] schemaBytes = in.readAllBytes();
             Schema schema = decompressSchemaFromJson(schemaBytes);
-            return new InternalSchemaModel(schemaName, schema, keyColumnIndex);
+            return new InternalSchemaModel(schemaName, schema, keyColumnIndex, indexedColumnIndexes, 1);
         }
-    } 
+    }
 
     /**
      * Compresses an Avro Schema by converting it to a compact JSON representation
@@ -154,4 +502,26 @@ public class SchemaDao {
         }
         return KEY_COLUMN_NOT_FOUND; // Key column not found
     }
+
+    /**
+     * An immutable view of the catalog. Changes build a new one and publish it as a whole.
+     */
+    private static final class Catalog {
+
+        private final long version;
+        private final Map<String, InternalSchemaModel> models;
+        private final Map<Long, Schema> schemasByFingerprint;
+
+        private Catalog(long version, Map<String, InternalSchemaModel> models) {
+            this.version = version;
+            this.models = Map.copyOf(models);
+            Map<Long, Schema> schemas = new HashMap<>();
+            for (InternalSchemaModel schemaModel : models.values()) {
+                for (Schema schema : schemaModel.getWriterSchemas().values()) {
+                    schemas.putIfAbsent(catalogFingerprint(schema), schema);
+                }
+            }
+            this.schemasByFingerprint = schemas;
+        }
+    }
 }
@@ -0,0 +1,14 @@
+package com.novelosoftware.spreadsheetdb.dao;
+
+/**
+ * Thrown when a request names a schema that isn't in the catalog.
+ */
+public class SchemaNotFoundException extends RuntimeException {
+
+    /**
+     * @param schemaName the name of the missing schema
+     */
+    public SchemaNotFoundException(String schemaName) {
+        super("Schema not found: " + schemaName);
+    }
+}
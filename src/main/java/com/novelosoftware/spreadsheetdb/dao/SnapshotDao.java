@@ -0,0 +1,302 @@
+package com.novelosoftware.spreadsheetdb.dao;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+import com.novelosoftware.spreadsheetdb.store.SortedEntries;
+import com.novelosoftware.spreadsheetdb.store.TableSnapshot;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Data Access Object (DAO) for point-in-time snapshots of the record tables.
+ * <p>
+ * Snapshots are stored next to the schema files, one file per schema named after the sequence
+ * number of the last mutation it includes. The file starts with a header (magic, format
+ * version, sequence number, key kind and row count) followed by every row sorted by key,
+ * each written as its key, its length and its bytes, tagged with the schema version the row was
+ * written with.
+ * </p>
+ * <p>
+ * Snapshots are written to a temporary file, fsynced and atomically renamed, so a snapshot
+ * file is always complete. They are read back through memory-mapped windows of the file.
+ * </p>
+ */
+@Component
+public class SnapshotDao {
+
+    private static final String FILE_EXTENSION = ".snapshot"; // Binary table snapshot file extension
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int MAGIC = 0x53534442; // "SSDB"
+    private static final int FORMAT_VERSION = 2;
+    private static final int UNTAGGED_ROWS_FORMAT_VERSION = 1; // Rows without their schema version
+    private static final byte LONG_KEYS = 0;
+    private static final byte STRING_KEYS = 1;
+    private static final long NO_SNAPSHOT = 0L; // Sequence numbers start at one
+    private static final long MAX_WINDOW_BYTES = 1L << 30; // Largest region mapped at once
+
+    private final String storagePath;
+
+    /**
+     * Receives the rows of a snapshot as it is loaded.
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+
+        /**
+         * @param key the key of the row, a Long for numeric keys or a String
+         * @param row the Avro binary row, backed by the mapped file and only valid during the call
+         */
+        void accept(Object key, ByteBuffer row);
+    }
+
+    /**
+     * Constructs a SnapshotDao with the given storage path.
+     *
+     * @param storagePath the directory where schemas and snapshots are stored
+     */
+    public SnapshotDao(@Value("${schema.storage.path}") String storagePath) {
+        this.storagePath = storagePath;
+    }
+
+    /**
+     * Writes the snapshot of a table and deletes the older snapshots of the same schema.
+     *
+     * @param schemaName the name of the schema of the table
+     * @param snapshot   the keys and row locations of the table, it reads the rows
+     * @throws IOException if an error occurs while writing the file
+     */
+    public void saveSnapshot(String schemaName, TableSnapshot snapshot) throws IOException {
+        File directory = new File(storagePath);
+        if (!directory.exists()) {
+            directory.mkdirs(); // Ensure the directory exists
+        }
+
+        File file = new File(directory, fileName(schemaName, snapshot.getSequence()));
+        File tempFile = new File(directory, file.getName() + TEMP_EXTENSION);
+
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            writeSnapshot(snapshot, out);
+            out.flush();
+            fileOut.getFD().sync(); // The rename below must never expose a partially written snapshot
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (File older : listSnapshots(schemaName)) {
+            if (sequenceOf(older) < snapshot.getSequence()) {
+                older.delete();
+            }
+        }
+    }
+
+    /**
+     * Loads the latest snapshot of a schema by memory-mapping it.
+     *
+     * @param schemaName the name of the schema
+     * @param consumer   receives every row of the snapshot in key order
+     * @return the sequence number of the last mutation included in the snapshot, or zero if
+     *         the schema has no snapshot
+     * @throws IOException if an error occurs while reading the file or it is not a valid snapshot
+     */
+    public long loadSnapshot(String schemaName, RowConsumer consumer) throws IOException {
+        List<File> snapshots = listSnapshots(schemaName);
+        if (snapshots.isEmpty()) {
+            return NO_SNAPSHOT;
+        }
+        File file = snapshots.get(snapshots.size() - 1);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedWindow window = new MappedWindow(channel);
+            ByteBuffer header = window.require(Integer.BYTES * 2 + Long.BYTES * 2 + 1);
+            int formatVersion = header.getInt() == MAGIC ? header.getInt() : -1;
+            if (formatVersion != FORMAT_VERSION && formatVersion != UNTAGGED_ROWS_FORMAT_VERSION) {
+                throw new IOException("Not a snapshot file of a supported format: " + file.getAbsolutePath());
+            }
+            long sequence = header.getLong();
+            boolean longKeys = header.get() == LONG_KEYS;
+            long rowCount = header.getLong();
+
+            for (long i = 0; i < rowCount; i++) {
+                Object key;
+                if (longKeys) {
+                    key = window.require(Long.BYTES).getLong();
+                } else {
+                    byte[] keyBytes = new byte[window.require(Integer.BYTES).getInt()];
+                    window.require(keyBytes.length).get(keyBytes);
+                    key = new String(keyBytes, StandardCharsets.UTF_8);
+                }
+
+                int length = window.require(Integer.BYTES).getInt();
+                ByteBuffer buffer = window.require(length);
+                ByteBuffer row = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                if (formatVersion == UNTAGGED_ROWS_FORMAT_VERSION) {
+                    row = ByteBuffer.wrap(RowCodec.tagUntaggedRow(row));
+                }
+                consumer.accept(key, row);
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Writes the snapshot of a table to a stream in the format of the snapshot files, for a
+     * follower to load with {@link #readSnapshot}.
+     *
+     * @param snapshot the keys and row locations of the table, it reads the rows
+     * @param output   the stream, not closed
+     * @throws IOException if an error occurs while writing
+     */
+    public void streamSnapshot(TableSnapshot snapshot, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        writeSnapshot(snapshot, out);
+        out.flush();
+    }
+
+    /**
+     * Reads a snapshot written by {@link #streamSnapshot}.
+     *
+     * @param input    the stream, not closed
+     * @param consumer receives every row of the snapshot in key order
+     * @return the sequence number of the last mutation included in the snapshot
+     * @throws IOException if an error occurs while reading or the stream is not a valid snapshot
+     */
+    public long readSnapshot(InputStream input, RowConsumer consumer) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a snapshot of a supported format");
+        }
+        long sequence = in.readLong();
+        boolean longKeys = in.readByte() == LONG_KEYS;
+        long rowCount = in.readLong();
+
+        for (long i = 0; i < rowCount; i++) {
+            Object key;
+            if (longKeys) {
+                key = in.readLong();
+            } else {
+                byte[] keyBytes = new byte[in.readInt()];
+                in.readFully(keyBytes);
+                key = new String(keyBytes, StandardCharsets.UTF_8);
+            }
+            byte[] row = new byte[in.readInt()];
+            in.readFully(row);
+            consumer.accept(key, ByteBuffer.wrap(row));
+        }
+        return sequence;
+    }
+
+    private static void writeSnapshot(TableSnapshot snapshot, DataOutputStream out) throws IOException {
+        SortedEntries entries = snapshot.getEntries();
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(snapshot.getSequence());
+        out.writeByte(entries.hasLongKeys() ? LONG_KEYS : STRING_KEYS);
+        out.writeLong(entries.size());
+
+        byte[] copyBuffer = new byte[0];
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.hasLongKeys()) {
+                out.writeLong(entries.getLongKey(i));
+            } else {
+                byte[] key = entries.getStringKey(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+            }
+
+            ByteBuffer row = snapshot.readRow(entries.getLocation(i));
+            int length = row.remaining();
+            out.writeInt(length);
+            if (row.hasArray()) {
+                out.write(row.array(), row.arrayOffset() + row.position(), length);
+            } else {
+                if (copyBuffer.length < length) {
+                    copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+                }
+                row.get(row.position(), copyBuffer, 0, length);
+                out.write(copyBuffer, 0, length);
+            }
+        }
+    }
+
+    private List<File> listSnapshots(String schemaName) {
+        File[] files = new File(storagePath).listFiles((dir, name) -> isSnapshotOf(name, schemaName));
+        if (files == null) {
+            return List.of();
+        }
+        return Arrays.stream(files)
+                .sorted(Comparator.comparingLong(SnapshotDao::sequenceOf))
+                .toList();
+    }
+
+    private static String fileName(String schemaName, long sequence) {
+        return String.format("%s.%020d%s", schemaName, sequence, FILE_EXTENSION);
+    }
+
+    /**
+     * Checks a file name is schemaName.sequence.snapshot, where sequence only has digits, so
+     * schemas whose names share a prefix don't pick each other's snapshots.
+     */
+    private static boolean isSnapshotOf(String fileName, String schemaName) {
+        String prefix = schemaName + ".";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(FILE_EXTENSION)) {
+            return false;
+        }
+        String sequence = fileName.substring(prefix.length(), fileName.length() - FILE_EXTENSION.length());
+        return !sequence.isEmpty() && sequence.chars().allMatch(Character::isDigit);
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        String withoutExtension = name.substring(0, name.length() - FILE_EXTENSION.length());
+        return Long.parseLong(withoutExtension.substring(withoutExtension.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * A read-only mapping of a region of the snapshot file, moved forward whenever the next
+     * value doesn't fit in what is left of the current region.
+     */
+    private static final class MappedWindow {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer buffer;
+
+        private MappedWindow(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Makes sure the next bytes of the file are mapped.
+         *
+         * @param bytes the number of bytes about to be read
+         * @return the mapped buffer, positioned at the next unread byte
+         */
+        private ByteBuffer require(int bytes) throws IOException {
+            if (buffer == null || buffer.remaining() < bytes) {
+                long position = buffer == null ? 0 : windowStart + buffer.position();
+                if (size - position < bytes) {
+                    throw new EOFException("Snapshot file is truncated at byte " + position);
+                }
+                long length = Math.min(Math.max(MAX_WINDOW_BYTES, bytes), size - position);
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                windowStart = position;
+            }
+            return buffer;
+        }
+    }
+}
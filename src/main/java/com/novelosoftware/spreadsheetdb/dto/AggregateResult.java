@@ -0,0 +1,38 @@
+package com.novelosoftware.spreadsheetdb.dto;
+
+import lombok.Getter;
+
+/**
+ * AggregateResult is the response body of GET on /records/{schemaName}/_aggregate
+ */
+@Getter
+public class AggregateResult {
+
+    /**
+     * field is the name of the aggregated column.
+     */
+    private final String field;
+
+    /**
+     * op is the aggregate: count, sum, min, max or avg.
+     */
+    private final String op;
+
+    /**
+     * value is the result of the aggregate, null for min, max and avg over no values. Sums,
+     * minimums and maximums of int and long columns are exact.
+     */
+    private final Number value;
+
+    /**
+     * count is the number of non-null values the aggregate was computed over.
+     */
+    private final long count;
+
+    public AggregateResult(String field, String op, Number value, long count) {
+        this.field = field;
+        this.op = op;
+        this.value = value;
+        this.count = count;
+    }
+}
@@ -0,0 +1,56 @@
+package com.novelosoftware.spreadsheetdb.dto;
+
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * BatchUpsertResult is the response body of POST on /records/{schemaName}/batch and /spreadsheets/{schemaName}
+ */
+@Getter
+public class BatchUpsertResult {
+
+    /**
+     * upserted is the number of lines stored.
+     */
+    private final long upserted;
+
+    /**
+     * failed is the number of lines rejected.
+     */
+    private final long failed;
+
+    /**
+     * errors describes the rejected lines, only the first ones are reported.
+     */
+    private final List<LineError> errors;
+
+    public BatchUpsertResult(long upserted, long failed, List<LineError> errors) {
+        this.upserted = upserted;
+        this.failed = failed;
+        this.errors = errors;
+    }
+
+    /**
+     * LineError tells why a line of the batch was rejected.
+     */
+    @Getter
+    public static class LineError {
+
+        /**
+         * line is the line number in the request body, the message number of an Avro body, or the
+         * sheet row number, starting at one.
+         */
+        private final long line;
+
+        /**
+         * message describes the error.
+         */
+        private final String message;
+
+        public LineError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+}
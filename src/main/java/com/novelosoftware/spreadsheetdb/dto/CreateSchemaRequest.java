@@ -1,5 +1,7 @@
 package com.novelosoftware.spreadsheetdb.dto;
 
+import java.util.List;
+
 import org.apache.avro.Schema;
 import lombok.Getter;
 
@@ -18,4 +20,9 @@ public class CreateSchemaRequest {
      * keyColumn indicates which field of the avro schema corresponds to the table key.
      */
     private String keyColumn;
+
+    /**
+     * indexedFields names the fields that get a secondary index, so rows can be looked up by their value. Optional.
+     */
+    private List<String> indexedFields;
 }
@@ -0,0 +1,190 @@
+package com.novelosoftware.spreadsheetdb.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * RecordMetrics holds the Micrometer meters of the record paths, tagged by schema.
+ * <p>
+ * Latency timers publish their p50, p99 and p999 and a percentile histogram, so they can be
+ * read from the actuator metrics endpoint or aggregated by a monitoring backend. Meters are
+ * created once per schema and cached, recording a sample is a map lookup and a timer update.
+ * </p>
+ */
+@Component
+public class RecordMetrics {
+
+    /**
+     * The stage of a request a timer measures.
+     */
+    public enum Stage {
+        UPSERT("spreadsheetdb.record.upsert"), // Whole upsert, durability included
+        GET("spreadsheetdb.record.get"), // Whole point read, JSON conversion included
+        ENCODE("spreadsheetdb.record.encode"), // JSON to Avro binary row
+        DECODE("spreadsheetdb.record.decode"), // Avro binary row to JSON
+        AGGREGATE("spreadsheetdb.record.aggregate"), // Whole column aggregate, chunk refreshes included
+        PATCH("spreadsheetdb.record.patch"); // Whole field-level update, durability included
+
+        private final String meterName;
+
+        Stage(String meterName) {
+            this.meterName = meterName;
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer[]> timers = new ConcurrentHashMap<>();
+    private final Counter schemaCacheHits;
+    private final Counter schemaCacheMisses;
+    private final Timer schemaLoads;
+    private final Counter responseCacheHits;
+    private final Counter responseCacheMisses;
+    private final Map<String, RecordTable> gaugedTables = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a RecordMetrics.
+     *
+     * @param registry the registry the meters are registered in
+     */
+    public RecordMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.schemaCacheHits = Counter.builder("spreadsheetdb.schema.cache")
+                .tag("result", "hit")
+                .description("Schema lookups served by an existing table")
+                .register(registry);
+        this.schemaCacheMisses = Counter.builder("spreadsheetdb.schema.cache")
+                .tag("result", "miss")
+                .description("Schema lookups that created the table of the schema")
+                .register(registry);
+        this.schemaLoads = Timer.builder("spreadsheetdb.schema.load")
+                .description("Time to load a schema and create its table")
+                .register(registry);
+        this.responseCacheHits = Counter.builder("spreadsheetdb.record.cache")
+                .tag("result", "hit")
+                .description("Point reads served with the cached JSON of the record")
+                .register(registry);
+        this.responseCacheMisses = Counter.builder("spreadsheetdb.record.cache")
+                .tag("result", "miss")
+                .description("Point reads that converted the row of the record to JSON")
+                .register(registry);
+    }
+
+    /**
+     * Records how long a stage took for a schema.
+     *
+     * @param schemaName  the schema of the request
+     * @param stage       the measured stage
+     * @param startNanos  the {@link System#nanoTime()} when the stage started
+     */
+    public void record(String schemaName, Stage stage, long startNanos) {
+        timers.computeIfAbsent(schemaName, this::createTimers)[stage.ordinal()]
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts a schema lookup served by the existing table of the schema.
+     */
+    public void schemaCacheHit() {
+        schemaCacheHits.increment();
+    }
+
+    /**
+     * Counts a schema lookup that created the table of the schema and records how long loading
+     * the schema and creating the table took.
+     *
+     * @param startNanos the {@link System#nanoTime()} when loading the schema started
+     */
+    public void schemaLoaded(long startNanos) {
+        schemaCacheMisses.increment();
+        schemaLoads.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts a lookup of the JSON of a record.
+     *
+     * @param hit whether the JSON of the current version of the record was cached
+     */
+    public void responseCacheLookup(boolean hit) {
+        (hit ? responseCacheHits : responseCacheMisses).increment();
+    }
+
+    /**
+     * Exposes the bytes held by the response cache as a gauge.
+     *
+     * @param cache the cache, it is sampled whenever the gauge is read
+     */
+    public void registerResponseCache(ResponseCache cache) {
+        Gauge.builder("spreadsheetdb.record.cache.bytes", cache, ResponseCache::getBytes)
+                .description("Bytes held by the cached JSON of records")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Exposes the record count, the live row bytes and the spilled row bytes of a table as
+     * gauges. A table registered for a schema replaces the previous one, the gauges then sample
+     * the new table.
+     *
+     * @param table the table, it is sampled whenever the gauges are read
+     */
+    public void registerTable(RecordTable table) {
+        String schemaName = table.getSchemaModel().getSchemaName();
+        if (gaugedTables.put(schemaName, table) != null) {
+            return;
+        }
+        Gauge.builder("spreadsheetdb.table.records", gaugedTables, tables -> tables.get(schemaName).size())
+                .tag("schema", schemaName)
+                .description("Records stored in the table")
+                .register(registry);
+        Gauge.builder("spreadsheetdb.table.bytes", gaugedTables, tables -> tables.get(schemaName).getLiveBytes())
+                .tag("schema", schemaName)
+                .description("Bytes held by the current rows of the table")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("spreadsheetdb.table.spilled.bytes", gaugedTables, tables -> tables.get(schemaName).getSpilledBytes())
+                .tag("schema", schemaName)
+                .description("Bytes of current rows spilled from memory to segment files")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Exposes how far a follower is behind its leader as gauges.
+     *
+     * @param entries the number of entries of the leader not applied yet
+     * @param millis  how long the follower has been behind, zero when it is caught up
+     */
+    public void registerReplicationLag(LongSupplier entries, LongSupplier millis) {
+        Gauge.builder("spreadsheetdb.replication.lag.entries", entries, LongSupplier::getAsLong)
+                .description("Entries of the leader the follower has not applied yet")
+                .register(registry);
+        Gauge.builder("spreadsheetdb.replication.lag", millis, LongSupplier::getAsLong)
+                .description("Time the follower has been behind its leader")
+                .baseUnit("milliseconds")
+                .register(registry);
+    }
+
+    private Timer[] createTimers(String schemaName) {
+        Stage[] stages = Stage.values();
+        Timer[] created = new Timer[stages.length];
+        for (Stage stage : stages) {
+            created[stage.ordinal()] = Timer.builder(stage.meterName)
+                    .tag("schema", schemaName)
+                    .publishPercentiles(0.5, 0.99, 0.999)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+        return created;
+    }
+}
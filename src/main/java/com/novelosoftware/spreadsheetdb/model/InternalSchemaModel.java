@@ -1,18 +1,36 @@
 package com.novelosoftware.spreadsheetdb.model;
 
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericRecord;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Represents an internally stored schema, including:
  * - The schema name.
  * - The Avro schema itself.
  * - The key column index within the schema.
+ * - The indexes of the columns with a secondary index.
+ * - The version of the schema, increased each time it is replaced, and its parsing fingerprint.
+ * - The Avro schema of this version and of every earlier one, which rows may have been written with.
+ * The key field, its type and how keys are parsed are resolved once, when the model is built.
  */
 public class InternalSchemaModel {
 
     private final String schemaName;
     private final Schema schema;
     private final int keyColumnIndex;
+    private final List<Integer> indexedColumnIndexes;
+    private final int version;
+    private final long fingerprint;
+    private final Map<Integer, Schema> writerSchemas;
+    private final Schema.Field keyField;
+    private final Schema.Type keyType;
+    private final boolean numericKey;
 
     /**
      * Constructs an InternalSchemaModel.
@@ -22,9 +40,59 @@ public class InternalSchemaModel {
      * @param keyColumnIndex the index of the key column within the schema
      */
     public InternalSchemaModel(String schemaName, Schema schema, int keyColumnIndex) {
+        this(schemaName, schema, keyColumnIndex, List.of());
+    }
+
+    /**
+     * Constructs an InternalSchemaModel with secondary indexes.
+     *
+     * @param schemaName           the name of the schema
+     * @param schema               the Avro schema
+     * @param keyColumnIndex       the index of the key column within the schema
+     * @param indexedColumnIndexes the indexes of the columns with a secondary index
+     */
+    public InternalSchemaModel(String schemaName, Schema schema, int keyColumnIndex, List<Integer> indexedColumnIndexes) {
+        this(schemaName, schema, keyColumnIndex, indexedColumnIndexes, 1);
+    }
+
+    /**
+     * Constructs a version of an InternalSchemaModel.
+     *
+     * @param schemaName           the name of the schema
+     * @param schema               the Avro schema
+     * @param keyColumnIndex       the index of the key column within the schema
+     * @param indexedColumnIndexes the indexes of the columns with a secondary index
+     * @param version              the version of the schema, starting at 1
+     */
+    public InternalSchemaModel(String schemaName, Schema schema, int keyColumnIndex, List<Integer> indexedColumnIndexes,
+                               int version) {
+        this(schemaName, schema, keyColumnIndex, indexedColumnIndexes, version, Map.of());
+    }
+
+    /**
+     * Constructs a version of an InternalSchemaModel that follows earlier versions.
+     *
+     * @param schemaName           the name of the schema
+     * @param schema               the Avro schema
+     * @param keyColumnIndex       the index of the key column within the schema
+     * @param indexedColumnIndexes the indexes of the columns with a secondary index
+     * @param version              the version of the schema, starting at 1
+     * @param earlierSchemas       the Avro schema of each earlier version, by version
+     */
+    public InternalSchemaModel(String schemaName, Schema schema, int keyColumnIndex, List<Integer> indexedColumnIndexes,
+                               int version, Map<Integer, Schema> earlierSchemas) {
         this.schemaName = schemaName;
         this.schema = schema;
         this.keyColumnIndex = keyColumnIndex;
+        this.indexedColumnIndexes = List.copyOf(indexedColumnIndexes);
+        this.version = version;
+        this.fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+        Map<Integer, Schema> schemas = new TreeMap<>(earlierSchemas);
+        schemas.put(version, schema);
+        this.writerSchemas = Collections.unmodifiableMap(schemas);
+        this.keyField = schema.getFields().get(keyColumnIndex);
+        this.keyType = keyField.schema().getType();
+        this.numericKey = keyType == Schema.Type.INT || keyType == Schema.Type.LONG;
     }
 
     public String getSchemaName() {
@@ -39,11 +107,98 @@ public class InternalSchemaModel {
         return keyColumnIndex;
     }
 
+    public List<Integer> getIndexedColumnIndexes() {
+        return indexedColumnIndexes;
+    }
+
+    /**
+     * @return the version of the schema, increased each time it is replaced
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the 64-bit parsing fingerprint of the Avro schema
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the Avro schema of this version and of every earlier one, by version in ascending order
+     */
+    public Map<Integer, Schema> getWriterSchemas() {
+        return writerSchemas;
+    }
+
+    /**
+     * @return the Avro field used as the table key
+     */
+    public Schema.Field getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the Avro type of the key field, which decides how keys are indexed
+     */
+    public Schema.Type getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @return whether the keys are indexed in their natural order, so a range of keys can be
+     *         given by its bounds; keys of other types, such as DOUBLE, are indexed in the order
+     *         of their string form
+     */
+    public boolean hasNaturallyOrderedKeys() {
+        return numericKey || keyType == Schema.Type.STRING || keyType == Schema.Type.BOOLEAN;
+    }
+
+    /**
+     * Reads the key of a record by position.
+     *
+     * @param record a record of this schema
+     * @return the key as a Long for numeric keys, as a String otherwise
+     */
+    public Object keyOf(GenericRecord record) {
+        return normalizeKey(record.get(keyColumnIndex));
+    }
+
+    /**
+     * Converts a key value read from a record, a log entry or a snapshot to its canonical form.
+     *
+     * @param key the key value, such as an Integer or an Avro {@code Utf8}
+     * @return the key as a Long for numeric keys, as a String otherwise, or null for a null key
+     */
+    public Object normalizeKey(Object key) {
+        if (key == null) {
+            return null;
+        }
+        if (numericKey) {
+            return key instanceof Number number ? (Object) number.longValue() : (Object) Long.parseLong(key.toString());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Parses a key given as text, such as a request path segment.
+     *
+     * @param key the key text
+     * @return the key as a Long for numeric keys, as a String otherwise
+     * @throws NumberFormatException if the key column is numeric and the text is not a number
+     */
+    public Object parseKey(String key) {
+        return numericKey ? (Object) Long.parseLong(key) : key;
+    }
+
     @Override
     public String toString() {
         return "InternalSchemaModel{" +
                 "schemaName='" + schemaName + '\'' +
+                ", version=" + version +
                 ", keyColumnIndex=" + keyColumnIndex +
+                ", indexedColumnIndexes=" + indexedColumnIndexes +
                 ", schema=" + schema.toString() +
                 '}';
     }
@@ -0,0 +1,72 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * AvroMessages frames a stream of Avro single-object messages, which carry no length of their
+ * own: each message is preceded by its length in bytes as an Avro long, a zigzag varint.
+ */
+final class AvroMessages {
+
+    private static final int MAX_MESSAGE_BYTES = 64 << 20;
+
+    private AvroMessages() {
+    }
+
+    /**
+     * Writes a message and its length.
+     *
+     * @param out     the stream to write to
+     * @param message the single-object message
+     * @throws IOException if the stream can't be written
+     */
+    static void write(OutputStream out, byte[] message) throws IOException {
+        long zigZag = (long) message.length << 1;
+        while ((zigZag & ~0x7FL) != 0) {
+            out.write((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.write((int) zigZag);
+        out.write(message);
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @param in the stream to read from
+     * @return the single-object message, or null at the end of the stream
+     * @throws IOException if the stream can't be read or ends inside a message
+     * @throws IllegalArgumentException if the length of the message is not valid
+     */
+    static byte[] read(InputStream in) throws IOException {
+        long raw = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("Stream ended inside the length of a message");
+            }
+            if (shift > 63) {
+                throw new IllegalArgumentException("Message length is not a varint");
+            }
+            raw |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        long length = (raw >>> 1) ^ -(raw & 1);
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new IllegalArgumentException("Message length " + length + " is out of range");
+        }
+        byte[] message = in.readNBytes((int) length);
+        if (message.length < length) {
+            throw new EOFException("Stream ended inside a message");
+        }
+        return message;
+    }
+}
@@ -0,0 +1,234 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.novelosoftware.spreadsheetdb.dto.BatchUpsertResult;
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+
+import jakarta.annotation.PreDestroy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * BatchUpsertService loads newline-delimited JSON records, or a stream of Avro single-object
+ * messages, into a table.
+ * <p>
+ * The body is read as a stream and cut into chunks of lines or messages. Chunks are decoded in parallel
+ * with the cached codec of the table and applied in their original order, each chunk under a
+ * single acquisition of each shard lock. Only a bounded number of chunks are in flight,
+ * so memory does not grow with the size of the body. The request returns once every applied
+ * row is durable.
+ * </p>
+ */
+@Service
+public class BatchUpsertService {
+
+    private static final int CHUNK_LINES = 1000;
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    private final RecordService recordService;
+    private final ExecutorService decodeExecutor;
+    private final int maxChunksInFlight;
+
+    /**
+     * Constructs a BatchUpsertService.
+     *
+     * @param recordService the service holding the record tables
+     * @param decodeThreads the number of threads decoding chunks, zero or less uses one per core
+     */
+    public BatchUpsertService(
+            RecordService recordService,
+            @Value("${record.batch.decode-threads}") int decodeThreads) {
+        this.recordService = recordService;
+        int threads = decodeThreads > 0 ? decodeThreads : Runtime.getRuntime().availableProcessors();
+        this.decodeExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxChunksInFlight = threads * 2;
+    }
+
+    /**
+     * Upserts every line of a newline-delimited JSON body. Lines that can't be decoded are
+     * reported and skipped, the others are stored.
+     *
+     * @param schemaName the name of the schema
+     * @param ndjson     the request body, one JSON record per line
+     * @return how many lines were stored and why the others were rejected
+     * @throws IOException if the body can't be read or the rows can't be logged
+     */
+    public BatchUpsertResult upsertBatch(String schemaName, InputStream ndjson) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8));
+        return upsertItems(schemaName, reader::readLine, BatchUpsertService::encodeLine);
+    }
+
+    /**
+     * Upserts every message of a stream of Avro single-object messages, each preceded by its
+     * length, see {@link AvroMessages}. Messages that don't hold a record of a version of the
+     * schema are reported and skipped, by their number, the others are stored as they are.
+     *
+     * @param schemaName the name of the schema
+     * @param messages   the request body
+     * @return how many messages were stored and why the others were rejected
+     * @throws IOException if the body can't be read or the rows can't be logged
+     * @throws IllegalArgumentException if the body is not a stream of length-prefixed messages
+     */
+    public BatchUpsertResult upsertAvroBatch(String schemaName, InputStream messages) throws IOException {
+        return upsertItems(schemaName, () -> AvroMessages.read(messages), BatchUpsertService::encodeMessage);
+    }
+
+    private <T> BatchUpsertResult upsertItems(String schemaName, ItemReader<T> reader, ItemEncoder<T> encoder)
+            throws IOException {
+        RecordTable table = recordService.getTable(schemaName);
+
+        ArrayDeque<CompletableFuture<DecodedChunk>> inFlight = new ArrayDeque<>();
+        BatchProgress progress = new BatchProgress();
+        long itemNumber = 0;
+        List<T> items = new ArrayList<>(CHUNK_LINES);
+        T item;
+        while ((item = reader.next()) != null) {
+            itemNumber++;
+            items.add(item);
+            if (items.size() == CHUNK_LINES) {
+                inFlight.add(decodeAsync(table, items, itemNumber - items.size() + 1, encoder));
+                items = new ArrayList<>(CHUNK_LINES);
+                if (inFlight.size() >= maxChunksInFlight) {
+                    progress.apply(table, inFlight.poll().join());
+                }
+            }
+        }
+        if (!items.isEmpty()) {
+            inFlight.add(decodeAsync(table, items, itemNumber - items.size() + 1, encoder));
+        }
+        while (!inFlight.isEmpty()) {
+            progress.apply(table, inFlight.poll().join());
+        }
+
+        RecordService.awaitDurable(progress.logged);
+        return new BatchUpsertResult(progress.upserted, progress.failed, progress.errors);
+    }
+
+    @PreDestroy
+    public void close() {
+        decodeExecutor.shutdown();
+    }
+
+    private <T> CompletableFuture<DecodedChunk> decodeAsync(RecordTable table, List<T> items, long firstItem,
+                                                            ItemEncoder<T> encoder) {
+        return CompletableFuture.supplyAsync(() -> decode(table, items, firstItem, encoder), decodeExecutor);
+    }
+
+    /**
+     * Decodes the items of a chunk into keys and binary rows, keeping the errors of the items
+     * that don't match the schema.
+     */
+    private static <T> DecodedChunk decode(RecordTable table, List<T> items, long firstItem, ItemEncoder<T> encoder) {
+        RowCodec codec = table.getCodec();
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        DecodedChunk chunk = new DecodedChunk(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                encoder.encode(codec, schemaModel, items.get(i), chunk);
+            } catch (IOException | RuntimeException e) {
+                chunk.errors.add(new BatchUpsertResult.LineError(firstItem + i, String.valueOf(e.getMessage())));
+            }
+        }
+        return chunk;
+    }
+
+    private static void encodeLine(RowCodec codec, InternalSchemaModel schemaModel, String line, DecodedChunk chunk)
+            throws IOException {
+        if (!line.isBlank()) {
+            RowCodec.EncodedRow encoded = codec.encodeJson(line, schemaModel::keyOf);
+            chunk.add(schemaModel, encoded.getKey(), encoded.getRow());
+        }
+    }
+
+    private static void encodeMessage(RowCodec codec, InternalSchemaModel schemaModel, byte[] message, DecodedChunk chunk)
+            throws IOException {
+        byte[] row = codec.rowFromSingleObject(message);
+        Object key = codec.decodeField(ByteBuffer.wrap(row), schemaModel.getKeyColumnIndex());
+        chunk.add(schemaModel, schemaModel.normalizeKey(key), row);
+    }
+
+    /**
+     * Reads the items of a batch body, returning null at the end of the body.
+     */
+    @FunctionalInterface
+    private interface ItemReader<T> {
+
+        T next() throws IOException;
+    }
+
+    /**
+     * Encodes an item of a batch into the keys and rows of its chunk. An item that holds no
+     * record, such as a blank line, adds nothing.
+     */
+    @FunctionalInterface
+    private interface ItemEncoder<T> {
+
+        void encode(RowCodec codec, InternalSchemaModel schemaModel, T item, DecodedChunk chunk) throws IOException;
+    }
+
+    /**
+     * The decoded items of a chunk.
+     */
+    private static final class DecodedChunk {
+
+        private final List<Object> keys;
+        private final List<byte[]> rows;
+        private final List<BatchUpsertResult.LineError> errors = new ArrayList<>();
+
+        private DecodedChunk(int items) {
+            keys = new ArrayList<>(items);
+            rows = new ArrayList<>(items);
+        }
+
+        private void add(InternalSchemaModel schemaModel, Object key, byte[] row) {
+            if (key == null) {
+                throw new IllegalArgumentException("Record must contain the '" + schemaModel.getKeyField().name() + "' field.");
+            }
+            keys.add(key);
+            rows.add(row);
+        }
+    }
+
+    /**
+     * Counters of a batch, updated by the request thread as chunks are applied.
+     */
+    private static final class BatchProgress {
+
+        private long upserted;
+        private long failed;
+        private final List<BatchUpsertResult.LineError> errors = new ArrayList<>();
+        private CompletableFuture<Long> logged = CompletableFuture.completedFuture(0L);
+
+        private void apply(RecordTable table, DecodedChunk chunk) {
+            if (!chunk.rows.isEmpty()) {
+                logged = logged.thenCombine(table.putAll(chunk.keys, chunk.rows), Math::max);
+                upserted += chunk.rows.size();
+            }
+            failed += chunk.errors.size();
+            for (BatchUpsertResult.LineError error : chunk.errors) {
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    errors.add(error);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A batch of changes of a schema, each a JSON object holding its sequence number, the key of
+ * the record and either the whole record after an upsert or the changed fields of a patch.
+ */
+public class ChangePage {
+
+    private final List<Long> sequences;
+    private final List<String> changes;
+    private final long lastSequence;
+
+    ChangePage(List<Long> sequences, List<String> changes, long lastSequence) {
+        this.sequences = sequences;
+        this.changes = changes;
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * @return the sequence number to resume after, past the changes of other schemas read with
+     *         those of this page
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return whether the page holds no change
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Writes the changes as newline-delimited JSON, in sequence order.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    public void writeNdjson(OutputStream out) throws IOException {
+        for (String change : changes) {
+            out.write(change.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the changes as server-sent events whose id is their sequence number, so a client
+     * reconnecting with {@code Last-Event-ID} resumes after the last one it received. A page
+     * ending past its last change, or holding none, ends with an event of only an id, which
+     * moves the id of the client forward without dispatching anything and keeps the stream alive.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream can't be written
+     */
+    public void writeEvents(OutputStream out) throws IOException {
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < changes.size(); i++) {
+            events.append("id: ").append(sequences.get(i)).append("\ndata: ").append(changes.get(i)).append("\n\n");
+        }
+        if (changes.isEmpty() || sequences.get(sequences.size() - 1) != lastSequence) {
+            events.append("id: ").append(lastSequence).append("\n\n");
+        }
+        out.write(events.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
@@ -0,0 +1,176 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+import com.novelosoftware.spreadsheetdb.wal.ChangeBatch;
+import com.novelosoftware.spreadsheetdb.wal.ChangesExpiredException;
+import com.novelosoftware.spreadsheetdb.wal.LogEntry;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChangeService serves the changes of the records of a schema, so consumers follow them
+ * instead of polling every record.
+ * <p>
+ * Every upsert and patch is numbered by its write-ahead log sequence number, which increases
+ * across every schema. A consumer reads the changes after the last sequence number it saw and
+ * resumes from the one its last page ends at, across restarts of either side. Recent changes
+ * are read from the {@link com.novelosoftware.spreadsheetdb.wal.ChangeFeed} held in memory,
+ * older ones from the log files until snapshots delete them.
+ * </p>
+ */
+@Service
+public class ChangeService {
+
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final RecordService recordService;
+    private final ShardedWriteAheadLog writeAheadLog;
+    private final long maxWaitMs;
+    private final long streamMs;
+
+    /**
+     * Constructs a ChangeService.
+     *
+     * @param recordService the service holding the record tables
+     * @param writeAheadLog the log numbering the changes
+     * @param maxWaitMs     the longest a read waits for a change
+     * @param streamMs      how long a stream of server-sent events lasts before the client has
+     *                      to reconnect
+     */
+    public ChangeService(
+            RecordService recordService,
+            ShardedWriteAheadLog writeAheadLog,
+            @Value("${record.changes.max-wait-ms}") long maxWaitMs,
+            @Value("${record.changes.stream-ms}") long streamMs) {
+        this.recordService = recordService;
+        this.writeAheadLog = writeAheadLog;
+        this.maxWaitMs = maxWaitMs;
+        this.streamMs = streamMs;
+    }
+
+    /**
+     * Reads the changes of a schema after a sequence number, waiting for one if there are none.
+     *
+     * @param schemaName the name of the schema
+     * @param since      the sequence number of the last change seen, or null or empty to start
+     *                   after the latest change
+     * @param limit      the greatest number of changes returned
+     * @param waitMs     how long to wait for a change, capped by the configured maximum
+     * @return the changes
+     * @throws IllegalArgumentException if the limit or the sequence number is not valid
+     * @throws ChangesExpiredException  if the changes after {@code since} are no longer kept
+     * @throws IOException              if the log files can't be read or a change can't be decoded
+     */
+    public ChangePage readChanges(String schemaName, String since, int limit, long waitMs) throws IOException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        return readChanges(schemaName, parseSequence(since), limit, waitMs);
+    }
+
+    /**
+     * Reads the first page of a stream of changes, without waiting, so a position that is not
+     * valid or no longer kept is reported before the stream starts.
+     *
+     * @param schemaName the name of the schema
+     * @param since      the sequence number of the last change seen, or null or empty to start
+     *                   after the latest change
+     * @return the first page, see {@link #streamChanges}
+     * @throws IllegalArgumentException if the sequence number is not valid
+     * @throws ChangesExpiredException  if the changes after {@code since} are no longer kept
+     * @throws IOException              if the log files can't be read or a change can't be decoded
+     */
+    public ChangePage startStream(String schemaName, String since) throws IOException {
+        return readChanges(schemaName, parseSequence(since), MAX_PAGE_SIZE, 0);
+    }
+
+    /**
+     * Streams the changes of a schema as server-sent events, starting with a page already read,
+     * for the configured stream duration. Each page is written and flushed before the next is
+     * read, so a slow client holds back its own stream and nothing is buffered for it.
+     *
+     * @param schemaName the name of the schema
+     * @param first      the first page of the stream, from {@link #startStream}
+     * @param out        the stream of the response
+     * @throws IOException if the response can't be written or a change can't be decoded
+     */
+    public void streamChanges(String schemaName, ChangePage first, OutputStream out) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(streamMs);
+        out.write("retry: 1000\n\n".getBytes(StandardCharsets.UTF_8));
+        ChangePage page = first;
+        page.writeEvents(out);
+        long remaining;
+        while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+            try {
+                page = readChanges(schemaName, page.getLastSequence(), MAX_PAGE_SIZE, remaining);
+            } catch (ChangesExpiredException e) {
+                return; // The client reconnects and is told its position is no longer kept
+            }
+            page.writeEvents(out);
+        }
+    }
+
+    private ChangePage readChanges(String schemaName, long afterSequence, int limit, long waitMs) throws IOException {
+        RecordTable table = recordService.getTable(schemaName);
+        ChangeBatch batch;
+        try {
+            batch = writeAheadLog.readChanges(afterSequence, schemaName::equals, limit, Math.min(waitMs, maxWaitMs));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for changes");
+        }
+        List<Long> sequences = new ArrayList<>(batch.getEntries().size());
+        List<String> changes = new ArrayList<>(batch.getEntries().size());
+        for (LogEntry entry : batch.getEntries()) {
+            sequences.add(entry.getSequence());
+            changes.add(toJson(table, entry));
+        }
+        return new ChangePage(sequences, changes, batch.getLastSequence());
+    }
+
+    /**
+     * Converts a logged upsert or patch to the JSON of its change.
+     */
+    private static String toJson(RecordTable table, LogEntry entry) throws IOException {
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        RowCodec codec = table.getCodec();
+        Object key;
+        String body;
+        if (entry.isPatch()) {
+            key = codec.decodePatchField(entry.getPayload(), schemaModel.getKeyField().name());
+            body = "\"op\":\"patch\",\"fields\":" + codec.patchToJson(entry.getPayload());
+        } else {
+            ByteBuffer row = ByteBuffer.wrap(entry.getPayload());
+            key = codec.decodeField(row, schemaModel.getKeyColumnIndex());
+            body = "\"op\":\"upsert\",\"record\":" + codec.toJson(row);
+        }
+        return "{\"sequence\":" + entry.getSequence() + ",\"key\":"
+                + OBJECT_MAPPER.writeValueAsString(schemaModel.normalizeKey(key)) + "," + body + "}";
+    }
+
+    private long parseSequence(String since) {
+        if (since == null || since.isEmpty()) {
+            return writeAheadLog.getLastChangeSequence();
+        }
+        long sequence = Long.parseLong(since);
+        if (sequence < 0) {
+            throw new IllegalArgumentException("Sequence must not be negative: " + since);
+        }
+        return sequence;
+    }
+}
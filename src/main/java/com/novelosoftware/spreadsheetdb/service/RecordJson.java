@@ -0,0 +1,44 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+/**
+ * The JSON encoding of a record together with the version of the row it was encoded from.
+ */
+public class RecordJson {
+
+    private final long version;
+    private final byte[] json;
+
+    RecordJson(long version, byte[] json) {
+        this.version = version;
+        this.json = json;
+    }
+
+    /**
+     * @return the version of the record, see {@link com.novelosoftware.spreadsheetdb.store.RowCodec#contentVersion}
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the version as a strong HTTP entity tag
+     */
+    public String getETag() {
+        return eTagOf(version);
+    }
+
+    /**
+     * @param version a version of a record
+     * @return the version as a strong HTTP entity tag
+     */
+    public static String eTagOf(long version) {
+        return String.format("\"%016x\"", version);
+    }
+
+    /**
+     * @return the UTF-8 encoded JSON, possibly shared with the response cache, it must not be modified
+     */
+    public byte[] getJson() {
+        return json;
+    }
+}
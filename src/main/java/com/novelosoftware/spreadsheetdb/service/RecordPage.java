@@ -0,0 +1,106 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A page of records, from a key range scan or a secondary index lookup. The page only holds the
+ * keys it covers, rows are read from the table and converted to JSON one at a time while the
+ * page is written out. A page can be limited to some fields of the records, which are then the
+ * only ones decoded.
+ */
+public class RecordPage {
+
+    private final RecordTable table;
+    private final List<Object> keys;
+    private final String nextCursor;
+    private final Predicate<ByteBuffer> rowFilter;
+    private final List<String> fields;
+    private RowCodec projectedCodec;
+    private int[] projection;
+
+    RecordPage(RecordTable table, List<Object> keys, String nextCursor, List<String> fields) {
+        this(table, keys, nextCursor, row -> true, fields);
+    }
+
+    /**
+     * @param rowFilter checks each row again as it is read, rows it rejects are left out
+     * @param fields    the fields written as JSON, or null to write whole records
+     */
+    RecordPage(RecordTable table, List<Object> keys, String nextCursor, Predicate<ByteBuffer> rowFilter,
+               List<String> fields) {
+        this.table = table;
+        this.keys = keys;
+        this.nextCursor = nextCursor;
+        this.rowFilter = rowFilter;
+        this.fields = fields;
+    }
+
+    /**
+     * @return the cursor continuing the scan after this page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Writes the records of the page as newline-delimited JSON, in key order. Each record is
+     * read as it is written, so it reflects the latest upsert of its key.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream can't be written or a row can't be decoded
+     */
+    public void writeNdjson(OutputStream out) throws IOException {
+        for (Object key : keys) {
+            ByteBuffer row = table.peek(key);
+            if (row == null || !rowFilter.test(row)) {
+                continue;
+            }
+            out.write(toJson(row).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the records of the page as Avro single-object messages, each preceded by its
+     * length, see {@link AvroMessages}. Messages always hold whole records. Rows are copied without being decoded unless they were
+     * written with an earlier version of the schema.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream can't be written or an older row can't be resolved
+     */
+    public void writeAvro(OutputStream out) throws IOException {
+        for (Object key : keys) {
+            ByteBuffer row = table.peek(key);
+            if (row == null || !rowFilter.test(row)) {
+                continue;
+            }
+            AvroMessages.write(out, table.getCodec().toSingleObject(row));
+        }
+        out.flush();
+    }
+
+    /**
+     * Converts a row to JSON, limited to the fields of the page if it has any. Their positions
+     * are looked up again whenever the schema changes while the page is written.
+     */
+    private String toJson(ByteBuffer row) throws IOException {
+        RowCodec codec = table.getCodec();
+        if (fields == null) {
+            return codec.toJson(row);
+        }
+        if (codec != projectedCodec) {
+            projection = RecordService.fieldIndexes(codec, fields);
+            projectedCodec = codec;
+        }
+        return codec.projectToJson(row, projection);
+    }
+}
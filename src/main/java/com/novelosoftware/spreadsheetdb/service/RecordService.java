@@ -1,46 +1,90 @@
 package com.novelosoftware.spreadsheetdb.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericDatumReader;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.JsonDecoder;
-import org.apache.avro.io.JsonEncoder;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.DatumWriter;
-import org.apache.avro.io.DecoderFactory;
-import org.apache.avro.io.EncoderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dao.SchemaNotFoundException;
+import com.novelosoftware.spreadsheetdb.dto.AggregateResult;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
 import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+import com.novelosoftware.spreadsheetdb.store.ColumnChunk;
+import com.novelosoftware.spreadsheetdb.store.ColumnSummary;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+import com.novelosoftware.spreadsheetdb.store.SecondaryIndex;
+import com.novelosoftware.spreadsheetdb.store.VersionMismatchException;
+import com.novelosoftware.spreadsheetdb.wal.LogEntry;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
 
 /**
  * Service class responsible for handling record operations, including upsert and retrieval.
- * Utilizes SchemaDAO to load and cache schemas and provides methods to convert JSON data to GenericRecord and vice versa.
+ * Utilizes SchemaDAO to look up schemas and provides methods to convert JSON data to GenericRecord and vice versa.
+ * Schemas are read from the in-memory catalog of the SchemaDAO, which tells this service when one is replaced.
+ * Records are stored as Avro binary rows and only decoded when they are read.
+ * Every upsert is appended to the write-ahead log, tables are rebuilt on startup by the {@link SnapshotService}.
+ * The JSON of recently read records is kept in the {@link ResponseCache}, keyed by the version of their row.
+ * Requests run on virtual threads: a write is applied by its shard writer and acknowledged by the group commit of
+ * the log, the request only parks until then, so waiting clients don't hold platform threads.
  */
 @Service
 public class RecordService {
 
+    private static final Logger log = LoggerFactory.getLogger(RecordService.class);
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     private final SchemaDao schemaDao;
-    private final Map<String, InternalSchemaModel> schemaCache = new ConcurrentHashMap<>();
-    private final Map<Object, GenericRecord> recordStore = new ConcurrentHashMap<>();
+    private final RecordTableFactory tableFactory;
+    private final RecordMetrics metrics;
+    private final ResponseCache responseCache;
+    private final Map<String, RecordTable> tables = new ConcurrentHashMap<>();
 
     /**
      * Constructs a RecordService with the specified SchemaDAO.
      *
-     * @param schemaDao the SchemaDao to be used for schema operations
+     * @param schemaDao    the SchemaDao to be used for schema operations
+     * @param tableFactory the factory creating the table of each schema
+     * @param metrics       the meters timing each schema and stage
+     * @param responseCache the cache of the JSON of recently read records
      */
     @Autowired
-    public RecordService(SchemaDao schemaDao) {
+    public RecordService(SchemaDao schemaDao, RecordTableFactory tableFactory, RecordMetrics metrics,
+            ResponseCache responseCache) {
         this.schemaDao = schemaDao;
+        this.tableFactory = tableFactory;
+        this.metrics = metrics;
+        this.responseCache = responseCache;
+        metrics.registerResponseCache(responseCache);
+        schemaDao.addChangeListener(this::schemaChanged);
     }
 
     /**
@@ -49,36 +93,147 @@ public class RecordService {
      *
      * @param schemaName the name of the schema
      * @param jsonData   the JSON data to be converted and stored
-     * @throws IOException if an error occurs during JSON to GenericRecord conversion
+     * @throws IOException if an error occurs during JSON to GenericRecord conversion or while logging the record
      */
     public void upsert(String schemaName, String jsonData) throws IOException {
-        // Retrieve schema from cache or load from DAO
-        InternalSchemaModel schemaModel = getInternalSchema(schemaName);
-        Schema avroSchema = schemaModel.getSchema();
-
-        // Convert JSON to GenericRecord
-        GenericRecord record = convertJsonToGenericRecord(jsonData, avroSchema);
-
-        // Retrieve key field index from schema
-        int keyIndex = schemaModel.getKeyColumnIndex();
-        Schema.Field keyField = avroSchema.getFields().get(keyIndex);
-        String keyFieldName = keyField.name();
-
-        // Check if the key is already present in the record
-        if (record.hasField(keyFieldName)) {
-            // If key is present, use it to update the record
-            Schema.Type keyType = keyField.schema().getType();
-            Object key = record.get(keyFieldName);
-            if (keyType != Schema.Type.LONG && keyType != Schema.Type.INT) {
-                key = key.toString();
-            }
-            recordStore.put(key, record);
+        long start = System.nanoTime();
+        // Retrieve the table of the schema, it holds the schema model and the row codec
+        RecordTable table = getTable(schemaName);
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+
+        // Convert JSON straight to the binary row, reading the key on the way
+        long encodeStart = System.nanoTime();
+        RowCodec.EncodedRow encoded = table.getCodec().encodeJson(jsonData, schemaModel::keyOf);
+        metrics.record(schemaName, RecordMetrics.Stage.ENCODE, encodeStart);
+        store(table, encoded.getKey(), encoded.getRow(), start);
+    }
+
+    /**
+     * Upserts a record read as JSON from a stream, such as a request body, without holding the
+     * document as a string.
+     *
+     * @param schemaName the name of the schema
+     * @param json       the stream of the JSON document
+     * @throws IOException if the stream can't be read, the document doesn't match the schema or
+     *                     the record can't be logged
+     */
+    public void upsert(String schemaName, InputStream json) throws IOException {
+        long start = System.nanoTime();
+        RecordTable table = getTable(schemaName);
+        long encodeStart = System.nanoTime();
+        RowCodec.EncodedRow encoded = table.getCodec().encodeJson(json, table.getSchemaModel()::keyOf);
+        metrics.record(schemaName, RecordMetrics.Stage.ENCODE, encodeStart);
+        store(table, encoded.getKey(), encoded.getRow(), start);
+    }
+
+    /**
+     * Upserts a record given as an Avro single-object message. The record is stored as it was
+     * written, with the schema version its fingerprint names, and is never decoded to JSON.
+     *
+     * @param schemaName the name of the schema
+     * @param message    the stream of the message
+     * @throws IOException if the stream can't be read or the record can't be logged
+     * @throws IllegalArgumentException if the message is not a record of a version of the schema
+     */
+    public void upsertAvro(String schemaName, InputStream message) throws IOException {
+        long start = System.nanoTime();
+        RecordTable table = getTable(schemaName);
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        RowCodec codec = table.getCodec();
+        long encodeStart = System.nanoTime();
+        byte[] row = codec.rowFromSingleObject(message.readAllBytes());
+        Object key = schemaModel.normalizeKey(codec.decodeField(ByteBuffer.wrap(row), schemaModel.getKeyColumnIndex()));
+        metrics.record(schemaName, RecordMetrics.Stage.ENCODE, encodeStart);
+        store(table, key, row, start);
+    }
+
+    /**
+     * Stores an encoded row under its key and waits until it is durable.
+     */
+    private void store(RecordTable table, Object key, byte[] row, long start) throws IOException {
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        // Check if the key is present in the record
+        if (key != null) {
+            // If key is present, store the binary row under it
+            CompletableFuture<Long> logged = table.put(key, row);
+            awaitDurable(logged);
+            metrics.record(schemaModel.getSchemaName(), RecordMetrics.Stage.UPSERT, start);
         } else {
             // If key is not present, throw an exception
-            throw new IllegalArgumentException("Record must contain the 'id' field.");
+            throw new IllegalArgumentException("Record must contain the '" + schemaModel.getKeyField().name() + "' field.");
         }
     }
 
+    /**
+     * Updates some fields of a record, leaving the others as they are. Only the changed fields
+     * are encoded and logged, the other fields of the row are copied without being decoded.
+     *
+     * @param schemaName      the name of the schema
+     * @param stringRecordKey the key of the record to update
+     * @param json            the stream of a JSON object holding the new value of each changed
+     *                        field, in the same encoding as an upsert
+     * @param ifMatch         the If-Match header, the entity tags of the versions the record may
+     *                        be at, or null to update it whatever its version
+     * @return the new version of the record, or empty if it is not found
+     * @throws IOException              if the stream can't be read or the patch can't be logged
+     * @throws IllegalArgumentException if the document is not an object of fields of the schema
+     *                                  or changes the key
+     * @throws VersionMismatchException if the record is not at a version of {@code ifMatch}
+     */
+    public OptionalLong patch(String schemaName, String stringRecordKey, InputStream json, String ifMatch)
+            throws IOException {
+        long start = System.nanoTime();
+        RecordTable table = getTable(schemaName);
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        Object recordKey = schemaModel.parseKey(stringRecordKey);
+
+        JsonNode document = OBJECT_MAPPER.readTree(json);
+        if (document == null || !document.isObject() || document.size() == 0) {
+            throw new IllegalArgumentException("Patch must be a JSON object of at least one field");
+        }
+        long encodeStart = System.nanoTime();
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> fields = document.fields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            changes.put(field.getKey(), field.getValue().toString());
+        }
+        RowCodec codec = table.getCodec();
+        byte[] patch = codec.encodePatch(changes);
+        // The key is compared as decoded, its JSON may be any encoding of the key field type
+        String keyName = schemaModel.getKeyField().name();
+        if (changes.containsKey(keyName)
+                && !recordKey.equals(schemaModel.normalizeKey(codec.decodePatchField(patch, keyName)))) {
+            throw new IllegalArgumentException("Patch can't change the '" + keyName + "' field");
+        }
+        metrics.record(schemaName, RecordMetrics.Stage.ENCODE, encodeStart);
+
+        OptionalLong version = awaitDurable(table.patch(recordKey, patch, matcherOf(ifMatch)));
+        metrics.record(schemaName, RecordMetrics.Stage.PATCH, start);
+        return version;
+    }
+
+    /**
+     * Parses an If-Match header into a test of the version of a record. Entity tags that are
+     * weak or not made by {@link RecordJson#getETag} never match, as If-Match compares strongly.
+     */
+    static LongPredicate matcherOf(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return version -> true;
+        }
+        List<Long> versions = new ArrayList<>();
+        for (String tag : ifMatch.split(",")) {
+            String trimmed = tag.trim();
+            if (trimmed.length() == 18 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+                try {
+                    versions.add(Long.parseUnsignedLong(trimmed.substring(1, 17), 16));
+                } catch (NumberFormatException e) {
+                    // Not one of ours, it matches no version
+                }
+            }
+        }
+        return versions::contains;
+    }
+
     /**
      * Retrieves a record by its key, converting the stored GenericRecord back to a JSON object.
      *
@@ -87,61 +242,405 @@ public class RecordService {
      * @return a Map representing the JSON object of the record, or null if not found
      */
     public Optional<String> getRecord(String schemaName, String stringRecordKey) {
-        // Retrieve schema from cache or load from DAO
-        InternalSchemaModel schemaModel = getInternalSchema(schemaName);
-        Schema.Type keyType = schemaModel
-                .getSchema()
-                .getFields()
-                .get(schemaModel.getKeyColumnIndex())
-                .schema()
-                .getType();
+        return getRecordJson(schemaName, stringRecordKey)
+                .map(record -> new String(record.getJson(), StandardCharsets.UTF_8));
+    }
 
-        Object recordKey = stringRecordKey;
+    /**
+     * Retrieves a record by its key as UTF-8 encoded JSON, with the version of its row. The JSON
+     * is served from the {@link ResponseCache} while the record is unchanged, only a new version
+     * of the row is decoded.
+     *
+     * @param schemaName      the name of the schema
+     * @param stringRecordKey the key of the record to retrieve
+     * @return the record, or empty if it is not found
+     */
+    public Optional<RecordJson> getRecordJson(String schemaName, String stringRecordKey) {
+        long start = System.nanoTime();
+        // Retrieve the table of the schema, its key index parses the key for the key column type
+        RecordTable table = getTable(schemaName);
 
-        if (keyType == Schema.Type.LONG) {
-            recordKey = Long.parseLong(stringRecordKey);
-        } else if (keyType == Schema.Type.INT) {
-            recordKey = Integer.parseInt(stringRecordKey);
-        }  // else key is a string
+        Object recordKey = table.getSchemaModel().parseKey(stringRecordKey);
+        ByteBuffer row = table.get(recordKey);
+        if (row == null) {
+            metrics.record(schemaName, RecordMetrics.Stage.GET, start);
+            return Optional.empty();
+        }
+        // The codec is read after the row so it knows the schema version the row was written with
+        RowCodec codec = table.getCodec();
+        long version = codec.contentVersion(row);
+        byte[] json = responseCache.get(schemaName, recordKey, version);
+        metrics.responseCacheLookup(json != null);
+        if (json == null) {
+            try {
+                long decodeStart = System.nanoTime();
+                json = codec.toJson(row).getBytes(StandardCharsets.UTF_8);
+                metrics.record(schemaName, RecordMetrics.Stage.DECODE, decodeStart);
+            } catch (IOException ex) {
+                throw new RuntimeException("Error while converting generic record to json", ex);
+            }
+            responseCache.put(schemaName, recordKey, version, json);
+        }
+        metrics.record(schemaName, RecordMetrics.Stage.GET, start);
+        return Optional.of(new RecordJson(version, json));
+    }
 
-        Optional<GenericRecord> maybeRecord = Optional.ofNullable(recordStore.get(recordKey));
-        return maybeRecord.map(record -> convertGenericRecordToJson(record, schemaModel.getSchema()));
+    /**
+     * Retrieves some fields of a record by its key, as a JSON object holding only them. Only
+     * those fields are decoded, the response cache is not used.
+     *
+     * @param schemaName      the name of the schema
+     * @param stringRecordKey the key of the record to retrieve
+     * @param fields          the names of the fields, in the order they are written
+     * @return the JSON object, or empty if the record is not found
+     * @throws IllegalArgumentException if a field is not in the schema
+     */
+    public Optional<String> getRecordFields(String schemaName, String stringRecordKey, List<String> fields) {
+        long start = System.nanoTime();
+        RecordTable table = getTable(schemaName);
+        Object recordKey = table.getSchemaModel().parseKey(stringRecordKey);
+        ByteBuffer row = table.get(recordKey);
+        RowCodec codec = table.getCodec();
+        int[] fieldIndexes = fieldIndexes(codec, fields);
+        if (row == null) {
+            metrics.record(schemaName, RecordMetrics.Stage.GET, start);
+            return Optional.empty();
+        }
+        try {
+            long decodeStart = System.nanoTime();
+            String json = codec.projectToJson(row, fieldIndexes);
+            metrics.record(schemaName, RecordMetrics.Stage.DECODE, decodeStart);
+            metrics.record(schemaName, RecordMetrics.Stage.GET, start);
+            return Optional.of(json);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error while converting fields of a record to json", ex);
+        }
     }
 
-    private InternalSchemaModel getInternalSchema(String schemaName) {
-        return schemaCache.computeIfAbsent(schemaName, key -> {
+    /**
+     * Retrieves a record by its key as an Avro single-object message of the current schema
+     * version. A row of the current version is copied without being decoded.
+     *
+     * @param schemaName      the name of the schema
+     * @param stringRecordKey the key of the record to retrieve
+     * @return the message, or empty if the record is not found
+     */
+    public Optional<byte[]> getRecordAvro(String schemaName, String stringRecordKey) {
+        long start = System.nanoTime();
+        RecordTable table = getTable(schemaName);
+        Object recordKey = table.getSchemaModel().parseKey(stringRecordKey);
+        Optional<byte[]> message = Optional.ofNullable(table.get(recordKey)).map(row -> {
+            try {
+                long decodeStart = System.nanoTime();
+                byte[] encoded = table.getCodec().toSingleObject(row);
+                metrics.record(schemaName, RecordMetrics.Stage.DECODE, decodeStart);
+                return encoded;
+            } catch (IOException ex) {
+                throw new RuntimeException("Error while converting row to an Avro message", ex);
+            }
+        });
+        metrics.record(schemaName, RecordMetrics.Stage.GET, start);
+        return message;
+    }
+
+    /**
+     * Retrieves a single field of a record by its key. Only the requested field is decoded,
+     * the fields stored before it are skipped.
+     *
+     * @param schemaName      the name of the schema
+     * @param stringRecordKey the key of the record to retrieve
+     * @param fieldName       the name of the field to retrieve
+     * @return the JSON encoded field value, or empty if the record is not found
+     */
+    public Optional<String> getRecordField(String schemaName, String stringRecordKey, String fieldName) {
+        RecordTable table = getTable(schemaName);
+        Object recordKey = table.getSchemaModel().parseKey(stringRecordKey);
+        Optional<ByteBuffer> maybeRow = Optional.ofNullable(table.get(recordKey));
+        // The codec is read after the row so it knows the schema version the row was written with
+        RowCodec codec = table.getCodec();
+        Schema.Field field = codec.getSchema().getField(fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' not found in schema " + schemaName);
+        }
+
+        return maybeRow.map(row -> {
+            try {
+                return codec.fieldToJson(row, field.pos());
+            } catch (IOException ex) {
+                throw new RuntimeException("Error while decoding field " + fieldName, ex);
+            }
+        });
+    }
+
+    /**
+     * Scans a range of records in key order, one page at a time. Only the keys of the page are
+     * collected, the scan takes no lock and concurrent upserts proceed while it runs.
+     *
+     * @param schemaName the name of the schema
+     * @param from       the lowest key of the range, inclusive, or null to start at the first key
+     * @param to         the key the range stops before, or null to run to the last key
+     * @param limit      the maximum number of records of the page
+     * @param cursor     the cursor returned with the previous page, or null for the first page
+     * @param fields     the fields of the records written as JSON, or null for whole records
+     * @return the page, and the cursor of the next page if there are more records in the range
+     * @throws IllegalArgumentException if the limit, a key, the cursor or a field is not valid, or
+     *                                  if the range is bounded on keys not indexed in their natural
+     *                                  order, see {@link InternalSchemaModel#hasNaturallyOrderedKeys}
+     */
+    public RecordPage scanRecords(String schemaName, String from, String to, int limit, String cursor,
+                                  List<String> fields) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        RecordTable table = getTable(schemaName);
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        if (fields != null) {
+            fieldIndexes(table.getCodec(), fields);
+        }
+
+        checkBounded(schemaModel, from, to);
+        Object toKey = to == null ? null : schemaModel.parseKey(to);
+        Object fromKey;
+        boolean fromInclusive;
+        if (cursor != null) {
+            // The cursor is the last key of the previous page, the scan resumes right after it
+            fromKey = schemaModel.parseKey(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+            fromInclusive = false;
+        } else {
+            fromKey = from == null ? null : schemaModel.parseKey(from);
+            fromInclusive = true;
+        }
+        checkRange(fromKey, toKey);
+
+        Iterator<?> range = table.keyRange(fromKey, fromInclusive, toKey);
+        List<Object> keys = new ArrayList<>(Math.min(limit, table.size()));
+        while (keys.size() < limit && range.hasNext()) {
+            keys.add(range.next());
+        }
+        String nextCursor = null;
+        if (range.hasNext()) {
+            Object lastKey = keys.get(keys.size() - 1);
+            nextCursor = Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(lastKey.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return new RecordPage(table, keys, nextCursor, fields);
+    }
+
+    /**
+     * Finds the records holding a value in an indexed column, through its secondary index.
+     *
+     * @param schemaName the name of the schema
+     * @param fieldName  the name of the indexed column
+     * @param value      the value, parsed for the type of the column
+     * @param fields     the fields of the records written as JSON, or null for whole records
+     * @return the matching records, in no particular order
+     * @throws IllegalArgumentException if the column is not indexed, the value doesn't fit its
+     *                                  type or a field is not in the schema
+     */
+    public RecordPage findByField(String schemaName, String fieldName, String value, List<String> fields) {
+        RecordTable table = getTable(schemaName);
+        SecondaryIndex index = table.getSecondaryIndex(fieldName);
+        if (index == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' of schema " + schemaName + " is not indexed");
+        }
+        Object indexedValue = index.parseValue(value);
+        int fieldIndex = index.getField().pos();
+        if (fields != null) {
+            fieldIndexes(table.getCodec(), fields);
+        }
+
+        // A row written while the keys are read may no longer hold the value, so it is checked again
+        return new RecordPage(table, index.keysFor(indexedValue), null, row -> {
             try {
-                return schemaDao.loadSchema(key);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to load schema: " + key, e);
+                return indexedValue.equals(index.valueOf(table.getCodec().decodeField(row, fieldIndex)));
+            } catch (IOException ex) {
+                throw new RuntimeException("Error while decoding field " + fieldName, ex);
+            }
+        }, fields);
+    }
+
+    /**
+     * Aggregates a column over a range of keys, from its column chunks, see
+     * {@link RecordTable#summarize}. Rows are not decoded unless they changed since the previous
+     * aggregate over the column.
+     *
+     * @param schemaName the name of the schema
+     * @param fieldName  the name of the column
+     * @param op         the aggregate: count, sum, min, max or avg
+     * @param from       the lowest key of the range, inclusive, or null or empty to start at the
+     *                   first key
+     * @param to         the key the range stops before, or null or empty to run to the last key
+     * @return the result of the aggregate
+     * @throws IllegalArgumentException if the aggregate is unknown or doesn't apply to the type
+     *                                  of the column, a key is not valid or the sum overflows
+     */
+    public AggregateResult aggregate(String schemaName, String fieldName, String op, String from, String to) {
+        long start = System.nanoTime();
+        RecordTable table = getTable(schemaName);
+        InternalSchemaModel schemaModel = table.getSchemaModel();
+        Schema.Field field = table.getCodec().getSchema().getField(fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' not found in schema " + schemaName);
+        }
+        String operation = op.toLowerCase(Locale.ROOT);
+        if (!List.of("count", "sum", "min", "max", "avg").contains(operation)) {
+            throw new IllegalArgumentException("Unknown aggregate '" + op + "', expected count, sum, min, max or avg");
+        }
+        if (!operation.equals("count") && !ColumnChunk.isNumeric(field.schema())) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' is not numeric, it can only be counted");
+        }
+        Object fromKey = from == null || from.isEmpty() ? null : schemaModel.parseKey(from);
+        Object toKey = to == null || to.isEmpty() ? null : schemaModel.parseKey(to);
+        checkBounded(schemaModel, fromKey, toKey);
+        checkRange(fromKey, toKey);
+
+        ColumnSummary summary;
+        try {
+            summary = table.summarize(fieldName, fromKey, toKey);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Sum of field '" + fieldName + "' overflows a long", e);
+        }
+        Number value = switch (operation) {
+            case "count" -> summary.getCount();
+            case "sum" -> summary.getSum();
+            case "min" -> summary.getMin();
+            case "max" -> summary.getMax();
+            default -> summary.getAverage();
+        };
+        metrics.record(schemaName, RecordMetrics.Stage.AGGREGATE, start);
+        return new AggregateResult(fieldName, operation, value, summary.getCount());
+    }
+
+    /**
+     * Looks up the positions of fields in the schema of a codec.
+     *
+     * @throws IllegalArgumentException if there are no fields or one is not in the schema
+     */
+    static int[] fieldIndexes(RowCodec codec, List<String> fields) {
+        if (fields.isEmpty()) {
+            throw new IllegalArgumentException("At least one field must be given");
+        }
+        int[] fieldIndexes = new int[fields.size()];
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            Schema.Field field = codec.getSchema().getField(fields.get(i));
+            if (field == null) {
+                throw new IllegalArgumentException("Field '" + fields.get(i) + "' not found in schema "
+                        + codec.getSchema().getName());
             }
+            fieldIndexes[i] = field.pos();
+        }
+        return fieldIndexes;
+    }
+
+    @SuppressWarnings("unchecked") // Keys of a table are all Longs or all Strings
+    /**
+     * Rejects the bounds of a range of keys that are not indexed in their natural order, their
+     * range would not hold the keys between the bounds. Scanning every key is still allowed.
+     */
+    private static void checkBounded(InternalSchemaModel schemaModel, Object from, Object to) {
+        if ((from != null || to != null) && !schemaModel.hasNaturallyOrderedKeys()) {
+            throw new IllegalArgumentException("Ranges of " + schemaModel.getKeyType() + " keys can't be bounded, "
+                    + "they are ordered by their string form");
+        }
+    }
+
+    private static void checkRange(Object fromKey, Object toKey) {
+        if (fromKey != null && toKey != null && ((Comparable<Object>) fromKey).compareTo(toKey) > 0) {
+            throw new IllegalArgumentException("Range start " + fromKey + " is after its end " + toKey);
+        }
+    }
+
+    /**
+     * Returns the table holding the records of a schema, creating it on first access.
+     */
+    RecordTable getTable(String schemaName) {
+        RecordTable table = tables.get(schemaName);
+        if (table != null) {
+            metrics.schemaCacheHit();
+            return table;
+        }
+        return tables.computeIfAbsent(schemaName, key -> {
+            long start = System.nanoTime();
+            RecordTable created = tableFactory.create(getInternalSchema(key));
+            metrics.schemaLoaded(start);
+            metrics.registerTable(created);
+            return created;
         });
     }
 
     /**
-     * Decodes json into a GenericRecord
-     * 
-     * @param jsonData json string with the record
-     * @param avroSchema schema for decoding the record
-     * @return the GenericRecord which is an avro-schema
-     * @throws IOException
+     * @return the tables created so far
      */
-    private GenericRecord convertJsonToGenericRecord(String jsonData, Schema avroSchema) throws IOException {
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(avroSchema);
-        JsonDecoder jsonDecoder = DecoderFactory.get().jsonDecoder(avroSchema, jsonData);
-        return datumReader.read(null, jsonDecoder);
+    Collection<RecordTable> getTables() {
+        return tables.values();
     }
 
-    private String convertGenericRecordToJson(GenericRecord record, Schema avroSchema) {
+    private InternalSchemaModel getInternalSchema(String schemaName) {
+        return schemaDao.loadSchema(schemaName);
+    }
+
+    /**
+     * Moves the table of a schema to its new version. Stored records keep the version they were
+     * written with until they are upgraded, so this doesn't depend on the size of the table.
+     */
+    private void schemaChanged(InternalSchemaModel schemaModel) {
+        RecordTable table = tables.get(schemaModel.getSchemaName());
+        if (table != null) {
+            long start = System.nanoTime();
+            int previousVersion = table.getSchemaModel().getVersion();
+            table.evolve(schemaModel);
+            log.info("Moved {} records of schema {} from version {} to {} in {} us", table.size(),
+                    schemaModel.getSchemaName(), previousVersion, schemaModel.getVersion(),
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Applies a row or a patch replayed from the write-ahead log to its table.
+     */
+    void restore(LogEntry entry) {
+        RecordTable table;
         try {
-            DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(avroSchema);
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            JsonEncoder jsonEncoder = EncoderFactory.get().jsonEncoder(avroSchema, out);
-            datumWriter.write(record, jsonEncoder);
-            jsonEncoder.flush();
-            return out.toString("UTF-8");
-        } catch (IOException ex) {
-            throw new RuntimeException("Error while converting generic record to json", ex);
+            table = getTable(entry.getSchemaName());
+        } catch (SchemaNotFoundException e) {
+            log.warn("Skipping logged record {} of unknown schema {}", entry.getSequence(), entry.getSchemaName());
+            return;
+        }
+        try {
+            if (entry.isPatch()) {
+                Object key = table.getCodec().decodePatchField(entry.getPayload(), table.getSchemaModel().getKeyField().name());
+                table.restorePatch(key, entry.getPayload());
+                return;
+            }
+            ByteBuffer row = ByteBuffer.wrap(entry.getPayload());
+            Object key = table.getCodec().decodeField(row, table.getSchemaModel().getKeyColumnIndex());
+            table.restore(key, entry.getPayload());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replay logged record " + entry.getSequence(), e);
+        }
+    }
+
+    /**
+     * Waits until a logged write is as durable as the write-ahead log is configured to make it.
+     * Nothing in the pipeline holds a monitor while waiting, so a virtual thread parked here
+     * releases its carrier thread.
+     *
+     * @return the result of the write
+     */
+    static <T> T awaitDurable(CompletableFuture<T> logged) throws IOException {
+        try {
+            return logged.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write-ahead log");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException cause) {
+                throw new IOException("Failed to write the write-ahead log", cause.getCause());
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause; // The write itself failed on its shard writer
+            }
+            throw new IOException("Failed to write the write-ahead log", e.getCause());
         }
     }
 }
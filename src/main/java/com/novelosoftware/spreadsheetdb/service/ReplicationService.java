@@ -0,0 +1,498 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dao.SnapshotDao;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.TableSnapshot;
+import com.novelosoftware.spreadsheetdb.wal.ChangeBatch;
+import com.novelosoftware.spreadsheetdb.wal.ChangesExpiredException;
+import com.novelosoftware.spreadsheetdb.wal.LogEntry;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ReplicationService ships the write-ahead log of a leader to read-only followers, so reads
+ * scale out over several instances.
+ * <p>
+ * An instance is a follower when {@code record.replication.leader-url} is set. A follower
+ * installs the schema catalog and a snapshot of every table of the leader, then long-polls the
+ * entries logged after the oldest snapshot and applies them to its tables. Entries come in
+ * sequence order, each schema skipping those its snapshot already includes, and the catalog is
+ * fetched again whenever the leader reports a newer version, before the entries written with
+ * it are applied, along with a snapshot of every schema it adds. A follower that falls behind
+ * the log the leader keeps starts over from new snapshots; rows are never deleted, so they
+ * simply replace the rows it holds.
+ * </p>
+ * <p>
+ * Writes answer with the sequence number of the log they are covered by. A reader passing it
+ * as {@code min-sequence} to a follower waits, up to a bound, for the follower to apply it,
+ * and so reads its own writes. Followers apply entries without logging them, they start over
+ * from the leader at every start and take no snapshots of their own, see {@link SnapshotService}.
+ * </p>
+ */
+@Service
+public class ReplicationService {
+
+    /**
+     * The response header holding the sequence number of the last entry of the leader.
+     */
+    public static final String LAST_SEQUENCE_HEADER = "X-Last-Sequence";
+
+    /**
+     * The response header holding the version of the catalog of the leader.
+     */
+    public static final String CATALOG_VERSION_HEADER = "X-Catalog-Version";
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationService.class);
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int MAX_BATCH_ENTRIES = 10000;
+    private static final long REQUEST_TIMEOUT_MARGIN_MS = 10000; // Beyond the long poll itself
+
+    private final RecordService recordService;
+    private final SchemaDao schemaDao;
+    private final SnapshotDao snapshotDao;
+    private final ShardedWriteAheadLog writeAheadLog;
+    private final URI leaderUri;
+    private final int batchEntries;
+    private final long pollWaitMs;
+    private final long retryMs;
+    private final long readWaitMs;
+    private final long maxWaitMs;
+    private final HttpClient httpClient;
+    private final ReentrantLock appliedLock = new ReentrantLock();
+    private final Condition advanced = appliedLock.newCondition();
+    private long appliedSequence; // Guarded by appliedLock, every entry up to it is applied
+    private volatile long leaderSequence;
+    private volatile boolean caughtUp;
+    private volatile long caughtUpNanos = System.nanoTime();
+    private Thread follower;
+
+    /**
+     * Constructs a ReplicationService.
+     *
+     * @param recordService the service holding the record tables
+     * @param schemaDao     the catalog, replaced by that of the leader on followers
+     * @param snapshotDao   the format the snapshots of the tables are shipped in
+     * @param writeAheadLog the log shipped to followers
+     * @param metrics       the meters exposing the replication lag of followers
+     * @param leaderUrl     the base URL of the leader, empty unless this instance is a follower
+     * @param batchEntries  the greatest number of entries a follower asks for at once
+     * @param pollWaitMs    how long a follower waits for an entry in each request
+     * @param retryMs       how long a follower waits after a failure before trying again
+     * @param readWaitMs    the longest a read waits for a follower to reach its minimum sequence
+     * @param maxWaitMs     the longest the leader holds a request waiting for an entry
+     */
+    public ReplicationService(
+            RecordService recordService,
+            SchemaDao schemaDao,
+            SnapshotDao snapshotDao,
+            ShardedWriteAheadLog writeAheadLog,
+            RecordMetrics metrics,
+            @Value("${record.replication.leader-url}") String leaderUrl,
+            @Value("${record.replication.batch-entries}") int batchEntries,
+            @Value("${record.replication.poll-wait-ms}") long pollWaitMs,
+            @Value("${record.replication.retry-ms}") long retryMs,
+            @Value("${record.replication.read-wait-ms}") long readWaitMs,
+            @Value("${record.changes.max-wait-ms}") long maxWaitMs) {
+        this.recordService = recordService;
+        this.schemaDao = schemaDao;
+        this.snapshotDao = snapshotDao;
+        this.writeAheadLog = writeAheadLog;
+        this.leaderUri = leaderUrl.isBlank() ? null : URI.create(leaderUrl.endsWith("/") ? leaderUrl : leaderUrl + "/");
+        this.batchEntries = Math.min(batchEntries, MAX_BATCH_ENTRIES);
+        this.pollWaitMs = pollWaitMs;
+        this.retryMs = retryMs;
+        this.readWaitMs = readWaitMs;
+        this.maxWaitMs = maxWaitMs;
+        this.httpClient = leaderUri == null ? null : HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(REQUEST_TIMEOUT_MARGIN_MS))
+                .build();
+        if (leaderUri != null) {
+            metrics.registerReplicationLag(this::getLagEntries, this::getLagMillis);
+        }
+    }
+
+    /**
+     * Starts following the leader, when this instance is a follower.
+     */
+    @PostConstruct
+    public void start() {
+        if (leaderUri == null) {
+            return;
+        }
+        follower = new Thread(this::follow, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+        log.info("Following leader {}", leaderUri);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (follower != null) {
+            follower.interrupt();
+            follower.join(TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+
+    /**
+     * @return whether this instance is a read-only follower
+     */
+    public boolean isFollower() {
+        return leaderUri != null;
+    }
+
+    /**
+     * @return the base URL of the leader, or null if this instance is not a follower
+     */
+    public URI getLeaderUri() {
+        return leaderUri;
+    }
+
+    /**
+     * @return the sequence number every write answered so far is covered by: the last one
+     *         logged on a leader, the last one applied on a follower
+     */
+    public long getSequence() {
+        if (leaderUri == null) {
+            return writeAheadLog.getLastSequence();
+        }
+        appliedLock.lock();
+        try {
+            return appliedSequence;
+        } finally {
+            appliedLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the writes up to a sequence number to be readable, which they are at once on a
+     * leader.
+     *
+     * @param sequence the sequence number a write answered with
+     * @return whether they are readable, false if the follower didn't apply them in time
+     */
+    public boolean awaitSequence(long sequence) {
+        if (leaderUri == null) {
+            return sequence <= writeAheadLog.getLastSequence();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readWaitMs);
+        appliedLock.lock();
+        try {
+            while (appliedSequence < sequence) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                advanced.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            appliedLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries of the leader not applied yet
+     */
+    public long getLagEntries() {
+        return Math.max(0, leaderSequence - getSequence());
+    }
+
+    /**
+     * @return how long the follower has been behind the leader, or out of touch with it, zero
+     *         when it is caught up
+     */
+    public long getLagMillis() {
+        return caughtUp ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUpNanos);
+    }
+
+    /**
+     * Reads the entries logged on this instance after a sequence number, for a follower.
+     *
+     * @param afterSequence the sequence number of the last entry the follower applied
+     * @param limit         the greatest number of entries returned
+     * @param waitMs        how long to wait for an entry, capped by the configured maximum
+     * @return the entries of every schema
+     * @throws IllegalArgumentException if the limit or the sequence number is not valid
+     * @throws ChangesExpiredException  if the entries are no longer kept
+     * @throws IOException              if the log files can't be read
+     */
+    public ChangeBatch readEntries(long afterSequence, int limit, long waitMs) throws IOException {
+        if (limit < 1 || limit > MAX_BATCH_ENTRIES) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_BATCH_ENTRIES);
+        }
+        if (afterSequence < 0) {
+            throw new IllegalArgumentException("Sequence must not be negative: " + afterSequence);
+        }
+        try {
+            return writeAheadLog.readChanges(afterSequence, schemaName -> true, limit, Math.min(waitMs, maxWaitMs));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for log entries");
+        }
+    }
+
+    /**
+     * @return the sequence number of the last durable entry of this instance
+     */
+    public long getLastEntrySequence() {
+        return writeAheadLog.getLastChangeSequence();
+    }
+
+    /**
+     * @return the version of the catalog of this instance
+     */
+    public long getCatalogVersion() {
+        return schemaDao.getCatalogVersion();
+    }
+
+    /**
+     * Writes entries as a count followed by, for each, its sequence number, whether it is a
+     * patch, its schema name and its payload.
+     *
+     * @param batch the entries
+     * @param out   the stream of the response
+     * @throws IOException if the response can't be written
+     */
+    public static void writeEntries(ChangeBatch batch, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.writeInt(batch.getEntries().size());
+        for (LogEntry entry : batch.getEntries()) {
+            data.writeLong(entry.getSequence());
+            data.writeBoolean(entry.isPatch());
+            data.writeUTF(entry.getSchemaName());
+            data.writeInt(entry.getPayload().length);
+            data.write(entry.getPayload());
+        }
+        data.flush();
+    }
+
+    /**
+     * Writes the catalog of this instance, for a follower.
+     *
+     * @param out the stream of the response
+     * @throws IOException if the response can't be written
+     */
+    public void writeCatalog(OutputStream out) throws IOException {
+        schemaDao.streamCatalog(out);
+    }
+
+    /**
+     * Takes a snapshot of the table of a schema, for a follower.
+     *
+     * @param schemaName the name of the schema
+     * @return the snapshot, written by {@link #writeSnapshot}
+     */
+    public TableSnapshot snapshot(String schemaName) {
+        return recordService.getTable(schemaName).snapshot(writeAheadLog::getLastSequence);
+    }
+
+    /**
+     * Writes a snapshot taken by {@link #snapshot}.
+     *
+     * @param snapshot the snapshot
+     * @param out      the stream of the response
+     * @throws IOException if the response can't be written
+     */
+    public void writeSnapshot(TableSnapshot snapshot, OutputStream out) throws IOException {
+        snapshotDao.streamSnapshot(snapshot, out);
+    }
+
+    private void follow() {
+        Map<String, Long> snapshotSequences = null;
+        long catalogVersion = -1;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (snapshotSequences == null) {
+                    catalogVersion = fetchCatalog();
+                    snapshotSequences = new HashMap<>();
+                    fetchSnapshots(snapshotSequences);
+                    long first = snapshotSequences.values().stream().mapToLong(Long::longValue).min().orElse(0L);
+                    advanceTo(first);
+                    log.info("Loaded snapshots of {} schemas from leader {}, following it after sequence {}",
+                            snapshotSequences.size(), leaderUri, first);
+                }
+                catalogVersion = poll(snapshotSequences, catalogVersion);
+            } catch (ChangesExpiredException e) {
+                log.warn("Leader {} no longer keeps the entries after {}, loading its snapshots again",
+                        leaderUri, getSequence());
+                snapshotSequences = null;
+            } catch (InterruptedException | InterruptedIOException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                caughtUp = false;
+                log.warn("Failed to replicate from leader {}, retrying in {} ms", leaderUri, retryMs, e);
+                try {
+                    Thread.sleep(retryMs);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the next entries of the leader.
+     *
+     * @return the version of the catalog installed
+     */
+    private long poll(Map<String, Long> snapshotSequences, long catalogVersion) throws IOException, InterruptedException {
+        long after = getSequence();
+        HttpResponse<InputStream> response = get("replication/entries?after=" + after + "&limit=" + batchEntries
+                + "&wait=" + pollWaitMs, Duration.ofMillis(pollWaitMs + REQUEST_TIMEOUT_MARGIN_MS));
+        try (InputStream body = response.body()) {
+            if (response.statusCode() == 410) {
+                throw new ChangesExpiredException(after, -1);
+            }
+            checkStatus(response);
+            long nextCursor = longHeader(response, NEXT_CURSOR_HEADER);
+            long leaderLast = longHeader(response, LAST_SEQUENCE_HEADER);
+            long leaderCatalogVersion = longHeader(response, CATALOG_VERSION_HEADER);
+            if (leaderCatalogVersion != catalogVersion) {
+                // The entries may have been written with schemas this follower doesn't have yet,
+                // their earlier entries are before the cursor and only reach it through a snapshot
+                catalogVersion = fetchCatalog();
+                fetchSnapshots(snapshotSequences);
+            }
+
+            applyEntries(body, snapshotSequences, nextCursor);
+
+            leaderSequence = leaderLast;
+            boolean wasCaughtUp = caughtUp;
+            caughtUp = nextCursor >= leaderLast;
+            if (caughtUp || wasCaughtUp) {
+                caughtUpNanos = System.nanoTime();
+            }
+            return catalogVersion;
+        }
+    }
+
+    /**
+     * Applies entries written by {@link #writeEntries}, each schema skipping those its snapshot
+     * already includes, and makes the writes up to the cursor readable.
+     *
+     * @param body              the entries
+     * @param snapshotSequences the sequence number each snapshot includes the entries up to, by
+     *                          schema name
+     * @param nextCursor        the sequence number every entry up to which has been read
+     * @throws IOException if the entries can't be read
+     */
+    void applyEntries(InputStream body, Map<String, Long> snapshotSequences, long nextCursor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(body, 1 << 16));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long sequence = in.readLong();
+            boolean patch = in.readBoolean();
+            String schemaName = in.readUTF();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            if (sequence > snapshotSequences.getOrDefault(schemaName, 0L)) {
+                recordService.restore(new LogEntry(sequence, schemaName, payload, patch));
+            }
+        }
+        advanceTo(nextCursor);
+    }
+
+    /**
+     * Loads a snapshot written by {@link #writeSnapshot} into the table of a schema.
+     *
+     * @param schemaName the name of the schema
+     * @param body       the snapshot
+     * @return the sequence number the snapshot includes the entries up to
+     * @throws IOException if the snapshot can't be read
+     */
+    long loadSnapshot(String schemaName, InputStream body) throws IOException {
+        return snapshotDao.readSnapshot(body, recordService.getTable(schemaName)::restore);
+    }
+
+    private long fetchCatalog() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = get("replication/catalog", null);
+        try (InputStream body = response.body()) {
+            checkStatus(response);
+            return schemaDao.replaceCatalog(body);
+        }
+    }
+
+    /**
+     * Loads the snapshot of the table of every schema of the catalog that has none loaded yet.
+     *
+     * @param snapshotSequences the sequence number each snapshot includes the entries up to, by
+     *                          schema name, the loaded snapshots are added to it
+     */
+    private void fetchSnapshots(Map<String, Long> snapshotSequences) throws IOException, InterruptedException {
+        for (String schemaName : schemaDao.listSchemaNames()) {
+            if (snapshotSequences.containsKey(schemaName)) {
+                continue;
+            }
+            HttpResponse<InputStream> response = get("replication/snapshots/"
+                    + URLEncoder.encode(schemaName, StandardCharsets.UTF_8), null);
+            try (InputStream body = response.body()) {
+                checkStatus(response);
+                snapshotSequences.put(schemaName, loadSnapshot(schemaName, body));
+            }
+        }
+    }
+
+    private void advanceTo(long sequence) {
+        appliedLock.lock();
+        try {
+            if (sequence > appliedSequence) {
+                appliedSequence = sequence;
+                advanced.signalAll();
+            }
+        } finally {
+            appliedLock.unlock();
+        }
+    }
+
+    private HttpResponse<InputStream> get(String path, Duration timeout) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(leaderUri.resolve(path)).GET();
+        if (timeout != null) {
+            request.timeout(timeout);
+        }
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    private static void checkStatus(HttpResponse<InputStream> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException("Leader answered " + response.statusCode() + " to " + response.uri());
+        }
+    }
+
+    private static long longHeader(HttpResponse<InputStream> response, String name) throws IOException {
+        String value = response.headers().firstValue(name)
+                .orElseThrow(() -> new IOException("Leader answered without " + name + " header"));
+        return Long.parseLong(value);
+    }
+}
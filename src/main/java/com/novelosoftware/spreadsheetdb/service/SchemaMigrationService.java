@@ -0,0 +1,102 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+
+import jakarta.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SchemaMigrationService rewrites the records of a table with the latest version of its schema
+ * in the background, after the schema changed.
+ * <p>
+ * Records don't need it to be read, older versions are resolved as they are decoded, but
+ * upgraded records skip that resolution and let snapshots and the log forget the old versions.
+ * Tables are migrated one at a time, in batches of keys that each take the lock of every shard
+ * they touch once, so upserts keep going in between.
+ * </p>
+ */
+@Service
+public class SchemaMigrationService {
+
+    private static final Logger log = LoggerFactory.getLogger(SchemaMigrationService.class);
+
+    private final RecordService recordService;
+    private final int batchRows;
+    private final ExecutorService migrationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "schema-migration");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a SchemaMigrationService.
+     *
+     * @param recordService the service holding the record tables
+     * @param schemaDao     the catalog telling when a schema changes
+     * @param batchRows     the number of keys upgraded under one acquisition of the shard locks,
+     *                      zero or less leaves records with the version they were written with
+     */
+    public SchemaMigrationService(
+            RecordService recordService,
+            SchemaDao schemaDao,
+            @Value("${record.migration.batch-rows}") int batchRows) {
+        this.recordService = recordService;
+        this.batchRows = batchRows;
+        if (batchRows > 0) {
+            schemaDao.addChangeListener(this::schemaChanged);
+        }
+    }
+
+    private void schemaChanged(InternalSchemaModel schemaModel) {
+        if (schemaModel.getVersion() > 1) {
+            migrationExecutor.execute(() -> migrate(schemaModel));
+        }
+    }
+
+    /**
+     * Upgrades every record of the table of a schema, unless the schema changes again meanwhile,
+     * in which case the migration to the newer version takes over.
+     */
+    private void migrate(InternalSchemaModel schemaModel) {
+        String schemaName = schemaModel.getSchemaName();
+        long start = System.nanoTime();
+        long visited = 0;
+        try {
+            RecordTable table = recordService.getTable(schemaName);
+            Iterator<?> keys = table.keyRange(null, true, null);
+            List<Object> batch = new ArrayList<>(batchRows);
+            while (keys.hasNext() && table.getSchemaModel().getVersion() == schemaModel.getVersion()) {
+                batch.add(keys.next());
+                if (batch.size() == batchRows || !keys.hasNext()) {
+                    RecordService.awaitDurable(table.upgradeRows(batch));
+                    visited += batch.size();
+                    batch.clear();
+                }
+            }
+            log.info("Migrated {} records of schema {} to version {} in {} ms", visited, schemaName,
+                    schemaModel.getVersion(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            log.error("Migration of schema {} to version {} stopped after {} records, the others are resolved when read",
+                    schemaName, schemaModel.getVersion(), visited, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        migrationExecutor.shutdownNow();
+    }
+}
@@ -1,11 +1,18 @@
 package com.novelosoftware.spreadsheetdb.service;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.springframework.stereotype.Service;
 
 import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
 import com.novelosoftware.spreadsheetdb.dto.CreateSchemaRequest;
+import com.novelosoftware.spreadsheetdb.store.SecondaryIndex;
 
 /**
  * SchemaService has the business logic which validates an schema creation and
@@ -14,6 +21,8 @@ import com.novelosoftware.spreadsheetdb.dto.CreateSchemaRequest;
 @Service
 public class SchemaService {
 
+    private static final Logger log = LoggerFactory.getLogger(SchemaService.class);
+
     private final SchemaDao schemaDao;
 
     public SchemaService(SchemaDao schemaDao) {
@@ -37,13 +46,25 @@ public class SchemaService {
             throw new IllegalArgumentException("Key column cannot be null or empty");
         }
 
-        // Process the Avro schema and key column
-        // Example: Parse the Avro schema, create a table, or store schema metadata
-        System.out.println("Creating schema: " + schemaName);
-        System.out.println("Avro Schema: " + schemaRequest.getAvroSchema());
-        System.out.println("Key Column: " + schemaRequest.getKeyColumn());
+        List<String> indexedFields = schemaRequest.getIndexedFields() == null ? List.of() : schemaRequest.getIndexedFields();
+        for (String indexedField : indexedFields) {
+            if (indexedField.equals(schemaRequest.getKeyColumn())) {
+                throw new IllegalArgumentException("Key column '" + indexedField + "' can't have a secondary index");
+            }
+            Schema.Field field = schemaRequest.getAvroSchema().getField(indexedField);
+            if (field != null && !SecondaryIndex.supports(field.schema())) {
+                throw new IllegalArgumentException("Field '" + indexedField + "' of type "
+                        + field.schema().getType() + " can't be indexed");
+            }
+        }
+        if (indexedFields.stream().distinct().count() != indexedFields.size()) {
+            throw new IllegalArgumentException("Indexed fields can't be listed twice");
+        }
 
-        // Add logic to store the schema or interact with the database
-        schemaDao.saveSchema(schemaName, schemaRequest.getKeyColumn(), schemaRequest.getAvroSchema());
+        // Store the schema along with its key column and indexed fields
+        long start = System.nanoTime();
+        schemaDao.saveSchema(schemaName, schemaRequest.getKeyColumn(), indexedFields, schemaRequest.getAvroSchema());
+        log.info("Created schema {} with key column {} and indexed fields {} in {} us", schemaName,
+                schemaRequest.getKeyColumn(), indexedFields, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
     }
 }
@@ -0,0 +1,216 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dao.SnapshotDao;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.TableSnapshot;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SnapshotService rebuilds the record tables on startup and periodically snapshots them.
+ * <p>
+ * Recovery loads the latest snapshot of every schema and then replays only the write-ahead log
+ * entries that came after it. Snapshots are taken on a fixed delay for the tables written since
+ * their last snapshot, after which the log segments covered by every table are deleted.
+ * </p>
+ * <p>
+ * A follower, with {@code record.replication.leader-url} set, neither recovers nor snapshots its
+ * tables: it doesn't log the entries it applies, so its snapshots would be tagged with sequence
+ * numbers of its own empty log, and {@link ReplicationService} loads the snapshots of the
+ * leader at every start anyway.
+ * </p>
+ */
+@Service
+public class SnapshotService {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotService.class);
+
+    private final RecordService recordService;
+    private final SchemaDao schemaDao;
+    private final SnapshotDao snapshotDao;
+    private final ShardedWriteAheadLog writeAheadLog;
+    private final long intervalMs;
+    private final boolean follower;
+
+    // Sequence number up to which each table is covered by its latest snapshot
+    private final Map<String, Long> snapshotSequences = new ConcurrentHashMap<>();
+    // Write count of each table when its latest snapshot was taken
+    private final Map<String, Long> snapshotWriteCounts = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructs a SnapshotService.
+     *
+     * @param recordService the service holding the record tables
+     * @param schemaDao     the DAO listing the stored schemas
+     * @param snapshotDao   the DAO reading and writing snapshot files
+     * @param writeAheadLog the log replayed after the snapshots
+     * @param intervalMs    the delay between two snapshot rounds, zero or less disables snapshots
+     * @param leaderUrl     the base URL of the leader, empty unless this instance is a follower
+     */
+    public SnapshotService(
+            RecordService recordService,
+            SchemaDao schemaDao,
+            SnapshotDao snapshotDao,
+            ShardedWriteAheadLog writeAheadLog,
+            @Value("${record.snapshot.interval-ms}") long intervalMs,
+            @Value("${record.replication.leader-url}") String leaderUrl) {
+        this.recordService = recordService;
+        this.schemaDao = schemaDao;
+        this.snapshotDao = snapshotDao;
+        this.writeAheadLog = writeAheadLog;
+        this.intervalMs = intervalMs;
+        this.follower = !leaderUrl.isBlank();
+    }
+
+    /**
+     * Rebuilds the tables from the latest snapshots and the tail of the write-ahead log before
+     * any request is served, then starts the periodic snapshots. Followers skip both.
+     *
+     * @throws IOException if a snapshot or the log can't be read
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        if (follower) {
+            log.info("Recovery: skipped, the tables of a follower are loaded from its leader");
+            return;
+        }
+        long start = System.nanoTime();
+
+        long phaseStart = System.nanoTime();
+        List<String> schemaNames = schemaDao.listSchemaNames();
+        log.info("Recovery: listed {} schemas in {} ms", schemaNames.size(), elapsedMs(phaseStart));
+
+        phaseStart = System.nanoTime();
+        long loadedRows = 0;
+        for (String schemaName : schemaNames) {
+            RecordTable table;
+            try {
+                table = recordService.getTable(schemaName);
+            } catch (RuntimeException e) {
+                log.warn("Recovery: skipping snapshot of schema {} that can't be loaded", schemaName, e);
+                continue;
+            }
+            snapshotSequences.put(schemaName, snapshotDao.loadSnapshot(schemaName, table::restore));
+            loadedRows += table.size();
+        }
+        log.info("Recovery: loaded {} rows from snapshots in {} ms", loadedRows, elapsedMs(phaseStart));
+
+        phaseStart = System.nanoTime();
+        long replayFrom = snapshotSequences.values().stream().mapToLong(Long::longValue).min().orElse(0L);
+        Set<String> replayedSchemas = new HashSet<>();
+        long[] replayedEntries = {0};
+        long lastSequence = writeAheadLog.recover(replayFrom, entry -> {
+            // Each schema skips the entries its own snapshot already includes
+            if (entry.getSequence() > snapshotSequences.getOrDefault(entry.getSchemaName(), 0L)) {
+                recordService.restore(entry);
+                replayedSchemas.add(entry.getSchemaName());
+                replayedEntries[0]++;
+            }
+        });
+        log.info("Recovery: replayed {} log entries after sequence {} in {} ms",
+                replayedEntries[0], replayFrom, elapsedMs(phaseStart));
+
+        // Tables with nothing replayed are exactly their snapshot, there is no need to write it again
+        for (RecordTable table : recordService.getTables()) {
+            String schemaName = table.getSchemaModel().getSchemaName();
+            if (snapshotSequences.containsKey(schemaName) && !replayedSchemas.contains(schemaName)) {
+                snapshotWriteCounts.put(schemaName, table.getWriteCount());
+            }
+        }
+        log.info("Recovery: completed up to sequence {} in {} ms", lastSequence, elapsedMs(start));
+
+        if (intervalMs > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::snapshotSafely, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Snapshots every table written since its last snapshot and deletes the log segments that
+     * are no longer needed for recovery.
+     *
+     * @throws IOException if a snapshot can't be written
+     */
+    public void snapshotAll() throws IOException {
+        for (RecordTable table : recordService.getTables()) {
+            String schemaName = table.getSchemaModel().getSchemaName();
+            long writeCount = table.getWriteCount();
+            Long snapshotWriteCount = snapshotWriteCounts.get(schemaName);
+
+            if (snapshotWriteCount != null) {
+                long sequence = table.sequenceIfUnchanged(snapshotWriteCount, writeAheadLog::getLastSequence);
+                if (sequence >= 0) {
+                    // Still current, it now covers every mutation logged so far
+                    snapshotSequences.put(schemaName, sequence);
+                    continue;
+                }
+            }
+
+            long start = System.nanoTime();
+            TableSnapshot snapshot = table.snapshot(writeAheadLog::getLastSequence);
+            snapshotDao.saveSnapshot(schemaName, snapshot);
+            snapshotSequences.put(schemaName, snapshot.getSequence());
+            snapshotWriteCounts.put(schemaName, writeCount);
+            log.info("Snapshot of {} with {} rows up to sequence {} written in {} ms",
+                    schemaName, snapshot.getEntries().size(), snapshot.getSequence(), elapsedMs(start));
+        }
+
+        long covered = recordService.getTables().stream()
+                .mapToLong(table -> snapshotSequences.getOrDefault(table.getSchemaModel().getSchemaName(), 0L))
+                .min()
+                .orElse(0L);
+        int deleted = writeAheadLog.deleteSegmentsUpTo(covered);
+        if (deleted > 0) {
+            log.info("Deleted {} write-ahead log segments covered by snapshots up to sequence {}", deleted, covered);
+        }
+    }
+
+    /**
+     * Stops the periodic snapshots and takes a last one, so the next startup has no log to replay.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        snapshotSafely();
+    }
+
+    private void snapshotSafely() {
+        try {
+            snapshotAll();
+        } catch (IOException | RuntimeException e) {
+            // Keep the schedule running, the log still holds everything the snapshot missed
+            log.error("Failed to snapshot record tables", e);
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,342 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.streaming.SXSSFCell;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.springframework.stereotype.Service;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import com.novelosoftware.spreadsheetdb.dto.BatchUpsertResult;
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * SpreadsheetService exports the records of a schema to an XLSX workbook and imports them back.
+ * <p>
+ * Each Avro field of the schema is a column, in schema field order, and the first row of each
+ * sheet holds the field names. A sheet holds at most 1,048,575 records below its header row,
+ * larger tables continue on further sheets. Export walks the table in key order and writes
+ * through a streaming workbook that only keeps a small window of rows in memory, the rest is
+ * flushed to a compressed temporary file. Import parses the XML of every sheet with SAX, one
+ * row at a time, and stores rows in chunks, each under a single acquisition of each shard lock.
+ * </p>
+ */
+@Service
+public class SpreadsheetService {
+
+    private static final int ROW_WINDOW = 100; // Rows kept in memory by the streaming writer
+    private static final int CHUNK_ROWS = 1000;
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final double MAX_EXACT_DOUBLE = 1L << 53; // Larger longs are written as text
+    private static final int MAX_SHEET_NAME_LENGTH = 31;
+
+    private final RecordService recordService;
+    private final int sheetRows;
+
+    public SpreadsheetService(RecordService recordService) {
+        this(recordService, SpreadsheetVersion.EXCEL2007.getLastRowIndex());
+    }
+
+    /**
+     * Constructs a SpreadsheetService starting a new sheet after a number of records.
+     */
+    SpreadsheetService(RecordService recordService, int sheetRows) {
+        this.recordService = recordService;
+        this.sheetRows = sheetRows;
+    }
+
+    /**
+     * Writes every record of a schema as an XLSX workbook, in key order. The records fill one
+     * sheet after another, each with a header row.
+     *
+     * @param schemaName the name of the schema
+     * @param out        the stream the workbook is written to
+     * @throws IOException if the workbook can't be written or a row can't be decoded
+     */
+    public void exportSheet(String schemaName, OutputStream out) throws IOException {
+        RecordTable table = recordService.getTable(schemaName);
+        List<Schema.Field> fields = table.getSchemaModel().getSchema().getFields();
+
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+        try {
+            workbook.setCompressTempFiles(true);
+            SXSSFSheet sheet = null;
+            int rowNumber = sheetRows + 1;
+            Iterator<?> keys = table.keyRange(null, true, null);
+            while (keys.hasNext()) {
+                ByteBuffer row = table.peek(keys.next());
+                if (row == null) {
+                    continue;
+                }
+                GenericRecord record = table.getCodec().decode(row);
+                if (rowNumber > sheetRows) {
+                    sheet = createSheet(workbook, schemaName, fields);
+                    rowNumber = 1;
+                }
+                SXSSFRow sheetRow = sheet.createRow(rowNumber++);
+                for (Schema.Field field : fields) {
+                    Object value = record.get(field.pos());
+                    if (value != null) {
+                        writeCell(sheetRow.createCell(field.pos()), value);
+                    }
+                }
+            }
+            if (sheet == null) {
+                createSheet(workbook, schemaName, fields);
+            }
+            workbook.write(out);
+        } finally {
+            workbook.dispose(); // Deletes the temporary file backing the flushed rows
+            workbook.close();
+        }
+    }
+
+    /**
+     * Upserts the rows of every sheet of an XLSX workbook. Columns are read in schema field
+     * order, a first row of a sheet holding the field names is skipped, missing cells are null values and
+     * empty text cells are empty strings, also in nullable string fields. Rows that don't match
+     * the schema are reported and skipped, the others are stored. Rejected rows are numbered
+     * like the rows of their sheet, and named after it past the first sheet.
+     *
+     * @param schemaName the name of the schema
+     * @param in         the workbook, it is copied to a temporary file so it is never held in memory
+     * @return how many rows were stored and why the others were rejected
+     * @throws IOException if the workbook can't be read or the rows can't be logged
+     */
+    public BatchUpsertResult importSheet(String schemaName, InputStream in) throws IOException {
+        RecordTable table = recordService.getTable(schemaName);
+        File upload = Files.createTempFile("spreadsheetdb-import", ".xlsx").toFile();
+        try {
+            Files.copy(in, upload.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            SheetImporter importer = new SheetImporter(table);
+            OPCPackage workbook = OPCPackage.open(upload, PackageAccess.READ);
+            try {
+                XSSFReader reader = new XSSFReader(workbook);
+                XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+                if (!sheets.hasNext()) {
+                    throw new IllegalArgumentException("Workbook has no sheet");
+                }
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(),
+                        new ReadOnlySharedStringsTable(workbook), importer, new RawNumberFormatter(), false));
+                for (int sheetIndex = 0; sheets.hasNext(); sheetIndex++) {
+                    try (InputStream sheet = sheets.next()) {
+                        importer.startSheet(sheetIndex == 0 ? null : sheets.getSheetName());
+                        parser.parse(new InputSource(sheet));
+                    }
+                }
+            } finally {
+                workbook.revert(); // Closes a read-only package without saving it
+            }
+            importer.flush();
+            RecordService.awaitDurable(importer.logged);
+            return new BatchUpsertResult(importer.upserted, importer.failed, importer.errors);
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IllegalArgumentException("Not a readable XLSX workbook: " + e.getMessage(), e);
+        } finally {
+            upload.delete();
+        }
+    }
+
+    /**
+     * Adds a sheet with a header row holding the field names. The sheets after the first are
+     * numbered, keeping their names within the length a sheet name is limited to.
+     */
+    private static SXSSFSheet createSheet(SXSSFWorkbook workbook, String schemaName, List<Schema.Field> fields) {
+        int number = workbook.getNumberOfSheets() + 1;
+        String suffix = number == 1 ? "" : " (" + number + ")";
+        String name = schemaName.substring(0, Math.min(schemaName.length(), MAX_SHEET_NAME_LENGTH - suffix.length()));
+        SXSSFSheet sheet = workbook.createSheet(name + suffix);
+        SXSSFRow header = sheet.createRow(0);
+        for (Schema.Field field : fields) {
+            header.createCell(field.pos()).setCellValue(field.name());
+        }
+        return sheet;
+    }
+
+    /**
+     * Writes a field value to a cell. Numbers and booleans keep their cell type, longs that a
+     * spreadsheet number can't hold exactly and every other value are written as text.
+     */
+    private static void writeCell(SXSSFCell cell, Object value) {
+        if (value instanceof Boolean bool) {
+            cell.setCellValue(bool);
+        } else if (value instanceof Number number
+                && !(value instanceof Long && Math.abs(number.doubleValue()) > MAX_EXACT_DOUBLE)) {
+            cell.setCellValue(number.doubleValue());
+        } else {
+            cell.setCellValue(value.toString());
+        }
+    }
+
+    /**
+     * Formats numeric cells as their plain value rather than with the cell number format, so
+     * a key such as 123456789012 is not read back as 1.23457E+11.
+     */
+    private static final class RawNumberFormatter extends DataFormatter {
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString) {
+            return NumberToTextConverter.toText(value);
+        }
+    }
+
+    /**
+     * Receives the cells of the sheet from the SAX parser, builds a record of each row and
+     * stores them a chunk at a time.
+     */
+    private static final class SheetImporter implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+        private final RecordTable table;
+        private final InternalSchemaModel schemaModel;
+        private final List<Schema.Field> fields;
+        private final String[] cells;
+        private String sheetName; // Named in the errors, null for the first sheet
+        private boolean firstRow = true;
+
+        private final List<Object> keys = new ArrayList<>(CHUNK_ROWS);
+        private final List<byte[]> rows = new ArrayList<>(CHUNK_ROWS);
+        private long upserted;
+        private long failed;
+        private final List<BatchUpsertResult.LineError> errors = new ArrayList<>();
+        private CompletableFuture<Long> logged = CompletableFuture.completedFuture(0L);
+
+        private SheetImporter(RecordTable table) {
+            this.table = table;
+            this.schemaModel = table.getSchemaModel();
+            this.fields = schemaModel.getSchema().getFields();
+            this.cells = new String[fields.size()];
+        }
+
+        private void startSheet(String name) {
+            sheetName = name;
+            firstRow = true;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            Arrays.fill(cells, null);
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int column = new CellReference(cellReference).getCol();
+            if (column < cells.length) {
+                cells[column] = formattedValue;
+            }
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (firstRow) {
+                firstRow = false;
+                if (fields.get(0).name().equals(cells[0])) {
+                    return; // Header row
+                }
+            }
+            try {
+                GenericRecord record = new GenericData.Record(schemaModel.getSchema());
+                for (Schema.Field field : fields) {
+                    record.put(field.pos(), parseCell(field, cells[field.pos()]));
+                }
+                Object key = schemaModel.keyOf(record);
+                if (key == null) {
+                    throw new IllegalArgumentException("Record must contain the '" + schemaModel.getKeyField().name() + "' field.");
+                }
+                keys.add(key);
+                rows.add(table.getCodec().encode(record));
+            } catch (IOException | RuntimeException e) {
+                failed++;
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    String message = String.valueOf(e.getMessage());
+                    errors.add(new BatchUpsertResult.LineError(rowNum + 1L,
+                            sheetName == null ? message : "Sheet '" + sheetName + "': " + message));
+                }
+            }
+            if (rows.size() == CHUNK_ROWS) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (!rows.isEmpty()) {
+                logged = logged.thenCombine(table.putAll(keys, rows), Math::max);
+                upserted += rows.size();
+                keys.clear();
+                rows.clear();
+            }
+        }
+
+        /**
+         * Converts the text of a cell to the value of a field. A missing cell is null, as is an
+         * empty one of a nullable field that isn't a string.
+         */
+        private static Object parseCell(Schema.Field field, String text) {
+            Schema schema = field.schema();
+            if (schema.getType() == Schema.Type.UNION) {
+                boolean nullable = schema.getTypes().stream().anyMatch(branch -> branch.getType() == Schema.Type.NULL);
+                Schema value = schema.getTypes().stream()
+                        .filter(branch -> branch.getType() != Schema.Type.NULL)
+                        .findFirst()
+                        .orElse(null);
+                // Export writes no cell for null, so a cell holding empty text is an empty string
+                if (text == null || value == null || (text.isEmpty() && value.getType() != Schema.Type.STRING)) {
+                    if (nullable) {
+                        return null;
+                    }
+                    throw new IllegalArgumentException("Field '" + field.name() + "' can't be empty");
+                }
+                schema = value;
+            }
+            if (text == null) {
+                if (schema.getType() == Schema.Type.STRING) {
+                    return "";
+                }
+                throw new IllegalArgumentException("Field '" + field.name() + "' can't be empty");
+            }
+            return switch (schema.getType()) {
+                case INT -> Integer.parseInt(text);
+                case LONG -> Long.parseLong(text);
+                case FLOAT -> Float.parseFloat(text);
+                case DOUBLE -> Double.parseDouble(text);
+                case BOOLEAN -> Boolean.parseBoolean(text);
+                case STRING -> text;
+                case ENUM -> new GenericData.EnumSymbol(schema, text);
+                default -> throw new IllegalArgumentException("Field '" + field.name() + "' of type "
+                        + schema.getType() + " can't be imported from a cell");
+            };
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.apache.avro.Schema;
+
+import java.nio.ByteBuffer;
+
+/**
+ * BinaryCursor walks Avro binary encoded data in place, without decoding it.
+ * <p>
+ * It is used to jump to a single field of a stored row: every field before it is skipped
+ * by reading only the lengths and counts that the Avro binary encoding carries, so
+ * strings, bytes and nested values are never materialized. Works the same on heap and
+ * direct buffers.
+ * </p>
+ * <p>
+ * Lengths, block sizes, block counts and union branches are checked against the buffer and
+ * the schema, so data from a client can't move the cursor backwards or keep it skipping
+ * elements that take no bytes: invalid data throws IllegalArgumentException.
+ * </p>
+ */
+public class BinaryCursor {
+
+    private final ByteBuffer buffer;
+    private int position;
+
+    /**
+     * Constructs a BinaryCursor.
+     *
+     * @param buffer   the buffer holding Avro binary data, read with absolute gets only
+     * @param position the position of the first byte to read
+     */
+    public BinaryCursor(ByteBuffer buffer, int position) {
+        this.buffer = buffer;
+        this.position = position;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Moves the cursor to the start of a field of the record starting at the current position.
+     *
+     * @param recordSchema the schema the record was written with
+     * @param fieldIndex   the position of the field in the record
+     * @return this cursor
+     */
+    public BinaryCursor seekField(Schema recordSchema, int fieldIndex) {
+        for (int i = 0; i < fieldIndex; i++) {
+            skip(recordSchema.getFields().get(i).schema());
+        }
+        return this;
+    }
+
+    /**
+     * Moves the cursor past one value of the given schema.
+     *
+     * @param schema the schema of the value at the current position
+     * @throws IllegalArgumentException if the data at the current position isn't a valid value
+     *                                  of the schema
+     */
+    public void skip(Schema schema) {
+        switch (schema.getType()) {
+            case NULL -> {
+                // Null takes no bytes
+            }
+            case BOOLEAN -> advance(1);
+            case INT, LONG, ENUM -> readLong();
+            case FLOAT -> advance(Float.BYTES);
+            case DOUBLE -> advance(Double.BYTES);
+            case STRING, BYTES -> advance(readLong());
+            case FIXED -> advance(schema.getFixedSize());
+            case UNION -> {
+                long branch = readLong();
+                if (branch < 0 || branch >= schema.getTypes().size()) {
+                    throw new IllegalArgumentException("Invalid union branch " + branch);
+                }
+                skip(schema.getTypes().get((int) branch));
+            }
+            case ARRAY -> skipBlocks(schema.getElementType(), false);
+            case MAP -> skipBlocks(schema.getValueType(), true);
+            case RECORD -> {
+                for (Schema.Field field : schema.getFields()) {
+                    skip(field.schema());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a zig-zag encoded variable length long, used by Avro for ints, longs, lengths and counts.
+     *
+     * @return the decoded value
+     */
+    public long readLong() {
+        long raw = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(position++);
+            raw |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     * Skips the blocks of an array or a map. A negative block count is followed by the byte size
+     * of the block, which lets the whole block be skipped at once. A block can't hold more
+     * items than there are bytes left, even items that take no bytes.
+     */
+    private void skipBlocks(Schema itemSchema, boolean isMap) {
+        long count;
+        while ((count = readLong()) != 0) {
+            if (count < 0) {
+                advance(readLong());
+                continue;
+            }
+            if (count > buffer.limit() - position) {
+                throw new IllegalArgumentException("Block count " + count + " exceeds the remaining "
+                        + (buffer.limit() - position) + " bytes");
+            }
+            for (long i = 0; i < count; i++) {
+                if (isMap) {
+                    advance(readLong()); // Map keys are strings
+                }
+                skip(itemSchema);
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor forward by a length read from the data or given by the schema.
+     */
+    private void advance(long length) {
+        if (length < 0 || length > buffer.limit() - position) {
+            throw new IllegalArgumentException("Length " + length + " is out of the remaining "
+                    + (buffer.limit() - position) + " bytes");
+        }
+        position += (int) length;
+    }
+}
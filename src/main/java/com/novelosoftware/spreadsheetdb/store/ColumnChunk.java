@@ -0,0 +1,262 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.apache.avro.Schema;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * ColumnChunk holds one column of the rows of a shard as a primitive array in key order, so an
+ * aggregate over the column is a loop over the array instead of decoding every row.
+ * <p>
+ * INT and LONG columns are kept as longs, FLOAT and DOUBLE columns as doubles, and nullable
+ * unions of those the same way, with a bitmap of the rows holding a value. Other columns only
+ * keep the bitmap, which is enough to count them.
+ * </p>
+ * <p>
+ * A chunk is built from a copy of the key index of the shard and the rows it points to, and is
+ * current until the shard is written again. Rows are never modified once written, so a chunk
+ * is refreshed by decoding only the rows whose location changed since the previous chunk: the
+ * values of every other row are copied from it.
+ * </p>
+ */
+public final class ColumnChunk {
+
+    private final RowCodec codec;
+    private final long writeCount;
+    private final long moveCount;
+    private final SortedEntries entries;
+    private final Kind kind;
+    private final long[] longs;
+    private final double[] doubles;
+    private final long[] present; // One bit per row holding a value, null when every row holds one
+
+    private ColumnChunk(RowCodec codec, long writeCount, long moveCount, SortedEntries entries, Kind kind,
+                        long[] longs, double[] doubles, long[] present) {
+        this.codec = codec;
+        this.writeCount = writeCount;
+        this.moveCount = moveCount;
+        this.entries = entries;
+        this.kind = kind;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.present = present;
+    }
+
+    /**
+     * Builds the chunk of a column.
+     *
+     * @param field      the column, a field of the schema of the codec
+     * @param codec      the codec of the current schema version
+     * @param writeCount the write count of the shard when its entries were copied
+     * @param moveCount  the count of rows the shard moved without writing them, at that time
+     * @param entries    the keys of the shard and the location of their rows
+     * @param rows       reads the row at a location of the entries
+     * @param previous   an earlier chunk of the same column and shard whose values are reused,
+     *                   or null
+     * @return the chunk
+     * @throws IOException if a row can't be decoded
+     */
+    static ColumnChunk build(Schema.Field field, RowCodec codec, long writeCount, long moveCount,
+                             SortedEntries entries, LongFunction<ByteBuffer> rows, ColumnChunk previous)
+            throws IOException {
+        Kind kind = kindOf(field.schema());
+        int size = entries.size();
+        long[] longs = kind == Kind.LONG ? new long[size] : null;
+        double[] doubles = kind == Kind.DOUBLE ? new double[size] : null;
+        long[] present = new long[(size + Long.SIZE - 1) / Long.SIZE];
+        boolean reuse = previous != null && previous.codec == codec && previous.kind == kind;
+        int nulls = 0;
+        int match = 0;
+        for (int i = 0; i < size; i++) {
+            long location = entries.getLocation(i);
+            if (reuse) {
+                // Both copies are in key order, the previous one is walked alongside this one
+                while (match < previous.size() && compareKeys(previous.entries, match, entries, i) < 0) {
+                    match++;
+                }
+            }
+            if (reuse && match < previous.size() && previous.entries.getLocation(match) == location) {
+                if (!previous.isPresent(match)) {
+                    nulls++;
+                    continue;
+                }
+                if (longs != null) {
+                    longs[i] = previous.longs[match];
+                } else if (doubles != null) {
+                    doubles[i] = previous.doubles[match];
+                }
+            } else {
+                Object value = codec.decodeField(rows.apply(location), field.pos());
+                if (value == null) {
+                    nulls++;
+                    continue;
+                }
+                if (longs != null) {
+                    longs[i] = ((Number) value).longValue();
+                } else if (doubles != null) {
+                    doubles[i] = ((Number) value).doubleValue();
+                }
+            }
+            present[i / Long.SIZE] |= 1L << i;
+        }
+        return new ColumnChunk(codec, writeCount, moveCount, entries, kind, longs, doubles,
+                nulls == 0 ? null : present);
+    }
+
+    /**
+     * @param schema the schema of a column
+     * @return whether the values of the column are numbers, or null
+     */
+    public static boolean isNumeric(Schema schema) {
+        return kindOf(schema) != Kind.OTHER;
+    }
+
+    /**
+     * @param codec      the codec of the current schema version
+     * @param writeCount the current write count of the shard
+     * @return whether the chunk holds the column of every row of the shard
+     */
+    boolean isCurrent(RowCodec codec, long writeCount) {
+        return this.codec == codec && this.writeCount == writeCount;
+    }
+
+    long getWriteCount() {
+        return writeCount;
+    }
+
+    long getMoveCount() {
+        return moveCount;
+    }
+
+    SortedEntries getEntries() {
+        return entries;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Summarizes the values of a range of keys.
+     *
+     * @param fromKey the lowest key of the range in its canonical form, or null to start at the
+     *                first key
+     * @param toKey   the key the range stops before, or null to run to the last key
+     * @return the summary
+     */
+    ColumnSummary summarize(Object fromKey, Object toKey) {
+        int from = fromKey == null ? 0 : entries.lowerBound(fromKey);
+        int to = toKey == null ? size() : Math.max(from, entries.lowerBound(toKey));
+        if (kind == Kind.LONG) {
+            return summarizeLongs(from, to);
+        }
+        if (kind == Kind.DOUBLE) {
+            return summarizeDoubles(from, to);
+        }
+        long count = to - from;
+        if (present != null) {
+            count = 0;
+            for (int i = from; i < to; i++) {
+                count += (present[i / Long.SIZE] >>> i) & 1;
+            }
+        }
+        return ColumnSummary.ofCount(count);
+    }
+
+    private ColumnSummary summarizeLongs(int from, int to) {
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        if (present == null) { // Kept apart so the loop has no branch left but min and max
+            for (int i = from; i < to; i++) {
+                long value = longs[i];
+                sum = Math.addExact(sum, value);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            count = to - from;
+        } else {
+            for (int i = from; i < to; i++) {
+                if (isPresent(i)) {
+                    long value = longs[i];
+                    sum = Math.addExact(sum, value);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    count++;
+                }
+            }
+        }
+        return ColumnSummary.ofLongs(count, sum, min, max);
+    }
+
+    private ColumnSummary summarizeDoubles(int from, int to) {
+        long count = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        if (present == null) {
+            for (int i = from; i < to; i++) {
+                double value = doubles[i];
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            count = to - from;
+        } else {
+            for (int i = from; i < to; i++) {
+                if (isPresent(i)) {
+                    double value = doubles[i];
+                    sum += value;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    count++;
+                }
+            }
+        }
+        return ColumnSummary.ofDoubles(count, sum, min, max);
+    }
+
+    private boolean isPresent(int index) {
+        return present == null || (present[index / Long.SIZE] & (1L << index)) != 0;
+    }
+
+    private static int compareKeys(SortedEntries first, int firstIndex, SortedEntries second, int secondIndex) {
+        return first.hasLongKeys()
+                ? Long.compare(first.getLongKey(firstIndex), second.getLongKey(secondIndex))
+                : first.getStringKey(firstIndex).compareTo(second.getStringKey(secondIndex));
+    }
+
+    /**
+     * Returns how the values of a column are kept. A union of null and numeric types is kept
+     * as its numeric type, as doubles if it mixes integral and floating point types.
+     */
+    private static Kind kindOf(Schema schema) {
+        Kind kind = null;
+        for (Schema branch : schema.getType() == Schema.Type.UNION ? schema.getTypes() : List.of(schema)) {
+            Kind branchKind = switch (branch.getType()) {
+                case NULL -> kind;
+                case INT, LONG -> Kind.LONG;
+                case FLOAT, DOUBLE -> Kind.DOUBLE;
+                default -> Kind.OTHER;
+            };
+            if (kind != null && branchKind != kind) {
+                branchKind = kind == Kind.OTHER || branchKind == Kind.OTHER ? Kind.OTHER : Kind.DOUBLE;
+            }
+            kind = branchKind;
+        }
+        return kind == null ? Kind.OTHER : kind;
+    }
+
+    /**
+     * How the values of a column are kept.
+     */
+    private enum Kind {
+        LONG,
+        DOUBLE,
+        OTHER
+    }
+}
@@ -0,0 +1,121 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+/**
+ * ColumnSummary holds the count, sum, minimum and maximum of the values of a column over a
+ * range of rows, all computed in the same pass. Null values are not counted.
+ * <p>
+ * Sums, minimums and maximums of INT and LONG columns are exact longs, those of other numeric
+ * columns are doubles. Summaries of the shards of a table are combined into the summary of
+ * the table.
+ * </p>
+ */
+public final class ColumnSummary {
+
+    private final long count;
+    private final boolean integral;
+    private final long longSum;
+    private final long longMin;
+    private final long longMax;
+    private final double doubleSum;
+    private final double doubleMin;
+    private final double doubleMax;
+
+    private ColumnSummary(long count, boolean integral, long longSum, long longMin, long longMax,
+                          double doubleSum, double doubleMin, double doubleMax) {
+        this.count = count;
+        this.integral = integral;
+        this.longSum = longSum;
+        this.longMin = longMin;
+        this.longMax = longMax;
+        this.doubleSum = doubleSum;
+        this.doubleMin = doubleMin;
+        this.doubleMax = doubleMax;
+    }
+
+    /**
+     * @return the summary of values of an INT or LONG column
+     */
+    static ColumnSummary ofLongs(long count, long sum, long min, long max) {
+        return new ColumnSummary(count, true, sum, min, max, sum, min, max);
+    }
+
+    /**
+     * @return the summary of values of a FLOAT or DOUBLE column
+     */
+    static ColumnSummary ofDoubles(long count, double sum, double min, double max) {
+        return new ColumnSummary(count, false, 0, 0, 0, sum, min, max);
+    }
+
+    /**
+     * @return the summary of a column that is not numeric, which only counts its values
+     */
+    static ColumnSummary ofCount(long count) {
+        return new ColumnSummary(count, false, 0, 0, 0, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Combines the summaries of two disjoint sets of rows of the same column.
+     *
+     * @param other the summary of the other rows
+     * @return the summary of both
+     * @throws ArithmeticException if the exact sum overflows a long
+     */
+    public ColumnSummary combine(ColumnSummary other) {
+        if (other.count == 0) {
+            return this;
+        }
+        if (count == 0) {
+            return other;
+        }
+        if (integral && other.integral) {
+            return ofLongs(count + other.count, Math.addExact(longSum, other.longSum),
+                    Math.min(longMin, other.longMin), Math.max(longMax, other.longMax));
+        }
+        // A schema change can make the same column integral in one shard and not in another
+        return new ColumnSummary(count + other.count, false, 0, 0, 0, doubleSum + other.doubleSum,
+                Math.min(doubleMin, other.doubleMin), Math.max(doubleMax, other.doubleMax));
+    }
+
+    /**
+     * @return the number of non-null values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return whether the sum, minimum and maximum are exact longs
+     */
+    public boolean isIntegral() {
+        return integral;
+    }
+
+    /**
+     * @return the sum of the values, a Long for integral summaries, a Double otherwise and NaN
+     *         for a column that is not numeric
+     */
+    public Number getSum() {
+        return integral ? (Number) longSum : (Number) doubleSum;
+    }
+
+    /**
+     * @return the smallest value, or null if there are none
+     */
+    public Number getMin() {
+        return count == 0 ? null : integral ? (Number) longMin : (Number) doubleMin;
+    }
+
+    /**
+     * @return the largest value, or null if there are none
+     */
+    public Number getMax() {
+        return count == 0 ? null : integral ? (Number) longMax : (Number) doubleMax;
+    }
+
+    /**
+     * @return the mean of the values, or null if there are none
+     */
+    public Double getAverage() {
+        return count == 0 ? null : (integral ? (double) longSum : doubleSum) / count;
+    }
+}
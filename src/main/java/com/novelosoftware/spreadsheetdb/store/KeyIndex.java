@@ -0,0 +1,80 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.apache.avro.Schema;
+
+import java.util.Iterator;
+
+/**
+ * KeyIndex maps the primary key of a table to the location of its row.
+ * <p>
+ * Keys are given either as the value read from the key field of a record or as the
+ * string taken from a request path, each implementation converts them to its own key
+ * representation. Locations are non-negative longs, {@link #NOT_FOUND} marks a missing key.
+ * </p>
+ * <p>
+ * Besides point lookups, every index keeps its keys in order so ranges of keys can be scanned.
+ * </p>
+ */
+public interface KeyIndex {
+
+    /**
+     * Returned by lookups when the key is not present in the index.
+     */
+    long NOT_FOUND = -1L;
+
+    /**
+     * Looks up the location stored for a key.
+     *
+     * @param key the key, either a record field value or its string form
+     * @return the location of the row, or {@link #NOT_FOUND}
+     */
+    long get(Object key);
+
+    /**
+     * Stores the location of a row under a key.
+     *
+     * @param key      the key, either a record field value or its string form
+     * @param location the location of the row, must not be negative
+     * @return the previous location stored for the key, or {@link #NOT_FOUND}
+     */
+    long put(Object key, long location);
+
+    /**
+     * @return the number of keys stored in the index
+     */
+    int size();
+
+    /**
+     * Iterates over a range of keys in ascending order. The iterator is weakly consistent: it
+     * takes no lock, never fails because of concurrent writes and may or may not see keys
+     * inserted while it runs.
+     *
+     * @param fromKey       the lowest key of the range, or null to start at the first key
+     * @param fromInclusive whether the range includes {@code fromKey} itself
+     * @param toKey         the key the range stops before, or null to run to the last key
+     * @return the keys of the range, as Longs for numeric keys or Strings
+     */
+    Iterator<?> keyRange(Object fromKey, boolean fromInclusive, Object toKey);
+
+    /**
+     * Copies every key and its location, sorted by key. Writes must be paused by the caller
+     * for the copy to be a consistent point in time.
+     *
+     * @return the sorted copy
+     */
+    SortedEntries sortedEntries();
+
+    /**
+     * Creates the index that fits the type of the key column. INT and LONG keys are kept
+     * unboxed in a {@link LongKeyIndex}, every other type is keyed by its string form.
+     *
+     * @param keyType the Avro type of the key column
+     * @return an empty index for that key type
+     */
+    static KeyIndex forKeyType(Schema.Type keyType) {
+        if (keyType == Schema.Type.INT || keyType == Schema.Type.LONG) {
+            return new LongKeyIndex();
+        }
+        return new StringKeyIndex();
+    }
+}
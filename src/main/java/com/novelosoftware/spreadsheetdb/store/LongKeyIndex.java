@@ -0,0 +1,336 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * KeyIndex for INT and LONG key columns.
+ * <p>
+ * Keys and locations are kept in two parallel primitive arrays using open addressing with
+ * linear probing, so no key is ever boxed and there is no node object per entry. A slot is
+ * empty when its location is {@link #NOT_FOUND}.
+ * </p>
+ * <p>
+ * Writers are serialized with a {@link StampedLock}; readers probe optimistically and only
+ * fall back to the read lock when a write happened during the probe.
+ * </p>
+ * <p>
+ * Key order is kept apart, without boxing either: a sorted array of the keys plus a run of
+ * the keys inserted since, in insertion order. A range scan sorts a copy of that run once
+ * and merges it with the sorted array; the run is merged into the sorted array when it grows
+ * past an eighth of it, so the order costs a long per key. Replacing a row touches the hash
+ * slots only.
+ * </p>
+ */
+public class LongKeyIndex implements KeyIndex {
+
+    private static final int INITIAL_CAPACITY = 1 << 10; // Must be a power of two
+    private static final double LOAD_FACTOR = 0.6;
+    private static final int MIN_MERGED_RUN = 4096; // Smaller runs of new keys are only sorted on scans
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Slots slots = new Slots(INITIAL_CAPACITY);
+    private int size;
+
+    // Guarded by lock
+    private long[] sortedKeys = new long[0];
+    private long[] newKeys = new long[16]; // Inserted since sortedKeys was built, unsorted
+    private int newKeyCount;
+    private long[] sortedNewKeys = new long[0]; // Sorted copy of the new keys, made by the last scan
+
+    @Override
+    public long get(Object key) {
+        return get(toLong(key));
+    }
+
+    @Override
+    public long put(Object key, long location) {
+        return put(toLong(key), location);
+    }
+
+    /**
+     * Looks up the location stored for a primitive key.
+     *
+     * @param key the key
+     * @return the location of the row, or {@link #NOT_FOUND}
+     */
+    public long get(long key) {
+        long stamp = lock.tryOptimisticRead();
+        long location = slots.find(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                location = slots.find(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Stores the location of a row under a primitive key.
+     *
+     * @param key      the key
+     * @param location the location of the row, must not be negative
+     * @return the previous location stored for the key, or {@link #NOT_FOUND}
+     */
+    public long put(long key, long location) {
+        if (location < 0) {
+            throw new IllegalArgumentException("Location cannot be negative: " + location);
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (size >= slots.resizeThreshold) {
+                slots = slots.grow();
+            }
+            long previous = slots.insert(key, location);
+            if (previous == NOT_FOUND) {
+                size++;
+                addNewKey(key);
+            }
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Iterator<?> keyRange(Object fromKey, boolean fromInclusive, Object toKey) {
+        long[] sorted;
+        long[] added;
+        boolean unsorted;
+        long stamp = lock.readLock();
+        try {
+            sorted = sortedKeys;
+            unsorted = sortedNewKeys.length != newKeyCount;
+            added = unsorted ? Arrays.copyOf(newKeys, newKeyCount) : sortedNewKeys;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if (unsorted) {
+            Arrays.sort(added); // Outside the lock, writers only wait for the copy
+            cacheSortedNewKeys(sorted, added);
+        }
+        long from = fromKey == null ? Long.MIN_VALUE : toLong(fromKey);
+        boolean inclusive = fromKey == null || fromInclusive;
+        long to = toKey == null ? Long.MAX_VALUE : toLong(toKey);
+        boolean toEnd = toKey == null;
+        return new MergedRange(sorted, lowerBound(sorted, from, inclusive), upperBound(sorted, to, toEnd),
+                added, lowerBound(added, from, inclusive), upperBound(added, to, toEnd));
+    }
+
+    /**
+     * Keeps the sorted copy of the new keys for the next scans, unless keys were inserted
+     * while it was made.
+     */
+    private void cacheSortedNewKeys(long[] sorted, long[] added) {
+        long stamp = lock.writeLock();
+        try {
+            if (sorted == sortedKeys && added.length == newKeyCount) {
+                sortedNewKeys = added;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Appends a key inserted for the first time to the run of new keys, merging the run into
+     * the sorted keys once it is large enough. Called under the write lock.
+     */
+    private void addNewKey(long key) {
+        if (newKeyCount == newKeys.length) {
+            newKeys = Arrays.copyOf(newKeys, newKeyCount << 1);
+        }
+        newKeys[newKeyCount++] = key;
+        if (newKeyCount >= Math.max(MIN_MERGED_RUN, sortedKeys.length >> 3)) {
+            long[] added = Arrays.copyOf(newKeys, newKeyCount);
+            Arrays.sort(added);
+            long[] merged = new long[sortedKeys.length + added.length];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < merged.length; k++) {
+                merged[k] = j >= added.length || (i < sortedKeys.length && sortedKeys[i] < added[j])
+                        ? sortedKeys[i++] : added[j++];
+            }
+            sortedKeys = merged;
+            newKeys = new long[16];
+            newKeyCount = 0;
+            sortedNewKeys = new long[0];
+        }
+    }
+
+    /**
+     * @return the index of the first key of a sorted array in the range starting at {@code from}
+     */
+    private static int lowerBound(long[] keys, long from, boolean inclusive) {
+        int index = Arrays.binarySearch(keys, from);
+        if (index < 0) {
+            return -index - 1;
+        }
+        return inclusive ? index : index + 1;
+    }
+
+    /**
+     * @return the index after the last key of a sorted array in the range ending before {@code to}
+     */
+    private static int upperBound(long[] keys, long to, boolean toEnd) {
+        if (toEnd) {
+            return keys.length;
+        }
+        int index = Arrays.binarySearch(keys, to);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    @Override
+    public SortedEntries sortedEntries() {
+        long stamp = lock.readLock();
+        try {
+            Slots current = slots;
+            long[] keys = new long[size];
+            int count = 0;
+            for (int i = 0; i < current.keys.length; i++) {
+                if (current.locations[i] != NOT_FOUND) {
+                    keys[count++] = current.keys[i];
+                }
+            }
+            Arrays.sort(keys);
+            long[] locations = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                locations[i] = current.find(keys[i]);
+            }
+            return SortedEntries.ofLongKeys(keys, locations);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Converts a key given as a record field value (Integer or Long) or as a string to a long.
+     */
+    private static long toLong(Object key) {
+        if (key instanceof Number number) {
+            return number.longValue();
+        }
+        return Long.parseLong(key.toString());
+    }
+
+    /**
+     * Merges the ranges of two sorted arrays holding distinct keys into one ascending order.
+     */
+    private static final class MergedRange implements Iterator<Long> {
+
+        private final long[] first;
+        private int firstIndex;
+        private final int firstEnd;
+        private final long[] second;
+        private int secondIndex;
+        private final int secondEnd;
+
+        private MergedRange(long[] first, int firstIndex, int firstEnd, long[] second, int secondIndex, int secondEnd) {
+            this.first = first;
+            this.firstIndex = firstIndex;
+            this.firstEnd = Math.max(firstIndex, firstEnd);
+            this.second = second;
+            this.secondIndex = secondIndex;
+            this.secondEnd = Math.max(secondIndex, secondEnd);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return firstIndex < firstEnd || secondIndex < secondEnd;
+        }
+
+        @Override
+        public Long next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (secondIndex >= secondEnd || (firstIndex < firstEnd && first[firstIndex] < second[secondIndex])) {
+                return first[firstIndex++];
+            }
+            return second[secondIndex++];
+        }
+    }
+
+    /**
+     * The probing arrays. They are replaced as a whole on resize so an optimistic reader never
+     * sees keys and locations of different capacities.
+     */
+    private static final class Slots {
+
+        private final long[] keys;
+        private final long[] locations;
+        private final int mask;
+        private final int resizeThreshold;
+
+        private Slots(int capacity) {
+            keys = new long[capacity];
+            locations = new long[capacity];
+            Arrays.fill(locations, NOT_FOUND);
+            mask = capacity - 1;
+            resizeThreshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        private long find(long key) {
+            int index = slotOf(key);
+            // Bounded by the capacity so a torn optimistic read can never spin forever
+            for (int probes = 0; probes <= mask; probes++) {
+                long location = locations[index];
+                if (location == NOT_FOUND) {
+                    return NOT_FOUND;
+                }
+                if (keys[index] == key) {
+                    return location;
+                }
+                index = (index + 1) & mask;
+            }
+            return NOT_FOUND;
+        }
+
+        private long insert(long key, long location) {
+            int index = slotOf(key);
+            while (true) {
+                long current = locations[index];
+                if (current == NOT_FOUND) {
+                    keys[index] = key;
+                    locations[index] = location;
+                    return NOT_FOUND;
+                }
+                if (keys[index] == key) {
+                    locations[index] = location;
+                    return current;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private Slots grow() {
+            Slots grown = new Slots(keys.length << 1);
+            for (int i = 0; i < keys.length; i++) {
+                if (locations[i] != NOT_FOUND) {
+                    grown.insert(keys[i], locations[i]);
+                }
+            }
+            return grown;
+        }
+
+        private int slotOf(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads sequential keys
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * MutationLog receives every row written to a table before it becomes visible to readers. A
+ * log that can no longer take entries throws from the append, so the row is never applied.
+ */
+public interface MutationLog {
+
+    /**
+     * A log that discards everything, used for tables that don't need to be durable.
+     */
+    MutationLog NONE = (shard, schemaName, row) -> CompletableFuture.completedFuture(0L);
+
+    /**
+     * Appends an upserted row to the log.
+     *
+     * @param shard      the storage shard the row is written by, each shard may have a log of its own
+     * @param schemaName the schema of the table the row is written to
+     * @param row        the Avro binary row
+     * @return a future completed with the sequence number of the entry once it is as durable
+     *         as the log is configured to make it
+     */
+    CompletableFuture<Long> append(int shard, String schemaName, byte[] row);
+
+    /**
+     * Appends a patch to an existing row to the log. Logs that only keep whole rows append the
+     * patched row instead.
+     *
+     * @param shard      the storage shard the row is written by
+     * @param schemaName the schema of the table the row is written to
+     * @param patch      the changed fields, see {@link RowCodec#encodePatch}
+     * @param row        the patched Avro binary row
+     * @return a future completed with the sequence number of the entry once it is as durable
+     *         as the log is configured to make it
+     */
+    default CompletableFuture<Long> appendPatch(int shard, String schemaName, byte[] patch, byte[] row) {
+        return append(shard, schemaName, row);
+    }
+}
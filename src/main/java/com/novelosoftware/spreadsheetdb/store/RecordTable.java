@@ -0,0 +1,1014 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+
+import org.apache.avro.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.OptionalLong;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * RecordTable holds the records of a single schema.
+ * <p>
+ * The table is split into shards by key hash. Each shard keeps its rows as Avro binary in a
+ * {@link RowSlab} of its own, and its {@link KeyIndex} maps each key to the address of its
+ * latest row. The index implementation is chosen from the type of the key column so every
+ * table has its own key space and numeric keys stay unboxed. Rows are only decoded, through
+ * the table {@link RowCodec}, when a read needs them.
+ * </p>
+ * <p>
+ * Columns declared as indexed get a {@link SecondaryIndex}, shared by all shards. On every write
+ * the indexed fields of the new row and of the row it replaces are decoded, and the index
+ * entries move only when a value changed.
+ * </p>
+ * <p>
+ * Writes to a shard run on its thread of the {@link ShardWriters}, under the shard lock, and are
+ * appended to the shard log of the {@link MutationLog} in the same order they are applied.
+ * Writes to different shards run in parallel, reads don't take any lock. Operations that need
+ * the whole table to stand still, snapshots and schema changes, take every shard lock.
+ * </p>
+ * <p>
+ * A table can be given a memory budget, split evenly between its shards. When the slabs of a
+ * shard go over its share, its oldest slab is evicted: rows read since they were written get a
+ * second chance and are copied to the slab being written, as in a CLOCK cache, the other live
+ * rows are spilled, sorted by key, to an immutable segment of its {@link RowSegments}. Keys stay
+ * in memory, so a missing key costs no disk read and a spilled row costs one. A spilled row read
+ * twice within a while is brought back to memory by the shard writer.
+ * </p>
+ * <p>
+ * Aggregates over a column read it from a {@link ColumnChunk} per shard, a primitive array of
+ * the column in key order, built on first use and kept until the shard is written again. A
+ * stale chunk is refreshed from the rows that changed only, and the shards are summarized in
+ * parallel.
+ * </p>
+ * <p>
+ * A new version of the schema only swaps the schema model and codec of the table, rows are
+ * left as they are since each one carries the version it was written with and is resolved to
+ * the current version when read. Rows can then be upgraded in the background, a batch at a time.
+ * </p>
+ */
+public class RecordTable {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordTable.class);
+    private static final int SHARD_SHIFT = 56; // A row location holds the shard above the slab address
+    private static final long MAX_MERGED_BYTES = 64L << 20; // Live bytes of sparse segments merged per eviction
+    private static final int ADMISSION_BITS = 1 << 16; // Spilled keys remembered until read again
+
+    private volatile InternalSchemaModel schemaModel;
+    private volatile RowCodec codec;
+    private volatile Map<String, SecondaryIndex> secondaryIndexes = new LinkedHashMap<>();
+    private final Shard[] shards;
+    private final ShardWriters writers;
+    private final long shardMemoryBudget;
+    private final MutationLog mutationLog;
+
+    /**
+     * Constructs an empty RecordTable for a schema, keeping every row in memory.
+     *
+     * @param schemaModel the schema of the records stored in this table
+     * @param writers     the threads writing the shards, the table has one shard per thread
+     * @param slabs       creates the slab holding the rows of each shard
+     * @param mutationLog the log every upserted row is appended to
+     */
+    public RecordTable(InternalSchemaModel schemaModel, ShardWriters writers, Supplier<RowSlab> slabs,
+                       MutationLog mutationLog) {
+        this(schemaModel, writers, slabs, 0, shard -> null, mutationLog);
+    }
+
+    /**
+     * Constructs an empty RecordTable for a schema.
+     *
+     * @param schemaModel       the schema of the records stored in this table
+     * @param writers           the threads writing the shards, the table has one shard per thread
+     * @param slabs             creates the slab holding the rows of each shard
+     * @param memoryBudgetBytes the bytes of slabs the table keeps in memory, zero or less keeps
+     *                          every row in memory
+     * @param segments          creates the segments of each shard, given its number. Only called
+     *                          when the table has a memory budget
+     * @param mutationLog       the log every upserted row is appended to
+     */
+    public RecordTable(InternalSchemaModel schemaModel, ShardWriters writers, Supplier<RowSlab> slabs,
+                       long memoryBudgetBytes, IntFunction<RowSegments> segments, MutationLog mutationLog) {
+        this.schemaModel = schemaModel;
+        this.codec = createCodec(schemaModel);
+        for (int columnIndex : schemaModel.getIndexedColumnIndexes()) {
+            Schema.Field field = schemaModel.getSchema().getFields().get(columnIndex);
+            secondaryIndexes.put(field.name(), new SecondaryIndex(field));
+        }
+        this.shards = new Shard[writers.getShardCount()];
+        boolean bounded = memoryBudgetBytes > 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            shards[shard] = new Shard(KeyIndex.forKeyType(schemaModel.getKeyType()), slabs.get(),
+                    bounded ? segments.apply(shard) : null);
+        }
+        this.shardMemoryBudget = bounded ? Math.max(1, memoryBudgetBytes / shards.length) : Long.MAX_VALUE;
+        this.writers = writers;
+        this.mutationLog = mutationLog;
+    }
+
+    public InternalSchemaModel getSchemaModel() {
+        return schemaModel;
+    }
+
+    /**
+     * Returns the codec of the current schema version. A reader must get it after the row it
+     * decodes, so the codec knows the version the row was written with.
+     *
+     * @return the codec
+     */
+    public RowCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Retrieves a row by its key. The read counts as an access: a row in memory is kept there
+     * when its slab is evicted, and a spilled row read again is brought back to memory.
+     *
+     * @param key the key, either a record field value or its string form
+     * @return the Avro binary row, or null if there is no row with that key
+     */
+    public ByteBuffer get(Object key) {
+        int shardIndex = shardOf(key);
+        Shard shard = shards[shardIndex];
+        while (true) {
+            long address = shard.keyIndex.get(key);
+            if (address == KeyIndex.NOT_FOUND) {
+                return null;
+            }
+            if (!RowSegments.isSpilled(address)) {
+                ByteBuffer row = shard.slab.read(address);
+                if (row != null) {
+                    shard.slab.markReferenced(address);
+                    return row;
+                }
+            } else {
+                ByteBuffer row = shard.segments.read(address);
+                if (row != null) {
+                    if (shard.admit(schemaModel.normalizeKey(key))) {
+                        promoteLater(shardIndex, key, address);
+                    }
+                    return row;
+                }
+            }
+            // The row was moved while it was looked up, the index already holds its new address
+        }
+    }
+
+    /**
+     * Retrieves a row by its key without counting it as an access, for scans, so they don't
+     * push the rows read by point lookups out of memory.
+     *
+     * @param key the key, either a record field value or its string form
+     * @return the Avro binary row, or null if there is no row with that key
+     */
+    public ByteBuffer peek(Object key) {
+        Shard shard = shards[shardOf(key)];
+        while (true) {
+            long address = shard.keyIndex.get(key);
+            if (address == KeyIndex.NOT_FOUND) {
+                return null;
+            }
+            ByteBuffer row = shard.read(address);
+            if (row != null) {
+                return row;
+            }
+        }
+    }
+
+    /**
+     * Returns the secondary index of a column.
+     *
+     * @param fieldName the name of the column
+     * @return the index, or null if the column is not indexed
+     */
+    public SecondaryIndex getSecondaryIndex(String fieldName) {
+        return secondaryIndexes.get(fieldName);
+    }
+
+    /**
+     * Summarizes a column over a range of keys, see {@link ColumnSummary}. Writers are only
+     * paused to copy the keys of a shard whose chunk of the column is stale.
+     *
+     * @param fieldName the name of the column
+     * @param fromKey   the lowest key of the range, or null to start at the first key
+     * @param toKey     the key the range stops before, or null to run to the last key
+     * @return the summary
+     * @throws IllegalArgumentException if the column is not in the schema
+     * @throws ArithmeticException      if the sum of an integral column overflows a long
+     */
+    public ColumnSummary summarize(String fieldName, Object fromKey, Object toKey) {
+        Object from = schemaModel.normalizeKey(fromKey);
+        Object to = schemaModel.normalizeKey(toKey);
+        return IntStream.range(0, shards.length).parallel()
+                .mapToObj(shard -> column(shards[shard], fieldName).summarize(from, to))
+                .reduce(ColumnSummary::combine)
+                .orElseThrow();
+    }
+
+    /**
+     * Iterates over a range of keys in key order, without blocking writers. The keys of the
+     * shards are merged as they are read.
+     *
+     * @param fromKey       the lowest key of the range, or null to start at the first key
+     * @param fromInclusive whether the range includes {@code fromKey} itself
+     * @param toKey         the key the range stops before, or null to run to the last key
+     * @return the keys of the range, see {@link KeyIndex#keyRange}
+     */
+    public Iterator<?> keyRange(Object fromKey, boolean fromInclusive, Object toKey) {
+        if (shards.length == 1) {
+            return shards[0].keyIndex.keyRange(fromKey, fromInclusive, toKey);
+        }
+        List<Iterator<?>> ranges = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            ranges.add(shard.keyIndex.keyRange(fromKey, fromInclusive, toKey));
+        }
+        return new MergedKeys(ranges);
+    }
+
+    /**
+     * Inserts or replaces the row stored under a key and appends it to the mutation log.
+     * The write runs on the writer thread of the shard of the key, the row is visible to
+     * readers once it has run. The row is appended before it is applied, so a row the log
+     * rejects is never visible.
+     *
+     * @param key the key read from the record
+     * @param row the record encoded by the table {@link RowCodec}
+     * @return a future completed with the sequence number of the log entry once it is durable
+     */
+    public CompletableFuture<Long> put(Object key, byte[] row) {
+        int shardIndex = shardOf(key);
+        return writers.submit(shardIndex, () -> {
+            Shard shard = shards[shardIndex];
+            shard.lock.lock();
+            try {
+                CompletableFuture<Long> logged = mutationLog.append(shardIndex, schemaModel.getSchemaName(), row);
+                apply(shard, key, row);
+                return logged;
+            } finally {
+                shard.lock.unlock();
+            }
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Applies a patch to the row stored under a key and appends the patch to the mutation log.
+     * Like {@link #put}, it runs on the writer thread of the shard of the key, so the row can't
+     * change between reading it and writing the patched row.
+     *
+     * @param key             the key of the row
+     * @param patch           the changed fields, made by {@link RowCodec#encodePatch}, the key is
+     *                        copied into the logged patch from the row
+     * @param versionMatches  tests the current version of the row, see {@link RowCodec#contentVersion}
+     * @return a future completed with the version of the patched row once it is durable, or
+     *         empty if there is no row with that key
+     * @throws VersionMismatchException through the future, if the version of the row doesn't match
+     */
+    public CompletableFuture<OptionalLong> patch(Object key, byte[] patch, LongPredicate versionMatches) {
+        int shardIndex = shardOf(key);
+        return writers.submit(shardIndex, () -> {
+            Shard shard = shards[shardIndex];
+            shard.lock.lock();
+            try {
+                ByteBuffer row = peek(key);
+                if (row == null) {
+                    return CompletableFuture.completedFuture(OptionalLong.empty());
+                }
+                long version = codec.contentVersion(row);
+                if (!versionMatches.test(version)) {
+                    throw new VersionMismatchException(version);
+                }
+                byte[] patched = codec.applyPatch(row, patch);
+                // The key is always part of the logged patch, so a patch replayed from the log finds its row
+                byte[] keyedPatch = codec.copyIntoPatch(patch, ByteBuffer.wrap(patched), schemaModel.getKeyField().name());
+                CompletableFuture<Long> logged = mutationLog.appendPatch(shardIndex, schemaModel.getSchemaName(),
+                        keyedPatch, patched);
+                apply(shard, key, patched);
+                OptionalLong patchedVersion = OptionalLong.of(codec.contentVersion(ByteBuffer.wrap(patched)));
+                return logged.thenApply(sequence -> patchedVersion);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to patch row of " + schemaModel.getSchemaName(), e);
+            } finally {
+                shard.lock.unlock();
+            }
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Inserts or replaces a batch of rows. The batch is split by shard and each shard applies
+     * its rows in list order under a single acquisition of its lock, so a later row wins over
+     * an earlier one with the same key. The lists are split before this returns, the caller may
+     * reuse them.
+     *
+     * @param keys the key of each row
+     * @param rows the rows encoded by the table {@link RowCodec}
+     * @return a future completed with the greatest sequence number of the batch once every
+     *         row of the batch is durable
+     */
+    public CompletableFuture<Long> putAll(List<Object> keys, List<byte[]> rows) {
+        List<List<Object>> keysByShard = splitByShard(keys, keys);
+        List<List<byte[]>> rowsByShard = splitByShard(keys, rows);
+        List<CompletableFuture<Long>> shardsLogged = new ArrayList<>();
+        for (int shardIndex = 0; shardIndex < shards.length; shardIndex++) {
+            List<Object> shardKeys = keysByShard.get(shardIndex);
+            List<byte[]> shardRows = rowsByShard.get(shardIndex);
+            if (shardRows.isEmpty()) {
+                continue;
+            }
+            int writer = shardIndex;
+            shardsLogged.add(writers.submit(writer, () -> {
+                Shard shard = shards[writer];
+                shard.lock.lock();
+                try {
+                    CompletableFuture<Long> logged = CompletableFuture.completedFuture(0L);
+                    for (int i = 0; i < shardRows.size(); i++) {
+                        logged = mutationLog.append(writer, schemaModel.getSchemaName(), shardRows.get(i));
+                        apply(shard, shardKeys.get(i), shardRows.get(i));
+                    }
+                    return logged;
+                } finally {
+                    shard.lock.unlock();
+                }
+            }).thenCompose(Function.identity()));
+        }
+        return latest(shardsLogged);
+    }
+
+    /**
+     * Inserts or replaces the row stored under a key without logging it, used to rebuild the
+     * table from the mutation log. It runs on the calling thread, under the shard lock.
+     *
+     * @param key the key read from the record
+     * @param row the record encoded by the table {@link RowCodec}
+     */
+    public void restore(Object key, byte[] row) {
+        Shard shard = shards[shardOf(key)];
+        shard.lock.lock();
+        try {
+            apply(shard, key, row);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Applies a patch to the row stored under a key without logging it, used to rebuild the
+     * table from the mutation log. A patch to a row that isn't there is skipped.
+     *
+     * @param key   the key read from the patch
+     * @param patch the changed fields, made by {@link RowCodec#encodePatch}
+     * @throws IOException if the row or the patch can't be decoded
+     */
+    public void restorePatch(Object key, byte[] patch) throws IOException {
+        Shard shard = shards[shardOf(key)];
+        shard.lock.lock();
+        try {
+            ByteBuffer row = peek(key);
+            if (row == null) {
+                log.warn("Skipping logged patch of missing record {} of {}", key, schemaModel.getSchemaName());
+                return;
+            }
+            apply(shard, key, codec.applyPatch(row, patch));
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts or replaces the row stored under a key without logging it, used to load the
+     * table from a snapshot. It runs on the calling thread, under the shard lock.
+     *
+     * @param key the key of the row
+     * @param row the row bytes, from its position to its limit
+     */
+    public void restore(Object key, ByteBuffer row) {
+        Shard shard = shards[shardOf(key)];
+        shard.lock.lock();
+        try {
+            index(shard, key, shard.slab.append(row));
+            evictOverBudget(shard);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the table to a new version of its schema. Stored rows are not touched, only the
+     * indexes of columns that are newly indexed, or whose type changed, are built from them.
+     *
+     * @param evolved the new version, ignored unless it is newer than the current one
+     */
+    public void evolve(InternalSchemaModel evolved) {
+        lockAll();
+        try {
+            if (evolved.getVersion() <= schemaModel.getVersion()) {
+                return;
+            }
+            RowCodec evolvedCodec = createCodec(evolved);
+            Map<String, SecondaryIndex> evolvedIndexes = new LinkedHashMap<>();
+            List<SecondaryIndex> newIndexes = new ArrayList<>();
+            for (int columnIndex : evolved.getIndexedColumnIndexes()) {
+                Schema.Field field = evolved.getSchema().getFields().get(columnIndex);
+                SecondaryIndex existing = secondaryIndexes.get(field.name());
+                SecondaryIndex index = existing == null ? null : existing.forField(field);
+                if (index == null) {
+                    index = new SecondaryIndex(field);
+                    newIndexes.add(index);
+                }
+                evolvedIndexes.put(field.name(), index);
+            }
+            if (!newIndexes.isEmpty()) {
+                buildIndexes(newIndexes, evolvedCodec);
+            }
+            codec = evolvedCodec;
+            secondaryIndexes = evolvedIndexes;
+            schemaModel = evolved;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Rewrites the rows of a batch of keys that were written with an earlier schema version
+     * with the current one, logging them like any other write. Rows already current are skipped.
+     *
+     * @param keys the keys to look at
+     * @return a future completed once every rewritten row is durable
+     */
+    public CompletableFuture<Long> upgradeRows(List<?> keys) {
+        List<List<Object>> keysByShard = splitByShard(keys, keys);
+        List<CompletableFuture<Long>> shardsLogged = new ArrayList<>();
+        for (int shardIndex = 0; shardIndex < shards.length; shardIndex++) {
+            List<Object> shardKeys = keysByShard.get(shardIndex);
+            if (shardKeys.isEmpty()) {
+                continue;
+            }
+            int writer = shardIndex;
+            shardsLogged.add(writers.submit(writer, () -> {
+                Shard shard = shards[writer];
+                shard.lock.lock();
+                try {
+                    CompletableFuture<Long> logged = CompletableFuture.completedFuture(0L);
+                    for (Object key : shardKeys) {
+                        ByteBuffer row = peek(key);
+                        byte[] upgraded = row == null ? null : codec.upgrade(row);
+                        if (upgraded != null) {
+                            logged = mutationLog.append(writer, schemaModel.getSchemaName(), upgraded);
+                            apply(shard, key, upgraded);
+                        }
+                    }
+                    return logged;
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to upgrade row of " + schemaModel.getSchemaName(), e);
+                } finally {
+                    shard.lock.unlock();
+                }
+            }).thenCompose(Function.identity()));
+        }
+        return latest(shardsLogged);
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the table. Writes are paused only while the key
+     * indexes are copied, the rows themselves are read afterwards through
+     * {@link TableSnapshot#readRow}, from the slabs and segments held when the indexes were copied.
+     *
+     * @param lastSequence gives the sequence number of the last logged mutation, it is read
+     *                     while writes are paused so every mutation up to it is included
+     * @return the snapshot
+     */
+    public TableSnapshot snapshot(LongSupplier lastSequence) {
+        long sequence;
+        SortedEntries[] entries = new SortedEntries[shards.length];
+        List<LongFunction<ByteBuffer>> readers = new ArrayList<>(shards.length);
+        lockAll();
+        try {
+            sequence = lastSequence.getAsLong();
+            for (int shard = 0; shard < shards.length; shard++) {
+                entries[shard] = shards[shard].keyIndex.sortedEntries();
+                readers.add(shards[shard].frozenReader());
+            }
+        } finally {
+            unlockAll();
+        }
+        return new TableSnapshot(sequence, mergeEntries(entries),
+                location -> readers.get((int) (location >>> SHARD_SHIFT)).apply(location & ((1L << SHARD_SHIFT) - 1)));
+    }
+
+    /**
+     * Reads the sequence number of the last logged mutation if the table hasn't been written
+     * since a previous snapshot, which means that snapshot is still current up to it.
+     *
+     * @param writeCount   the write count of the table when the previous snapshot was taken
+     * @param lastSequence gives the sequence number of the last logged mutation
+     * @return the sequence number, or -1 if the table has been written since
+     */
+    public long sequenceIfUnchanged(long writeCount, LongSupplier lastSequence) {
+        lockAll();
+        try {
+            return getWriteCount() == writeCount ? lastSequence.getAsLong() : -1;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private void apply(Shard shard, Object key, byte[] row) {
+        index(shard, key, shard.slab.append(row, 0, row.length));
+        evictOverBudget(shard);
+    }
+
+    private void index(Shard shard, Object key, long address) {
+        long previous = shard.keyIndex.put(key, address);
+        if (!secondaryIndexes.isEmpty()) {
+            updateSecondaryIndexes(shard, schemaModel.normalizeKey(key), previous, address);
+        }
+        if (previous != KeyIndex.NOT_FOUND) {
+            shard.release(previous);
+        }
+        shard.writeCount++;
+    }
+
+    /**
+     * Evicts the oldest slabs of a shard until it is back within its memory budget. A failure to
+     * spill leaves the rows in memory, the write that triggered it has been applied already.
+     */
+    private void evictOverBudget(Shard shard) {
+        int slab;
+        while (shard.slab.getHeldBytes() > shardMemoryBudget && (slab = shard.slab.evictableSlab()) >= 0) {
+            try {
+                evictSlab(shard, slab);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to spill rows of {}, keeping them in memory", schemaModel.getSchemaName(), e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evicts a slab: its live rows that were read get a second chance in the slab being written,
+     * the others are written to a new segment together with the live rows of sparse segments,
+     * which are then deleted. The index is only moved to the segment once it is written.
+     */
+    private void evictSlab(Shard shard, int slab) throws IOException {
+        List<SpilledRow> spilled = new ArrayList<>();
+        for (long address = RowSlab.firstAddress(slab); address != KeyIndex.NOT_FOUND; address = shard.slab.nextAddress(address)) {
+            ByteBuffer row = shard.slab.read(address);
+            Object key = keyOf(row);
+            if (shard.keyIndex.get(key) != address) {
+                continue; // Replaced since, already released
+            }
+            if (shard.slab.isReferenced(address)) {
+                shard.keyIndex.put(key, shard.slab.append(row));
+                shard.slab.release(address);
+            } else {
+                spilled.add(new SpilledRow(key, row, address));
+            }
+        }
+        List<Integer> sparseSegments = shard.segments.sparseSegments(MAX_MERGED_BYTES);
+        for (int segment : sparseSegments) {
+            for (long address = RowSegments.firstAddress(segment); address != KeyIndex.NOT_FOUND;
+                 address = shard.segments.nextAddress(address)) {
+                ByteBuffer row = shard.segments.read(address);
+                Object key = keyOf(row);
+                if (shard.keyIndex.get(key) == address) {
+                    spilled.add(new SpilledRow(key, row, address));
+                }
+            }
+        }
+
+        spilled.sort(SpilledRow.BY_KEY);
+        List<ByteBuffer> rows = new ArrayList<>(spilled.size());
+        for (SpilledRow row : spilled) {
+            rows.add(row.row);
+        }
+        long[] addresses = shard.segments.write(rows);
+        for (int i = 0; i < addresses.length; i++) {
+            SpilledRow row = spilled.get(i);
+            shard.keyIndex.put(row.key, addresses[i]);
+            if (!RowSegments.isSpilled(row.address)) {
+                shard.slab.release(row.address);
+            }
+        }
+        for (int segment : sparseSegments) {
+            shard.segments.delete(segment);
+        }
+        shard.slab.evict(slab);
+    }
+
+    /**
+     * Brings a spilled row back to memory on the shard writer, unless it was replaced or moved
+     * in the meantime.
+     */
+    private void promoteLater(int shardIndex, Object key, long address) {
+        Shard shard = shards[shardIndex];
+        try {
+            writers.submit(shardIndex, () -> {
+                shard.lock.lock();
+                try {
+                    if (shard.keyIndex.get(key) == address) {
+                        shard.keyIndex.put(key, shard.slab.append(shard.segments.read(address)));
+                        shard.segments.release(address);
+                        evictOverBudget(shard);
+                        shard.moveCount++;
+                    }
+                    return null;
+                } finally {
+                    shard.lock.unlock();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The writers are stopping, the row stays spilled
+        }
+    }
+
+    /**
+     * Returns the current chunk of a column of a shard, building it if the shard was written
+     * since the previous one. The keys are copied under the shard lock, unless a chunk of
+     * another column already holds them, and the rows are read afterwards. Entries copied
+     * before a promotion moved rows are not reused: the slabs and segments they point to may
+     * be gone from the readers taken since.
+     */
+    private ColumnChunk column(Shard shard, String fieldName) {
+        ColumnChunk previous = shard.columns.get(fieldName);
+        if (previous != null && previous.isCurrent(codec, shard.writeCount)) {
+            return previous;
+        }
+        RowCodec current;
+        long writeCount;
+        long moveCount;
+        SortedEntries entries = null;
+        LongFunction<ByteBuffer> rows;
+        shard.lock.lock();
+        try {
+            current = codec;
+            writeCount = shard.writeCount;
+            moveCount = shard.moveCount;
+            for (ColumnChunk other : shard.columns.values()) {
+                if (other.getWriteCount() == writeCount && other.getMoveCount() == moveCount) {
+                    entries = other.getEntries();
+                    break;
+                }
+            }
+            if (entries == null) {
+                entries = shard.keyIndex.sortedEntries();
+            }
+            rows = shard.frozenReader();
+        } finally {
+            shard.lock.unlock();
+        }
+        Schema.Field field = current.getSchema().getField(fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' not found in schema " + schemaModel.getSchemaName());
+        }
+        try {
+            ColumnChunk chunk = ColumnChunk.build(field, current, writeCount, moveCount, entries, rows, previous);
+            shard.columns.put(fieldName, chunk);
+            return chunk;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read column " + fieldName + " of " + schemaModel.getSchemaName(), e);
+        }
+    }
+
+    /**
+     * Reads the key of a row, in its canonical form.
+     */
+    private Object keyOf(ByteBuffer row) throws IOException {
+        return schemaModel.normalizeKey(codec.decodeField(row, schemaModel.getKeyColumnIndex()));
+    }
+
+    /**
+     * Moves the secondary index entries of a key from the values of its previous row, if any,
+     * to the values of its new row.
+     */
+    private void updateSecondaryIndexes(Shard shard, Object key, long previousAddress, long address) {
+        ByteBuffer row = shard.slab.read(address);
+        ByteBuffer previousRow = previousAddress == KeyIndex.NOT_FOUND ? null : shard.read(previousAddress);
+        try {
+            for (SecondaryIndex index : secondaryIndexes.values()) {
+                int fieldIndex = index.getField().pos();
+                Object value = index.valueOf(codec.decodeField(row, fieldIndex));
+                if (previousRow != null) {
+                    Object previousValue = index.valueOf(codec.decodeField(previousRow, fieldIndex));
+                    if (Objects.equals(value, previousValue)) {
+                        continue;
+                    }
+                    index.remove(previousValue, key);
+                }
+                index.add(value, key);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to index row of " + schemaModel.getSchemaName(), e);
+        }
+    }
+
+    /**
+     * Fills new secondary indexes from the stored rows, with every shard lock held.
+     */
+    private void buildIndexes(List<SecondaryIndex> indexes, RowCodec evolvedCodec) {
+        try {
+            for (Shard shard : shards) {
+                Iterator<?> keys = shard.keyIndex.keyRange(null, true, null);
+                while (keys.hasNext()) {
+                    Object key = keys.next();
+                    ByteBuffer row = shard.read(shard.keyIndex.get(key));
+                    for (SecondaryIndex index : indexes) {
+                        index.add(index.valueOf(evolvedCodec.decodeField(row, index.getField().pos())), key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to index rows of " + schemaModel.getSchemaName(), e);
+        }
+    }
+
+    /**
+     * Returns the shard of a key. Keys are hashed in their canonical form, so a key and its
+     * string form land on the same shard.
+     */
+    private int shardOf(Object key) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        int hash = schemaModel.normalizeKey(key).hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    /**
+     * Groups the values of a list of keys, such as their rows, by the shard of their key,
+     * keeping their order.
+     */
+    private <T> List<List<T>> splitByShard(List<?> keys, List<? extends T> values) {
+        List<List<T>> valuesByShard = new ArrayList<>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            valuesByShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            valuesByShard.get(shardOf(keys.get(i))).add(values.get(i));
+        }
+        return valuesByShard;
+    }
+
+    private void lockAll() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int shard = shards.length - 1; shard >= 0; shard--) {
+            shards[shard].lock.unlock();
+        }
+    }
+
+    /**
+     * Completes with the greatest sequence number of the futures once they are all complete.
+     */
+    private static CompletableFuture<Long> latest(List<CompletableFuture<Long>> logged) {
+        return CompletableFuture.allOf(logged.toArray(CompletableFuture[]::new))
+                .thenApply(done -> logged.stream().mapToLong(CompletableFuture::join).max().orElse(0L));
+    }
+
+    /**
+     * Merges the sorted entries of each shard into the sorted entries of the table, tagging
+     * every location with its shard.
+     */
+    private static SortedEntries mergeEntries(SortedEntries[] parts) {
+        int total = 0;
+        for (SortedEntries part : parts) {
+            total += part.size();
+        }
+        boolean longKeys = parts[0].hasLongKeys();
+        long[] mergedLongKeys = longKeys ? new long[total] : null;
+        String[] mergedStringKeys = longKeys ? null : new String[total];
+        long[] locations = new long[total];
+
+        int[] next = new int[parts.length];
+        Comparator<Integer> byHeadKey = longKeys
+                ? Comparator.comparingLong(shard -> parts[shard].getLongKey(next[shard]))
+                : Comparator.comparing(shard -> parts[shard].getStringKey(next[shard]));
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, parts.length), byHeadKey);
+        for (int shard = 0; shard < parts.length; shard++) {
+            if (parts[shard].size() > 0) {
+                heads.add(shard);
+            }
+        }
+        for (int i = 0; i < total; i++) {
+            int shard = heads.poll();
+            SortedEntries part = parts[shard];
+            if (longKeys) {
+                mergedLongKeys[i] = part.getLongKey(next[shard]);
+            } else {
+                mergedStringKeys[i] = part.getStringKey(next[shard]);
+            }
+            locations[i] = ((long) shard << SHARD_SHIFT) | part.getLocation(next[shard]);
+            if (++next[shard] < part.size()) {
+                heads.add(shard);
+            }
+        }
+        return longKeys ? SortedEntries.ofLongKeys(mergedLongKeys, locations)
+                : SortedEntries.ofStringKeys(mergedStringKeys, locations);
+    }
+
+    private static RowCodec createCodec(InternalSchemaModel schemaModel) {
+        return new RowCodec(schemaModel.getSchema(), schemaModel.getVersion(), schemaModel.getWriterSchemas());
+    }
+
+    /**
+     * @return the number of records in the table
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.keyIndex.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of rows written to the table since it was created, used to tell
+     *         whether it changed
+     */
+    public long getWriteCount() {
+        long writeCount = 0;
+        for (Shard shard : shards) {
+            writeCount += shard.writeCount;
+        }
+        return writeCount;
+    }
+
+    /**
+     * @return the bytes held by rows that are still current, in memory or spilled
+     */
+    public long getLiveBytes() {
+        long liveBytes = 0;
+        for (Shard shard : shards) {
+            liveBytes += shard.slab.getAllocatedBytes() - shard.slab.getReleasedBytes() + shard.spilledBytes();
+        }
+        return liveBytes;
+    }
+
+    /**
+     * @return the bytes held by current rows spilled to segments
+     */
+    public long getSpilledBytes() {
+        long spilledBytes = 0;
+        for (Shard shard : shards) {
+            spilledBytes += shard.spilledBytes();
+        }
+        return spilledBytes;
+    }
+
+    /**
+     * The rows of the keys hashed to one shard, written under its lock.
+     */
+    private static final class Shard {
+
+        private final KeyIndex keyIndex;
+        private final RowSlab slab;
+        private final RowSegments segments; // Null when every row stays in memory
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long writeCount;
+        private long moveCount; // Guarded by lock, promotions of spilled rows, which don't count as writes
+        private final AtomicLongArray readOnce; // Spilled keys read once, by hash
+        private final AtomicInteger spilledReads = new AtomicInteger();
+        private final Map<String, ColumnChunk> columns = new ConcurrentHashMap<>(); // By field name
+
+        private Shard(KeyIndex keyIndex, RowSlab slab, RowSegments segments) {
+            this.keyIndex = keyIndex;
+            this.slab = slab;
+            this.segments = segments;
+            this.readOnce = segments == null ? null : new AtomicLongArray(ADMISSION_BITS / Long.SIZE);
+        }
+
+        private ByteBuffer read(long address) {
+            return RowSegments.isSpilled(address) ? segments.read(address) : slab.read(address);
+        }
+
+        private void release(long address) {
+            if (RowSegments.isSpilled(address)) {
+                segments.release(address);
+            } else {
+                slab.release(address);
+            }
+        }
+
+        private long spilledBytes() {
+            return segments == null ? 0 : segments.getLiveBytes();
+        }
+
+        private LongFunction<ByteBuffer> frozenReader() {
+            LongFunction<ByteBuffer> slabReader = slab.frozenReader();
+            LongFunction<ByteBuffer> segmentReader = segments == null ? null : segments.frozenReader();
+            return address -> RowSegments.isSpilled(address) ? segmentReader.apply(address) : slabReader.apply(address);
+        }
+
+        /**
+         * Tells whether a spilled key read now should come back to memory: it is admitted the second
+         * time it is read within the last {@link #ADMISSION_BITS} spilled reads of the shard, so keys
+         * read only once never push out the rows of memory.
+         */
+        private boolean admit(Object key) {
+            if (spilledReads.incrementAndGet() % ADMISSION_BITS == 0) {
+                for (int i = 0; i < readOnce.length(); i++) {
+                    readOnce.set(i, 0);
+                }
+            }
+            int bit = (key.hashCode() * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(ADMISSION_BITS - 1);
+            long mask = 1L << (bit & (Long.SIZE - 1));
+            int word = bit / Long.SIZE;
+            long previous = readOnce.getAndUpdate(word, bits -> bits ^ mask);
+            return (previous & mask) != 0;
+        }
+    }
+
+    /**
+     * A live row moving to a new segment, from a slab or a sparse segment.
+     */
+    private static final class SpilledRow {
+
+        @SuppressWarnings("unchecked") // Keys of a table are all Longs or all Strings
+        private static final Comparator<SpilledRow> BY_KEY = (first, second) -> ((Comparable<Object>) first.key).compareTo(second.key);
+
+        private final Object key;
+        private final ByteBuffer row;
+        private final long address;
+
+        private SpilledRow(Object key, ByteBuffer row, long address) {
+            this.key = key;
+            this.row = row;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Merges the ordered key iterators of the shards into one ordered iterator, reading one key
+     * ahead in each.
+     */
+    private static final class MergedKeys implements Iterator<Object> {
+
+        private final PriorityQueue<Head> heads;
+
+        @SuppressWarnings("unchecked") // Keys of a table are all Longs or all Strings
+        private MergedKeys(List<Iterator<?>> ranges) {
+            this.heads = new PriorityQueue<>(ranges.size(),
+                    (first, second) -> ((Comparable<Object>) first.key).compareTo(second.key));
+            for (Iterator<?> range : ranges) {
+                if (range.hasNext()) {
+                    heads.add(new Head(range.next(), range));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Object next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            if (head.range.hasNext()) {
+                heads.add(new Head(head.range.next(), head.range));
+            }
+            return head.key;
+        }
+
+        private static final class Head {
+
+            private final Object key;
+            private final Iterator<?> range;
+
+            private Head(Object key, Iterator<?> range) {
+                this.key = key;
+                this.range = range;
+            }
+        }
+    }
+}
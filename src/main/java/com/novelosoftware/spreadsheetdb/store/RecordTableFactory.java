@@ -0,0 +1,149 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+
+import jakarta.annotation.PreDestroy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * RecordTableFactory creates the tables of each schema with the configured row storage. All
+ * tables share the {@link ShardWriters}, shard n of every table is written by the same thread.
+ * <p>
+ * Tables with a memory budget spill their cold rows to segments under the spill directory, one
+ * directory per table and shard. Segments only hold rows for the running process, the directory
+ * is emptied on startup and on shutdown.
+ * </p>
+ */
+@Component
+public class RecordTableFactory {
+
+    private final int slabSizeBytes;
+    private final boolean offHeap;
+    private final long memoryBudgetBytes;
+    private final Map<String, Long> schemaMemoryBudgets;
+    private final Path spillPath;
+    private final MutationLog mutationLog;
+    private final ShardWriters writers;
+    private final AtomicInteger tablesCreated = new AtomicInteger();
+
+    /**
+     * Constructs a RecordTableFactory keeping every row in memory.
+     *
+     * @param slabSizeBytes the size of each slab of rows
+     * @param offHeap       whether rows are stored in direct buffers outside the Java heap
+     * @param shards        the number of shards of each table, zero or less uses one per core
+     * @param mutationLog   the log the tables append their writes to
+     */
+    public RecordTableFactory(int slabSizeBytes, boolean offHeap, int shards, MutationLog mutationLog) {
+        this.slabSizeBytes = slabSizeBytes;
+        this.offHeap = offHeap;
+        this.memoryBudgetBytes = 0;
+        this.schemaMemoryBudgets = Map.of();
+        this.spillPath = null;
+        this.mutationLog = mutationLog;
+        this.writers = new ShardWriters(ShardWriters.shardCount(shards));
+    }
+
+    /**
+     * Constructs a RecordTableFactory.
+     *
+     * @param slabSizeBytes       the size of each slab of rows
+     * @param offHeap             whether rows are stored in direct buffers outside the Java heap
+     * @param shards              the number of shards of each table, zero or less uses one per core
+     * @param memoryBudgetBytes   the bytes of rows each table keeps in memory, zero or less keeps
+     *                            every row in memory
+     * @param schemaMemoryBudgets the budgets of specific schemas, as comma separated
+     *                            {@code schema=bytes} pairs, overriding the one of every table
+     * @param spillPath           the directory of the segments of spilled rows
+     * @param mutationLog         the log the tables append their writes to
+     * @throws IOException if the spill directory can't be emptied
+     */
+    @Autowired
+    public RecordTableFactory(
+            @Value("${record.storage.slab-size-bytes}") int slabSizeBytes,
+            @Value("${record.storage.off-heap}") boolean offHeap,
+            @Value("${record.storage.shards}") int shards,
+            @Value("${record.storage.memory-budget-bytes}") long memoryBudgetBytes,
+            @Value("${record.storage.schema-memory-budget-bytes}") String schemaMemoryBudgets,
+            @Value("${record.storage.spill-path}") String spillPath,
+            MutationLog mutationLog) throws IOException {
+        this.slabSizeBytes = slabSizeBytes;
+        this.offHeap = offHeap;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.schemaMemoryBudgets = parseBudgets(schemaMemoryBudgets);
+        this.spillPath = Path.of(spillPath);
+        this.mutationLog = mutationLog;
+        this.writers = new ShardWriters(ShardWriters.shardCount(shards));
+        deleteSpilledRows();
+    }
+
+    /**
+     * Creates an empty table for a schema.
+     *
+     * @param schemaModel the schema of the table
+     * @return the new table
+     */
+    public RecordTable create(InternalSchemaModel schemaModel) {
+        String schemaName = schemaModel.getSchemaName();
+        long budget = schemaMemoryBudgets.getOrDefault(schemaName, memoryBudgetBytes);
+        if (budget <= 0 || spillPath == null) {
+            return new RecordTable(schemaModel, writers, () -> new RowSlab(slabSizeBytes, offHeap), mutationLog);
+        }
+        Path tablePath = spillPath.resolve(schemaName + "-" + tablesCreated.incrementAndGet());
+        return new RecordTable(schemaModel, writers, () -> new RowSlab(slabSizeBytes, offHeap), budget,
+                shard -> new RowSegments(tablePath.resolve(String.format("shard-%03d", shard))), mutationLog);
+    }
+
+    /**
+     * Runs the writes already submitted to the tables, then stops the shard writers and deletes
+     * the spilled rows.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException, IOException {
+        writers.close();
+        deleteSpilledRows();
+    }
+
+    private void deleteSpilledRows() throws IOException {
+        if (spillPath == null || !Files.exists(spillPath)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(spillPath)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .filter(path -> !path.equals(spillPath))
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    /**
+     * Parses {@code schema=bytes} pairs separated by commas.
+     */
+    private static Map<String, Long> parseBudgets(String budgets) {
+        Map<String, Long> parsed = new HashMap<>();
+        for (String pair : budgets.split(",")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Memory budget must be schema=bytes: " + pair.trim());
+            }
+            parsed.put(pair.substring(0, separator).trim(), Long.parseLong(pair.substring(separator + 1).trim()));
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,165 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ResponseCache keeps the JSON encoding of recently read records, within a byte budget.
+ * <p>
+ * An entry holds the version of the row it was encoded from, see {@link RowCodec#contentVersion},
+ * and is only returned for that version: an upsert makes the entry stale without touching the
+ * cache, the next read encodes the new row and replaces it. Reads are a map lookup that sets the
+ * reference bit of the entry.
+ * </p>
+ * <p>
+ * Entries are evicted like the rows of a {@link RowSlab}, in insertion order, with a second
+ * chance for those read since they were inserted or last passed over. A replaced entry keeps
+ * counting against the budget until eviction reaches it, its bytes are held until then.
+ * </p>
+ */
+@Component
+public class ResponseCache {
+
+    private static final int ENTRY_OVERHEAD_BYTES = 96; // Key, entry, map node and array headers
+
+    private final long maxBytes;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Constructs a ResponseCache.
+     *
+     * @param maxBytes the bytes the cached encodings may take, zero or less disables the cache
+     */
+    public ResponseCache(@Value("${record.cache.max-bytes}") long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up the encoding of a record.
+     *
+     * @param schemaName the schema of the record
+     * @param key        the key of the record
+     * @param version    the version of the current row of the record
+     * @return the encoding, which must not be modified, or null if none is cached for the version
+     */
+    public byte[] get(String schemaName, Object key, long version) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(new Key(schemaName, key));
+        if (entry == null || entry.version != version) {
+            return null;
+        }
+        if (!entry.referenced) { // Only written once, reads stay reads
+            entry.referenced = true;
+        }
+        return entry.encoded;
+    }
+
+    /**
+     * Caches the encoding of a record, replacing the one of an earlier version. Encodings larger
+     * than an eighth of the budget are not cached.
+     *
+     * @param schemaName the schema of the record
+     * @param key        the key of the record
+     * @param version    the version of the row the encoding was made from
+     * @param encoded    the encoding, it must not be modified afterwards
+     */
+    public void put(String schemaName, Object key, long version, byte[] encoded) {
+        long weight = ENTRY_OVERHEAD_BYTES + encoded.length;
+        if (maxBytes <= 0 || weight > maxBytes / 8) {
+            return;
+        }
+        Entry entry = new Entry(new Key(schemaName, key), version, encoded, weight);
+        entries.put(entry.key, entry);
+        clock.add(entry);
+        if (bytes.addAndGet(weight) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * @return the bytes taken by the cached encodings
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Evicts entries until the cache is back within its budget. A single thread evicts at a
+     * time, the others go on with their request.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            Entry entry;
+            while (bytes.get() > maxBytes && (entry = clock.poll()) != null) {
+                if (entry.referenced && entries.get(entry.key) == entry) {
+                    entry.referenced = false;
+                    clock.add(entry);
+                    continue;
+                }
+                entries.remove(entry.key, entry); // A replaced entry is already gone from the map
+                bytes.addAndGet(-entry.weight);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A record of a schema.
+     */
+    private static final class Key {
+
+        private final String schemaName;
+        private final Object key;
+
+        private Key(String schemaName, Object key) {
+            this.schemaName = schemaName;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key that && schemaName.equals(that.schemaName) && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(schemaName, key);
+        }
+    }
+
+    /**
+     * The encoding of one version of a record.
+     */
+    private static final class Entry {
+
+        private final Key key;
+        private final long version;
+        private final byte[] encoded;
+        private final long weight;
+        private volatile boolean referenced;
+
+        private Entry(Key key, long version, byte[] encoded, long weight) {
+            this.key = key;
+            this.version = version;
+            this.encoded = encoded;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,921 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.JsonDecoder;
+import org.apache.avro.io.JsonEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * RowCodec converts records of one schema to and from the Avro binary encoding used to store rows,
+ * and to and from their Avro JSON encoding.
+ * <p>
+ * Readers and writers are created once per schema and shared, Avro datum readers and writers
+ * are safe to use from several threads. Decoders, encoders, output buffers and scratch records
+ * are not, they are kept in a pool of {@link CodecState} and each call borrows one for its
+ * duration, so the request paths allocate little more than their result. A call that fails
+ * doesn't give its state back, a decoder or encoder left halfway through a datum is never reused.
+ * A pool is used rather than thread locals so the number of states follows the concurrency, not
+ * the number of threads; it keeps a few states per core, those a burst of requests creates
+ * beyond that are dropped once returned.
+ * </p>
+ * <p>
+ * Every row starts with the version of the schema it was written with, as an Avro varint,
+ * followed by the Avro binary record. Rows of the current version are decoded directly, rows of
+ * an earlier version are resolved to the current schema as they are read, through a resolving
+ * reader created once per writer version. Avro caches the {@code ResolvingDecoder} of each
+ * writer and reader pair in the reader, so old rows cost little more than current ones to read
+ * and never have to be rewritten for a schema change to take effect.
+ * </p>
+ * <p>
+ * Rows also convert to and from messages of the Avro single-object encoding: a two byte marker,
+ * the little-endian CRC-64-AVRO fingerprint of the writer schema and the Avro binary record.
+ * The record is the same in a row and in a message, only the header differs, so a message of a
+ * known schema version becomes a row, and a current row a message, without being decoded.
+ * </p>
+ * <p>
+ * A change to some fields of a row is encoded as a patch laid out like a row: the version
+ * header, the number of changed fields, then the position and the Avro binary value of each
+ * in schema order. A patch is applied by copying the row and splicing in the new values, the
+ * other fields are only skipped over, never decoded.
+ * </p>
+ */
+public class RowCodec {
+
+    // States whose buffers grew past this size are dropped instead of being pooled
+    private static final int MAX_POOLED_BUFFER_BYTES = 1 << 20;
+    private static final int MAX_POOLED_STATES = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The version of the rows stored before rows carried their schema version.
+     */
+    public static final int UNTAGGED_ROW_VERSION = 1;
+
+    private static final byte[] SINGLE_OBJECT_MARKER = {(byte) 0xC3, 0x01};
+    private static final int SINGLE_OBJECT_HEADER_BYTES = SINGLE_OBJECT_MARKER.length + Long.BYTES;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final Schema schema;
+    private final int version;
+    private final byte[] versionHeader;
+    private final byte[] singleObjectHeader;
+    private final long fingerprint;
+    private final Map<Integer, Schema> writerSchemas;
+    private final Map<Long, Integer> versionsByFingerprint = new HashMap<>();
+    private final Map<Integer, DatumReader<GenericRecord>> resolvingReaders = new ConcurrentHashMap<>();
+    private final DatumWriter<GenericRecord> datumWriter;
+    private final DatumReader<GenericRecord> datumReader;
+    private final List<Schema> fieldSchemas;
+    private final List<DatumReader<Object>> fieldReaders;
+    private final List<DatumWriter<Object>> fieldWriters;
+    private final Queue<CodecState> statePool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledStates = new AtomicInteger(); // The queue counts its states one by one
+
+    /**
+     * Constructs a RowCodec for the first version of a schema.
+     *
+     * @param schema the Avro record schema of the rows
+     */
+    public RowCodec(Schema schema) {
+        this(schema, UNTAGGED_ROW_VERSION, Map.of(UNTAGGED_ROW_VERSION, schema));
+    }
+
+    /**
+     * Constructs a RowCodec writing rows with a version of a schema and reading rows written
+     * with any of its versions.
+     *
+     * @param schema        the Avro record schema rows are written and read with
+     * @param version       the version of that schema
+     * @param writerSchemas the schema of every version rows may have been written with
+     */
+    public RowCodec(Schema schema, int version, Map<Integer, Schema> writerSchemas) {
+        this.schema = schema;
+        this.version = version;
+        this.versionHeader = versionHeader(version);
+        this.writerSchemas = Map.copyOf(writerSchemas);
+        this.singleObjectHeader = singleObjectHeader(schema);
+        this.fingerprint = SchemaNormalization.parsingFingerprint64(schema);
+        writerSchemas.forEach((writerVersion, writerSchema) ->
+                versionsByFingerprint.put(SchemaNormalization.parsingFingerprint64(writerSchema), writerVersion));
+        versionsByFingerprint.put(fingerprint, version);
+        this.datumWriter = new GenericDatumWriter<>(schema);
+        this.datumReader = new GenericDatumReader<>(schema);
+        this.fieldSchemas = schema.getFields().stream().map(Schema.Field::schema).toList();
+        this.fieldReaders = fieldSchemas.stream()
+                .map(fieldSchema -> (DatumReader<Object>) new GenericDatumReader<Object>(fieldSchema))
+                .toList();
+        this.fieldWriters = fieldSchemas.stream()
+                .map(fieldSchema -> (DatumWriter<Object>) new GenericDatumWriter<Object>(fieldSchema))
+                .toList();
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return the schema version rows are written with
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Reads the schema version a row was written with.
+     *
+     * @param row the row bytes, from position zero to the limit
+     * @return the version
+     */
+    public static int rowVersion(ByteBuffer row) {
+        int zigZag = 0;
+        for (int i = 0, shift = 0; ; i++, shift += 7) {
+            int b = row.get(i);
+            zigZag |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the version of a record as read through this codec: a 64-bit hash of its row and
+     * of the current schema. It changes with every upsert that changes the record and with
+     * every schema change, but not when a row is moved or reloaded, so it can be handed out as
+     * an HTTP entity tag. Hashing reads each word of the row once, far less than decoding it.
+     *
+     * @param row the row bytes, from position zero to the limit
+     * @return the version
+     */
+    public long contentVersion(ByteBuffer row) {
+        int limit = row.limit();
+        long hash = fingerprint ^ (limit * HASH_MULTIPLIER);
+        int i = 0;
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            hash = Long.rotateLeft(hash ^ (row.getLong(i) * HASH_MULTIPLIER), 31) * HASH_MULTIPLIER;
+        }
+        long tail = 0;
+        for (; i < limit; i++) {
+            tail = (tail << 8) | (row.get(i) & 0xFF);
+        }
+        hash ^= tail * HASH_MULTIPLIER;
+        hash ^= hash >>> 33; // Final mix, so every bit of the row reaches every bit of the hash
+        hash *= 0xFF51AFD7ED558CCDL;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Prefixes a row stored before rows carried their schema version with the header of
+     * {@link #UNTAGGED_ROW_VERSION}, used when reading older snapshots and log segments.
+     *
+     * @param record the Avro binary record, from its position to its limit
+     * @return the tagged row
+     */
+    public static byte[] tagUntaggedRow(ByteBuffer record) {
+        byte[] header = versionHeader(UNTAGGED_ROW_VERSION);
+        byte[] row = new byte[header.length + record.remaining()];
+        System.arraycopy(header, 0, row, 0, header.length);
+        record.get(record.position(), row, header.length, record.remaining());
+        return row;
+    }
+
+    /**
+     * Re-encodes a row written with an earlier version of the schema with the current one.
+     *
+     * @param row the row bytes, from position zero to the limit
+     * @return the upgraded row, or null if the row already has the current version
+     * @throws IOException if the row can't be decoded
+     */
+    public byte[] upgrade(ByteBuffer row) throws IOException {
+        if (rowVersion(row) == version) {
+            return null;
+        }
+        return encode(decode(row));
+    }
+
+    /**
+     * Encodes a record to Avro binary.
+     *
+     * @param record the record to encode
+     * @return the encoded row, tagged with the current schema version
+     * @throws IOException if the record doesn't match the schema
+     */
+    public byte[] encode(GenericRecord record) throws IOException {
+        CodecState state = acquire();
+        byte[] row = state.encodeBinary(record);
+        release(state);
+        return row;
+    }
+
+    /**
+     * Decodes a record from its Avro JSON encoding.
+     *
+     * @param json the JSON document
+     * @return the decoded record
+     * @throws IOException if the document doesn't match the schema
+     */
+    public GenericRecord decodeJson(String json) throws IOException {
+        CodecState state = acquire();
+        GenericRecord record = datumReader.read(null, state.jsonDecoder(json));
+        release(state);
+        return record;
+    }
+
+    /**
+     * Converts a record from its Avro JSON encoding straight to an Avro binary row. The record
+     * in between is a pooled scratch record, only the key is taken out of it.
+     *
+     * @param json  the JSON document
+     * @param keyOf reads the key of the decoded record, it must not return a value that shares
+     *              state with the record, such as an Avro {@code Utf8}
+     * @return the key and the encoded row
+     * @throws IOException if the document doesn't match the schema
+     */
+    public EncodedRow encodeJson(String json, Function<GenericRecord, Object> keyOf) throws IOException {
+        CodecState state = acquire();
+        GenericRecord record = datumReader.read(state.scratchRecord, state.jsonDecoder(json));
+        state.scratchRecord = record;
+        EncodedRow encoded = new EncodedRow(keyOf.apply(record), state.encodeBinary(record));
+        release(state);
+        return encoded;
+    }
+
+    /**
+     * Converts a record from its Avro JSON encoding, read from a stream, straight to an Avro
+     * binary row, like {@link #encodeJson(String, Function)}.
+     *
+     * @param json  the stream of the JSON document, read up to the end of the record
+     * @param keyOf reads the key of the decoded record
+     * @return the key and the encoded row
+     * @throws IOException if the stream can't be read or the document doesn't match the schema
+     */
+    public EncodedRow encodeJson(InputStream json, Function<GenericRecord, Object> keyOf) throws IOException {
+        CodecState state = acquire();
+        GenericRecord record = datumReader.read(state.scratchRecord, state.jsonDecoder(json));
+        state.scratchRecord = record;
+        EncodedRow encoded = new EncodedRow(keyOf.apply(record), state.encodeBinary(record));
+        release(state);
+        return encoded;
+    }
+
+    /**
+     * Encodes changes to some fields as a patch of rows of the current version.
+     *
+     * @param changes the Avro JSON encoding of the new value of each changed field, by name
+     * @return the patch
+     * @throws IllegalArgumentException if there are no changes, a field is not in the schema or
+     *                                  a value doesn't match the type of its field
+     */
+    public byte[] encodePatch(Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            throw new IllegalArgumentException("A patch must change at least one field");
+        }
+        int[] fieldIndexes = new int[changes.size()];
+        String[] values = new String[fieldSchemas.size()];
+        int count = 0;
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            Schema.Field field = schema.getField(change.getKey());
+            if (field == null) {
+                throw new IllegalArgumentException("Field '" + change.getKey() + "' not found in schema " + schema.getName());
+            }
+            fieldIndexes[count++] = field.pos();
+            values[field.pos()] = change.getValue();
+        }
+        Arrays.sort(fieldIndexes);
+
+        CodecState state = acquire();
+        try {
+            state.output.reset();
+            state.output.write(versionHeader, 0, versionHeader.length);
+            state.binaryEncoder = EncoderFactory.get().binaryEncoder(state.output, state.binaryEncoder);
+            state.binaryEncoder.writeInt(count);
+            for (int fieldIndex : fieldIndexes) {
+                Object value = fieldReaders.get(fieldIndex).read(null, state.fieldJsonDecoder(fieldIndex, values[fieldIndex]));
+                state.binaryEncoder.writeInt(fieldIndex);
+                fieldWriters.get(fieldIndex).write(value, state.binaryEncoder);
+            }
+            state.binaryEncoder.flush();
+        } catch (IOException | AvroRuntimeException e) {
+            throw new IllegalArgumentException("Patch doesn't match schema " + schema.getName() + ": " + e.getMessage(), e);
+        }
+        byte[] patch = state.output.toByteArray();
+        release(state);
+        return patch;
+    }
+
+    /**
+     * Applies a patch to a row. A row of an earlier version is upgraded first, a patch of an
+     * earlier version, replayed from the log after a schema change, gives a row of its version.
+     *
+     * @param row   the row bytes, from position zero to the limit
+     * @param patch a patch made by {@link #encodePatch}
+     * @return the patched row
+     * @throws IOException if the row or the patch can't be decoded
+     */
+    public byte[] applyPatch(ByteBuffer row, byte[] patch) throws IOException {
+        ByteBuffer patchBuffer = ByteBuffer.wrap(patch);
+        int patchVersion = rowVersion(patchBuffer);
+        if (patchVersion != version) {
+            return applyEarlierPatch(row, patchBuffer, patchVersion);
+        }
+        if (rowVersion(row) != version) {
+            row = ByteBuffer.wrap(upgrade(row));
+        }
+
+        BinaryCursor patchCursor = new BinaryCursor(patchBuffer, headerLength(patchBuffer));
+        int count = (int) patchCursor.readLong();
+        int[] fieldIndexes = new int[count];
+        int[] valueBounds = new int[count * 2];
+        int patchedLength = 0;
+        for (int i = 0; i < count; i++) {
+            fieldIndexes[i] = (int) patchCursor.readLong();
+            valueBounds[i * 2] = patchCursor.getPosition();
+            patchCursor.skip(fieldSchemas.get(fieldIndexes[i]));
+            valueBounds[i * 2 + 1] = patchCursor.getPosition();
+            patchedLength += valueBounds[i * 2 + 1] - valueBounds[i * 2];
+        }
+
+        // Bounds of the replaced values in the row, the fields after the last one are left unread
+        BinaryCursor rowCursor = new BinaryCursor(row, headerLength(row));
+        int[] fieldBounds = new int[count * 2];
+        int replacedLength = 0;
+        for (int field = 0, next = 0; next < count; field++) {
+            int fieldStart = rowCursor.getPosition();
+            rowCursor.skip(fieldSchemas.get(field));
+            if (field == fieldIndexes[next]) {
+                fieldBounds[next * 2] = fieldStart;
+                fieldBounds[next * 2 + 1] = rowCursor.getPosition();
+                replacedLength += rowCursor.getPosition() - fieldStart;
+                next++;
+            }
+        }
+
+        byte[] patched = new byte[row.limit() - replacedLength + patchedLength];
+        int copied = headerLength(row); // The header of the row is the current one, like the patch
+        row.get(0, patched, 0, copied);
+        int written = copied;
+        for (int i = 0; i < count; i++) {
+            int unchanged = fieldBounds[i * 2] - copied;
+            row.get(copied, patched, written, unchanged);
+            written += unchanged;
+            int valueLength = valueBounds[i * 2 + 1] - valueBounds[i * 2];
+            System.arraycopy(patch, valueBounds[i * 2], patched, written, valueLength);
+            written += valueLength;
+            copied = fieldBounds[i * 2 + 1];
+        }
+        row.get(copied, patched, written, row.limit() - copied);
+        return patched;
+    }
+
+    /**
+     * Adds the value a row holds for a field to a patch, copying its bytes without decoding
+     * them. A patch that already changes the field is returned as it is.
+     *
+     * @param patch     a patch made by {@link #encodePatch}
+     * @param row       a row of the version of the patch, such as the row the patch gave
+     * @param fieldName the name of the field
+     * @return the patch, changing the field to its value in the row as well
+     * @throws IOException if the patch or the row can't be decoded
+     */
+    public byte[] copyIntoPatch(byte[] patch, ByteBuffer row, String fieldName) throws IOException {
+        ByteBuffer patchBuffer = ByteBuffer.wrap(patch);
+        Schema patchSchema = schemaOf(rowVersion(patchBuffer));
+        Schema.Field field = patchSchema.getField(fieldName);
+        BinaryCursor rowCursor = new BinaryCursor(row, headerLength(row)).seekField(patchSchema, field.pos());
+        int valueStart = rowCursor.getPosition();
+        rowCursor.skip(field.schema());
+        byte[] value = new byte[rowCursor.getPosition() - valueStart];
+        row.get(valueStart, value);
+
+        int header = headerLength(patchBuffer);
+        BinaryCursor patchCursor = new BinaryCursor(patchBuffer, header);
+        int count = (int) patchCursor.readLong();
+        int entriesStart = patchCursor.getPosition();
+        int insertAt = patch.length; // Fields are in schema order, the value goes before the first greater one
+        for (int i = 0; i < count; i++) {
+            int entryStart = patchCursor.getPosition();
+            int fieldIndex = (int) patchCursor.readLong();
+            if (fieldIndex == field.pos()) {
+                return patch;
+            }
+            if (fieldIndex > field.pos() && insertAt == patch.length) {
+                insertAt = entryStart;
+            }
+            patchCursor.skip(patchSchema.getFields().get(fieldIndex).schema());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(patch.length + value.length + 10);
+        out.write(patch, 0, header);
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        encoder.writeInt(count + 1);
+        out.write(patch, entriesStart, insertAt - entriesStart);
+        encoder.writeInt(field.pos());
+        out.write(value, 0, value.length);
+        out.write(patch, insertAt, patch.length - insertAt);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a field of a patch. A field of a patch of the current version is read with the
+     * cached reader of the field.
+     *
+     * @param patch     a patch made by {@link #encodePatch}
+     * @param fieldName the name of the field
+     * @return the value of the field, or null if the patch doesn't change it
+     * @throws IOException if the patch can't be decoded
+     */
+    public Object decodePatchField(byte[] patch, String fieldName) throws IOException {
+        ByteBuffer patchBuffer = ByteBuffer.wrap(patch);
+        int patchVersion = rowVersion(patchBuffer);
+        Schema patchSchema = schemaOf(patchVersion);
+        Schema.Field field = patchSchema.getField(fieldName);
+        BinaryCursor cursor = new BinaryCursor(patchBuffer, headerLength(patchBuffer));
+        int count = (int) cursor.readLong();
+        for (int i = 0; field != null && i < count; i++) {
+            int fieldIndex = (int) cursor.readLong();
+            if (fieldIndex == field.pos()) {
+                int offset = cursor.getPosition();
+                if (patchVersion != version) {
+                    return new GenericDatumReader<>(field.schema())
+                            .read(null, DecoderFactory.get().binaryDecoder(patch, offset, patch.length - offset, null));
+                }
+                CodecState state = acquire();
+                Object value = fieldReaders.get(fieldIndex).read(null, state.binaryDecoder(patchBuffer, offset));
+                release(state);
+                return value;
+            }
+            cursor.skip(patchSchema.getFields().get(fieldIndex).schema());
+        }
+        return null;
+    }
+
+    /**
+     * Converts the changes of a patch to a JSON object holding the changed fields, encoded like
+     * in {@link #toJson}. A patch of an earlier version is encoded with the fields of its version.
+     *
+     * @param patch a patch made by {@link #encodePatch}
+     * @return the JSON document
+     * @throws IOException if the patch can't be decoded
+     */
+    public String patchToJson(byte[] patch) throws IOException {
+        ByteBuffer patchBuffer = ByteBuffer.wrap(patch);
+        int patchVersion = rowVersion(patchBuffer);
+        Schema patchSchema = schemaOf(patchVersion);
+        CodecState state = acquire();
+        BinaryDecoder decoder = state.binaryDecoder(patchBuffer, headerLength(patchBuffer));
+        int count = decoder.readInt();
+        StringBuilder json = new StringBuilder().append('{');
+        for (int i = 0; i < count; i++) {
+            int fieldIndex = decoder.readInt();
+            Schema.Field field = patchSchema.getFields().get(fieldIndex);
+            json.append(i == 0 ? "\"" : ",\"").append(field.name()).append("\":");
+            if (patchVersion == version) {
+                Object value = fieldReaders.get(fieldIndex).read(null, decoder);
+                JsonEncoder encoder = state.jsonEncoder(fieldIndex, fieldSchemas.get(fieldIndex));
+                fieldWriters.get(fieldIndex).write(value, encoder);
+                encoder.flush();
+                json.append(state.output.toString(StandardCharsets.UTF_8));
+            } else {
+                Object value = new GenericDatumReader<>(field.schema()).read(null, decoder);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                JsonEncoder encoder = EncoderFactory.get().jsonEncoder(field.schema(), out);
+                new GenericDatumWriter<>(field.schema()).write(value, encoder);
+                encoder.flush();
+                json.append(out.toString(StandardCharsets.UTF_8));
+            }
+        }
+        release(state);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Converts a message of the Avro single-object encoding to a row. A message written with any
+     * version of the schema is stored with that version, it is resolved like any older row when
+     * read. The record is not decoded, only its structure is checked against its schema.
+     *
+     * @param message the message
+     * @return the row
+     * @throws IllegalArgumentException if the message is not a single-object message, its
+     *                                  fingerprint is not one of a version of the schema or its
+     *                                  record doesn't match that version
+     */
+    public byte[] rowFromSingleObject(byte[] message) {
+        if (message.length < SINGLE_OBJECT_HEADER_BYTES
+                || message[0] != SINGLE_OBJECT_MARKER[0] || message[1] != SINGLE_OBJECT_MARKER[1]) {
+            throw new IllegalArgumentException("Not an Avro single-object message");
+        }
+        long messageFingerprint = ByteBuffer.wrap(message, SINGLE_OBJECT_MARKER.length, Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN).getLong();
+        Integer writerVersion = versionsByFingerprint.get(messageFingerprint);
+        if (writerVersion == null) {
+            throw new IllegalArgumentException("Fingerprint " + Long.toHexString(messageFingerprint)
+                    + " is not a version of schema " + schema.getName());
+        }
+        byte[] header = writerVersion == version ? versionHeader : versionHeader(writerVersion);
+        int recordLength = message.length - SINGLE_OBJECT_HEADER_BYTES;
+        byte[] row = new byte[header.length + recordLength];
+        System.arraycopy(header, 0, row, 0, header.length);
+        System.arraycopy(message, SINGLE_OBJECT_HEADER_BYTES, row, header.length, recordLength);
+
+        int end;
+        try {
+            BinaryCursor cursor = new BinaryCursor(ByteBuffer.wrap(row), header.length);
+            cursor.skip(writerVersion == version ? schema : writerSchemas.get(writerVersion));
+            end = cursor.getPosition();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            end = -1;
+        }
+        if (end != row.length) {
+            throw new IllegalArgumentException("Record doesn't match version " + writerVersion + " of schema " + schema.getName());
+        }
+        return row;
+    }
+
+    /**
+     * Converts a row to a message of the Avro single-object encoding of the current schema
+     * version. A current row is copied, a row of an earlier version is resolved first.
+     *
+     * @param row the row bytes, from position zero to the limit
+     * @return the message
+     * @throws IOException if an older row can't be decoded
+     */
+    public byte[] toSingleObject(ByteBuffer row) throws IOException {
+        byte[] upgraded = upgrade(row);
+        ByteBuffer current = upgraded == null ? row : ByteBuffer.wrap(upgraded);
+        int headerLength = headerLength(current);
+        int recordLength = current.limit() - headerLength;
+        byte[] message = new byte[SINGLE_OBJECT_HEADER_BYTES + recordLength];
+        System.arraycopy(singleObjectHeader, 0, message, 0, SINGLE_OBJECT_HEADER_BYTES);
+        current.get(headerLength, message, SINGLE_OBJECT_HEADER_BYTES, recordLength);
+        return message;
+    }
+
+    /**
+     * Decodes a whole row.
+     *
+     * @param row the row bytes, from position zero to the limit
+     * @return the decoded record
+     * @throws IOException if the row can't be decoded
+     */
+    public GenericRecord decode(ByteBuffer row) throws IOException {
+        CodecState state = acquire();
+        GenericRecord record = readerFor(row).read(null, state.binaryDecoder(row, headerLength(row)));
+        release(state);
+        return record;
+    }
+
+    /**
+     * Converts a row straight to its Avro JSON encoding, through a pooled scratch record.
+     *
+     * @param row the row bytes, from position zero to the limit
+     * @return the JSON document
+     * @throws IOException if the row can't be decoded
+     */
+    public String toJson(ByteBuffer row) throws IOException {
+        CodecState state = acquire();
+        GenericRecord record = readerFor(row).read(state.scratchRecord, state.binaryDecoder(row, headerLength(row)));
+        state.scratchRecord = record;
+        JsonEncoder encoder = state.jsonEncoder(-1, schema);
+        datumWriter.write(record, encoder);
+        encoder.flush();
+        String json = state.output.toString(StandardCharsets.UTF_8);
+        release(state);
+        return json;
+    }
+
+    /**
+     * Converts some fields of a row to a JSON object holding only them, in the given order and
+     * encoded like in {@link #toJson}. The fields of a row of the current version are decoded
+     * one by one and the others skipped.
+     *
+     * @param row          the row bytes, from position zero to the limit
+     * @param fieldIndexes the positions of the fields in the schema
+     * @return the JSON document
+     * @throws IOException if a field can't be decoded
+     */
+    public String projectToJson(ByteBuffer row, int[] fieldIndexes) throws IOException {
+        CodecState state = acquire();
+        GenericRecord resolved = rowVersion(row) == version ? null
+                : readerFor(row).read(null, state.binaryDecoder(row, headerLength(row)));
+        StringBuilder json = new StringBuilder().append('{');
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            int fieldIndex = fieldIndexes[i];
+            Object value = resolved != null ? resolved.get(fieldIndex) : readField(state, row, fieldIndex);
+            JsonEncoder encoder = state.jsonEncoder(fieldIndex, fieldSchemas.get(fieldIndex));
+            fieldWriters.get(fieldIndex).write(value, encoder);
+            encoder.flush();
+            json.append(i == 0 ? "\"" : ",\"").append(schema.getFields().get(fieldIndex).name()).append("\":")
+                    .append(state.output.toString(StandardCharsets.UTF_8));
+        }
+        release(state);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Decodes a single field of a row. The fields before it are skipped without being decoded.
+     *
+     * @param row        the row bytes, from position zero to the limit
+     * @param fieldIndex the position of the field in the schema
+     * @return the decoded field value
+     * @throws IOException if the field can't be decoded
+     */
+    public Object decodeField(ByteBuffer row, int fieldIndex) throws IOException {
+        CodecState state = acquire();
+        Object value = readField(state, row, fieldIndex);
+        release(state);
+        return value;
+    }
+
+    /**
+     * Converts a single field of a row to its Avro JSON encoding. The fields before it are
+     * skipped without being decoded.
+     *
+     * @param row        the row bytes, from position zero to the limit
+     * @param fieldIndex the position of the field in the schema
+     * @return the JSON encoded field value
+     * @throws IOException if the field can't be decoded
+     */
+    public String fieldToJson(ByteBuffer row, int fieldIndex) throws IOException {
+        CodecState state = acquire();
+        Object value = readField(state, row, fieldIndex);
+        JsonEncoder encoder = state.jsonEncoder(fieldIndex, fieldSchemas.get(fieldIndex));
+        fieldWriters.get(fieldIndex).write(value, encoder);
+        encoder.flush();
+        String json = state.output.toString(StandardCharsets.UTF_8);
+        release(state);
+        return json;
+    }
+
+    /**
+     * Reads a field of a row. Fields of a row of the current version are read in place, a row of
+     * an earlier version is resolved as a whole since its fields may be laid out differently.
+     */
+    private Object readField(CodecState state, ByteBuffer row, int fieldIndex) throws IOException {
+        int headerLength = headerLength(row);
+        if (rowVersion(row) != version) {
+            return readerFor(row).read(null, state.binaryDecoder(row, headerLength)).get(fieldIndex);
+        }
+        int fieldOffset = new BinaryCursor(row, headerLength).seekField(schema, fieldIndex).getPosition();
+        return fieldReaders.get(fieldIndex).read(null, state.binaryDecoder(row, fieldOffset));
+    }
+
+    /**
+     * Applies a patch made with an earlier version of the schema, by decoding the row with that
+     * version and encoding it back. Only patches replayed from the log take this path.
+     */
+    private byte[] applyEarlierPatch(ByteBuffer row, ByteBuffer patch, int patchVersion) throws IOException {
+        Schema patchSchema = schemaOf(patchVersion);
+        byte[] rowBytes = new byte[row.limit()];
+        row.get(0, rowBytes);
+        int rowHeaderLength = headerLength(row);
+        GenericRecord record = new GenericDatumReader<GenericRecord>(schemaOf(rowVersion(row)), patchSchema)
+                .read(null, DecoderFactory.get().binaryDecoder(rowBytes, rowHeaderLength, rowBytes.length - rowHeaderLength, null));
+
+        int patchHeaderLength = headerLength(patch);
+        BinaryDecoder decoder = DecoderFactory.get()
+                .binaryDecoder(patch.array(), patchHeaderLength, patch.limit() - patchHeaderLength, null);
+        int count = decoder.readInt();
+        for (int i = 0; i < count; i++) {
+            int fieldIndex = decoder.readInt();
+            record.put(fieldIndex, new GenericDatumReader<>(patchSchema.getFields().get(fieldIndex).schema()).read(null, decoder));
+        }
+
+        ByteArrayOutputStream patched = new ByteArrayOutputStream(rowBytes.length);
+        patched.write(versionHeader(patchVersion));
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(patched, null);
+        new GenericDatumWriter<GenericRecord>(patchSchema).write(record, encoder);
+        encoder.flush();
+        return patched.toByteArray();
+    }
+
+    /**
+     * Returns the schema of a version rows may have been written with.
+     */
+    private Schema schemaOf(int writerVersion) throws IOException {
+        Schema writerSchema = writerVersion == version ? schema : writerSchemas.get(writerVersion);
+        if (writerSchema == null) {
+            throw new IOException("Unknown version " + writerVersion + " of schema " + schema.getName());
+        }
+        return writerSchema;
+    }
+
+    /**
+     * Returns the reader of a row: the plain reader for the current version, the resolving
+     * reader of its writer version otherwise.
+     */
+    private DatumReader<GenericRecord> readerFor(ByteBuffer row) throws IOException {
+        int writerVersion = rowVersion(row);
+        if (writerVersion == version) {
+            return datumReader;
+        }
+        DatumReader<GenericRecord> reader = resolvingReaders.get(writerVersion);
+        if (reader == null) {
+            Schema writerSchema = writerSchemas.get(writerVersion);
+            if (writerSchema == null) {
+                throw new IOException("Row written with unknown version " + writerVersion + " of schema " + schema.getName());
+            }
+            reader = resolvingReaders.computeIfAbsent(writerVersion,
+                    key -> new GenericDatumReader<>(writerSchema, schema));
+        }
+        return reader;
+    }
+
+    /**
+     * Returns the length of the version header at the start of a row.
+     */
+    private static int headerLength(ByteBuffer row) {
+        int length = 1;
+        while ((row.get(length - 1) & 0x80) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Builds the header of the single-object messages of a schema.
+     */
+    private static byte[] singleObjectHeader(Schema schema) {
+        return ByteBuffer.allocate(SINGLE_OBJECT_HEADER_BYTES)
+                .put(SINGLE_OBJECT_MARKER)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(SchemaNormalization.parsingFingerprint64(schema))
+                .array();
+    }
+
+    /**
+     * Encodes a schema version as an Avro int, a zigzag varint.
+     */
+    private static byte[] versionHeader(int version) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(5);
+        int zigZag = (version << 1) ^ (version >> 31);
+        while ((zigZag & ~0x7f) != 0) {
+            header.write((zigZag & 0x7f) | 0x80);
+            zigZag >>>= 7;
+        }
+        header.write(zigZag);
+        return header.toByteArray();
+    }
+
+    private CodecState acquire() {
+        CodecState state = statePool.poll();
+        if (state != null) {
+            pooledStates.decrementAndGet();
+        }
+        return state != null ? state : new CodecState();
+    }
+
+    private void release(CodecState state) {
+        if (state.output.size() <= MAX_POOLED_BUFFER_BYTES && state.copyBuffer.length <= MAX_POOLED_BUFFER_BYTES) {
+            if (pooledStates.incrementAndGet() > MAX_POOLED_STATES) {
+                pooledStates.decrementAndGet();
+                return;
+            }
+            state.output.reset();
+            statePool.offer(state);
+        }
+    }
+
+    /**
+     * A row encoded from JSON, with the key read from it.
+     */
+    public static final class EncodedRow {
+
+        private final Object key;
+        private final byte[] row;
+
+        private EncodedRow(Object key, byte[] row) {
+            this.key = key;
+            this.row = row;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public byte[] getRow() {
+            return row;
+        }
+    }
+
+    /**
+     * The mutable decoding and encoding state borrowed by one call at a time. Decoders and
+     * encoders are created on first use and reconfigured afterwards, which skips rebuilding
+     * the JSON grammar of the schema.
+     */
+    private final class CodecState {
+
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+        private final JsonEncoder[] fieldJsonEncoders = new JsonEncoder[fieldSchemas.size()];
+        private final JsonDecoder[] fieldJsonDecoders = new JsonDecoder[fieldSchemas.size()];
+        private BinaryEncoder binaryEncoder;
+        private BinaryDecoder binaryDecoder;
+        private JsonDecoder jsonDecoder;
+        private JsonEncoder recordJsonEncoder;
+        private GenericRecord scratchRecord;
+        private byte[] copyBuffer = new byte[0];
+
+        private byte[] encodeBinary(GenericRecord record) throws IOException {
+            output.reset();
+            output.write(versionHeader, 0, versionHeader.length);
+            binaryEncoder = EncoderFactory.get().binaryEncoder(output, binaryEncoder);
+            datumWriter.write(record, binaryEncoder);
+            binaryEncoder.flush();
+            return output.toByteArray();
+        }
+
+        private JsonDecoder jsonDecoder(String json) throws IOException {
+            if (jsonDecoder == null) {
+                jsonDecoder = DecoderFactory.get().jsonDecoder(schema, json);
+            } else {
+                jsonDecoder.configure(json);
+            }
+            return jsonDecoder;
+        }
+
+        private JsonDecoder jsonDecoder(InputStream json) throws IOException {
+            if (jsonDecoder == null) {
+                jsonDecoder = DecoderFactory.get().jsonDecoder(schema, json);
+            } else {
+                jsonDecoder.configure(json);
+            }
+            return jsonDecoder;
+        }
+
+        /**
+         * Returns the JSON decoder of a field, reading a value from its Avro JSON encoding.
+         */
+        private JsonDecoder fieldJsonDecoder(int fieldIndex, String json) throws IOException {
+            JsonDecoder decoder = fieldJsonDecoders[fieldIndex];
+            if (decoder == null) {
+                decoder = DecoderFactory.get().jsonDecoder(fieldSchemas.get(fieldIndex), json);
+                fieldJsonDecoders[fieldIndex] = decoder;
+            } else {
+                decoder.configure(json);
+            }
+            return decoder;
+        }
+
+        /**
+         * Returns the JSON encoder of the record, for a negative field index, or of a field,
+         * writing to the reset output buffer.
+         */
+        private JsonEncoder jsonEncoder(int fieldIndex, Schema encodedSchema) throws IOException {
+            JsonEncoder encoder = fieldIndex < 0 ? recordJsonEncoder : fieldJsonEncoders[fieldIndex];
+            if (encoder == null) {
+                encoder = EncoderFactory.get().jsonEncoder(encodedSchema, output);
+                if (fieldIndex < 0) {
+                    recordJsonEncoder = encoder;
+                } else {
+                    fieldJsonEncoders[fieldIndex] = encoder;
+                }
+            } else {
+                encoder.configure(output);
+            }
+            output.reset();
+            return encoder;
+        }
+
+        /**
+         * Returns a decoder over the row bytes from an offset to the end of the row. Heap rows
+         * are decoded straight from the slab array, direct rows are copied to a scratch array.
+         */
+        private BinaryDecoder binaryDecoder(ByteBuffer row, int offset) {
+            int length = row.limit() - offset;
+            if (row.hasArray()) {
+                binaryDecoder = DecoderFactory.get()
+                        .binaryDecoder(row.array(), row.arrayOffset() + offset, length, binaryDecoder);
+            } else {
+                if (copyBuffer.length < length) {
+                    copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+                }
+                row.get(offset, copyBuffer, 0, length);
+                binaryDecoder = DecoderFactory.get().binaryDecoder(copyBuffer, 0, length, binaryDecoder);
+            }
+            return binaryDecoder;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+/**
+ * RowSegments holds the rows of a shard that were evicted from memory, in segment files on disk.
+ * <p>
+ * A segment is written once, with its rows sorted by key and each prefixed by its length like in
+ * a {@link RowSlab}, and stays memory-mapped: its pages live in the page cache rather than the
+ * Java heap, and reading a row is a single access to the mapping, at most one disk read. A row
+ * is addressed by a long holding {@link #SPILLED}, the segment number and the offset of the row.
+ * </p>
+ * <p>
+ * Replacing a spilled row only counts its bytes as released. Segments left mostly released are
+ * reported as sparse so the caller can merge their live rows into the next segment it writes and
+ * delete them. Segments are only needed while the process runs, the table is rebuilt from its
+ * snapshot and log on startup, so they are never forced to disk. Writes must be serialized by
+ * the caller.
+ * </p>
+ */
+public class RowSegments {
+
+    /**
+     * The bit set in the address of every spilled row, below the shard of a snapshot location.
+     */
+    public static final long SPILLED = 1L << 55;
+
+    private static final int ROW_HEADER_BYTES = Integer.BYTES;
+    private static final int MAX_SEGMENTS = 1 << 23;
+    private static final double MIN_LIVE_RATIO = 0.5; // Sparser segments are merged
+
+    private final Path directory;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private int segmentCount;
+    private volatile long liveBytes;
+
+    /**
+     * Constructs an empty RowSegments.
+     *
+     * @param directory the directory of the segment files, created when the first one is written
+     */
+    public RowSegments(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param address the address of a row
+     * @return whether the row is held in a segment rather than in a {@link RowSlab}
+     */
+    public static boolean isSpilled(long address) {
+        return (address & SPILLED) != 0;
+    }
+
+    /**
+     * Writes rows as a new segment, in the given order.
+     *
+     * @param rows the rows, each from its position to its limit
+     * @return the address of each row
+     * @throws IOException if the segment can't be written
+     */
+    public long[] write(List<ByteBuffer> rows) throws IOException {
+        if (rows.isEmpty()) {
+            return new long[0];
+        }
+        if (segmentCount == MAX_SEGMENTS) {
+            throw new IllegalStateException("Segment numbers exhausted after " + MAX_SEGMENTS + " segments");
+        }
+        long size = 0;
+        for (ByteBuffer row : rows) {
+            size += ROW_HEADER_BYTES + row.remaining();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment of " + size + " bytes is too large");
+        }
+        int number = segmentCount++;
+        Files.createDirectories(directory);
+        Path file = directory.resolve(String.format("%09d.seg", number));
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // The mapping outlives the channel
+        }
+
+        long[] addresses = new long[rows.size()];
+        int offset = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            ByteBuffer row = rows.get(i);
+            int length = row.remaining();
+            mapped.putInt(offset, length);
+            mapped.put(offset + ROW_HEADER_BYTES, row, row.position(), length);
+            addresses[i] = SPILLED | ((long) number << 32) | offset;
+            offset += ROW_HEADER_BYTES + length;
+        }
+        segments.put(number, new Segment(file, mapped)); // Publishes the written rows
+        liveBytes += size;
+        return addresses;
+    }
+
+    /**
+     * Reads a row.
+     *
+     * @param address the address returned by {@link #write}
+     * @return a buffer over the row bytes, positioned at zero, or null if its segment was deleted.
+     *         It shares the mapping of the segment and must not be written.
+     */
+    public ByteBuffer read(long address) {
+        return read(segments, address);
+    }
+
+    /**
+     * Marks a row as no longer referenced, it is accounted as released bytes of its segment.
+     *
+     * @param address the address of the replaced row
+     */
+    public void release(long address) {
+        Segment segment = segments.get(segmentOf(address));
+        int released = ROW_HEADER_BYTES + segment.mapped.getInt((int) address);
+        segment.liveBytes -= released;
+        liveBytes -= released;
+    }
+
+    /**
+     * Lists the segments whose live rows take less than half of their bytes.
+     *
+     * @param maxLiveBytes the maximum total of live bytes of the listed segments
+     * @return the numbers of the segments, sparsest first
+     */
+    public List<Integer> sparseSegments(long maxLiveBytes) {
+        List<Map.Entry<Integer, Segment>> sparse = new ArrayList<>();
+        for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+            Segment segment = entry.getValue();
+            if (segment.liveBytes < segment.mapped.capacity() * MIN_LIVE_RATIO) {
+                sparse.add(entry);
+            }
+        }
+        sparse.sort(Map.Entry.comparingByValue((first, second) -> Long.compare(first.liveBytes, second.liveBytes)));
+        List<Integer> numbers = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<Integer, Segment> entry : sparse) {
+            total += entry.getValue().liveBytes;
+            if (total > maxLiveBytes) {
+                break;
+            }
+            numbers.add(entry.getKey());
+        }
+        return numbers;
+    }
+
+    /**
+     * @param segment the number of a segment
+     * @return the address of the first row of the segment
+     */
+    public static long firstAddress(int segment) {
+        return SPILLED | ((long) segment << 32);
+    }
+
+    /**
+     * Returns the address of the row following another in the same segment.
+     *
+     * @param address the address of a row
+     * @return the address of the next row, or {@link KeyIndex#NOT_FOUND} at the end of the segment
+     */
+    public long nextAddress(long address) {
+        ByteBuffer mapped = segments.get(segmentOf(address)).mapped;
+        int nextOffset = (int) address + ROW_HEADER_BYTES + mapped.getInt((int) address);
+        return nextOffset < mapped.capacity() ? (address & ~0xFFFFFFFFL) | nextOffset : KeyIndex.NOT_FOUND;
+    }
+
+    /**
+     * Deletes a segment once its live rows have been moved. Readers that already hold one of its
+     * rows, or a frozen reader, keep reading the mapping until they release it.
+     *
+     * @param segment the number of the segment
+     * @throws IOException if the file can't be deleted
+     */
+    public void delete(int segment) throws IOException {
+        Segment deleted = segments.remove(segment);
+        liveBytes -= deleted.liveBytes;
+        Files.deleteIfExists(deleted.file);
+    }
+
+    /**
+     * Returns a reader of the rows held in segments now, it keeps reading them after their
+     * segment is deleted.
+     *
+     * @return the reader, it returns null for rows written after this call
+     */
+    public LongFunction<ByteBuffer> frozenReader() {
+        Map<Integer, Segment> frozen = Map.copyOf(segments);
+        return address -> read(frozen, address);
+    }
+
+    /**
+     * @return the bytes taken by rows of the segments that are still current
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    private static ByteBuffer read(Map<Integer, Segment> segments, long address) {
+        Segment segment = segments.get(segmentOf(address));
+        if (segment == null) {
+            return null;
+        }
+        int rowOffset = (int) address;
+        return segment.mapped.slice(rowOffset + ROW_HEADER_BYTES, segment.mapped.getInt(rowOffset));
+    }
+
+    private static int segmentOf(long address) {
+        return (int) ((address & ~SPILLED) >>> 32);
+    }
+
+    /**
+     * A segment file and its mapping.
+     */
+    private static final class Segment {
+
+        private final Path file;
+        private final MappedByteBuffer mapped;
+        private volatile long liveBytes;
+
+        private Segment(Path file, MappedByteBuffer mapped) {
+            this.file = file;
+            this.mapped = mapped;
+            this.liveBytes = mapped.capacity();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * RowSlab stores the binary rows of a table in large, fixed size byte buffers.
+ * <p>
+ * Rows are appended one after the other, each prefixed by its length. A row is addressed by a
+ * long holding the slab number in the high 32 bits and the offset inside the slab in the low
+ * 32 bits. Rows are never modified once written: replacing a row appends the new version and
+ * the old bytes are only counted as released, so readers can use an address without locking.
+ * </p>
+ * <p>
+ * Slabs are evicted oldest first, once their live rows have been moved elsewhere by the caller.
+ * The slabs in memory are published as an immutable window, replaced whenever a slab is opened
+ * or evicted: a reader of an evicted slab gets null, while a reader holding an earlier window,
+ * such as a snapshot, keeps reading it. The high bit of the length of a row is set when the
+ * row is read, it tells the caller which rows to keep when their slab is evicted.
+ * </p>
+ * <p>
+ * Slabs are either heap buffers or direct buffers, the latter keep row bytes out of the Java
+ * heap entirely. Appends and evictions must be serialized by the caller.
+ * </p>
+ */
+public class RowSlab {
+
+    private static final int ROW_HEADER_BYTES = Integer.BYTES;
+    private static final int REFERENCED = 0x80000000; // Set in the length of a row read since it was written
+    private static final int MAX_SLABS = 1 << 23; // Slab numbers stay below the bit of spilled rows
+
+    private final int slabSize;
+    private final boolean offHeap;
+    private volatile Window window = new Window(0, new ByteBuffer[0]);
+    private int slabCount;
+    private int writeOffset;
+    private volatile long allocatedBytes;
+    private volatile long releasedBytes;
+    private volatile long heldBytes;
+
+    /**
+     * Constructs an empty RowSlab.
+     *
+     * @param slabSize the size in bytes of each slab, rows larger than this get a slab of their own
+     * @param offHeap  whether slabs are allocated outside the Java heap
+     */
+    public RowSlab(int slabSize, boolean offHeap) {
+        this.slabSize = slabSize;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param row    the array holding the row bytes
+     * @param offset the offset of the row in the array
+     * @param length the length of the row
+     * @return the address of the row
+     */
+    public long append(byte[] row, int offset, int length) {
+        return append(ByteBuffer.wrap(row, offset, length));
+    }
+
+    /**
+     * Appends a row held in a buffer, such as a memory-mapped snapshot.
+     *
+     * @param row the row bytes, from its position to its limit
+     * @return the address of the row
+     */
+    public long append(ByteBuffer row) {
+        int length = row.remaining();
+        int required = ROW_HEADER_BYTES + length;
+        ByteBuffer slab = slabFor(required);
+        int rowOffset = writeOffset;
+        slab.putInt(rowOffset, length);
+        slab.put(rowOffset + ROW_HEADER_BYTES, row, row.position(), length);
+        writeOffset += required;
+        allocatedBytes += required;
+        return ((long) (slabCount - 1) << 32) | rowOffset;
+    }
+
+    /**
+     * Reads a row.
+     *
+     * @param address the address returned by {@link #append}
+     * @return a buffer over the row bytes, positioned at zero, or null if its slab was evicted.
+     *         It shares the slab memory and must not be written.
+     */
+    public ByteBuffer read(long address) {
+        return window.read(address);
+    }
+
+    /**
+     * Marks a row as read, so it is kept in memory when its slab is evicted.
+     *
+     * @param address the address of the row
+     */
+    public void markReferenced(long address) {
+        ByteBuffer slab = window.slab(address);
+        int rowOffset = (int) address;
+        if (slab != null) {
+            int header = slab.getInt(rowOffset);
+            if ((header & REFERENCED) == 0) { // Only written once, reads stay reads
+                slab.putInt(rowOffset, header | REFERENCED);
+            }
+        }
+    }
+
+    /**
+     * @param address the address of a row in a slab that is not evicted
+     * @return whether the row was read since it was written
+     */
+    public boolean isReferenced(long address) {
+        return (window.slab(address).getInt((int) address) & REFERENCED) != 0;
+    }
+
+    /**
+     * Marks a row as no longer referenced, it is accounted as released memory.
+     *
+     * @param address the address of the replaced row
+     */
+    public void release(long address) {
+        releasedBytes += ROW_HEADER_BYTES + length(window.slab(address), (int) address);
+    }
+
+    /**
+     * @return the number of the oldest slab in memory if it can be evicted, or -1 if the only
+     *         slab left is the one being written
+     */
+    public int evictableSlab() {
+        Window current = window;
+        return current.slabs.length > 1 ? current.first : -1;
+    }
+
+    /**
+     * @param slab the number of a slab
+     * @return the address of the first row of the slab
+     */
+    public static long firstAddress(int slab) {
+        return (long) slab << 32;
+    }
+
+    /**
+     * Returns the address of the row following another in the same slab. The slab must not be
+     * the one being written.
+     *
+     * @param address the address of a row
+     * @return the address of the next row, or {@link KeyIndex#NOT_FOUND} at the end of the slab
+     */
+    public long nextAddress(long address) {
+        ByteBuffer slab = window.slab(address);
+        int nextOffset = (int) address + ROW_HEADER_BYTES + length(slab, (int) address);
+        if (nextOffset + ROW_HEADER_BYTES > slab.capacity() || slab.getInt(nextOffset) == 0) {
+            return KeyIndex.NOT_FOUND; // Rows are never empty, the rest of the slab is zeroed
+        }
+        return (address & ~0xFFFFFFFFL) | nextOffset;
+    }
+
+    /**
+     * Drops the oldest slab. Every row it holds must have been released.
+     *
+     * @param slab the number returned by {@link #evictableSlab}
+     */
+    public void evict(int slab) {
+        Window current = window;
+        if (slab != current.first || current.slabs.length < 2) {
+            throw new IllegalArgumentException("Slab " + slab + " is not the oldest sealed slab");
+        }
+        long usedBytes = 0;
+        for (long address = firstAddress(slab); address != KeyIndex.NOT_FOUND; address = nextAddress(address)) {
+            usedBytes += ROW_HEADER_BYTES + length(current.slabs[0], (int) address);
+        }
+        window = new Window(slab + 1, Arrays.copyOfRange(current.slabs, 1, current.slabs.length));
+        allocatedBytes -= usedBytes;
+        releasedBytes -= usedBytes;
+        heldBytes -= current.slabs[0].capacity();
+    }
+
+    /**
+     * Returns a reader of the rows held in memory now. It keeps reading them after their slab
+     * is evicted, which keeps the slab from being garbage collected as long as it is referenced.
+     *
+     * @return the reader, it returns null for rows appended after this call
+     */
+    public LongFunction<ByteBuffer> frozenReader() {
+        Window frozen = window;
+        return frozen::read;
+    }
+
+    /**
+     * @return the bytes taken by all rows appended so far and not evicted
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the bytes taken by rows that have since been replaced or moved
+     */
+    public long getReleasedBytes() {
+        return releasedBytes;
+    }
+
+    /**
+     * @return the bytes of the slabs held in memory, written or not
+     */
+    public long getHeldBytes() {
+        return heldBytes;
+    }
+
+    /**
+     * Returns the slab the next row has to be written to, opening a new one when the current
+     * slab can't fit it.
+     */
+    private ByteBuffer slabFor(int required) {
+        Window current = window;
+        int held = current.slabs.length;
+        if (held > 0 && writeOffset + required <= current.slabs[held - 1].capacity()) {
+            return current.slabs[held - 1];
+        }
+        if (slabCount == MAX_SLABS) {
+            throw new IllegalStateException("Slab numbers exhausted after " + MAX_SLABS + " slabs");
+        }
+        ByteBuffer slab = allocate(Math.max(slabSize, required));
+        ByteBuffer[] slabs = Arrays.copyOf(current.slabs, held + 1);
+        slabs[held] = slab;
+        window = new Window(slabCount - held, slabs); // Volatile write publishes the new slab
+        slabCount++;
+        writeOffset = 0;
+        heldBytes += slab.capacity();
+        return slab;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int length(ByteBuffer slab, int rowOffset) {
+        return slab.getInt(rowOffset) & ~REFERENCED;
+    }
+
+    /**
+     * The slabs in memory, the first one being slab number {@code first}.
+     */
+    private static final class Window {
+
+        private final int first;
+        private final ByteBuffer[] slabs;
+
+        private Window(int first, ByteBuffer[] slabs) {
+            this.first = first;
+            this.slabs = slabs;
+        }
+
+        private ByteBuffer slab(long address) {
+            int index = (int) (address >>> 32) - first;
+            return index >= 0 && index < slabs.length ? slabs[index] : null;
+        }
+
+        private ByteBuffer read(long address) {
+            ByteBuffer slab = slab(address);
+            if (slab == null) {
+                return null;
+            }
+            int rowOffset = (int) address;
+            return slab.slice(rowOffset + ROW_HEADER_BYTES, length(slab, rowOffset));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import org.apache.avro.Schema;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SecondaryIndex maps the values of a non-key column to the primary keys of the rows holding them.
+ * <p>
+ * It is a hash index: each value has a concurrent set of primary keys, and the set is dropped
+ * once its last key is removed. Values are compared in a canonical form that depends on the
+ * column type, so a value read from a row and the same value parsed from a request path
+ * match. Null values are not indexed. The {@link RecordTable} keeps it in step with each write.
+ * Writes of different primary keys may run concurrently, the set of a value is updated
+ * atomically with its map entry, and lookups don't lock.
+ * </p>
+ */
+public class SecondaryIndex {
+
+    private final Schema.Field field;
+    private final Schema.Type valueType;
+    private final Map<Object, Set<Object>> keysByValue;
+
+    /**
+     * Constructs an empty SecondaryIndex.
+     *
+     * @param field the indexed field, its type must be {@link #supports supported}
+     */
+    public SecondaryIndex(Schema.Field field) {
+        if (!supports(field.schema())) {
+            throw new IllegalArgumentException("Field '" + field.name() + "' of type " + field.schema().getType()
+                    + " can't be indexed");
+        }
+        this.field = field;
+        this.valueType = valueSchema(field.schema()).getType();
+        this.keysByValue = new ConcurrentHashMap<>();
+    }
+
+    private SecondaryIndex(Schema.Field field, Schema.Type valueType, Map<Object, Set<Object>> keysByValue) {
+        this.field = field;
+        this.valueType = valueType;
+        this.keysByValue = keysByValue;
+    }
+
+    /**
+     * Carries the index over to the same column in a later version of the schema, where it may
+     * have moved. The entries are shared, not copied.
+     *
+     * @param evolvedField the column in the later schema version
+     * @return the index of the column, or null if its values changed type and the index has to
+     *         be built again
+     */
+    public SecondaryIndex forField(Schema.Field evolvedField) {
+        if (!supports(evolvedField.schema()) || valueSchema(evolvedField.schema()).getType() != valueType) {
+            return null;
+        }
+        return new SecondaryIndex(evolvedField, valueType, keysByValue);
+    }
+
+    /**
+     * Tells whether columns of a type can be indexed: primitive types other than bytes, enums,
+     * and unions of null with one of these.
+     *
+     * @param fieldSchema the schema of the column
+     * @return true if the column can have a secondary index
+     */
+    public static boolean supports(Schema fieldSchema) {
+        Schema valueSchema = valueSchema(fieldSchema);
+        return switch (valueSchema.getType()) {
+            case INT, LONG, FLOAT, DOUBLE, BOOLEAN, STRING, ENUM -> true;
+            default -> false;
+        };
+    }
+
+    public Schema.Field getField() {
+        return field;
+    }
+
+    /**
+     * Converts a value read from a row to the canonical form used as index key.
+     *
+     * @param fieldValue the decoded field value
+     * @return the canonical value, or null for a null value
+     */
+    public Object valueOf(Object fieldValue) {
+        if (fieldValue == null) {
+            return null;
+        }
+        return switch (valueType) {
+            case INT, LONG -> ((Number) fieldValue).longValue();
+            case FLOAT, DOUBLE, BOOLEAN -> fieldValue;
+            default -> fieldValue.toString();
+        };
+    }
+
+    /**
+     * Parses a value given as text to the canonical form used as index key.
+     *
+     * @param text the value text
+     * @return the canonical value
+     * @throws NumberFormatException if the column is numeric and the text is not a number
+     */
+    public Object parseValue(String text) {
+        return switch (valueType) {
+            case INT, LONG -> Long.parseLong(text);
+            case FLOAT -> Float.parseFloat(text);
+            case DOUBLE -> Double.parseDouble(text);
+            case BOOLEAN -> Boolean.parseBoolean(text);
+            default -> text;
+        };
+    }
+
+    /**
+     * Adds a row to the index.
+     *
+     * @param value      the canonical value of the row, ignored if null
+     * @param primaryKey the canonical primary key of the row
+     */
+    public void add(Object value, Object primaryKey) {
+        if (value != null) {
+            keysByValue.compute(value, (key, primaryKeys) -> {
+                Set<Object> updated = primaryKeys != null ? primaryKeys : ConcurrentHashMap.newKeySet();
+                updated.add(primaryKey);
+                return updated;
+            });
+        }
+    }
+
+    /**
+     * Removes a row from the index.
+     *
+     * @param value      the canonical value the row was indexed under, ignored if null
+     * @param primaryKey the canonical primary key of the row
+     */
+    public void remove(Object value, Object primaryKey) {
+        if (value != null) {
+            keysByValue.computeIfPresent(value, (key, primaryKeys) -> {
+                primaryKeys.remove(primaryKey);
+                return primaryKeys.isEmpty() ? null : primaryKeys;
+            });
+        }
+    }
+
+    /**
+     * Looks up the rows holding a value.
+     *
+     * @param value the canonical value
+     * @return a copy of the primary keys of the rows, empty if there is none
+     */
+    public List<Object> keysFor(Object value) {
+        Set<Object> primaryKeys = keysByValue.get(value);
+        return primaryKeys == null ? List.of() : List.copyOf(primaryKeys);
+    }
+
+    /**
+     * Returns the branch holding the values of a nullable union, or the schema itself.
+     */
+    private static Schema valueSchema(Schema fieldSchema) {
+        if (fieldSchema.getType() != Schema.Type.UNION) {
+            return fieldSchema;
+        }
+        List<Schema> nonNull = fieldSchema.getTypes().stream()
+                .filter(branch -> branch.getType() != Schema.Type.NULL)
+                .toList();
+        return nonNull.size() == 1 ? nonNull.get(0) : fieldSchema;
+    }
+}
@@ -0,0 +1,84 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * ShardWriters runs the writes of each storage shard on a single thread of its own.
+ * <p>
+ * Shard n of every table is written by thread n, so a shard never has two writers and the
+ * writes of different shards never contend with each other. Each thread takes its mutations
+ * in submission order, which keeps the writes of a key in the order they were submitted.
+ * </p>
+ */
+public class ShardWriters implements AutoCloseable {
+
+    /**
+     * The greatest number of shards, a row location keeps the shard in its top byte.
+     */
+    public static final int MAX_SHARDS = 256;
+
+    private final ExecutorService[] writers;
+
+    /**
+     * Constructs the writer threads.
+     *
+     * @param shards the number of shards, from 1 to {@link #MAX_SHARDS}
+     */
+    public ShardWriters(int shards) {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS + ": " + shards);
+        }
+        this.writers = new ExecutorService[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            String name = "shard-writer-" + shard;
+            writers[shard] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Resolves the configured number of shards.
+     *
+     * @param configured the configured number, zero or less uses one per core
+     * @return the number of shards
+     */
+    public static int shardCount(int configured) {
+        int shards = configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+        return Math.min(shards, MAX_SHARDS);
+    }
+
+    public int getShardCount() {
+        return writers.length;
+    }
+
+    /**
+     * Runs a mutation on the writer thread of a shard, after the mutations submitted before it.
+     *
+     * @param shard    the shard
+     * @param mutation the mutation
+     * @return a future completed with the result of the mutation once it has run
+     */
+    public <T> CompletableFuture<T> submit(int shard, Supplier<T> mutation) {
+        return CompletableFuture.supplyAsync(mutation, writers[shard]);
+    }
+
+    /**
+     * Runs the mutations already submitted, then stops the writer threads.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        for (ExecutorService writer : writers) {
+            writer.shutdown();
+        }
+        for (ExecutorService writer : writers) {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
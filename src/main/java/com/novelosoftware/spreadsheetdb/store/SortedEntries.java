@@ -0,0 +1,84 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+/**
+ * SortedEntries is a copy of the keys of a {@link KeyIndex} and their locations, sorted by key.
+ * <p>
+ * Numeric keys are kept as a primitive array, every other key as its string form.
+ * </p>
+ */
+public final class SortedEntries {
+
+    private final long[] longKeys;
+    private final String[] stringKeys;
+    private final long[] locations;
+
+    private SortedEntries(long[] longKeys, String[] stringKeys, long[] locations) {
+        this.longKeys = longKeys;
+        this.stringKeys = stringKeys;
+        this.locations = locations;
+    }
+
+    /**
+     * @param keys      the numeric keys in ascending order
+     * @param locations the location of each key
+     */
+    public static SortedEntries ofLongKeys(long[] keys, long[] locations) {
+        return new SortedEntries(keys, null, locations);
+    }
+
+    /**
+     * @param keys      the keys in ascending order
+     * @param locations the location of each key
+     */
+    public static SortedEntries ofStringKeys(String[] keys, long[] locations) {
+        return new SortedEntries(null, keys, locations);
+    }
+
+    public int size() {
+        return locations.length;
+    }
+
+    /**
+     * @return true if the keys are numeric and read with {@link #getLongKey}, false if they are
+     *         read with {@link #getStringKey}
+     */
+    public boolean hasLongKeys() {
+        return longKeys != null;
+    }
+
+    public long getLongKey(int index) {
+        return longKeys[index];
+    }
+
+    public String getStringKey(int index) {
+        return stringKeys[index];
+    }
+
+    public long getLocation(int index) {
+        return locations[index];
+    }
+
+    /**
+     * Finds where a key is, or would be, in the sorted keys.
+     *
+     * @param key a key in its canonical form, a Long for numeric keys or a String
+     * @return the index of the first key that is not lower than the given one, or the size if
+     *         every key is lower
+     */
+    public int lowerBound(Object key) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = longKeys != null
+                    ? Long.compare(longKeys[middle], (Long) key)
+                    : stringKeys[middle].compareTo((String) key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,66 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KeyIndex for tables whose key column is not numeric. Keys are compared by their string form,
+ * so an Avro {@code Utf8} read from a record and the String taken from a request path match.
+ * Keys are held in a concurrent skip list, which gives both lookups and lock-free ordered scans.
+ * The string order is only the natural one for STRING and BOOLEAN keys, ranges of keys of the
+ * other types are scanned whole, see {@code InternalSchemaModel#hasNaturallyOrderedKeys}.
+ */
+public class StringKeyIndex implements KeyIndex {
+
+    private final ConcurrentSkipListMap<String, Long> locations = new ConcurrentSkipListMap<>();
+    private final AtomicInteger size = new AtomicInteger(); // The skip list counts its entries one by one
+
+    @Override
+    public long get(Object key) {
+        Long location = locations.get(key.toString());
+        return location == null ? NOT_FOUND : location;
+    }
+
+    @Override
+    public long put(Object key, long location) {
+        Long previous = locations.put(key.toString(), location);
+        if (previous == null) {
+            size.incrementAndGet();
+            return NOT_FOUND;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public Iterator<?> keyRange(Object fromKey, boolean fromInclusive, Object toKey) {
+        NavigableMap<String, Long> range = locations;
+        if (fromKey != null) {
+            range = range.tailMap(fromKey.toString(), fromInclusive);
+        }
+        if (toKey != null) {
+            range = range.headMap(toKey.toString(), false);
+        }
+        return range.keySet().iterator();
+    }
+
+    @Override
+    public SortedEntries sortedEntries() {
+        // Writes are paused, so the map is stable and already in key order
+        String[] keys = new String[size.get()];
+        long[] sortedLocations = new long[keys.length];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : locations.entrySet()) {
+            keys[i] = entry.getKey();
+            sortedLocations[i++] = entry.getValue();
+        }
+        return SortedEntries.ofStringKeys(keys, sortedLocations);
+    }
+}
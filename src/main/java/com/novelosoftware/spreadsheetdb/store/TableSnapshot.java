@@ -0,0 +1,49 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongFunction;
+
+/**
+ * TableSnapshot is a point-in-time view of a {@link RecordTable}: the location of every row
+ * together with the sequence number of the last mutation it includes. Rows are immutable once
+ * written and the snapshot reads them from the slabs and segments held when it was taken, so
+ * the locations stay valid while the snapshot is being written out, even if rows are evicted
+ * or spilled meanwhile.
+ */
+public class TableSnapshot {
+
+    private final long sequence;
+    private final SortedEntries entries;
+    private final LongFunction<ByteBuffer> rows;
+
+    /**
+     * Constructs a TableSnapshot.
+     *
+     * @param sequence the sequence number of the last logged mutation included
+     * @param entries  the keys of the table and the location of their rows
+     * @param rows     reads the row at a location of the entries
+     */
+    public TableSnapshot(long sequence, SortedEntries entries, LongFunction<ByteBuffer> rows) {
+        this.sequence = sequence;
+        this.entries = entries;
+        this.rows = rows;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public SortedEntries getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads a row of the snapshot.
+     *
+     * @param location the location of the row in the entries
+     * @return the Avro binary row
+     */
+    public ByteBuffer readRow(long location) {
+        return rows.apply(location);
+    }
+}
@@ -0,0 +1,21 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+/**
+ * Thrown when a conditional write finds the row at another version than the one expected.
+ */
+public class VersionMismatchException extends RuntimeException {
+
+    private final long version;
+
+    public VersionMismatchException(long version) {
+        super(String.format("Record is at version %016x", version));
+        this.version = version;
+    }
+
+    /**
+     * @return the version the row was found at, see {@link RowCodec#contentVersion}
+     */
+    public long getVersion() {
+        return version;
+    }
+}
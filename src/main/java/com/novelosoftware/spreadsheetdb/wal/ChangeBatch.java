@@ -0,0 +1,34 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import java.util.List;
+
+/**
+ * ChangeBatch is a batch of entries read from the {@link ChangeFeed} or from the log files.
+ */
+public class ChangeBatch {
+
+    private final List<LogEntry> entries;
+    private final long lastSequence;
+
+    /**
+     * Constructs a ChangeBatch.
+     *
+     * @param entries      the entries of the batch, in sequence order
+     * @param lastSequence the sequence number of the last entry read, skipped entries included
+     */
+    public ChangeBatch(List<LogEntry> entries, long lastSequence) {
+        this.entries = entries;
+        this.lastSequence = lastSequence;
+    }
+
+    public List<LogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the sequence number to read the next batch after
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+}
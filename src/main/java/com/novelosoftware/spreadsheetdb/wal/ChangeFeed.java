@@ -0,0 +1,190 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * ChangeFeed keeps the latest durable entries of the write-ahead log in a bounded ring, in
+ * sequence order, for the readers following the changes of the tables.
+ * <p>
+ * The shard logs make their entries durable in their own order, so an entry is only published
+ * once every entry before it is: entries acknowledged ahead of an earlier one wait for it. A
+ * reader that saw sequence n therefore never misses an entry at or below n later on, and can
+ * resume from n. Readers further behind than the ring reaches go to the log files instead.
+ * </p>
+ * <p>
+ * Entries whose batch failed to be written are skipped rather than published, so the entries
+ * after them don't wait forever.
+ * </p>
+ */
+public class ChangeFeed {
+
+    private static final LogEntry SKIPPED = new LogEntry(0, "", new byte[0]); // Marks a gap in waiting
+
+    private final LogEntry[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final TreeMap<Long, LogEntry> waiting = new TreeMap<>(); // Guarded by lock, acknowledged out of order
+    private long lastSequence; // Guarded by lock, every entry up to it is published
+    private long floorSequence; // Guarded by lock, the ring holds the entries after it
+    private boolean started; // Guarded by lock
+
+    /**
+     * Constructs a ChangeFeed.
+     *
+     * @param capacity the number of entries the ring holds
+     */
+    public ChangeFeed(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Change feed capacity must be positive: " + capacity);
+        }
+        this.ring = new LogEntry[capacity];
+    }
+
+    /**
+     * Starts publishing after the entries recovered from the log, which are not in the ring.
+     *
+     * @param recoveredSequence the sequence number of the last recovered entry
+     */
+    void start(long recoveredSequence) {
+        lock.lock();
+        try {
+            lastSequence = recoveredSequence;
+            floorSequence = recoveredSequence;
+            waiting.headMap(recoveredSequence, true).clear();
+            started = true;
+            drainWaiting();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a durable entry, once the entries before it are.
+     *
+     * @param entry the entry
+     */
+    void publish(LogEntry entry) {
+        lock.lock();
+        try {
+            if (started && entry.getSequence() <= lastSequence) {
+                return;
+            }
+            waiting.put(entry.getSequence(), entry);
+            if (started) {
+                drainWaiting();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skips an entry that will never be published, its batch having failed to be written, so
+     * the entries after it are published without it.
+     *
+     * @param sequence the sequence number of the entry
+     */
+    void skip(long sequence) {
+        lock.lock();
+        try {
+            if (started && sequence <= lastSequence) {
+                return;
+            }
+            waiting.putIfAbsent(sequence, SKIPPED); // Acknowledged before its write without durability
+            if (started) {
+                drainWaiting();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainWaiting() {
+        boolean advanced = false;
+        for (LogEntry next = waiting.remove(lastSequence + 1); next != null; next = waiting.remove(lastSequence + 1)) {
+            lastSequence++;
+            ring[(int) (lastSequence % ring.length)] = next == SKIPPED ? null : next;
+            floorSequence = Math.max(floorSequence, lastSequence - ring.length);
+            advanced = true;
+        }
+        if (advanced) {
+            published.signalAll();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last published entry
+     */
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number after which the ring holds every published entry
+     */
+    long getFloorSequence() {
+        lock.lock();
+        try {
+            return floorSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the published entries after a sequence number, waiting for one to be published if
+     * there are none yet.
+     *
+     * @param afterSequence the sequence number of the last entry the reader saw
+     * @param schemaFilter  the schemas whose entries are returned, the others are skipped
+     * @param limit         the greatest number of entries returned
+     * @param waitMs        how long to wait for an entry, zero or less doesn't wait
+     * @return the entries, or null if the ring no longer holds the entries after
+     *         {@code afterSequence}
+     * @throws IllegalArgumentException if {@code afterSequence} is after the last published entry
+     * @throws InterruptedException     if interrupted while waiting
+     */
+    ChangeBatch read(long afterSequence, Predicate<String> schemaFilter, int limit, long waitMs)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMs));
+        List<LogEntry> entries = new ArrayList<>();
+        long scanned = afterSequence;
+        lock.lock();
+        try {
+            if (afterSequence > lastSequence) {
+                throw new IllegalArgumentException("Sequence " + afterSequence + " is after the last change " + lastSequence);
+            }
+            while (true) {
+                if (scanned < floorSequence) {
+                    // Overwritten while waiting, the entries scanned so far are returned as they are
+                    return scanned == afterSequence ? null : new ChangeBatch(entries, scanned);
+                }
+                while (scanned < lastSequence && entries.size() < limit) {
+                    scanned++;
+                    LogEntry entry = ring[(int) (scanned % ring.length)];
+                    if (entry != null && schemaFilter.test(entry.getSchemaName())) {
+                        entries.add(entry);
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (!entries.isEmpty() || remaining <= 0) {
+                    return new ChangeBatch(entries, scanned);
+                }
+                published.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
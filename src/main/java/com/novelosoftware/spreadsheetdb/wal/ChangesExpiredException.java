@@ -0,0 +1,12 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+/**
+ * Thrown when the changes after a sequence number are no longer kept, their log segments
+ * having been deleted once snapshots covered them.
+ */
+public class ChangesExpiredException extends RuntimeException {
+
+    public ChangesExpiredException(long afterSequence, long retainedAfter) {
+        super("Changes after " + afterSequence + " are no longer kept, the oldest kept are after " + retainedAfter);
+    }
+}
@@ -0,0 +1,44 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+/**
+ * DurabilityMode decides when an append to the {@link WriteAheadLog} is acknowledged.
+ */
+public enum DurabilityMode {
+
+    /**
+     * Acknowledged once the batch holding the entry has been written and fsynced.
+     */
+    FSYNC_PER_BATCH("fsync-per-batch"),
+
+    /**
+     * Acknowledged once the entry has been written to the operating system, the log is fsynced
+     * periodically.
+     */
+    INTERVAL("interval"),
+
+    /**
+     * Acknowledged as soon as the entry is queued, the log is never fsynced explicitly.
+     */
+    NONE("none");
+
+    private final String configValue;
+
+    DurabilityMode(String configValue) {
+        this.configValue = configValue;
+    }
+
+    /**
+     * Parses the value of the record.log.durability property.
+     *
+     * @param configValue one of fsync-per-batch, interval or none
+     * @return the matching mode
+     */
+    public static DurabilityMode fromConfigValue(String configValue) {
+        for (DurabilityMode mode : values()) {
+            if (mode.configValue.equalsIgnoreCase(configValue)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown durability mode: " + configValue);
+    }
+}
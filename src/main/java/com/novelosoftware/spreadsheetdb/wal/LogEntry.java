@@ -0,0 +1,55 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+/**
+ * LogEntry is a single mutation read back from the {@link WriteAheadLog}.
+ */
+public class LogEntry {
+
+    private final long sequence;
+    private final String schemaName;
+    private final byte[] payload;
+    private final boolean patch;
+
+    /**
+     * Constructs a LogEntry of an upserted row.
+     *
+     * @param sequence   the sequence number assigned when the entry was appended
+     * @param schemaName the schema of the table the mutation applies to
+     * @param payload    the Avro binary row
+     */
+    public LogEntry(long sequence, String schemaName, byte[] payload) {
+        this(sequence, schemaName, payload, false);
+    }
+
+    /**
+     * Constructs a LogEntry.
+     *
+     * @param sequence   the sequence number assigned when the entry was appended
+     * @param schemaName the schema of the table the mutation applies to
+     * @param payload    the Avro binary row, or the patch to an existing row
+     * @param patch      whether the payload is a patch, see
+     *                   {@link com.novelosoftware.spreadsheetdb.store.RowCodec#encodePatch}
+     */
+    public LogEntry(long sequence, String schemaName, byte[] payload, boolean patch) {
+        this.sequence = sequence;
+        this.schemaName = schemaName;
+        this.payload = payload;
+        this.patch = patch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public boolean isPatch() {
+        return patch;
+    }
+}
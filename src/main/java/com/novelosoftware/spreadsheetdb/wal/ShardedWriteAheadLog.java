@@ -0,0 +1,333 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.ShardWriters;
+
+import jakarta.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * ShardedWriteAheadLog gives every storage shard a {@link WriteAheadLog} of its own, so the
+ * shards don't contend on a single queue, write and fsync.
+ * <p>
+ * The log of shard n lives in the {@code shard-n} directory under the log path. All logs draw
+ * their sequence numbers from one counter, so on recovery their entries are merged back into
+ * a single sequence order. Logs that are no longer written, the unsharded log of earlier
+ * versions in the log path itself or the logs of shards beyond the configured count, are
+ * replayed with the others and deleted once snapshots cover them.
+ * </p>
+ * <p>
+ * Durable entries are published to a {@link ChangeFeed} in sequence order, for the readers
+ * following the changes of the tables. Readers behind the feed read the log files, as long as
+ * snapshots have not deleted the segments they need. The sequence numbers of entries a shard
+ * log failed to write are skipped by the feed, the other shards go on publishing theirs.
+ * </p>
+ */
+@Component
+public class ShardedWriteAheadLog implements MutationLog {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedWriteAheadLog.class);
+
+    private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+
+    private final Path directory;
+    private final long segmentSizeBytes;
+    private final DurabilityMode durabilityMode;
+    private final long fsyncIntervalMs;
+    private final AtomicLong sequences = new AtomicLong();
+    private final WriteAheadLog[] shardLogs;
+    private final List<WriteAheadLog> retiredLogs = new CopyOnWriteArrayList<>(); // Also listed by readers of changes
+    private final ChangeFeed changeFeed;
+    private long retiredLastSequence;
+    private volatile long deletedRetiredSequence; // The retired logs held entries up to it
+
+    /**
+     * Constructs a ShardedWriteAheadLog.
+     *
+     * @param logPath          the directory holding the shard logs
+     * @param segmentSizeBytes the size after which a shard log starts a new segment
+     * @param durability       the durability mode, one of fsync-per-batch, interval or none
+     * @param fsyncIntervalMs  how often the shard logs are fsynced in the interval mode
+     * @param shards           the number of storage shards, zero or less uses one per core
+     * @param changeEntries    the number of durable entries the {@link ChangeFeed} holds
+     */
+    public ShardedWriteAheadLog(
+            @Value("${record.log.path}") String logPath,
+            @Value("${record.log.segment-size-bytes}") long segmentSizeBytes,
+            @Value("${record.log.durability}") String durability,
+            @Value("${record.log.fsync-interval-ms}") long fsyncIntervalMs,
+            @Value("${record.storage.shards}") int shards,
+            @Value("${record.changes.buffer-entries}") int changeEntries) {
+        this.directory = Paths.get(logPath);
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.durabilityMode = DurabilityMode.fromConfigValue(durability);
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.changeFeed = new ChangeFeed(changeEntries);
+        this.shardLogs = new WriteAheadLog[ShardWriters.shardCount(shards)];
+        for (int shard = 0; shard < shardLogs.length; shard++) {
+            shardLogs[shard] = createLog(shardDirectory(shard));
+        }
+    }
+
+    /**
+     * Replays the entries of every log, in sequence order, and opens the shard logs for appends.
+     *
+     * @param afterSequence only entries with a greater sequence number are replayed
+     * @param consumer      receives the replayed entries in sequence order
+     * @return the sequence number of the last entry in the logs
+     * @throws IOException if a segment can't be read or is corrupted before its end
+     */
+    public long recover(long afterSequence, Consumer<LogEntry> consumer) throws IOException {
+        Files.createDirectories(directory);
+        retiredLogs.add(createLog(directory));
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.sorted().toList()) {
+                String name = path.getFileName().toString();
+                String shard = name.startsWith(SHARD_DIRECTORY_PREFIX) ? name.substring(SHARD_DIRECTORY_PREFIX.length()) : "";
+                if (Files.isDirectory(path) && !shard.isEmpty() && shard.chars().allMatch(Character::isDigit)
+                        && Integer.parseInt(shard) >= shardLogs.length) {
+                    retiredLogs.add(createLog(path));
+                }
+            }
+        }
+
+        List<WriteAheadLog> logs = new ArrayList<>(List.of(shardLogs));
+        logs.addAll(retiredLogs);
+        List<WriteAheadLog.LogCursor> cursors = new ArrayList<>();
+        long last = afterSequence;
+        try {
+            for (WriteAheadLog shardLog : logs) {
+                cursors.add(shardLog.readEntries(afterSequence));
+            }
+            merge(cursors, entry -> {
+                consumer.accept(entry);
+                return true;
+            });
+            for (int i = 0; i < cursors.size(); i++) {
+                last = Math.max(last, cursors.get(i).getLastSequence());
+                if (i >= shardLogs.length) {
+                    retiredLastSequence = Math.max(retiredLastSequence, cursors.get(i).getLastSequence());
+                }
+            }
+        } finally {
+            for (WriteAheadLog.LogCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+
+        for (WriteAheadLog shardLog : shardLogs) {
+            shardLog.openForAppends(last);
+        }
+        changeFeed.start(last);
+        log.info("Write-ahead log recovered from {} shard logs and {} retired logs, last sequence {}",
+                shardLogs.length, retiredLogs.size(), last);
+        return last;
+    }
+
+    /**
+     * Queues an upserted row in the log of its shard.
+     */
+    @Override
+    public CompletableFuture<Long> append(int shard, String schemaName, byte[] row) {
+        CompletableFuture<Long> logged = shardLogs[shard % shardLogs.length].append(schemaName, row);
+        logged.thenAccept(sequence -> changeFeed.publish(new LogEntry(sequence, schemaName, row)));
+        return logged;
+    }
+
+    /**
+     * Queues only the patch in the log of its shard, recovery applies it to the restored row.
+     */
+    @Override
+    public CompletableFuture<Long> appendPatch(int shard, String schemaName, byte[] patch, byte[] row) {
+        CompletableFuture<Long> logged = shardLogs[shard % shardLogs.length].appendPatch(schemaName, patch);
+        logged.thenAccept(sequence -> changeFeed.publish(new LogEntry(sequence, schemaName, patch, true)));
+        return logged;
+    }
+
+    /**
+     * Reads the durable entries after a sequence number, from the {@link ChangeFeed} while it
+     * still holds them and from the log files otherwise.
+     *
+     * @param afterSequence the sequence number of the last entry the reader saw
+     * @param schemaFilter  the schemas whose entries are returned, the others are skipped
+     * @param limit         the greatest number of entries returned
+     * @param waitMs        how long to wait for an entry when there are none yet
+     * @return the entries
+     * @throws ChangesExpiredException  if the log files no longer hold the entries
+     * @throws IllegalArgumentException if {@code afterSequence} is after the last durable entry
+     * @throws IOException              if the log files can't be read
+     * @throws InterruptedException     if interrupted while waiting
+     */
+    public ChangeBatch readChanges(long afterSequence, Predicate<String> schemaFilter, int limit, long waitMs)
+            throws IOException, InterruptedException {
+        ChangeBatch batch = changeFeed.read(afterSequence, schemaFilter, limit, waitMs);
+        return batch != null ? batch : readHistory(afterSequence, changeFeed.getFloorSequence(), schemaFilter, limit);
+    }
+
+    /**
+     * @return the sequence number of the last durable entry, the one readers of the changes
+     *         start after when they have not seen any
+     */
+    public long getLastChangeSequence() {
+        return changeFeed.getLastSequence();
+    }
+
+    /**
+     * Reads the entries from the log files up to the oldest one the change feed holds. Every
+     * read merges the logs from the start of the segment holding the entry after
+     * {@code afterSequence}, readers only take this path until they catch up with the feed.
+     */
+    private ChangeBatch readHistory(long afterSequence, long upToSequence, Predicate<String> schemaFilter, int limit)
+            throws IOException {
+        List<WriteAheadLog> logs = new ArrayList<>(List.of(shardLogs));
+        logs.addAll(retiredLogs);
+        long retainedAfter = retainedAfter(logs);
+        if (afterSequence < retainedAfter) {
+            throw new ChangesExpiredException(afterSequence, retainedAfter);
+        }
+        List<LogEntry> entries = new ArrayList<>();
+        long[] scanned = {upToSequence};
+        List<WriteAheadLog.LogCursor> cursors = new ArrayList<>();
+        try {
+            for (WriteAheadLog shardLog : logs) {
+                cursors.add(shardLog.readHistory(afterSequence));
+            }
+            merge(cursors, entry -> {
+                if (entry.getSequence() > upToSequence) {
+                    return false;
+                }
+                if (schemaFilter.test(entry.getSchemaName())) {
+                    entries.add(entry);
+                    if (entries.size() >= limit) {
+                        scanned[0] = entry.getSequence();
+                        return false;
+                    }
+                }
+                return true;
+            });
+        } catch (NoSuchFileException e) {
+            // A snapshot deleted the segments while they were read
+            throw new ChangesExpiredException(afterSequence, retainedAfter(logs));
+        } finally {
+            for (WriteAheadLog.LogCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        return new ChangeBatch(entries, scanned[0]);
+    }
+
+    private long retainedAfter(List<WriteAheadLog> logs) throws IOException {
+        long retainedAfter = deletedRetiredSequence;
+        for (WriteAheadLog shardLog : logs) {
+            retainedAfter = Math.max(retainedAfter, shardLog.getRetainedAfter());
+        }
+        return retainedAfter;
+    }
+
+    /**
+     * @return the sequence number of the last entry appended to any shard log
+     */
+    public long getLastSequence() {
+        return sequences.get();
+    }
+
+    /**
+     * Deletes the segments whose entries are all covered by snapshots, in every log.
+     *
+     * @param sequence the sequence number up to which every mutation is in a snapshot
+     * @return the number of deleted segments
+     * @throws IOException if a segment can't be deleted
+     */
+    public int deleteSegmentsUpTo(long sequence) throws IOException {
+        int deleted = 0;
+        for (WriteAheadLog shardLog : shardLogs) {
+            deleted += shardLog.deleteSegmentsUpTo(sequence);
+        }
+        if (!retiredLogs.isEmpty() && retiredLastSequence <= sequence) {
+            deletedRetiredSequence = retiredLastSequence;
+            for (WriteAheadLog retiredLog : retiredLogs) {
+                deleted += retiredLog.deleteAllSegments();
+            }
+            retiredLogs.clear();
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes out everything queued and closes every shard log.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        for (WriteAheadLog shardLog : shardLogs) {
+            shardLog.close();
+        }
+    }
+
+    /**
+     * Merges the entries of cursors into sequence order, each cursor being in sequence order,
+     * until the consumer returns false.
+     */
+    private static void merge(List<WriteAheadLog.LogCursor> cursors, Predicate<LogEntry> consumer) throws IOException {
+        // Merge the logs on the head entry of each, every log being in sequence order
+        PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparingLong(head -> head.entry.getSequence()));
+        for (WriteAheadLog.LogCursor cursor : cursors) {
+            LogEntry entry = cursor.next();
+            if (entry != null) {
+                heads.add(new Head(entry, cursor));
+            }
+        }
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            if (!consumer.test(head.entry)) {
+                return;
+            }
+            LogEntry entry = head.cursor.next();
+            if (entry != null) {
+                heads.add(new Head(entry, head.cursor));
+            }
+        }
+    }
+
+    private WriteAheadLog createLog(Path logDirectory) {
+        return new WriteAheadLog(logDirectory, segmentSizeBytes, durabilityMode, fsyncIntervalMs, sequences,
+                changeFeed::skip);
+    }
+
+    private Path shardDirectory(int shard) {
+        return directory.resolve(String.format("%s%03d", SHARD_DIRECTORY_PREFIX, shard));
+    }
+
+    /**
+     * The next entry of a log during the merge.
+     */
+    private static final class Head {
+
+        private final LogEntry entry;
+        private final WriteAheadLog.LogCursor cursor;
+
+        private Head(LogEntry entry, WriteAheadLog.LogCursor cursor) {
+            this.entry = entry;
+            this.cursor = cursor;
+        }
+    }
+}
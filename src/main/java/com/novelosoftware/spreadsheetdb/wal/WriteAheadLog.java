@@ -0,0 +1,660 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * WriteAheadLog persists every upserted row in append-only segment files.
+ * <p>
+ * Each entry is stored as its body length, the CRC32C of its body and the body itself, which
+ * holds the sequence number, the entry type, the schema name and the row, tagged with its
+ * schema version, or only the changed fields of the row for a patch. A segment is named after
+ * a sequence number no greater than the one of its first entry and a new one is started once
+ * the current one reaches the configured size.
+ * </p>
+ * <p>
+ * Appends only queue the entry; a single flusher thread writes everything queued since its
+ * last pass as one batch, so concurrent writers share one write and one fsync (group commit).
+ * The {@link DurabilityMode} decides when the future returned by {@link #append} completes.
+ * </p>
+ * <p>
+ * The log must be recovered with {@link #recover} before anything can be appended, which
+ * replays the existing entries and truncates a torn entry left at the end of the last segment.
+ * </p>
+ * <p>
+ * The logs of a {@link ShardedWriteAheadLog} share their sequence numbers, so the entries of
+ * each log are in sequence order and the logs can be merged back into one order on recovery.
+ * </p>
+ */
+public class WriteAheadLog {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String FILE_EXTENSION = ".wal"; // Write-ahead log segment file extension
+    private static final int ENTRY_HEADER_BYTES = Integer.BYTES * 2; // Body length + CRC32C
+    private static final int MIN_BODY_BYTES = Long.BYTES + 1 + Short.BYTES; // Sequence + type + name length
+    private static final byte UNTAGGED_UPSERT = 1; // Row without its schema version, from earlier segments
+    private static final byte UPSERT = 2;
+    private static final byte PATCH = 3; // Changed fields of a row, see RowCodec#encodePatch
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private final Path directory;
+    private final long segmentSizeBytes;
+    private final DurabilityMode durabilityMode;
+    private final long fsyncIntervalNanos;
+    private final AtomicLong sequences;
+    private final LongConsumer failedSequences;
+
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition queued = queueLock.newCondition();
+    private List<PendingEntry> queue = new ArrayList<>(); // Guarded by queueLock
+    private long lastSequence; // Guarded by queueLock
+    private boolean open; // Guarded by queueLock
+    private boolean closing; // Guarded by queueLock
+    private IOException failure; // Guarded by queueLock
+
+    // Only used by the flusher thread once the log is open
+    private FileChannel segment;
+    private long segmentBytes;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    private Thread flusher;
+
+    /**
+     * Constructs a WriteAheadLog.
+     *
+     * @param logPath          the directory holding the log segments
+     * @param segmentSizeBytes the size after which a new segment is started
+     * @param durability       the durability mode, one of fsync-per-batch, interval or none
+     * @param fsyncIntervalMs  how often the log is fsynced in the interval mode
+     */
+    public WriteAheadLog(String logPath, long segmentSizeBytes, String durability, long fsyncIntervalMs) {
+        this(Paths.get(logPath), segmentSizeBytes, DurabilityMode.fromConfigValue(durability), fsyncIntervalMs,
+                new AtomicLong(), sequence -> {
+                });
+    }
+
+    /**
+     * Constructs a WriteAheadLog drawing its sequence numbers from a counter shared with other
+     * logs, and telling which of them it failed to write.
+     */
+    WriteAheadLog(Path directory, long segmentSizeBytes, DurabilityMode durabilityMode, long fsyncIntervalMs,
+                  AtomicLong sequences, LongConsumer failedSequences) {
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.durabilityMode = durabilityMode;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMs);
+        this.sequences = sequences;
+        this.failedSequences = failedSequences;
+    }
+
+    /**
+     * Replays the entries already in the log and opens it for appends.
+     *
+     * @param afterSequence only entries with a greater sequence number are replayed
+     * @param consumer      receives the replayed entries in sequence order
+     * @return the sequence number of the last entry in the log
+     * @throws IOException if a segment can't be read or is corrupted before its end
+     */
+    public long recover(long afterSequence, Consumer<LogEntry> consumer) throws IOException {
+        long last;
+        try (LogCursor cursor = readEntries(afterSequence)) {
+            for (LogEntry entry = cursor.next(); entry != null; entry = cursor.next()) {
+                consumer.accept(entry);
+            }
+            last = Math.max(afterSequence, cursor.getLastSequence());
+        }
+        openForAppends(last);
+        return last;
+    }
+
+    /**
+     * Opens a cursor over the entries already in the log, the first step of recovering it.
+     *
+     * @param afterSequence only entries with a greater sequence number are returned
+     * @return the cursor
+     * @throws IOException if the log directory can't be listed
+     */
+    LogCursor readEntries(long afterSequence) throws IOException {
+        queueLock.lock();
+        try {
+            if (open) {
+                throw new IllegalStateException("Write-ahead log is already open");
+            }
+            Files.createDirectories(directory);
+            return new LogCursor(listSegments(), afterSequence, false);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Opens a cursor over the entries written so far, while the log is open for appends. The
+     * cursor stops at the end of the last segment it lists, at an entry still being written.
+     * Segments whose entries are all at or before {@code afterSequence} are not read.
+     *
+     * @param afterSequence only entries with a greater sequence number are returned
+     * @return the cursor
+     * @throws IOException if the log directory can't be listed
+     */
+    LogCursor readHistory(long afterSequence) throws IOException {
+        List<Path> segments = listSegments();
+        int first = 0;
+        // A segment only holds entries below the first sequence number of the next one
+        while (first + 1 < segments.size() && firstSequenceOf(segments.get(first + 1)) - 1 <= afterSequence) {
+            first++;
+        }
+        return new LogCursor(segments.subList(first, segments.size()), afterSequence, true);
+    }
+
+    /**
+     * @return the sequence number after which the segments hold every entry of the log, the
+     *         entries up to it may have been deleted
+     * @throws IOException if the log directory can't be listed
+     */
+    long getRetainedAfter() throws IOException {
+        List<Path> segments = listSegments();
+        return segments.isEmpty() ? 0 : firstSequenceOf(segments.get(0)) - 1;
+    }
+
+    /**
+     * Opens the log for appends once its entries have been read, the second step of recovering it.
+     *
+     * @param last the greatest sequence number recovered, appends continue after it
+     * @throws IOException if the new segment can't be created
+     */
+    void openForAppends(long last) throws IOException {
+        queueLock.lock();
+        try {
+            if (open) {
+                throw new IllegalStateException("Write-ahead log is already open");
+            }
+            lastSequence = last;
+            sequences.accumulateAndGet(last, Math::max);
+            openSegment(last + 1);
+            open = true;
+            flusher = new Thread(this::runFlusher, "write-ahead-log-flusher-" + directory.getFileName());
+            flusher.setDaemon(true);
+            flusher.start();
+            log.info("Write-ahead log {} recovered, last sequence {}", directory, last);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Queues an upserted row to be written by the next batch.
+     *
+     * @param schemaName the schema of the table the row is written to
+     * @param row        the row
+     * @return a future completed with the sequence number of the entry once it is as durable
+     *         as the log is configured to make it
+     * @throws UncheckedIOException if an earlier write failed and the log rejects appends
+     */
+    public CompletableFuture<Long> append(String schemaName, byte[] row) {
+        return enqueue(UPSERT, schemaName, row);
+    }
+
+    /**
+     * Queues a patch to an existing row to be written by the next batch.
+     *
+     * @param schemaName the schema of the table the row is written to
+     * @param patch      the changed fields, see {@link RowCodec#encodePatch}
+     * @return a future completed with the sequence number of the entry once it is as durable
+     *         as the log is configured to make it
+     * @throws UncheckedIOException if an earlier write failed and the log rejects appends
+     */
+    public CompletableFuture<Long> appendPatch(String schemaName, byte[] patch) {
+        return enqueue(PATCH, schemaName, patch);
+    }
+
+    private CompletableFuture<Long> enqueue(byte type, String schemaName, byte[] payload) {
+        CompletableFuture<Long> acknowledged = new CompletableFuture<>();
+        queueLock.lock();
+        try {
+            if (!open || closing) {
+                throw new IllegalStateException("Write-ahead log is not open");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed, rejecting appends", failure);
+            }
+            long sequence = sequences.incrementAndGet();
+            lastSequence = sequence;
+            queue.add(new PendingEntry(sequence, type, schemaName, payload, acknowledged));
+            queued.signal();
+            if (durabilityMode == DurabilityMode.NONE) {
+                acknowledged.complete(sequence);
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        return acknowledged;
+    }
+
+    /**
+     * @return the sequence number of the last appended entry
+     */
+    public long getLastSequence() {
+        queueLock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments whose entries are all covered by snapshots. The segment being
+     * written is never deleted.
+     *
+     * @param sequence the sequence number up to which every mutation is in a snapshot
+     * @return the number of deleted segments
+     * @throws IOException if a segment can't be deleted
+     */
+    public int deleteSegmentsUpTo(long sequence) throws IOException {
+        List<Path> segments = listSegments();
+        int deleted = 0;
+        // A segment only holds entries below the first sequence number of the next one
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequenceOf(segments.get(i + 1)) - 1 > sequence) {
+                break;
+            }
+            Files.delete(segments.get(i));
+            deleted++;
+        }
+        if (deleted > 0) {
+            forceDirectory();
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes every segment of a log that is no longer appended to, once a snapshot covers all
+     * of its entries.
+     *
+     * @return the number of deleted segments
+     * @throws IOException if a segment can't be deleted
+     */
+    int deleteAllSegments() throws IOException {
+        List<Path> segments = listSegments();
+        for (Path segment : segments) {
+            Files.delete(segment);
+        }
+        if (!segments.isEmpty()) {
+            forceDirectory();
+        }
+        return segments.size();
+    }
+
+    /**
+     * Writes out everything queued, fsyncs and closes the current segment.
+     */
+    public void close() throws InterruptedException {
+        Thread running;
+        queueLock.lock();
+        try {
+            if (!open || closing) {
+                return;
+            }
+            closing = true;
+            queued.signal();
+            running = flusher;
+        } finally {
+            queueLock.unlock();
+        }
+        running.join();
+    }
+
+    /**
+     * Loop of the flusher thread: takes everything queued, writes it as one batch and fsyncs
+     * when the durability mode asks for it, then completes the futures of the batch.
+     */
+    private void runFlusher() {
+        List<PendingEntry> batch = new ArrayList<>();
+        long lastFsync = System.nanoTime();
+        boolean unsynced = false;
+        while (true) {
+            boolean stopping;
+            queueLock.lock();
+            try {
+                while (queue.isEmpty() && !closing) {
+                    if (unsynced && durabilityMode == DurabilityMode.INTERVAL) {
+                        long remaining = fsyncIntervalNanos - (System.nanoTime() - lastFsync);
+                        if (remaining <= 0) {
+                            break; // Time for the periodic fsync
+                        }
+                        queued.awaitNanos(remaining);
+                    } else {
+                        queued.await();
+                    }
+                }
+                List<PendingEntry> drained = queue;
+                queue = batch;
+                batch = drained;
+                stopping = closing && batch.isEmpty();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                queueLock.unlock();
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    unsynced = true;
+                }
+                boolean fsyncDue = durabilityMode == DurabilityMode.FSYNC_PER_BATCH
+                        || (durabilityMode == DurabilityMode.INTERVAL && System.nanoTime() - lastFsync >= fsyncIntervalNanos)
+                        || stopping;
+                if (unsynced && fsyncDue) {
+                    segment.force(false);
+                    lastFsync = System.nanoTime();
+                    unsynced = false;
+                }
+                for (PendingEntry entry : batch) {
+                    entry.acknowledged.complete(entry.sequence);
+                }
+                if (stopping) {
+                    segment.close();
+                    return;
+                }
+            } catch (IOException e) {
+                log.error("Write-ahead log failed, rejecting further appends", e);
+                fail(batch, e);
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops the log after a failed write. The segment may end with a torn entry, so nothing
+     * queued is written after it: the batch being written and every entry still queued fail,
+     * and later appends are rejected.
+     */
+    private void fail(List<PendingEntry> batch, IOException e) {
+        List<PendingEntry> failed = new ArrayList<>(batch);
+        queueLock.lock();
+        try {
+            failure = e;
+            failed.addAll(queue);
+            queue.clear();
+        } finally {
+            queueLock.unlock();
+        }
+        for (PendingEntry entry : failed) {
+            failedSequences.accept(entry.sequence);
+            entry.acknowledged.completeExceptionally(e);
+        }
+        try {
+            segment.close();
+        } catch (IOException closeFailure) {
+            e.addSuppressed(closeFailure);
+        }
+    }
+
+    private void writeBatch(List<PendingEntry> batch) throws IOException {
+        for (PendingEntry entry : batch) {
+            if (segmentBytes >= segmentSizeBytes) {
+                flushWriteBuffer();
+                segment.force(false);
+                segment.close();
+                openSegment(entry.sequence);
+            }
+            encode(entry);
+        }
+        flushWriteBuffer();
+    }
+
+    /**
+     * Serializes an entry into the write buffer, flushing the buffer first when it can't fit it.
+     */
+    private void encode(PendingEntry entry) throws IOException {
+        byte[] name = entry.schemaName.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = MIN_BODY_BYTES + name.length + entry.payload.length;
+        int entryLength = ENTRY_HEADER_BYTES + bodyLength;
+        if (writeBuffer.remaining() < entryLength) {
+            flushWriteBuffer();
+            if (writeBuffer.capacity() < entryLength) {
+                writeBuffer = ByteBuffer.allocateDirect(entryLength);
+            }
+        }
+
+        int start = writeBuffer.position();
+        writeBuffer.putInt(bodyLength);
+        writeBuffer.putInt(0); // CRC placeholder, filled once the body is written
+        int bodyStart = writeBuffer.position();
+        writeBuffer.putLong(entry.sequence)
+                .put(entry.type)
+                .putShort((short) name.length)
+                .put(name)
+                .put(entry.payload);
+
+        ByteBuffer body = writeBuffer.duplicate();
+        body.position(bodyStart).limit(writeBuffer.position());
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        writeBuffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+        segmentBytes += entryLength;
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segment.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstSequence, FILE_EXTENSION));
+        boolean created = Files.notExists(path);
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = segment.size();
+        if (created) {
+            // Before any entry of the segment is acknowledged, its file must survive a crash too
+            forceDirectory();
+        }
+    }
+
+    /**
+     * Fsyncs the log directory, so the creation or deletion of a segment file is durable.
+     */
+    private void forceDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(FILE_EXTENSION))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static long firstSequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - FILE_EXTENSION.length()));
+    }
+
+    /**
+     * Reads the entries of the log one at a time, segment after segment. A torn or corrupted
+     * entry ends the last segment, which is truncated to its last valid entry when recovering;
+     * anywhere else it means the log is damaged.
+     */
+    final class LogCursor implements Closeable {
+
+        private final List<Path> segments;
+        private final long afterSequence;
+        private final boolean history; // Read while appended to, the last segment is left as it is
+        private int segmentIndex = -1;
+        private FileChannel channel;
+        private DataInputStream in;
+        private long size;
+        private long validBytes;
+        private long last;
+
+        private LogCursor(List<Path> segments, long afterSequence, boolean history) {
+            this.segments = segments;
+            this.afterSequence = afterSequence;
+            this.history = history;
+        }
+
+        /**
+         * @return the next entry with a sequence number greater than the one the cursor was
+         *         opened with, or null once the log is exhausted
+         * @throws IOException if a segment can't be read or is corrupted before its end
+         */
+        LogEntry next() throws IOException {
+            while (true) {
+                if (channel == null && !openNextSegment()) {
+                    return null;
+                }
+                if (validBytes >= size) {
+                    closeSegment();
+                    continue;
+                }
+                String damage;
+                try {
+                    int bodyLength = in.readInt();
+                    int crc = in.readInt();
+                    if (bodyLength < MIN_BODY_BYTES || bodyLength > size - validBytes - ENTRY_HEADER_BYTES) {
+                        damage = "invalid entry length " + bodyLength;
+                    } else {
+                        byte[] body = new byte[bodyLength];
+                        in.readFully(body);
+                        CRC32C expected = new CRC32C();
+                        expected.update(body);
+                        if ((int) expected.getValue() == crc) {
+                            LogEntry entry = decode(body);
+                            validBytes += ENTRY_HEADER_BYTES + bodyLength;
+                            last = Math.max(last, entry.getSequence());
+                            if (entry.getSequence() > afterSequence) {
+                                return entry;
+                            }
+                            continue;
+                        }
+                        damage = "checksum mismatch";
+                    }
+                } catch (EOFException e) {
+                    damage = "truncated entry";
+                }
+
+                Path path = segments.get(segmentIndex);
+                if (segmentIndex < segments.size() - 1) {
+                    throw new IOException("Write-ahead log segment " + path + " is corrupted at byte " + validBytes + ": " + damage);
+                }
+                if (history) {
+                    closeSegment();
+                    return null;
+                }
+                log.warn("Truncating write-ahead log segment {} at byte {}: {}", path, validBytes, damage);
+                channel.truncate(validBytes);
+                closeSegment();
+            }
+        }
+
+        /**
+         * @return the greatest sequence number read so far, skipped entries included
+         */
+        long getLastSequence() {
+            return last;
+        }
+
+        private boolean openNextSegment() throws IOException {
+            if (segmentIndex + 1 >= segments.size()) {
+                return false;
+            }
+            segmentIndex++;
+            channel = history ? FileChannel.open(segments.get(segmentIndex), StandardOpenOption.READ)
+                    : FileChannel.open(segments.get(segmentIndex), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            size = channel.size();
+            validBytes = 0;
+            return true;
+        }
+
+        private void closeSegment() throws IOException {
+            channel.close();
+            channel = null;
+            in = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                closeSegment();
+            }
+        }
+    }
+
+    private static LogEntry decode(byte[] body) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        long sequence = buffer.getLong();
+        byte type = buffer.get();
+        if (type != UPSERT && type != UNTAGGED_UPSERT && type != PATCH) {
+            throw new IOException("Unknown write-ahead log entry type " + type);
+        }
+        byte[] name = new byte[buffer.getShort()];
+        buffer.get(name);
+        byte[] payload;
+        if (type == UNTAGGED_UPSERT) {
+            payload = RowCodec.tagUntaggedRow(buffer);
+        } else {
+            payload = new byte[buffer.remaining()];
+            buffer.get(payload);
+        }
+        return new LogEntry(sequence, new String(name, StandardCharsets.UTF_8), payload, type == PATCH);
+    }
+
+    /**
+     * An appended entry waiting for the flusher thread.
+     */
+    private static final class PendingEntry {
+
+        private final long sequence;
+        private final byte type;
+        private final String schemaName;
+        private final byte[] payload;
+        private final CompletableFuture<Long> acknowledged;
+
+        private PendingEntry(long sequence, byte type, String schemaName, byte[] payload,
+                             CompletableFuture<Long> acknowledged) {
+            this.sequence = sequence;
+            this.type = type;
+            this.schemaName = schemaName;
+            this.payload = payload;
+            this.acknowledged = acknowledged;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.novelosoftware.spreadsheetdb.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.service.ReplicationService;
+
+class FollowerReadOnlyFilterTests {
+
+	@Test
+	void followersRejectWritesAndServeReads() throws Exception {
+		FollowerReadOnlyFilter filter = new FollowerReadOnlyFilter(replication("http://leader:8080/"));
+		for (String method : new String[] { "POST", "PUT", "PATCH", "DELETE" }) {
+			MockHttpServletResponse response = new MockHttpServletResponse();
+			MockFilterChain chain = new MockFilterChain();
+			filter.doFilter(new MockHttpServletRequest(method, "/records/people"), response, chain);
+			assertEquals(403, response.getStatus());
+			assertTrue(response.getContentAsString().startsWith("Error: "));
+			assertTrue(response.getContentAsString().contains("http://leader:8080/"));
+			assertNull(chain.getRequest());
+		}
+
+		MockHttpServletRequest read = new MockHttpServletRequest("GET", "/records/people/1");
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(read, new MockHttpServletResponse(), chain);
+		assertEquals(read, chain.getRequest());
+	}
+
+	@Test
+	void leadersServeWrites() throws Exception {
+		FollowerReadOnlyFilter filter = new FollowerReadOnlyFilter(replication(""));
+		MockHttpServletRequest write = new MockHttpServletRequest("POST", "/records/people");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(write, response, chain);
+		assertEquals(200, response.getStatus());
+		assertEquals(write, chain.getRequest());
+	}
+
+	private static ReplicationService replication(String leaderUrl) {
+		return new ReplicationService(null, null, null, null, new RecordMetrics(new SimpleMeterRegistry()), leaderUrl,
+				100, 0, 10, 50, 1000);
+	}
+}
@@ -0,0 +1,190 @@
+package com.novelosoftware.spreadsheetdb.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+
+class SchemaDaoTests {
+
+	private static final Schema PEOPLE = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"}
+			]}""");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void catalogKeepsEveryVersionAcrossRestarts() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema("people", "id", List.of("name"), PEOPLE);
+		Schema withAge = parse("""
+				{"type": "record", "name": "Person", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"},
+					{"name": "age", "type": "int", "default": 0}
+				]}""");
+		schemaDao.saveSchema("people", "id", List.of("name"), withAge);
+		// Saving the same schema again is not a new version
+		schemaDao.saveSchema("people", "id", List.of("name"), withAge);
+		assertEquals(2, schemaDao.getCatalogVersion());
+		assertTrue(Files.exists(directory.resolve("schemas.catalog")));
+		assertFalse(Files.exists(directory.resolve("schemas.catalog.tmp")));
+
+		SchemaDao reopened = new SchemaDao(directory.toString());
+		InternalSchemaModel schemaModel = reopened.loadSchema("people");
+		assertEquals(2, reopened.getCatalogVersion());
+		assertEquals(2, schemaModel.getVersion());
+		assertEquals(withAge, schemaModel.getSchema());
+		assertEquals(PEOPLE, schemaModel.getWriterSchemas().get(1));
+		assertEquals(List.of(1, 2), new ArrayList<>(schemaModel.getWriterSchemas().keySet()));
+		assertEquals(0, schemaModel.getKeyColumnIndex());
+		assertEquals(List.of(1), schemaModel.getIndexedColumnIndexes());
+		assertThrows(SchemaNotFoundException.class, () -> reopened.loadSchema("pets"));
+	}
+
+	@Test
+	void legacySchemaFilesAreImportedOnce() throws Exception {
+		Schema pets = parse("""
+				{"type": "record", "name": "Pet", "fields": [
+					{"name": "name", "type": "string"},
+					{"name": "id", "type": "long"}
+				]}""");
+		// The key column position alone, as the first versions wrote it
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(directory.resolve("pets.avsc.bin").toFile()))) {
+			out.writeInt(1);
+			out.write(SchemaDao.compressSchemaToJson(pets));
+		}
+		// The marker followed by the key column and the indexed column positions
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(directory.resolve("people.avsc.bin").toFile()))) {
+			out.writeInt(-2);
+			out.writeInt(0);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.write(SchemaDao.compressSchemaToJson(PEOPLE));
+		}
+
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		assertEquals(List.of("people", "pets"), schemaDao.listSchemaNames());
+		assertEquals(1, schemaDao.getCatalogVersion());
+		InternalSchemaModel people = schemaDao.loadSchema("people");
+		assertEquals(PEOPLE, people.getSchema());
+		assertEquals(1, people.getVersion());
+		assertEquals(List.of(1), people.getIndexedColumnIndexes());
+		InternalSchemaModel petModel = schemaDao.loadSchema("pets");
+		assertEquals(pets, petModel.getSchema());
+		assertEquals("id", petModel.getKeyField().name());
+		assertEquals(List.of(), petModel.getIndexedColumnIndexes());
+
+		// Listed in the catalog now, so the files aren't imported again
+		assertEquals(1, new SchemaDao(directory.toString()).getCatalogVersion());
+	}
+
+	@Test
+	void replacedCatalogsKeepTheirVersionAndReportTheirChanges() throws Exception {
+		SchemaDao leader = new SchemaDao(directory.resolve("leader").toString());
+		leader.saveSchema("people", "id", PEOPLE);
+		leader.saveSchema("pets", "id", parse("""
+				{"type": "record", "name": "Pet", "fields": [{"name": "id", "type": "long"}]}"""));
+		ByteArrayOutputStream catalog = new ByteArrayOutputStream();
+		leader.streamCatalog(catalog);
+
+		SchemaDao follower = new SchemaDao(directory.resolve("follower").toString());
+		follower.saveSchema("people", "id", PEOPLE);
+		follower.saveSchema("stale", "id", PEOPLE);
+		List<String> changed = new ArrayList<>();
+		follower.addChangeListener(schemaModel -> changed.add(schemaModel.getSchemaName()));
+
+		assertEquals(2, follower.replaceCatalog(new ByteArrayInputStream(catalog.toByteArray())));
+		assertEquals(2, follower.getCatalogVersion());
+		assertEquals(List.of("people", "pets"), follower.listSchemaNames());
+		// The people schema didn't change, only pets is new
+		assertEquals(List.of("pets"), changed);
+
+		SchemaDao reopened = new SchemaDao(directory.resolve("follower").toString());
+		assertEquals(2, reopened.getCatalogVersion());
+		assertEquals(List.of("people", "pets"), reopened.listSchemaNames());
+		assertThrows(IOException.class,
+				() -> follower.replaceCatalog(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8})));
+	}
+
+	@Test
+	void versionsCantChangeTheKeyColumn() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema("people", "id", PEOPLE);
+
+		assertThrows(IllegalArgumentException.class, () -> schemaDao.saveSchema("people", "name", PEOPLE));
+		Schema stringKey = parse("""
+				{"type": "record", "name": "Person", "fields": [
+					{"name": "id", "type": "string"},
+					{"name": "name", "type": "string"}
+				]}""");
+		assertThrows(IllegalArgumentException.class, () -> schemaDao.saveSchema("people", "id", stringKey));
+		assertEquals(1, schemaDao.loadSchema("people").getVersion());
+		assertEquals(1, schemaDao.getCatalogVersion());
+	}
+
+	@Test
+	void versionsMustReadTheRecordsOfEveryEarlierOne() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema("people", "id", PEOPLE);
+		schemaDao.saveSchema("people", "id", parse("""
+				{"type": "record", "name": "Person", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"},
+					{"name": "age", "type": ["null", "int"], "default": null}
+				]}"""));
+
+		// Without a default the new field can't be filled in for the records of version 1
+		Schema withoutDefault = parse("""
+				{"type": "record", "name": "Person", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"},
+					{"name": "age", "type": ["null", "int"], "default": null},
+					{"name": "city", "type": "string"}
+				]}""");
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> schemaDao.saveSchema("people", "id", withoutDefault));
+		assertTrue(e.getMessage().contains("version 1"));
+		// Version 2 wrote ages, which a long can read but a string can't
+		Schema stringAge = parse("""
+				{"type": "record", "name": "Person", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"},
+					{"name": "age", "type": ["null", "string"], "default": null}
+				]}""");
+		e = assertThrows(IllegalArgumentException.class, () -> schemaDao.saveSchema("people", "id", stringAge));
+		assertTrue(e.getMessage().contains("version 2"));
+		assertEquals(2, schemaDao.loadSchema("people").getVersion());
+
+		schemaDao.saveSchema("people", "id", parse("""
+				{"type": "record", "name": "Person", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"},
+					{"name": "age", "type": ["null", "long"], "default": null}
+				]}"""));
+		assertEquals(3, schemaDao.loadSchema("people").getVersion());
+	}
+
+	private static Schema parse(String json) {
+		return new Schema.Parser().parse(json);
+	}
+}
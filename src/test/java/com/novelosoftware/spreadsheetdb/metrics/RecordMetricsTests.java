@@ -0,0 +1,67 @@
+package com.novelosoftware.spreadsheetdb.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dao.SchemaNotFoundException;
+import com.novelosoftware.spreadsheetdb.service.RecordService;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+
+class RecordMetricsTests {
+
+	private static final Schema PEOPLE = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"}
+			]}""");
+
+	@TempDir
+	Path directory;
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final RecordTableFactory tableFactory = new RecordTableFactory(1 << 16, false, 2, MutationLog.NONE);
+
+	@AfterEach
+	void close() throws Exception {
+		tableFactory.close();
+	}
+
+	@Test
+	void recordPathsAreTimedAndTablesGaugedBySchema() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema("people", "id", PEOPLE);
+		RecordMetrics metrics = new RecordMetrics(registry);
+		RecordService recordService = new RecordService(schemaDao, tableFactory, metrics, new ResponseCache(1 << 20));
+
+		recordService.upsert("people", "{\"id\": 1, \"name\": \"one\"}");
+		recordService.upsert("people", "{\"id\": 2, \"name\": \"two\"}");
+		recordService.getRecord("people", "1");
+		recordService.getRecord("people", "1");
+
+		assertEquals(2, registry.get("spreadsheetdb.record.upsert").tag("schema", "people").timer().count());
+		assertEquals(2, registry.get("spreadsheetdb.record.get").tag("schema", "people").timer().count());
+		assertEquals(2.0, registry.get("spreadsheetdb.table.records").tag("schema", "people").gauge().value());
+		assertEquals(1.0, registry.get("spreadsheetdb.record.cache").tag("result", "hit").counter().count());
+
+		// The table is created once, every later lookup is a hit
+		assertEquals(1, registry.get("spreadsheetdb.schema.load").timer().count());
+		assertEquals(1.0, registry.get("spreadsheetdb.schema.cache").tag("result", "miss").counter().count());
+		assertEquals(3.0, registry.get("spreadsheetdb.schema.cache").tag("result", "hit").counter().count());
+
+		// Lookups of unknown schemas create no table
+		assertThrows(SchemaNotFoundException.class, () -> recordService.getRecord("unknown", "1"));
+		assertEquals(1.0, registry.get("spreadsheetdb.schema.cache").tag("result", "miss").counter().count());
+	}
+}
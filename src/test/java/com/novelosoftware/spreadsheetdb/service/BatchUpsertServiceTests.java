@@ -0,0 +1,110 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dto.BatchUpsertResult;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+
+class BatchUpsertServiceTests {
+
+	private static final Schema PEOPLE = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "age", "type": "int"}
+			]}""");
+	private static final int LINES = 12_000; // Twelve chunks, more than are decoded at once
+	private static final int KEYS = 500;
+
+	@TempDir
+	Path directory;
+
+	private RecordTableFactory tableFactory;
+	private RecordService recordService;
+	private BatchUpsertService batchUpsertService;
+
+	@BeforeEach
+	void open() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema("people", "id", PEOPLE);
+		tableFactory = new RecordTableFactory(1 << 16, false, 2, MutationLog.NONE);
+		recordService = new RecordService(schemaDao, tableFactory, new RecordMetrics(new SimpleMeterRegistry()),
+				new ResponseCache(1 << 20));
+		batchUpsertService = new BatchUpsertService(recordService, 4);
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		batchUpsertService.close();
+		tableFactory.close();
+	}
+
+	@Test
+	void laterLinesWinAcrossChunks() throws Exception {
+		StringBuilder body = new StringBuilder();
+		Map<Long, Integer> expectedAges = new HashMap<>();
+		for (int line = 0; line < LINES; line++) {
+			long id = line % KEYS;
+			body.append("{\"id\": ").append(id).append(", \"age\": ").append(line).append("}\n");
+			expectedAges.put(id, line);
+		}
+
+		BatchUpsertResult result = upsert(body.toString());
+
+		assertEquals(LINES, result.getUpserted());
+		assertEquals(0, result.getFailed());
+		RecordTable table = recordService.getTable("people");
+		assertEquals(KEYS, table.size());
+		for (Map.Entry<Long, Integer> expected : expectedAges.entrySet()) {
+			assertEquals(expected.getValue(), table.getCodec().decodeField(table.get(expected.getKey()), 1));
+		}
+	}
+
+	@Test
+	void rejectedLinesAreNumberedAndOnlyTheFirstOnesReported() throws Exception {
+		StringBuilder body = new StringBuilder();
+		int rejected = 0;
+		for (int line = 1; line <= LINES; line++) {
+			if (line % 50 == 0) {
+				body.append("not json\n");
+				rejected++;
+			} else if (line % 50 == 25) {
+				body.append("\n"); // Blank lines count as lines but are neither stored nor rejected
+			} else {
+				body.append("{\"id\": ").append(line).append(", \"age\": 1}\n");
+			}
+		}
+
+		BatchUpsertResult result = upsert(body.toString());
+
+		assertEquals(rejected, result.getFailed());
+		assertEquals(LINES - rejected - LINES / 50, result.getUpserted());
+		assertEquals(100, result.getErrors().size());
+		for (int i = 0; i < result.getErrors().size(); i++) {
+			assertEquals(50L * (i + 1), result.getErrors().get(i).getLine());
+		}
+		assertEquals(result.getUpserted(), recordService.getTable("people").size());
+	}
+
+	private BatchUpsertResult upsert(String body) throws Exception {
+		return batchUpsertService.upsertBatch("people", new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+	}
+}
@@ -0,0 +1,142 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+import com.novelosoftware.spreadsheetdb.wal.LogEntry;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+class RecordServiceTests {
+
+	private static final Schema SCHEMA = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"}
+			]}""");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void upsertsOnVirtualThreadsReturnOnceTheLogAcknowledgesThem() throws Exception {
+		ConcurrentLinkedQueue<CompletableFuture<Long>> pending = new ConcurrentLinkedQueue<>();
+		MutationLog log = (shard, schemaName, row) -> {
+			CompletableFuture<Long> acknowledged = new CompletableFuture<>();
+			pending.add(acknowledged);
+			return acknowledged;
+		};
+		RecordTableFactory tableFactory = new RecordTableFactory(1 << 16, false, 4, log);
+		try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+			RecordService recordService = recordService(tableFactory);
+			List<Future<?>> upserts = new ArrayList<>();
+			for (int id = 0; id < 100; id++) {
+				String json = "{\"id\": " + id + ", \"name\": \"n" + id + "\"}";
+				upserts.add(requests.submit(() -> {
+					recordService.upsert("people", json);
+					return null;
+				}));
+			}
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (pending.size() < 100 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(100, pending.size());
+			// Every row is applied, but no request returns before its log entry is acknowledged
+			assertTrue(recordService.getRecord("people", "99").isPresent());
+			assertTrue(upserts.stream().noneMatch(Future::isDone));
+
+			long sequence = 0;
+			for (CompletableFuture<Long> acknowledged : pending) {
+				acknowledged.complete(++sequence);
+			}
+			for (Future<?> upsert : upserts) {
+				upsert.get(10, TimeUnit.SECONDS);
+			}
+
+			// A failed log write reaches the request as an IOException
+			pending.clear();
+			Future<?> failed = requests.submit(() -> {
+				recordService.upsert("people", "{\"id\": 100, \"name\": \"n100\"}");
+				return null;
+			});
+			while (pending.isEmpty()) {
+				Thread.sleep(10);
+			}
+			assertFalse(failed.isDone());
+			pending.remove().completeExceptionally(new UncheckedIOException(new IOException("Disk full")));
+			ExecutionException e = assertThrows(ExecutionException.class,
+					() -> failed.get(10, TimeUnit.SECONDS));
+			assertInstanceOf(IOException.class, e.getCause());
+		} finally {
+			tableFactory.close();
+		}
+	}
+
+	@Test
+	void concurrentUpsertsAreAllDurableInTheShardedLog() throws Exception {
+		Path logPath = directory.resolve("log");
+		ShardedWriteAheadLog writeAheadLog = new ShardedWriteAheadLog(logPath.toString(), 1 << 16,
+				"fsync-per-batch", 100, 4, 1000);
+		writeAheadLog.recover(0, entry -> { });
+		RecordTableFactory tableFactory = new RecordTableFactory(1 << 16, false, 4, writeAheadLog);
+		try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+			RecordService recordService = recordService(tableFactory);
+			List<Future<?>> upserts = new ArrayList<>();
+			for (int id = 0; id < 1000; id++) {
+				String json = "{\"id\": " + id + ", \"name\": \"n" + id + "\"}";
+				upserts.add(requests.submit(() -> {
+					recordService.upsert("people", json);
+					return null;
+				}));
+			}
+			for (Future<?> upsert : upserts) {
+				upsert.get(30, TimeUnit.SECONDS);
+			}
+			assertEquals(1000L, writeAheadLog.getLastSequence());
+		} finally {
+			tableFactory.close();
+		}
+		writeAheadLog.close();
+
+		List<LogEntry> replayed = new ArrayList<>();
+		ShardedWriteAheadLog reopened = new ShardedWriteAheadLog(logPath.toString(), 1 << 16,
+				"fsync-per-batch", 100, 4, 1000);
+		assertEquals(1000L, reopened.recover(0, replayed::add));
+		reopened.close();
+		assertEquals(1000, replayed.size());
+	}
+
+	private RecordService recordService(RecordTableFactory tableFactory) throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		schemaDao.saveSchema("people", "id", SCHEMA);
+		return new RecordService(schemaDao, tableFactory, new RecordMetrics(new SimpleMeterRegistry()),
+				new ResponseCache(1 << 20));
+	}
+}
@@ -0,0 +1,139 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dao.SnapshotDao;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+import com.novelosoftware.spreadsheetdb.wal.ChangeBatch;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+class ReplicationServiceTests {
+
+	private static final Schema PEOPLE = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "age", "type": "int"}
+			]}""");
+	private static final Schema PETS = new Schema.Parser().parse("""
+			{"type": "record", "name": "Pet", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"}
+			]}""");
+
+	@TempDir
+	Path directory;
+
+	private ShardedWriteAheadLog leaderLog;
+	private RecordTableFactory leaderTables;
+	private RecordTableFactory followerTables;
+
+	@AfterEach
+	void close() throws Exception {
+		if (leaderTables != null) {
+			leaderTables.close();
+		}
+		if (followerTables != null) {
+			followerTables.close();
+		}
+		if (leaderLog != null) {
+			leaderLog.close();
+		}
+	}
+
+	@Test
+	void followerAppliesOnlyTheEntriesAfterEachSnapshot() throws Exception {
+		SchemaDao leaderSchemas = new SchemaDao(directory.resolve("leader").toString());
+		leaderLog = new ShardedWriteAheadLog(directory.resolve("leader-log").toString(), 1 << 20, "none", 100, 2, 1024);
+		leaderLog.recover(0, entry -> {
+		});
+		leaderTables = new RecordTableFactory(1 << 16, false, 2, leaderLog);
+		RecordService leaderRecords = new RecordService(leaderSchemas, leaderTables, metrics(), new ResponseCache(1 << 20));
+		ReplicationService leader = new ReplicationService(leaderRecords, leaderSchemas,
+				new SnapshotDao(directory.resolve("leader").toString()), leaderLog, metrics(), "", 100, 0, 10, 50, 1000);
+
+		leaderSchemas.saveSchema("people", "id", PEOPLE);
+		leaderSchemas.saveSchema("pets", "id", PETS);
+		leaderRecords.upsert("people", "{\"id\": 1, \"age\": 30}");
+		leaderRecords.upsert("pets", "{\"id\": 1, \"name\": \"Rex\"}");
+		ByteArrayOutputStream peopleSnapshot = new ByteArrayOutputStream();
+		leader.writeSnapshot(leader.snapshot("people"), peopleSnapshot);
+		leaderRecords.upsert("pets", "{\"id\": 2, \"name\": \"Tom\"}");
+		ByteArrayOutputStream petsSnapshot = new ByteArrayOutputStream();
+		leader.writeSnapshot(leader.snapshot("pets"), petsSnapshot);
+		leaderRecords.upsert("people", "{\"id\": 2, \"age\": 40}");
+		leaderRecords.upsert("pets", "{\"id\": 1, \"name\": \"Max\"}");
+		ByteArrayOutputStream catalog = new ByteArrayOutputStream();
+		leader.writeCatalog(catalog);
+
+		SchemaDao followerSchemas = new SchemaDao(directory.resolve("follower").toString());
+		followerTables = new RecordTableFactory(1 << 16, false, 2, MutationLog.NONE);
+		RecordService followerRecords = new RecordService(followerSchemas, followerTables, metrics(),
+				new ResponseCache(1 << 20));
+		ReplicationService follower = new ReplicationService(followerRecords, followerSchemas,
+				new SnapshotDao(directory.resolve("follower").toString()), null, metrics(), "http://localhost:1/",
+				100, 0, 10, 50, 1000);
+		assertEquals(leader.getCatalogVersion(), followerSchemas.replaceCatalog(new ByteArrayInputStream(catalog.toByteArray())));
+		assertEquals(List.of("people", "pets"), followerSchemas.listSchemaNames().stream().sorted().toList());
+
+		Map<String, Long> snapshotSequences = new HashMap<>();
+		snapshotSequences.put("people", follower.loadSnapshot("people", new ByteArrayInputStream(peopleSnapshot.toByteArray())));
+		snapshotSequences.put("pets", follower.loadSnapshot("pets", new ByteArrayInputStream(petsSnapshot.toByteArray())));
+		assertEquals(Map.of("people", 2L, "pets", 3L), snapshotSequences);
+		assertFalse(follower.awaitSequence(5));
+
+		ChangeBatch batch = leader.readEntries(2, 100, 0);
+		assertEquals(5L, batch.getLastSequence());
+		assertEquals(3, batch.getEntries().size());
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		ReplicationService.writeEntries(batch, entries);
+		follower.applyEntries(new ByteArrayInputStream(entries.toByteArray()), snapshotSequences, batch.getLastSequence());
+
+		// The entry of Tom is in the snapshot of pets and is skipped, the others are applied once
+		assertEquals(2, followerRecords.getTable("people").getWriteCount());
+		assertEquals(3, followerRecords.getTable("pets").getWriteCount());
+		assertTrue(followerRecords.getRecord("people", "2").orElseThrow().contains("40"));
+		assertTrue(followerRecords.getRecord("pets", "1").orElseThrow().contains("Max"));
+		assertTrue(followerRecords.getRecord("pets", "2").orElseThrow().contains("Tom"));
+
+		assertEquals(5L, follower.getSequence());
+		assertTrue(follower.awaitSequence(5));
+		long start = System.nanoTime();
+		assertFalse(follower.awaitSequence(6));
+		assertTrue(System.nanoTime() - start >= 50_000_000L);
+	}
+
+	@Test
+	void leaderReadsAreImmediate() throws Exception {
+		leaderLog = new ShardedWriteAheadLog(directory.resolve("log").toString(), 1 << 20, "none", 100, 2, 1024);
+		leaderLog.recover(0, entry -> {
+		});
+		ReplicationService leader = new ReplicationService(null, null, null, leaderLog, metrics(), "", 100, 0, 10, 50, 1000);
+		assertFalse(leader.isFollower());
+		assertTrue(leader.awaitSequence(0));
+		assertFalse(leader.awaitSequence(1));
+	}
+
+	private static RecordMetrics metrics() {
+		return new RecordMetrics(new SimpleMeterRegistry());
+	}
+}
@@ -0,0 +1,108 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+import com.novelosoftware.spreadsheetdb.store.RowCodec;
+
+class SchemaMigrationServiceTests {
+
+	private static final Schema FIRST = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"}
+			]}""");
+	private static final Schema SECOND = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "rank", "type": "int", "default": 3},
+				{"name": "name", "type": "string"}
+			]}""");
+
+	@TempDir
+	Path directory;
+
+	private final RecordTableFactory tableFactory = new RecordTableFactory(1 << 16, false, 2, MutationLog.NONE);
+	private final List<SchemaMigrationService> migrations = new ArrayList<>();
+
+	@AfterEach
+	void close() throws Exception {
+		for (SchemaMigrationService migration : migrations) {
+			migration.close();
+		}
+		tableFactory.close();
+	}
+
+	@Test
+	void rowsOfAnEarlierVersionAreResolvedWhenRead() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		RecordService recordService = recordService(schemaDao, 0);
+		recordService.upsert("people", "{\"id\": 1, \"name\": \"one\"}");
+
+		schemaDao.saveSchema("people", "id", SECOND);
+
+		RecordTable table = recordService.getTable("people");
+		assertEquals(2, table.getSchemaModel().getVersion());
+		// Without migration the row keeps its version and is read with the default of the new field
+		assertEquals(1, RowCodec.rowVersion(table.peek(1L)));
+		assertEquals("{\"id\":1,\"rank\":3,\"name\":\"one\"}", recordService.getRecord("people", "1").orElseThrow());
+		recordService.upsert("people", "{\"id\": 2, \"rank\": 5, \"name\": \"two\"}");
+		assertEquals(2, RowCodec.rowVersion(table.peek(2L)));
+	}
+
+	@Test
+	void migrationRewritesEveryRowWithTheLatestVersion() throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.toString());
+		RecordService recordService = recordService(schemaDao, 2);
+		for (int id = 0; id < 7; id++) {
+			recordService.upsert("people", "{\"id\": " + id + ", \"name\": \"n" + id + "\"}");
+		}
+
+		schemaDao.saveSchema("people", "id", SECOND);
+
+		RecordTable table = recordService.getTable("people");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!allUpgraded(table) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(allUpgraded(table));
+		assertEquals("{\"id\":4,\"rank\":3,\"name\":\"n4\"}", recordService.getRecord("people", "4").orElseThrow());
+	}
+
+	private static boolean allUpgraded(RecordTable table) {
+		for (long id = 0; id < 7; id++) {
+			if (RowCodec.rowVersion(table.peek(id)) != 2) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private RecordService recordService(SchemaDao schemaDao, int batchRows) throws Exception {
+		schemaDao.saveSchema("people", "id", FIRST);
+		RecordService recordService = new RecordService(schemaDao, tableFactory,
+				new RecordMetrics(new SimpleMeterRegistry()), new ResponseCache(1 << 20));
+		if (batchRows > 0) {
+			migrations.add(new SchemaMigrationService(recordService, schemaDao, batchRows));
+		}
+		return recordService;
+	}
+}
@@ -0,0 +1,126 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dao.SnapshotDao;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.RecordTable;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+import com.novelosoftware.spreadsheetdb.wal.ShardedWriteAheadLog;
+
+class SnapshotServiceTests {
+
+	private static final Schema PEOPLE = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "age", "type": "int"}
+			]}""");
+
+	@TempDir
+	Path directory;
+
+	private ShardedWriteAheadLog writeAheadLog;
+	private RecordTableFactory tableFactory;
+	private RecordService recordService;
+	private SnapshotService snapshotService;
+
+	@AfterEach
+	void close() throws Exception {
+		stop();
+	}
+
+	@Test
+	void recoveryLoadsTheSnapshotAndReplaysTheLogAfterIt() throws Exception {
+		start();
+		new SchemaDao(directory.resolve("schemas").toString()).saveSchema("people", "id", PEOPLE);
+		for (int id = 0; id < 50; id++) {
+			upsert(id, id);
+		}
+		snapshotService.snapshotAll();
+
+		// The first entry after the snapshot overwrites a row of the snapshot
+		for (int id = 0; id < 10; id++) {
+			upsert(id, 100 + id);
+		}
+		for (int id = 50; id < 60; id++) {
+			upsert(id, id);
+		}
+		long lastSequence = writeAheadLog.getLastSequence();
+		// The segment holding sequence 51 must stay even though it is no longer appended to
+		writeAheadLog.deleteSegmentsUpTo(50);
+		assertTrue(segmentCount() > 1);
+		// Periodic snapshots are off, so stopping doesn't take a last snapshot that would hide the log
+		stop();
+
+		start();
+		RecordTable table = recordService.getTable("people");
+		assertEquals(60, table.size());
+		for (int id = 0; id < 60; id++) {
+			assertEquals(id < 10 ? 100 + id : id, table.getCodec().decodeField(table.get((long) id), 1));
+		}
+		assertEquals(lastSequence, writeAheadLog.getLastSequence());
+	}
+
+	@Test
+	void snapshotsDeleteTheSegmentsTheyCover() throws Exception {
+		start();
+		new SchemaDao(directory.resolve("schemas").toString()).saveSchema("people", "id", PEOPLE);
+		for (int id = 0; id < 50; id++) {
+			upsert(id, id);
+		}
+		long segments = segmentCount();
+		snapshotService.snapshotAll();
+		assertTrue(segmentCount() < segments);
+		stop();
+
+		start();
+		RecordTable table = recordService.getTable("people");
+		assertEquals(50, table.size());
+		assertEquals(49, table.getCodec().decodeField(table.get(49L), 1));
+		assertEquals(50L, writeAheadLog.getLastSequence());
+	}
+
+	private void start() throws Exception {
+		String schemaPath = directory.resolve("schemas").toString();
+		SchemaDao schemaDao = new SchemaDao(schemaPath);
+		writeAheadLog = new ShardedWriteAheadLog(directory.resolve("log").toString(), 256, "fsync-per-batch", 100, 1, 1024);
+		tableFactory = new RecordTableFactory(1 << 16, false, 1, writeAheadLog);
+		recordService = new RecordService(schemaDao, tableFactory, new RecordMetrics(new SimpleMeterRegistry()),
+				new ResponseCache(1 << 20));
+		snapshotService = new SnapshotService(recordService, schemaDao, new SnapshotDao(schemaPath), writeAheadLog, 0, "");
+		snapshotService.recover();
+	}
+
+	private void stop() throws Exception {
+		if (snapshotService != null) {
+			snapshotService.close();
+			tableFactory.close();
+			writeAheadLog.close();
+			snapshotService = null;
+		}
+	}
+
+	private void upsert(int id, int age) throws Exception {
+		recordService.upsert("people", "{\"id\": " + id + ", \"age\": " + age + "}");
+	}
+
+	private long segmentCount() throws Exception {
+		try (Stream<Path> segments = Files.walk(directory.resolve("log"))) {
+			return segments.filter(path -> path.toString().endsWith(".wal")).count();
+		}
+	}
+}
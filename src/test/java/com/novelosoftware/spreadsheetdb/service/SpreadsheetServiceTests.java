@@ -0,0 +1,154 @@
+package com.novelosoftware.spreadsheetdb.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.poi.xssf.streaming.SXSSFRow;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.novelosoftware.spreadsheetdb.dao.SchemaDao;
+import com.novelosoftware.spreadsheetdb.dto.BatchUpsertResult;
+import com.novelosoftware.spreadsheetdb.metrics.RecordMetrics;
+import com.novelosoftware.spreadsheetdb.store.MutationLog;
+import com.novelosoftware.spreadsheetdb.store.RecordTableFactory;
+import com.novelosoftware.spreadsheetdb.store.ResponseCache;
+
+class SpreadsheetServiceTests {
+
+	private static final Schema PEOPLE = new Schema.Parser().parse("""
+			{"type": "record", "name": "Person", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"},
+				{"name": "nickname", "type": ["null", "string"]},
+				{"name": "score", "type": ["null", "double"]},
+				{"name": "active", "type": "boolean"}
+			]}""");
+	// Longs above 2^53 can't be held exactly by a spreadsheet number
+	private static final List<String> ROWS = List.of(
+			"{\"id\": 9007199254740993, \"name\": \"big\", \"nickname\": null, \"score\": null, \"active\": true}",
+			"{\"id\": -9007199254740995, \"name\": \"\", \"nickname\": {\"string\": \"\"}, \"score\": {\"double\": 1.5}, \"active\": false}",
+			"{\"id\": 123456789012, \"name\": \"wide\", \"nickname\": {\"string\": \"Deep\"}, \"score\": {\"double\": 0.1}, \"active\": true}",
+			"{\"id\": 42, \"name\": \"answer\", \"nickname\": null, \"score\": {\"double\": -3.0}, \"active\": false}");
+
+	@TempDir
+	Path directory;
+
+	private final List<RecordTableFactory> tableFactories = new ArrayList<>();
+
+	@AfterEach
+	void close() throws Exception {
+		for (RecordTableFactory tableFactory : tableFactories) {
+			tableFactory.close();
+		}
+	}
+
+	@Test
+	void exportedSheetsImportBackToTheSameRecords() throws Exception {
+		RecordService source = recordService("source");
+		for (String row : ROWS) {
+			source.upsert("people", row);
+		}
+		ByteArrayOutputStream sheet = new ByteArrayOutputStream();
+		new SpreadsheetService(source).exportSheet("people", sheet);
+
+		RecordService target = recordService("target");
+		BatchUpsertResult result = new SpreadsheetService(target)
+				.importSheet("people", new ByteArrayInputStream(sheet.toByteArray()));
+
+		// The header row is skipped rather than rejected
+		assertEquals(ROWS.size(), result.getUpserted());
+		assertEquals(0, result.getFailed());
+		assertEquals(ROWS.size(), target.getTable("people").size());
+		for (String key : List.of("9007199254740993", "-9007199254740995", "123456789012", "42")) {
+			assertEquals(source.getRecord("people", key), target.getRecord("people", key));
+		}
+		// An empty nickname stays an empty string, a missing one stays null
+		assertTrue(target.getRecord("people", "-9007199254740995").orElseThrow().contains("{\"string\":\"\"}"));
+		assertTrue(target.getRecord("people", "42").orElseThrow().contains("\"nickname\":null"));
+	}
+
+	@Test
+	void largeTablesContinueOnFurtherSheets() throws Exception {
+		RecordService source = recordService("source");
+		for (String row : ROWS) {
+			source.upsert("people", row);
+		}
+		ByteArrayOutputStream sheet = new ByteArrayOutputStream();
+		new SpreadsheetService(source, 3).exportSheet("people", sheet);
+
+		try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(sheet.toByteArray()))) {
+			assertEquals(2, workbook.getNumberOfSheets());
+			assertEquals("people (2)", workbook.getSheetName(1));
+			// Every sheet starts with a header row
+			assertEquals("id", workbook.getSheetAt(1).getRow(0).getCell(0).getStringCellValue());
+			assertEquals(1, workbook.getSheetAt(1).getLastRowNum());
+		}
+
+		RecordService target = recordService("target");
+		BatchUpsertResult result = new SpreadsheetService(target)
+				.importSheet("people", new ByteArrayInputStream(sheet.toByteArray()));
+
+		assertEquals(ROWS.size(), result.getUpserted());
+		assertEquals(0, result.getFailed());
+		for (String key : List.of("9007199254740993", "-9007199254740995", "123456789012", "42")) {
+			assertEquals(source.getRecord("people", key), target.getRecord("people", key));
+		}
+	}
+
+	@Test
+	void sheetsWithoutAHeaderRowImportTheirFirstRow() throws Exception {
+		ByteArrayOutputStream sheet = new ByteArrayOutputStream();
+		SXSSFWorkbook workbook = new SXSSFWorkbook(10);
+		try {
+			SXSSFSheet people = workbook.createSheet("people");
+			SXSSFRow first = people.createRow(0);
+			first.createCell(0).setCellValue(7);
+			first.createCell(1).setCellValue("seven");
+			first.createCell(4).setCellValue(true);
+			SXSSFRow second = people.createRow(1);
+			second.createCell(0).setCellValue("not a number");
+			second.createCell(1).setCellValue("eight");
+			second.createCell(4).setCellValue(false);
+			SXSSFRow third = people.createRow(2);
+			third.createCell(0).setCellValue(9);
+			third.createCell(1).setCellValue("nine"); // Without the active cell the row has no value for it
+			workbook.write(sheet);
+		} finally {
+			workbook.dispose();
+			workbook.close();
+		}
+
+		RecordService target = recordService("target");
+		BatchUpsertResult result = new SpreadsheetService(target)
+				.importSheet("people", new ByteArrayInputStream(sheet.toByteArray()));
+
+		assertEquals(1, result.getUpserted());
+		assertEquals(2, result.getFailed());
+		// Rows are numbered like the sheet, starting at one
+		assertEquals(List.of(2L, 3L), result.getErrors().stream().map(BatchUpsertResult.LineError::getLine).toList());
+		assertTrue(target.getRecord("people", "7").orElseThrow().contains("\"seven\""));
+	}
+
+	private RecordService recordService(String name) throws Exception {
+		SchemaDao schemaDao = new SchemaDao(directory.resolve(name).toString());
+		schemaDao.saveSchema("people", "id", PEOPLE);
+		RecordTableFactory tableFactory = new RecordTableFactory(1 << 16, false, 2, MutationLog.NONE);
+		tableFactories.add(tableFactory);
+		return new RecordService(schemaDao, tableFactory, new RecordMetrics(new SimpleMeterRegistry()),
+				new ResponseCache(1 << 20));
+	}
+}
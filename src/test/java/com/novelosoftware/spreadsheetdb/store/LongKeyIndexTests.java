@@ -0,0 +1,83 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LongKeyIndexTests {
+
+	@Test
+	void putAndGetAcrossResizes() {
+		LongKeyIndex index = new LongKeyIndex();
+		for (long key = 0; key < 100_000; key++) {
+			assertEquals(KeyIndex.NOT_FOUND, index.put(key * 31, key));
+		}
+		assertEquals(100_000, index.size());
+		for (long key = 0; key < 100_000; key++) {
+			assertEquals(key, index.get(key * 31));
+		}
+		assertEquals(KeyIndex.NOT_FOUND, index.get(7L));
+	}
+
+	@Test
+	void overwriteReturnsPreviousLocation() {
+		LongKeyIndex index = new LongKeyIndex();
+		index.put(42L, 1L);
+		assertEquals(1L, index.put(42L, 2L));
+		assertEquals(2L, index.get(42L));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	void acceptsBoxedAndStringKeys() {
+		LongKeyIndex index = new LongKeyIndex();
+		index.put(Integer.valueOf(5), 9L);
+		assertEquals(9L, index.get("5"));
+		assertEquals(9L, index.get(Long.valueOf(5)));
+	}
+
+	@Test
+	void keyRangeIsOrderedAndBounded() {
+		LongKeyIndex index = new LongKeyIndex();
+		for (long key : new long[] {50, -3, 7, 20, 7, 100}) {
+			index.put(key, key + 1000);
+		}
+		List<Object> keys = new ArrayList<>();
+		index.keyRange(null, true, null).forEachRemaining(keys::add);
+		assertEquals(List.of(-3L, 7L, 20L, 50L, 100L), keys);
+
+		keys.clear();
+		index.keyRange("7", false, 100L).forEachRemaining(keys::add);
+		assertEquals(List.of(20L, 50L), keys);
+	}
+
+	@Test
+	void keyRangeMergesSortedAndNewlyInsertedKeys() {
+		LongKeyIndex index = new LongKeyIndex();
+		// Enough keys to merge the new ones into the sorted keys, then a few left unmerged
+		for (long key = 10_000; key >= 0; key -= 2) {
+			index.put(key, key);
+		}
+		for (long key = 1; key < 20; key += 2) {
+			index.put(key, key);
+		}
+		List<Object> keys = new ArrayList<>();
+		index.keyRange(null, true, null).forEachRemaining(keys::add);
+		assertEquals(5001 + 10, keys.size());
+		for (int i = 1; i < keys.size(); i++) {
+			assertEquals(true, (Long) keys.get(i - 1) < (Long) keys.get(i));
+		}
+
+		keys.clear();
+		index.keyRange(4L, true, 9L).forEachRemaining(keys::add);
+		assertEquals(List.of(4L, 5L, 6L, 7L, 8L), keys);
+		index.put(-1L, 0L);
+		keys.clear();
+		index.keyRange(null, true, 2L).forEachRemaining(keys::add);
+		assertEquals(List.of(-1L, 0L, 1L), keys);
+	}
+
+}
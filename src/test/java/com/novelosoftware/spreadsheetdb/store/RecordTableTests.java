@@ -0,0 +1,231 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.novelosoftware.spreadsheetdb.model.InternalSchemaModel;
+
+class RecordTableTests {
+
+	private static final Schema SCHEMA = new Schema.Parser().parse("""
+			{"type": "record", "name": "Row", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "city", "type": ["null", "string"]},
+				{"name": "age", "type": "int"}
+			]}""");
+
+	private final ShardWriters writers = new ShardWriters(4);
+
+	@AfterEach
+	void closeWriters() throws Exception {
+		writers.close();
+	}
+
+	@Test
+	void overwriteMovesSecondaryIndexEntries() throws Exception {
+		RecordTable table = new RecordTable(new InternalSchemaModel("people", SCHEMA, 0, List.of(1, 2)),
+				writers, () -> new RowSlab(1 << 16, false), MutationLog.NONE);
+		put(table, "{\"id\": 1, \"city\": {\"string\": \"Lima\"}, \"age\": 30}");
+		put(table, "{\"id\": 2, \"city\": {\"string\": \"Lima\"}, \"age\": 40}");
+		put(table, "{\"id\": 1, \"city\": {\"string\": \"Quito\"}, \"age\": 30}");
+		put(table, "{\"id\": 2, \"city\": null, \"age\": 40}");
+
+		SecondaryIndex city = table.getSecondaryIndex("city");
+		assertEquals(List.of(), city.keysFor(city.parseValue("Lima")));
+		assertEquals(List.of(1L), city.keysFor(city.parseValue("Quito")));
+		SecondaryIndex age = table.getSecondaryIndex("age");
+		assertEquals(List.of(1L), age.keysFor(age.parseValue("30")));
+		assertEquals(List.of(2L), age.keysFor(age.parseValue("40")));
+	}
+
+	@Test
+	void rowsOverTheMemoryBudgetAreSpilledAndStillRead(@TempDir Path spillPath) throws Exception {
+		RecordTable table = new RecordTable(new InternalSchemaModel("people", SCHEMA, 0, List.of(2)),
+				writers, () -> new RowSlab(1 << 10, false), 8 << 10,
+				shard -> new RowSegments(spillPath.resolve("shard-" + shard)), MutationLog.NONE);
+		for (int id = 0; id < 2000; id++) {
+			put(table, "{\"id\": " + id + ", \"city\": null, \"age\": " + id % 50 + "}");
+		}
+		for (int id = 0; id < 2000; id += 2) {
+			put(table, "{\"id\": " + id + ", \"city\": null, \"age\": 99}");
+		}
+
+		assertTrue(table.getSpilledBytes() > 0);
+		for (int id = 0; id < 2000; id++) {
+			Object age = table.getCodec().decodeField(table.get(id), 2);
+			assertEquals(id % 2 == 0 ? 99 : id % 50, age);
+		}
+		SecondaryIndex age = table.getSecondaryIndex("age");
+		assertEquals(1000, age.keysFor(age.parseValue("99")).size());
+		TableSnapshot snapshot = table.snapshot(() -> 0L);
+		for (int i = 0; i < snapshot.getEntries().size(); i++) {
+			Object id = table.getCodec().decodeField(snapshot.readRow(snapshot.getEntries().getLocation(i)), 0);
+			assertEquals(snapshot.getEntries().getLongKey(i), ((Number) id).longValue());
+		}
+	}
+
+	@Test
+	void summariesFollowWritesAndKeyRanges() throws Exception {
+		RecordTable table = new RecordTable(new InternalSchemaModel("people", SCHEMA, 0),
+				writers, () -> new RowSlab(1 << 16, false), MutationLog.NONE);
+		for (int id = 0; id < 100; id++) {
+			put(table, "{\"id\": " + id + ", \"city\": " + (id % 4 == 0 ? "null" : "{\"string\": \"Lima\"}")
+					+ ", \"age\": " + id + "}");
+		}
+		ColumnSummary ages = table.summarize("age", null, null);
+		assertEquals(100, ages.getCount());
+		assertEquals(4950L, ages.getSum());
+		assertEquals(0L, ages.getMin());
+		assertEquals(99L, ages.getMax());
+		assertEquals(75, table.summarize("city", null, null).getCount());
+
+		put(table, "{\"id\": 5, \"city\": null, \"age\": 1005}");
+		ColumnSummary range = table.summarize("age", 5L, 10L);
+		assertEquals(5, range.getCount());
+		assertEquals(1005L + 6 + 7 + 8 + 9, range.getSum());
+		assertEquals(1005L, range.getMax());
+		assertEquals(74, table.summarize("city", null, null).getCount());
+		assertEquals(0, table.summarize("age", 200L, null).getCount());
+	}
+
+	@Test
+	void summariesOfAnotherColumnFollowPromotedRows(@TempDir Path spillPath) throws Exception {
+		RecordTable table = new RecordTable(new InternalSchemaModel("people", SCHEMA, 0),
+				writers, () -> new RowSlab(1 << 10, false), 8 << 10,
+				shard -> new RowSegments(spillPath.resolve("shard-" + shard)), MutationLog.NONE);
+		for (int id = 0; id < 2000; id++) {
+			put(table, "{\"id\": " + id + ", \"city\": {\"string\": \"Lima\"}, \"age\": " + id % 50 + "}");
+		}
+		assertTrue(table.getSpilledBytes() > 0);
+		assertEquals(49000L, table.summarize("age", null, null).getSum());
+
+		// Spilled rows read twice come back to memory, evicting slabs and merging sparse segments
+		for (int round = 0; round < 2; round++) {
+			for (int id = 0; id < 2000; id++) {
+				table.get((long) id);
+			}
+		}
+		for (int shard = 0; shard < writers.getShardCount(); shard++) {
+			writers.submit(shard, () -> null).get();
+		}
+
+		assertEquals(2000, table.summarize("city", null, null).getCount());
+		assertEquals(49000L, table.summarize("age", null, null).getSum());
+	}
+
+	@Test
+	void loggedPatchesCarryKeysOfAnyType() throws Exception {
+		Schema schema = new Schema.Parser().parse("""
+				{"type": "record", "name": "Sensor", "fields": [
+					{"name": "code", "type": ["null", "string"]},
+					{"name": "reading", "type": "double"}
+				]}""");
+		List<byte[]> patches = new CopyOnWriteArrayList<>();
+		MutationLog log = new MutationLog() {
+			@Override
+			public CompletableFuture<Long> append(int shard, String schemaName, byte[] row) {
+				return CompletableFuture.completedFuture(0L);
+			}
+
+			@Override
+			public CompletableFuture<Long> appendPatch(int shard, String schemaName, byte[] patch, byte[] row) {
+				patches.add(patch);
+				return CompletableFuture.completedFuture(0L);
+			}
+		};
+		RecordTable table = new RecordTable(new InternalSchemaModel("sensors", schema, 0), writers,
+				() -> new RowSlab(1 << 16, false), log);
+		put(table, "{\"code\": {\"string\": \"north\"}, \"reading\": 1.5}");
+
+		RowCodec codec = table.getCodec();
+		byte[] patch = codec.encodePatch(Map.of("reading", "2.5"));
+		assertTrue(table.patch("north", patch, version -> true).get().isPresent());
+
+		assertEquals(1, patches.size());
+		assertEquals("north", String.valueOf(codec.decodePatchField(patches.get(0), "code")));
+		assertEquals(2.5, codec.decodePatchField(patches.get(0), "reading"));
+		assertEquals(2.5, codec.decodeField(table.get("north"), 1));
+
+		// Replayed into another table, the logged patch finds its row by the key it carries
+		RecordTable replica = new RecordTable(new InternalSchemaModel("sensors", schema, 0), writers,
+				() -> new RowSlab(1 << 16, false), MutationLog.NONE);
+		put(replica, "{\"code\": {\"string\": \"north\"}, \"reading\": 1.5}");
+		Object key = replica.getSchemaModel().normalizeKey(codec.decodePatchField(patches.get(0), "code"));
+		replica.restorePatch(key, patches.get(0));
+		assertEquals(2.5, replica.getCodec().decodeField(replica.get("north"), 1));
+	}
+
+	@Test
+	void eachShardIsWrittenByItsOwnThreadAndRangesMergeAcrossShards() throws Exception {
+		Map<Integer, Set<String>> writerThreads = new ConcurrentHashMap<>();
+		MutationLog log = (shard, schemaName, row) -> {
+			writerThreads.computeIfAbsent(shard, s -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+			return CompletableFuture.completedFuture(0L);
+		};
+		RecordTable table = new RecordTable(new InternalSchemaModel("people", SCHEMA, 0), writers,
+				() -> new RowSlab(1 << 16, false), log);
+		try (ExecutorService clients = Executors.newFixedThreadPool(8)) {
+			List<Future<?>> puts = new ArrayList<>();
+			for (int client = 0; client < 8; client++) {
+				int first = client;
+				puts.add(clients.submit(() -> {
+					for (int id = first; id < 1000; id += 8) {
+						put(table, "{\"id\": " + id + ", \"city\": null, \"age\": 1}");
+					}
+					return null;
+				}));
+			}
+			for (Future<?> put : puts) {
+				put.get();
+			}
+		}
+
+		assertEquals(Set.of(0, 1, 2, 3), writerThreads.keySet());
+		writerThreads.forEach((shard, threads) -> assertEquals(Set.of("shard-writer-" + shard), threads));
+		assertEquals(1000, table.size());
+		List<Object> keys = new ArrayList<>();
+		table.keyRange(100L, true, 200L).forEachRemaining(keys::add);
+		assertEquals(LongStream.range(100, 200).boxed().toList(), keys);
+
+		// A batch is split by shard, a later row still wins over an earlier one with the same key
+		RowCodec codec = table.getCodec();
+		List<Object> batchKeys = new ArrayList<>();
+		List<byte[]> batchRows = new ArrayList<>();
+		for (int age = 2; age <= 3; age++) {
+			for (int id = 0; id < 8; id++) {
+				RowCodec.EncodedRow encoded = codec.encodeJson("{\"id\": " + id + ", \"city\": null, \"age\": " + age + "}",
+						table.getSchemaModel()::keyOf);
+				batchKeys.add(encoded.getKey());
+				batchRows.add(encoded.getRow());
+			}
+		}
+		table.putAll(batchKeys, batchRows).get();
+		for (int id = 0; id < 8; id++) {
+			assertEquals(3, codec.decodeField(table.get((long) id), 2));
+		}
+	}
+
+	private static void put(RecordTable table, String json) throws Exception {
+		RowCodec.EncodedRow encoded = table.getCodec().encodeJson(json, table.getSchemaModel()::keyOf);
+		table.put(encoded.getKey(), encoded.getRow()).get();
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ResponseCacheTests {
+
+	@Test
+	void entriesAreOnlyServedForTheirVersion() {
+		ResponseCache cache = new ResponseCache(1 << 20);
+		byte[] json = "{\"id\": 1}".getBytes();
+		cache.put("people", 1L, 7L, json);
+		assertArrayEquals(json, cache.get("people", 1L, 7L));
+		assertNull(cache.get("people", 1L, 8L));
+		assertNull(cache.get("pets", 1L, 7L));
+
+		cache.put("people", 1L, 8L, "{\"id\": 1, \"name\": \"Ada\"}".getBytes());
+		assertNull(cache.get("people", 1L, 7L));
+		assertNotNull(cache.get("people", 1L, 8L));
+	}
+
+	@Test
+	void evictionKeepsReadEntriesWithinTheBudget() {
+		ResponseCache cache = new ResponseCache(64 << 10);
+		byte[] json = new byte[1000];
+		cache.put("people", 0L, 1L, json);
+		for (long key = 1; key < 1000; key++) {
+			assertNotNull(cache.get("people", 0L, 1L)); // Read between every insert, so always kept
+			cache.put("people", key, 1L, json);
+		}
+		assertTrue(cache.getBytes() <= 64 << 10);
+		assertNotNull(cache.get("people", 0L, 1L));
+		assertNull(cache.get("people", 1L, 1L));
+	}
+}
@@ -0,0 +1,251 @@
+package com.novelosoftware.spreadsheetdb.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.message.BinaryMessageDecoder;
+import org.apache.avro.message.BinaryMessageEncoder;
+import org.junit.jupiter.api.Test;
+
+class RowCodecTests {
+
+	private static final Schema SCHEMA = new Schema.Parser().parse("""
+			{"type": "record", "name": "Row", "fields": [
+				{"name": "id", "type": "long"},
+				{"name": "name", "type": "string"},
+				{"name": "note", "type": ["null", "string"]},
+				{"name": "tags", "type": {"type": "array", "items": "string"}},
+				{"name": "scores", "type": {"type": "map", "values": "double"}},
+				{"name": "active", "type": "boolean"},
+				{"name": "price", "type": "double"}
+			]}""");
+
+	@Test
+	void decodeFieldSkipsPrecedingFields() throws Exception {
+		GenericRecord record = new GenericData.Record(SCHEMA);
+		record.put("id", 7L);
+		record.put("name", "seven");
+		record.put("note", "a note");
+		record.put("tags", List.of("a", "bc"));
+		record.put("scores", Map.of("x", 1.5));
+		record.put("active", true);
+		record.put("price", 12.25);
+
+		RowCodec codec = new RowCodec(SCHEMA);
+		byte[] row = codec.encode(record);
+
+		for (ByteBuffer buffer : List.of(ByteBuffer.wrap(row), ByteBuffer.allocateDirect(row.length).put(row).flip())) {
+			assertEquals(7L, codec.decodeField(buffer, 0));
+			assertEquals("seven", codec.decodeField(buffer, 1).toString());
+			assertEquals(true, codec.decodeField(buffer, 5));
+			assertEquals(12.25, codec.decodeField(buffer, 6));
+			assertEquals("a note", codec.decode(buffer).get("note").toString());
+		}
+	}
+
+	@Test
+	void pooledStateDoesNotLeakBetweenRecords() throws Exception {
+		RowCodec codec = new RowCodec(SCHEMA);
+		String first = "{\"id\": 1, \"name\": \"first\", \"note\": {\"string\": \"kept\"}, \"tags\": [\"a\", \"b\"], "
+				+ "\"scores\": {\"x\": 1.0}, \"active\": true, \"price\": 1.5}";
+		String second = "{\"id\": 2, \"name\": \"second\", \"note\": null, \"tags\": [], "
+				+ "\"scores\": {}, \"active\": false, \"price\": 2.5}";
+
+		RowCodec.EncodedRow firstRow = codec.encodeJson(first, record -> ((Number) record.get(0)).longValue());
+		RowCodec.EncodedRow secondRow = codec.encodeJson(second, record -> ((Number) record.get(0)).longValue());
+
+		assertEquals(1L, firstRow.getKey());
+		assertEquals(2L, secondRow.getKey());
+		assertEquals(codec.toJson(ByteBuffer.wrap(firstRow.getRow())), codec.toJson(ByteBuffer.wrap(codec.encode(codec.decodeJson(first)))));
+		GenericRecord decoded = codec.decode(ByteBuffer.wrap(secondRow.getRow()));
+		assertEquals("second", decoded.get("name").toString());
+		assertEquals(null, decoded.get("note"));
+		assertEquals(0, ((List<?>) decoded.get("tags")).size());
+		assertEquals("\"second\"", codec.fieldToJson(ByteBuffer.wrap(secondRow.getRow()), 1));
+	}
+
+	@Test
+	void rowsOfEarlierVersionsAreResolvedWhenRead() throws Exception {
+		Schema first = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"}
+				]}""");
+		Schema second = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "rank", "type": "int", "default": 3},
+					{"name": "name", "type": "string"}
+				]}""");
+		RowCodec firstCodec = new RowCodec(first);
+		RowCodec secondCodec = new RowCodec(second, 2, Map.of(1, first, 2, second));
+
+		GenericRecord record = new GenericData.Record(first);
+		record.put("id", 5L);
+		record.put("name", "five");
+		ByteBuffer row = ByteBuffer.wrap(firstCodec.encode(record));
+
+		assertEquals(1, RowCodec.rowVersion(row));
+		assertEquals(3, secondCodec.decodeField(row, 1));
+		assertEquals("five", secondCodec.decodeField(row, 2).toString());
+		assertEquals("{\"id\":5,\"rank\":3,\"name\":\"five\"}", secondCodec.toJson(row));
+
+		ByteBuffer upgraded = ByteBuffer.wrap(secondCodec.upgrade(row));
+		assertEquals(2, RowCodec.rowVersion(upgraded));
+		assertEquals(null, secondCodec.upgrade(upgraded));
+		assertEquals("five", secondCodec.decodeField(upgraded, 2).toString());
+	}
+
+	@Test
+	void singleObjectMessagesConvertToRowsOfTheirVersion() throws Exception {
+		Schema first = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"}
+				]}""");
+		Schema second = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "rank", "type": "int", "default": 3},
+					{"name": "name", "type": "string"}
+				]}""");
+		RowCodec codec = new RowCodec(second, 2, Map.of(1, first, 2, second));
+		GenericRecord record = new GenericData.Record(first);
+		record.put("id", 5L);
+		record.put("name", "five");
+		ByteBuffer encoded = new BinaryMessageEncoder<GenericRecord>(GenericData.get(), first).encode(record);
+		byte[] message = new byte[encoded.remaining()];
+		encoded.get(message);
+
+		ByteBuffer row = ByteBuffer.wrap(codec.rowFromSingleObject(message));
+		assertEquals(1, RowCodec.rowVersion(row));
+		assertEquals(3, codec.decodeField(row, 1));
+
+		GenericRecord read = new BinaryMessageDecoder<GenericRecord>(GenericData.get(), second).decode(codec.toSingleObject(row));
+		assertEquals(5L, read.get("id"));
+		assertEquals(3, read.get("rank"));
+		assertEquals("five", read.get("name").toString());
+
+		byte[] truncated = Arrays.copyOf(message, message.length - 1);
+		assertThrows(IllegalArgumentException.class, () -> codec.rowFromSingleObject(truncated));
+		message[2]++;
+		assertThrows(IllegalArgumentException.class, () -> codec.rowFromSingleObject(message));
+	}
+
+	@Test
+	void singleObjectMessagesWithInvalidLengthsOrCountsAreRejected() throws Exception {
+		Schema schema = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "tags", "type": {"type": "array", "items": "string"}},
+					{"name": "gaps", "type": {"type": "array", "items": "null"}}
+				]}""");
+		RowCodec codec = new RowCodec(schema);
+
+		// One string element of length -1
+		assertThrows(IllegalArgumentException.class, () -> codec.rowFromSingleObject(message(schema, 1, -1, 0, 0)));
+		// Far more string elements than bytes, each of length -1
+		assertThrows(IllegalArgumentException.class,
+				() -> codec.rowFromSingleObject(message(schema, 1L << 62, -1, 0, 0)));
+		// Far more null elements than bytes, nulls take none
+		assertThrows(IllegalArgumentException.class, () -> codec.rowFromSingleObject(message(schema, 0, 1L << 62, 0)));
+		// A block of negative byte size
+		assertThrows(IllegalArgumentException.class, () -> codec.rowFromSingleObject(message(schema, -1, -5, 0, 0)));
+	}
+
+	@Test
+	void contentVersionFollowsTheRowAndTheSchema() throws Exception {
+		RowCodec codec = new RowCodec(SCHEMA);
+		String json = "{\"id\": 1, \"name\": \"first\", \"note\": null, \"tags\": [], "
+				+ "\"scores\": {}, \"active\": true, \"price\": 1.5}";
+		byte[] row = codec.encode(codec.decodeJson(json));
+		byte[] changed = codec.encode(codec.decodeJson(json.replace("1.5", "2.5")));
+
+		long version = codec.contentVersion(ByteBuffer.wrap(row));
+		ByteBuffer direct = ByteBuffer.allocateDirect(row.length).put(row).flip();
+		assertEquals(version, codec.contentVersion(direct));
+		assertEquals(version, new RowCodec(SCHEMA).contentVersion(ByteBuffer.wrap(row.clone())));
+		assertNotEquals(version, codec.contentVersion(ByteBuffer.wrap(changed)));
+		Schema evolved = new Schema.Parser().parse(SCHEMA.toString()
+				.replace("{\"name\":\"price\"", "{\"name\":\"rank\",\"type\":\"int\",\"default\":3},{\"name\":\"price\""));
+		assertNotEquals(version, new RowCodec(evolved, 2, Map.of(1, SCHEMA, 2, evolved)).contentVersion(ByteBuffer.wrap(row)));
+	}
+
+	@Test
+	void patchesOnlyReplaceTheirFields() throws Exception {
+		RowCodec codec = new RowCodec(SCHEMA);
+		String json = "{\"id\": 1, \"name\": \"first\", \"note\": null, \"tags\": [\"a\"], "
+				+ "\"scores\": {\"x\": 1.0}, \"active\": true, \"price\": 1.5}";
+		ByteBuffer row = ByteBuffer.wrap(codec.encode(codec.decodeJson(json)));
+
+		byte[] patch = codec.encodePatch(Map.of("price", "9.75", "id", "1", "note", "{\"string\": \"added\"}"));
+		assertEquals(1L, codec.decodePatchField(patch, "id"));
+		assertEquals(null, codec.decodePatchField(patch, "name"));
+		byte[] expected = codec.encode(codec.decodeJson(json
+				.replace("\"note\": null", "\"note\": {\"string\": \"added\"}").replace("1.5", "9.75")));
+		assertEquals(codec.toJson(ByteBuffer.wrap(expected)), codec.toJson(ByteBuffer.wrap(codec.applyPatch(row, patch))));
+
+		assertThrows(IllegalArgumentException.class, () -> codec.encodePatch(Map.of()));
+		assertThrows(IllegalArgumentException.class, () -> codec.encodePatch(Map.of("missing", "1")));
+		assertThrows(IllegalArgumentException.class, () -> codec.encodePatch(Map.of("price", "\"high\"")));
+	}
+
+	@Test
+	void patchesOfEarlierVersionsKeepTheirVersion() throws Exception {
+		Schema first = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "name", "type": "string"}
+				]}""");
+		Schema second = new Schema.Parser().parse("""
+				{"type": "record", "name": "Row", "fields": [
+					{"name": "id", "type": "long"},
+					{"name": "rank", "type": "int", "default": 3},
+					{"name": "name", "type": "string"}
+				]}""");
+		RowCodec firstCodec = new RowCodec(first);
+		RowCodec secondCodec = new RowCodec(second, 2, Map.of(1, first, 2, second));
+		GenericRecord record = new GenericData.Record(first);
+		record.put("id", 5L);
+		record.put("name", "five");
+		ByteBuffer row = ByteBuffer.wrap(firstCodec.encode(record));
+
+		ByteBuffer replayed = ByteBuffer.wrap(secondCodec.applyPatch(row, firstCodec.encodePatch(Map.of("name", "\"renamed\""))));
+		assertEquals(1, RowCodec.rowVersion(replayed));
+		assertEquals("renamed", secondCodec.decodeField(replayed, 2).toString());
+
+		ByteBuffer patched = ByteBuffer.wrap(secondCodec.applyPatch(row, secondCodec.encodePatch(Map.of("rank", "7"))));
+		assertEquals(2, RowCodec.rowVersion(patched));
+		assertEquals("{\"id\":5,\"rank\":7,\"name\":\"five\"}", secondCodec.toJson(patched));
+	}
+
+	/**
+	 * Builds a single-object message of a schema whose body is the given longs.
+	 */
+	private static byte[] message(Schema schema, long... values) throws Exception {
+		GenericRecord record = new GenericData.Record(schema);
+		record.put("tags", List.of());
+		record.put("gaps", List.of());
+		ByteBuffer valid = new BinaryMessageEncoder<GenericRecord>(GenericData.get(), schema).encode(record);
+		byte[] header = new byte[10]; // Marker and fingerprint
+		valid.get(header);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(header);
+		BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+		for (long value : values) {
+			encoder.writeLong(value);
+		}
+		return out.toByteArray();
+	}
+}
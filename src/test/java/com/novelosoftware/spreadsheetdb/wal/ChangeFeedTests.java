@@ -0,0 +1,64 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ChangeFeedTests {
+
+	@Test
+	void entriesArePublishedInSequenceOrder() throws Exception {
+		ChangeFeed feed = new ChangeFeed(4);
+		feed.start(10);
+		feed.publish(entry(12, "people"));
+		assertEquals(0, feed.read(10, name -> true, 10, 0).getEntries().size());
+
+		feed.publish(entry(11, "pets"));
+		ChangeBatch batch = feed.read(10, name -> true, 10, 0);
+		assertEquals(List.of(11L, 12L), batch.getEntries().stream().map(LogEntry::getSequence).toList());
+		assertEquals(12L, batch.getLastSequence());
+
+		ChangeBatch people = feed.read(10, "people"::equals, 10, 0);
+		assertEquals(1, people.getEntries().size());
+		assertEquals(12L, people.getLastSequence());
+		assertThrows(IllegalArgumentException.class, () -> feed.read(13, name -> true, 10, 0));
+	}
+
+	@Test
+	void readersBehindTheRingAreTurnedAway() throws Exception {
+		ChangeFeed feed = new ChangeFeed(2);
+		feed.start(0);
+		for (long sequence = 1; sequence <= 3; sequence++) {
+			feed.publish(entry(sequence, "people"));
+		}
+		assertNull(feed.read(0, name -> true, 10, 0));
+		assertEquals(2, feed.read(1, name -> true, 10, 0).getEntries().size());
+		assertEquals(1L, feed.getFloorSequence());
+	}
+
+	@Test
+	void skippedEntriesDontHoldBackTheOnesAfterThem() throws Exception {
+		ChangeFeed feed = new ChangeFeed(4);
+		feed.start(0);
+		feed.publish(entry(1, "people"));
+		feed.publish(entry(3, "people"));
+		assertEquals(1L, feed.getLastSequence());
+
+		feed.skip(2);
+		assertEquals(3L, feed.getLastSequence());
+		ChangeBatch batch = feed.read(1, name -> true, 10, 0);
+		assertEquals(List.of(3L), batch.getEntries().stream().map(LogEntry::getSequence).toList());
+		assertEquals(3L, batch.getLastSequence());
+
+		feed.skip(3);
+		assertEquals(2, feed.read(0, name -> true, 10, 0).getEntries().size());
+	}
+
+	private static LogEntry entry(long sequence, String schemaName) {
+		return new LogEntry(sequence, schemaName, new byte[] { 1 });
+	}
+}
@@ -0,0 +1,51 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ShardedWriteAheadLogTests {
+
+	@TempDir
+	Path logPath;
+
+	@Test
+	void shardLogsAreReplayedInOneSequenceOrder() throws Exception {
+		ShardedWriteAheadLog writeAheadLog = open(4);
+		writeAheadLog.recover(0, entry -> { });
+		List<CompletableFuture<Long>> appended = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			appended.add(writeAheadLog.append(i % 4, "table", new byte[] { (byte) i }));
+		}
+		CompletableFuture.allOf(appended.toArray(CompletableFuture[]::new)).get();
+		writeAheadLog.close();
+		for (int shard = 0; shard < 4; shard++) {
+			assertTrue(Files.isDirectory(logPath.resolve("shard-" + shard)));
+		}
+
+		// With fewer shards the logs of shards 2 and 3 are retired, their entries are still replayed
+		List<LogEntry> replayed = new ArrayList<>();
+		ShardedWriteAheadLog reopened = open(2);
+		assertEquals(40L, reopened.recover(0, replayed::add));
+		assertEquals(40, replayed.size());
+		for (int i = 0; i < 40; i++) {
+			assertEquals(i + 1L, replayed.get(i).getSequence());
+			assertEquals((long) appended.get(replayed.get(i).getPayload()[0]).get(), replayed.get(i).getSequence());
+		}
+		assertEquals(41L, (long) reopened.append(1, "table", new byte[] { 40 }).get());
+		reopened.close();
+	}
+
+	private ShardedWriteAheadLog open(int shards) {
+		return new ShardedWriteAheadLog(logPath.toString(), 256, "fsync-per-batch", 100, shards, 1000);
+	}
+
+}
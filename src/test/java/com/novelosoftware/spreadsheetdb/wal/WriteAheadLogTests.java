@@ -0,0 +1,110 @@
+package com.novelosoftware.spreadsheetdb.wal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadLogTests {
+
+	@TempDir
+	Path logPath;
+
+	@Test
+	void replaysAppendedEntriesAcrossSegments() throws Exception {
+		WriteAheadLog writeAheadLog = open();
+		writeAheadLog.recover(0, entry -> { });
+		List<CompletableFuture<Long>> appended = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			appended.add(writeAheadLog.append("table", new byte[] { (byte) i, 1, 2, 3 }));
+		}
+		CompletableFuture.allOf(appended.toArray(CompletableFuture[]::new)).get();
+		assertEquals(100L, (long) appended.get(99).get());
+		writeAheadLog.close();
+
+		List<LogEntry> replayed = new ArrayList<>();
+		WriteAheadLog reopened = open();
+		assertEquals(100L, reopened.recover(10, replayed::add));
+		reopened.close();
+
+		assertEquals(90, replayed.size());
+		assertEquals(11L, replayed.get(0).getSequence());
+		assertEquals("table", replayed.get(0).getSchemaName());
+		assertArrayEquals(new byte[] { 10, 1, 2, 3 }, replayed.get(0).getPayload());
+	}
+
+	@Test
+	void truncatesTornTailOfLastSegment() throws Exception {
+		WriteAheadLog writeAheadLog = open();
+		writeAheadLog.recover(0, entry -> { });
+		writeAheadLog.append("table", new byte[] { 1 }).get();
+		writeAheadLog.append("table", new byte[] { 2 }).get();
+		writeAheadLog.close();
+
+		Path segment;
+		try (var files = Files.list(logPath)) {
+			segment = files.sorted().reduce((first, second) -> second).orElseThrow();
+		}
+		Files.write(segment, new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+		List<LogEntry> replayed = new ArrayList<>();
+		WriteAheadLog reopened = open();
+		assertEquals(2L, reopened.recover(0, replayed::add));
+		assertEquals(3L, (long) reopened.append("table", new byte[] { 3 }).get());
+		reopened.close();
+		assertEquals(2, replayed.size());
+	}
+
+	@Test
+	void replaysPatchesApartFromRows() throws Exception {
+		WriteAheadLog writeAheadLog = open();
+		writeAheadLog.recover(0, entry -> { });
+		writeAheadLog.append("table", new byte[] { 1, 2 });
+		writeAheadLog.appendPatch("table", new byte[] { 3 }).get();
+		writeAheadLog.close();
+
+		List<LogEntry> replayed = new ArrayList<>();
+		WriteAheadLog reopened = open();
+		assertEquals(2L, reopened.recover(0, replayed::add));
+		reopened.close();
+
+		assertFalse(replayed.get(0).isPatch());
+		assertTrue(replayed.get(1).isPatch());
+		assertArrayEquals(new byte[] { 3 }, replayed.get(1).getPayload());
+	}
+
+	@Test
+	void historyReadsSkipSegmentsBeforeTheRequestedSequence() throws Exception {
+		WriteAheadLog writeAheadLog = open();
+		writeAheadLog.recover(0, entry -> { });
+		for (int i = 0; i < 100; i++) {
+			writeAheadLog.append("table", new byte[] { (byte) i, 1, 2, 3 }).get();
+		}
+		// Reading the damaged first segment would fail, the read must not open it
+		Path first;
+		try (var files = Files.list(logPath)) {
+			first = files.sorted().findFirst().orElseThrow();
+		}
+		Files.write(first, new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.TRUNCATE_EXISTING);
+
+		try (WriteAheadLog.LogCursor cursor = writeAheadLog.readHistory(50)) {
+			assertEquals(51L, cursor.next().getSequence());
+		}
+		writeAheadLog.close();
+	}
+
+	private WriteAheadLog open() {
+		return new WriteAheadLog(logPath.toString(), 256, "fsync-per-batch", 100);
+	}
+
+}